@@ -561,6 +561,26 @@ public class OperationsParams extends Configuration {
 		conf.set(param, str);
 	}
 
+	public Point getQueryPoint(String key, Point defaultValue) {
+		return getQueryPoint(this, key, defaultValue);
+	}
+
+	/**
+	 * Returns the query point stored in the given configuration parameter. The
+	 * value can be either a plain "x,y" pair or a point set using
+	 * {@link #setShape(Configuration, String, Shape)}.
+	 * 
+	 * @param conf The configuration to read from
+	 * @param key The name of the configuration parameter
+	 * @param defaultValue The value to return if the parameter is not set
+	 * @return The query point or the default value
+	 */
+	public static Point getQueryPoint(Configuration conf, String key,
+			Point defaultValue) {
+		Shape point = getShape(conf, key, defaultValue);
+		return point instanceof Point ? (Point) point : defaultValue;
+	}
+
 	/** Data type for the direction of skyline to compute */
 	public enum Direction {
 		MaxMax, MaxMin, MinMax, MinMin
@@ -0,0 +1,229 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * Estimates the sum of a value over all records of a population that is
+ * divided into strata, e.g., the partitions of a globally indexed file.
+ * A random sample is drawn from each stratum and the estimate is refined with
+ * larger samples until its confidence interval is within a given relative
+ * error. Strata whose sum is known exactly do not need to be sampled.
+ */
+public class StratifiedEstimator {
+  private static final Log LOG = LogFactory.getLog(StratifiedEstimator.class);
+
+  /**Number of records sampled from each stratum in the first round*/
+  private static final int N_MIN = 100;
+
+  /**
+   * Minimum number of sampling rounds before an estimate is accepted so that
+   * it is confirmed by a second and larger sample
+   */
+  private static final int MIN_ROUNDS = 2;
+
+  /**
+   * A part of the population that is sampled independently.
+   */
+  public static interface Stratum {
+    /**
+     * Total number of records in this stratum
+     * @return
+     */
+    long size();
+
+    /**
+     * Draws a random sample of the given size from this stratum and returns
+     * the value of each sampled record. Values are expected to be in the
+     * range [0, 1], e.g., 1 for a record that matches a query and 0 otherwise.
+     * @param count
+     * @param seed
+     * @return
+     */
+    double[] sample(int count, long seed);
+
+    /**
+     * Computes the exact sum of the values of all records in this stratum.
+     * Called when the required sample is as large as the stratum itself.
+     * @return
+     */
+    double scan();
+  }
+
+  /**
+   * The percentile of the normal distribution corresponding to the
+   * confidence of the interval. Same as {@link Estimator}
+   */
+  protected double z = 2.575829; // This corresponds to 99% confidence
+
+  /**Sum of strata with a known exact value*/
+  protected double exactSum;
+
+  /**Strata to sample*/
+  protected Stratum[] strata;
+
+  /**Number of parallel threads used to sample different strata*/
+  protected int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**Seed of the random generator used to draw samples*/
+  protected long seed = System.currentTimeMillis();
+
+  /**Fraction of records read after the last call to getEstimate*/
+  protected double sampledFraction;
+
+  public StratifiedEstimator(Stratum[] strata, double exactSum) {
+    this.strata = strata;
+    this.exactSum = exactSum;
+  }
+
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Fraction of the records in all sampled strata that were read to compute
+   * the last estimate.
+   * @return
+   */
+  public double getSampledFraction() {
+    return sampledFraction;
+  }
+
+  /**
+   * Samples strata progressively until the half-width of the confidence
+   * interval is at most the given fraction of the estimate.
+   * @param errorBound - the maximum relative error, e.g., 0.01 for 1%
+   * @return the lower and upper limits of the confidence interval
+   */
+  public Estimator.Range<Double> getEstimate(double errorBound) {
+    final int numStrata = strata.length;
+    // Statistics of the samples drawn from each stratum so far
+    final long[] n = new long[numStrata];
+    // Number of records requested from each stratum so far
+    final long[] requested = new long[numStrata];
+    final double[] sum = new double[numStrata];
+    final double[] sum2 = new double[numStrata];
+    final boolean[] exact = new boolean[numStrata];
+    final int[] toDraw = new int[numStrata];
+
+    long totalSize = 0;
+    for (int h = 0; h < numStrata; h++) {
+      totalSize += strata[h].size();
+      toDraw[h] = (int) Math.min(N_MIN, strata[h].size());
+    }
+
+    double estimate, halfWidth;
+    int round = 0;
+    while (true) {
+      drawSamples(n, requested, sum, sum2, exact, toDraw, seed + round * (long) numStrata);
+      round++;
+
+      // Compute the estimate and its variance
+      estimate = exactSum;
+      double variance = 0;
+      long totalSampled = 0, totalRequested = 0;
+      double[] stdDev = new double[numStrata];
+      for (int h = 0; h < numStrata; h++) {
+        long N = strata[h].size();
+        if (exact[h]) {
+          estimate += sum[h];
+          totalSampled += N;
+        } else if (n[h] > 0) {
+          double mean = sum[h] / n[h];
+          double s2 = n[h] > 1 ? (sum2[h] - n[h] * mean * mean) / (n[h] - 1) : 0;
+          if (s2 <= 0) {
+            // All sampled values are equal, e.g., none of the sampled records
+            // matches, which does not mean that the other records are equal
+            // too. Use the variance of a Bernoulli variable with the upper
+            // bound of its rate according to the rule of three.
+            double p = Math.min(0.5, 3.0 / n[h]);
+            s2 = p * (1 - p);
+          }
+          stdDev[h] = Math.sqrt(s2);
+          estimate += N * mean;
+          variance += (double) N * N * s2 / n[h];
+          totalSampled += n[h];
+        }
+        totalRequested += exact[h] ? N : requested[h];
+      }
+      halfWidth = z * Math.sqrt(variance);
+      sampledFraction = totalSize == 0 ? 1.0 : Math.min(1.0, (double) totalSampled / totalSize);
+      LOG.info(String.format("Round #%d: estimate %f +/- %f from %.2f%% of the records",
+          round, estimate, halfWidth, sampledFraction * 100));
+
+      if (round >= MIN_ROUNDS && halfWidth <= errorBound * Math.abs(estimate))
+        break;
+      // Neyman allocation: double the sample size and distribute the new
+      // records to strata in proportion to their size and standard deviation
+      double totalWeight = 0;
+      double[] weight = new double[numStrata];
+      for (int h = 0; h < numStrata; h++) {
+        if (exact[h])
+          continue;
+        // A stratum with no sample yet gets the largest possible deviation
+        double s = n[h] > 0 ? stdDev[h] : 0.5;
+        weight[h] = strata[h].size() * s;
+        totalWeight += weight[h];
+      }
+      if (totalWeight == 0)
+        break; // All strata were computed exactly
+      long batchSize = Math.max(totalRequested, N_MIN);
+      for (int h = 0; h < numStrata; h++) {
+        toDraw[h] = exact[h] ? 0 :
+          (int) Math.min(Integer.MAX_VALUE, Math.ceil(batchSize * weight[h] / totalWeight));
+      }
+    }
+    return new Estimator.Range<Double>(estimate - halfWidth, estimate + halfWidth);
+  }
+
+  /**
+   * Draws the given number of records from each stratum in parallel and
+   * updates the sample statistics. A stratum is scanned instead if the
+   * total sample drawn from it would not be smaller than the stratum itself.
+   */
+  private void drawSamples(final long[] n, final long[] requested,
+      final double[] sum, final double[] sum2, final boolean[] exact,
+      final int[] toDraw, final long roundSeed) {
+    try {
+      Parallel.forEach(strata.length, new RunnableRange<Object>() {
+        @Override
+        public Object run(int i1, int i2) {
+          for (int h = i1; h < i2; h++) {
+            if (exact[h] || toDraw[h] == 0)
+              continue;
+            if (requested[h] + toDraw[h] >= strata[h].size()) {
+              sum[h] = strata[h].scan();
+              exact[h] = true;
+            } else {
+              double[] values = strata[h].sample(toDraw[h], roundSeed + h);
+              for (double value : values) {
+                sum[h] += value;
+                sum2[h] += value * value;
+              }
+              n[h] += values.length;
+              requested[h] += toDraw[h];
+            }
+          }
+          return null;
+        }
+      }, parallelism);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupt error ", e);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * A polygon prepared for repeated point-in-polygon tests. The geometry is
+ * wrapped in a JTS {@link PreparedGeometry} and, after enough tests, the MBR
+ * of the polygon is covered by a uniform grid where each cell is classified
+ * as interior, exterior, or boundary. Points that fall in an interior or an
+ * exterior cell are answered without any geometric test.
+ * A point on the boundary of the polygon is considered inside it which is
+ * consistent with {@link OGCJTSShape#isIntersected(Shape)}.
+ */
+public class PreparedPolygon {
+  /**Cell classes in the acceleration grid*/
+  private static final byte Boundary = 0;
+  private static final byte Interior = 1;
+  private static final byte Exterior = 2;
+
+  /**Number of columns and rows in the acceleration grid*/
+  public static final int GridSize = 16;
+
+  /**Polygons with fewer points are tested directly without a grid*/
+  public static final int MinPointsForGrid = 32;
+
+  /**The shape of this polygon*/
+  public final Shape shape;
+  /**The MBR of the polygon*/
+  public final Envelope envelope;
+
+  private final Geometry geom;
+  private final PreparedGeometry prepared;
+  private final GeometryFactory factory;
+
+  /**Number of geometric tests done so far. Used to decide when to build the grid*/
+  private int numTests;
+  /**Cell classes of the grid or null if not built yet*/
+  private byte[] cells;
+  private double cellWidth, cellHeight;
+
+  /**
+   * Prepares the geometry of the given shape
+   * @param shape
+   */
+  public PreparedPolygon(OGCJTSShape shape) {
+    this.shape = shape;
+    this.geom = shape.geom;
+    this.envelope = geom.getEnvelopeInternal();
+    this.factory = geom.getFactory();
+    this.prepared = PreparedGeometryFactory.prepare(geom);
+  }
+
+  /**
+   * Tests whether the given point is inside this polygon or on its boundary
+   * @param x
+   * @param y
+   * @return
+   */
+  public boolean contains(double x, double y) {
+    if (!envelope.contains(x, y))
+      return false;
+    if (cells == null && geom.getNumPoints() >= MinPointsForGrid
+        && ++numTests > GridSize * GridSize)
+      buildGrid();
+    if (cells != null) {
+      int col = (int) ((x - envelope.getMinX()) / cellWidth);
+      int row = (int) ((y - envelope.getMinY()) / cellHeight);
+      if (col >= GridSize) col = GridSize - 1;
+      if (row >= GridSize) row = GridSize - 1;
+      byte cellClass = cells[row * GridSize + col];
+      if (cellClass == Interior)
+        return true;
+      if (cellClass == Exterior)
+        return false;
+    }
+    return prepared.intersects(factory.createPoint(new Coordinate(x, y)));
+  }
+
+  /**
+   * Classifies each cell in the grid that covers the MBR of the polygon.
+   * An interior cell is completely contained in the polygon and an exterior
+   * cell is completely disjoint from it, including the cell boundaries.
+   * Hence, the class of a cell holds for points on its edges as well.
+   */
+  private void buildGrid() {
+    cellWidth = envelope.getWidth() / GridSize;
+    cellHeight = envelope.getHeight() / GridSize;
+    double marginX = cellWidth * 1E-6, marginY = cellHeight * 1E-6;
+    byte[] newCells = new byte[GridSize * GridSize];
+    if (cellWidth > 0 && cellHeight > 0) {
+      for (int row = 0; row < GridSize; row++) {
+        for (int col = 0; col < GridSize; col++) {
+          double x1 = envelope.getMinX() + col * cellWidth;
+          double y1 = envelope.getMinY() + row * cellHeight;
+          // Slightly expand the cell to tolerate rounding errors in contains
+          Geometry cell = factory.toGeometry(new Envelope(x1 - marginX,
+              x1 + cellWidth + marginX, y1 - marginY, y1 + cellHeight + marginY));
+          if (prepared.containsProperly(cell))
+            newCells[row * GridSize + col] = Interior;
+          else if (!prepared.intersects(cell))
+            newCells[row * GridSize + col] = Exterior;
+          else
+            newCells[row * GridSize + col] = Boundary;
+        }
+      }
+    }
+    // A degenerate polygon keeps all cells as boundary cells
+    cells = newCells;
+  }
+}
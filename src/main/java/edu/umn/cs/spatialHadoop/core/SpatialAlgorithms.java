@@ -12,7 +12,6 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -34,19 +33,26 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.indexing.HilbertCurvePartitioner;
 import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.util.BitArray;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 import edu.umn.cs.spatialHadoop.util.Progressable;
+import edu.umn.cs.spatialHadoop.util.ProgressableSynchronizer;
+import edu.umn.cs.spatialHadoop.util.ResultCollectorSynchronizer;
 
 /**
  * Performs simple algorithms for spatial data.
@@ -97,326 +103,430 @@ class TOPK {
 public class SpatialAlgorithms {
   public static final Log LOG = LogFactory.getLog(SpatialAlgorithms.class);
   
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
-	      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
-	      Reporter reporter)
-	      throws IOException {
-	  
-	  	LOG.debug("Start spatial join plan sweep algorithm !!!");
-	  
-	    final RectangleID[] Rmbrs = new RectangleID[R.size()];
-	    for (int i = 0; i < R.size(); i++) {
-	      Rmbrs[i] = new RectangleID(i, R.get(i).getMBR());
-	    }
-	    final RectangleID[] Smbrs = new RectangleID[S.size()];
-	    for (int i = 0; i < S.size(); i++) {
-	      Smbrs[i] = new RectangleID(i, S.get(i).getMBR());
-	    }	    
-	    
-	    final IntWritable count = new IntWritable();
-	    int filterCount = SpatialJoin_rectangles(Rmbrs, Smbrs, new OutputCollector<RectangleID, RectangleID>() {
-	        @Override
-	        public void collect(RectangleID r1, RectangleID r2)
-	            throws IOException {
-	          //if (R.get(r1.id).isIntersected(S.get(r2.id))) {
-	            if (output != null)
-	              output.collect(R.get(r1.id), S.get(r2.id));
-	            count.set(count.get() + 1);
-	          //}
-	        }
-	    }, reporter);
-	      
-	      LOG.debug("Filtered result size "+filterCount+", refined result size "+count.get());
-	      
-	      return count.get();
-	}
+  /**Number of candidate pairs reported in one block by the MBR plane-sweep*/
+  public static final int CandidateBlockSize = 1024;
+
+  /**Minimum number of MBRs in a join to sweep x-strips in parallel*/
+  public static final int ParallelJoinThreshold = 10000;
 
-  
   /**
-   * @param R
-   * @param S
-   * @param output
-   * @return
-   * @throws IOException
+   * Receives the candidate pairs found by the MBR plane-sweep as indexes in
+   * the two inputs. The arrays are reused after the call returns. If the
+   * plane-sweep runs in parallel, this method is called from several threads.
    */
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
-      List<S1> R, List<S2> S, ResultCollector2<S1, S2> output, Reporter reporter)
-      throws IOException {
-    int count = 0;
-
-    Comparator<Shape> comparator = new Comparator<Shape>() {
-      @Override
-      public int compare(Shape o1, Shape o2) {
-    	if (o1.getMBR().x1 == o2.getMBR().x1)
-    		return 0;
-        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
-      }
-    };
-
-    long t1 = System.currentTimeMillis();
-    Collections.sort(R, comparator);
-    Collections.sort(S, comparator);
+  public static interface CandidateCollector {
+    void collect(int[] rIndexes, int[] sIndexes, int count) throws IOException;
+  }
 
-		int i = 0, j = 0;
+  /**
+   * MBRs of a list of shapes stored column-wise in primitive arrays. A shape
+   * without an MBR gets an empty MBR that does not overlap any other MBR.
+   */
+  public static class MBRColumns {
+    public final double[] x1, y1, x2, y2;
+    /**The index of each MBR in the original list of shapes*/
+    public final int[] ids;
+    public final int size;
+    /**Whether the MBRs are stored in the order of x1*/
+    private boolean sortedByX1;
 
-    try {
-      while (i < R.size() && j < S.size()) {
-        S1 r;
-        S2 s;
-        if (comparator.compare(R.get(i), S.get(j)) < 0) {
-          r = R.get(i);
-          int jj = j;
+    private MBRColumns(int size) {
+      this.size = size;
+      x1 = new double[size];
+      y1 = new double[size];
+      x2 = new double[size];
+      y2 = new double[size];
+      ids = new int[size];
+    }
 
-          while ((jj < S.size())
-              && ((s = S.get(jj)).getMBR().x1 <= r.getMBR().x2)) {
-            // Check if r and s are overlapping but not the same object
-            // for self join
-            if (r.isIntersected(s) && !r.equals(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            jj++;
-            if (reporter !=  null)
-              reporter.progress();
-          }
-          i++;
+    public MBRColumns(List<? extends Shape> shapes) {
+      this(shapes.size());
+      for (int i = 0; i < size; i++) {
+        Rectangle mbr = shapes.get(i).getMBR();
+        ids[i] = i;
+        if (mbr == null) {
+          x1[i] = y1[i] = Double.POSITIVE_INFINITY;
+          x2[i] = y2[i] = Double.NEGATIVE_INFINITY;
         } else {
-          s = S.get(j);
-          int ii = i;
-
-          while ((ii < R.size())
-              && ((r = R.get(ii)).getMBR().x1 <= s.getMBR().x2)) {
-            if (r.isIntersected(s) && !r.equals(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            ii++;
-            if (reporter !=  null)
-              reporter.progress();
-          }
-          j++;
+          x1[i] = mbr.x1;
+          y1[i] = mbr.y1;
+          x2[i] = mbr.x2;
+          y2[i] = mbr.y2;
         }
-        if (reporter !=  null)
-          reporter.progress();
       }
-    } catch (RuntimeException e) {
-      e.printStackTrace();
     }
-    long t2 = System.currentTimeMillis();
-    return count;
-	}
 
-  
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
-	      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
-	    int count = 0;
-
-	    final Comparator<Shape> comparator = new Comparator<Shape>() {
-	      @Override
-	      public int compare(Shape o1, Shape o2) {
-	    	if (o1.getMBR().x1 == o2.getMBR().x1)
-	    		return 0;
-	        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
-	      }
-	    };
-	    
-	    long t1 = System.currentTimeMillis();
-	    Arrays.sort(R, comparator);
-	    Arrays.sort(S, comparator);
-
-	    int i = 0, j = 0;
-
-	    try {
-	      while (i < R.length && j < S.length) {
-	        S1 r;
-	        S2 s;
-	        if (comparator.compare(R[i], S[j]) < 0) {
-	          r = R[i];
-	          int jj = j;
-
-	          while ((jj < S.length)
-	              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            jj++;
-	            
-	            if (reporter != null)
-	              reporter.progress();
-	          }
-	          i++;
-	        } else {
-	          s = S[j];
-	          int ii = i;
-
-	          while ((ii < R.length)
-	              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            ii++;
-	          }
-	          j++;
-	          if (reporter != null)
-	            reporter.progress();
-	        }
-	        if (reporter != null)
-	          reporter.progress();
-	      }
-	    } catch (RuntimeException e) {
-	      e.printStackTrace();
-	    }
-	    long t2 = System.currentTimeMillis();
-	    return count;
-	  }
+    public MBRColumns(Shape[] shapes) {
+      this(Arrays.asList(shapes));
+    }
 
-  
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
-      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
-    int count = 0;
+    /**
+     * Returns a copy of these MBRs stored in the order of x1. The copy is
+     * contiguous in memory which makes the plane-sweep cache friendly. If
+     * these MBRs are already sorted, they are returned as is so that sorted
+     * columns can be reused across joins.
+     * @return
+     */
+    public MBRColumns sortByX1() {
+      if (sortedByX1)
+        return this;
+      final double[] keys = x1.clone();
+      final int[] order = new int[size];
+      for (int i = 0; i < size; i++)
+        order[i] = i;
+      new QuickSort().sort(new IndexedSortable() {
+        @Override
+        public void swap(int i, int j) {
+          double tk = keys[i]; keys[i] = keys[j]; keys[j] = tk;
+          int to = order[i]; order[i] = order[j]; order[j] = to;
+        }
 
-    final Comparator<Shape> comparator = new Comparator<Shape>() {
-      @Override
-      public int compare(Shape o1, Shape o2) {
-    	if (o1.getMBR().x1 == o2.getMBR().x1)
-    		return 0;
-        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
+        @Override
+        public int compare(int i, int j) {
+          if (keys[i] < keys[j]) return -1;
+          if (keys[i] > keys[j]) return 1;
+          return 0;
+        }
+      }, 0, size);
+      MBRColumns sorted = new MBRColumns(size);
+      for (int i = 0; i < size; i++)
+        sorted.copy(i, this, order[i]);
+      sorted.sortedByX1 = true;
+      return sorted;
+    }
+
+    /**
+     * Selects the MBRs that overlap the strip [xmin, xmax]. These MBRs must be
+     * sorted by x1 and the selected ones remain sorted.
+     * @param xmin
+     * @param xmax
+     * @return
+     */
+    public MBRColumns selectStrip(double xmin, double xmax) {
+      int count = 0;
+      for (int i = 0; i < size && x1[i] < xmax; i++) {
+        if (x2[i] >= xmin)
+          count++;
       }
-    };
-    
-    long t1 = System.currentTimeMillis();
-    Arrays.sort(R, comparator);
-    Arrays.sort(S, comparator);
+      MBRColumns strip = new MBRColumns(count);
+      count = 0;
+      for (int i = 0; i < size && x1[i] < xmax; i++) {
+        if (x2[i] >= xmin)
+          strip.copy(count++, this, i);
+      }
+      strip.sortedByX1 = true;
+      return strip;
+    }
 
-    int i = 0, j = 0;
+    private void copy(int i, MBRColumns src, int j) {
+      x1[i] = src.x1[j];
+      y1[i] = src.y1[j];
+      x2[i] = src.x2[j];
+      y2[i] = src.y2[j];
+      ids[i] = src.ids[j];
+    }
+  }
 
+  /**
+   * Finds all pairs of overlapping MBRs using a plane-sweep over the MBR
+   * columns. Candidate pairs are reported in blocks of
+   * {@link #CandidateBlockSize} pairs. If parallelism is more than one, the
+   * x-axis is split into strips with roughly the same number of MBRs and
+   * each strip is swept by a separate thread. A pair is reported only by
+   * the strip that contains the larger x1 of the two MBRs.
+   * @param R
+   * @param S
+   * @param strict - if <code>true</code>, MBRs that only touch are not
+   *  reported which is consistent with {@link Rectangle#isIntersected(Shape)}
+   * @param output
+   * @param parallelism - maximum number of threads to use
+   * @param reporter
+   * @return number of candidate pairs
+   * @throws IOException
+   */
+  public static long SpatialJoin_mbrs(MBRColumns R, MBRColumns S,
+      final boolean strict, final CandidateCollector output, int parallelism,
+      final Progressable reporter) throws IOException {
+    final MBRColumns sortedR = R.sortByX1();
+    final MBRColumns sortedS = S.sortByX1();
+    if (parallelism <= 1 || R.size + S.size < ParallelJoinThreshold)
+      return planeSweepMBRs(sortedR, sortedS, strict,
+          Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, output, reporter);
+
+    // Split the x-axis at quantiles of the larger input
+    MBRColumns larger = R.size >= S.size ? sortedR : sortedS;
+    final double[] stripBounds = new double[parallelism + 1];
+    stripBounds[0] = Double.NEGATIVE_INFINITY;
+    stripBounds[parallelism] = Double.POSITIVE_INFINITY;
+    for (int t = 1; t < parallelism; t++)
+      stripBounds[t] = larger.x1[(int) ((long) t * larger.size / parallelism)];
+    LOG.debug("Sweeping "+parallelism+" strips of "+R.size+" X "+S.size+" MBRs");
     try {
-      while (i < R.length && j < S.length) {
-        S1 r;
-        S2 s;
-        if (comparator.compare(R[i], S[j]) < 0) {
-          r = R[i];
-          int jj = j;
+      List<Long> counts = Parallel.forEach(parallelism, new RunnableRange<Long>() {
+        @Override
+        public Long run(int i1, int i2) {
+          long count = 0;
+          for (int t = i1; t < i2; t++) {
+            MBRColumns rStrip = sortedR.selectStrip(stripBounds[t], stripBounds[t + 1]);
+            MBRColumns sStrip = sortedS.selectStrip(stripBounds[t], stripBounds[t + 1]);
+            try {
+              count += planeSweepMBRs(rStrip, sStrip, strict,
+                  stripBounds[t], stripBounds[t + 1], output, reporter);
+            } catch (IOException e) {
+              throw new RuntimeException("Error joining strip #" + t, e);
+            }
+          }
+          return count;
+        }
+      }, parallelism);
+      long count = 0;
+      for (Long c : counts)
+        count += c;
+      return count;
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupt error ", e);
+    }
+  }
 
-          while ((jj < S.length)
-              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-            if (r.isIntersected(s)) {
-              if (output != null)
-                output.collect(r, s);
+  /**
+   * Plane-sweep over two lists of MBRs sorted by x1. Only pairs with a
+   * reference x (the larger x1) in [refX1, refX2) are reported.
+   */
+  private static long planeSweepMBRs(MBRColumns R, MBRColumns S,
+      boolean strict, double refX1, double refX2, CandidateCollector output,
+      Progressable reporter) throws IOException {
+    final double[] rx1 = R.x1, ry1 = R.y1, rx2 = R.x2, ry2 = R.y2;
+    final double[] sx1 = S.x1, sy1 = S.y1, sx2 = S.x2, sy2 = S.y2;
+    int[] rBlock = new int[CandidateBlockSize];
+    int[] sBlock = new int[CandidateBlockSize];
+    int blockSize = 0;
+    long count = 0;
+    int r = 0, s = 0;
+    while (r < R.size && s < S.size) {
+      if (rx1[r] < sx1[s]) {
+        final double x1 = rx1[r], y1 = ry1[r], x2 = rx2[r], y2 = ry2[r];
+        for (int ss = s; ss < S.size && sx1[ss] <= x2; ss++) {
+          if (strict ? (sx1[ss] < x2 && x1 < sx2[ss] && y1 < sy2[ss] && sy1[ss] < y2)
+              : (x1 <= sx2[ss] && y1 <= sy2[ss] && sy1[ss] <= y2)) {
+            // The reference x is sx1[ss] as rx1[r] < sx1[s] <= sx1[ss]
+            if (sx1[ss] >= refX1 && sx1[ss] < refX2) {
+              rBlock[blockSize] = R.ids[r];
+              sBlock[blockSize] = S.ids[ss];
               count++;
+              if (++blockSize == CandidateBlockSize) {
+                output.collect(rBlock, sBlock, blockSize);
+                blockSize = 0;
+              }
             }
-            jj++;
-            if (reporter != null)
-              reporter.progress();
           }
-          i++;
-        } else {
-          s = S[j];
-          int ii = i;
-
-          while ((ii < R.length)
-              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-            if (r.isIntersected(s)) {
-              if (output != null)
-                output.collect(r, s);
+        }
+        r++;
+      } else {
+        final double x1 = sx1[s], y1 = sy1[s], x2 = sx2[s], y2 = sy2[s];
+        for (int rr = r; rr < R.size && rx1[rr] <= x2; rr++) {
+          if (strict ? (rx1[rr] < x2 && x1 < rx2[rr] && ry1[rr] < y2 && y1 < ry2[rr])
+              : (x1 <= rx2[rr] && ry1[rr] <= y2 && y1 <= ry2[rr])) {
+            // The reference x is rx1[rr] as sx1[s] <= rx1[r] <= rx1[rr]
+            if (rx1[rr] >= refX1 && rx1[rr] < refX2) {
+              rBlock[blockSize] = R.ids[rr];
+              sBlock[blockSize] = S.ids[s];
               count++;
+              if (++blockSize == CandidateBlockSize) {
+                output.collect(rBlock, sBlock, blockSize);
+                blockSize = 0;
+              }
             }
-            ii++;
-            if (reporter != null)
-              reporter.progress();
           }
-          j++;
         }
-        if (reporter != null)
-          reporter.progress();
+        s++;
       }
-    } catch (RuntimeException e) {
-      e.printStackTrace();
+      if (reporter != null)
+        reporter.progress();
     }
-    long t2 = System.currentTimeMillis();
+    if (blockSize > 0)
+      output.collect(rBlock, sBlock, blockSize);
     return count;
   }
 
   /**
-   * Self join of rectangles. This method runs faster than the general version
-   * because it just performs the filter step based on the rectangles.
+   * Joins two lists of shapes by running the MBR plane-sweep and then
+   * refining the candidate pairs using the shapes.
+   * @param R
+   * @param S
+   * @param sColumns - the MBRs of S or <code>null</code> to compute them
+   * @param refine - whether to test the shapes or only their MBRs
+   * @param skipEqual - whether to skip pairs of equal shapes
    * @param output
-   * @return
+   * @param reporter
+   * @param parallelism
+   * @return number of reported pairs
    * @throws IOException
    */
-  public static <S1 extends Rectangle, S2 extends Rectangle> int SpatialJoin_rectangles(final S1[] R, final S2[] S,
-      OutputCollector<S1, S2> output, Reporter reporter) throws IOException {
-    int count = 0;
-
-    final Comparator<Rectangle> comparator = new Comparator<Rectangle>() {
+  private static <S1 extends Shape, S2 extends Shape> int joinAndRefine(
+      final List<S1> R, final List<S2> S, MBRColumns sColumns,
+      final boolean refine, final boolean skipEqual,
+      final ResultCollector2<S1, S2> output, Reporter reporter,
+      int parallelism) throws IOException {
+    final int[] count = new int[1];
+    if (sColumns == null)
+      sColumns = new MBRColumns(S);
+    long filterCount = SpatialJoin_mbrs(new MBRColumns(R), sColumns,
+        !refine, new CandidateCollector() {
       @Override
-      public int compare(Rectangle o1, Rectangle o2) {
-    	if (o1.x1 == o2.x1)
-    		  return 0;
-        return o1.x1 < o2.x1 ? -1 : 1;
+      public void collect(int[] rIndexes, int[] sIndexes, int n) {
+        for (int k = 0; k < n; k++) {
+          S1 r = R.get(rIndexes[k]);
+          S2 s = S.get(sIndexes[k]);
+          if (refine && !r.isIntersected(s))
+            continue;
+          if (skipEqual && r.getClass() == s.getClass() && r.equals(s))
+            continue;
+          synchronized (count) {
+            if (output != null)
+              output.collect(r, s);
+            count[0]++;
+          }
+        }
       }
-    };
-    
-    long t1 = System.currentTimeMillis();
-    LOG.debug("Spatial Join of "+ R.length+" X " + S.length + "shapes");
-    Arrays.sort(R, comparator);
-    Arrays.sort(S, comparator);
-    
-    int i = 0, j = 0;
+    }, parallelism, reporter == null ? null : new Progressable.ReporterProgressable(reporter));
+    LOG.debug("Filtered result size "+filterCount+", refined result size "+count[0]);
+    return count[0];
+  }
+
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
+      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) throws IOException {
+    return SpatialJoin_planeSweepFilterOnly(R, S, output, reporter, 1);
+  }
+
+  /**
+   * Reports all pairs of shapes with overlapping MBRs.
+   * @param R
+   * @param S
+   * @param output
+   * @param reporter
+   * @param parallelism - maximum number of threads to use
+   * @return
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
+      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
+      Reporter reporter, int parallelism) throws IOException {
+    return SpatialJoin_planeSweepFilterOnly(R, S, null, output, reporter, parallelism);
+  }
+
+  /**
+   * Reports all pairs of shapes with overlapping MBRs. The MBRs of S are
+   * given by the caller which allows sorting them once, using
+   * {@link MBRColumns#sortByX1()}, and joining them with many lists.
+   * @param R
+   * @param S
+   * @param sColumns - the MBRs of the shapes in S in the same order
+   * @param output
+   * @param reporter
+   * @param parallelism - maximum number of threads to use
+   * @return
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
+      final List<S1> R, final List<S2> S, MBRColumns sColumns,
+      final ResultCollector2<S1, S2> output, Reporter reporter, int parallelism)
+      throws IOException {
+    LOG.debug("Start spatial join plan sweep algorithm !!!");
+    return joinAndRefine(R, S, sColumns, false, false, output, reporter, parallelism);
+  }
 
+  /**
+   * @param R
+   * @param S
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      List<S1> R, List<S2> S, ResultCollector2<S1, S2> output, Reporter reporter)
+      throws IOException {
+    return SpatialJoin_planeSweep(R, S, output, reporter, 1);
+  }
+
+  /**
+   * Reports all pairs of overlapping shapes except for pairs of equal shapes.
+   * @param R
+   * @param S
+   * @param output
+   * @param reporter
+   * @param parallelism - maximum number of threads to use
+   * @return
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      List<S1> R, List<S2> S, ResultCollector2<S1, S2> output, Reporter reporter,
+      int parallelism) throws IOException {
+    return SpatialJoin_planeSweep(R, S, null, output, reporter, parallelism);
+  }
+
+  /**
+   * Reports all pairs of overlapping shapes except for pairs of equal shapes.
+   * The MBRs of S are given by the caller which allows sorting them once,
+   * using {@link MBRColumns#sortByX1()}, and joining them with many lists.
+   * @param R
+   * @param S
+   * @param sColumns - the MBRs of the shapes in S in the same order
+   * @param output
+   * @param reporter
+   * @param parallelism - maximum number of threads to use
+   * @return
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      List<S1> R, List<S2> S, MBRColumns sColumns,
+      ResultCollector2<S1, S2> output, Reporter reporter, int parallelism)
+      throws IOException {
+    return joinAndRefine(R, S, sColumns, true, true, output, reporter, parallelism);
+  }
+
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
+      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
     try {
-    	 while (i < R.length && j < S.length) {
-    	        S1 r;
-    	        S2 s;
-    	        if (comparator.compare(R[i], S[j]) < 0) {
-    	          r = R[i];
-    	          int jj = j;
-
-    	          while ((jj < S.length)
-    	              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-    	            if (r.isIntersected(s)) {
-    	              if (output != null)
-    	                output.collect(r, s);
-    	              count++;
-    	            }
-    	            jj++;
-    	          }
-    	          i++;
-    	          if (reporter != null)
-    	            reporter.progress();
-    	        } else {
-    	          s = S[j];
-    	          int ii = i;
-
-    	          while ((ii < R.length)
-    	              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-    	            if (r.isIntersected(s)) {
-    	              if (output != null)
-    	                output.collect(r, s);
-    	              count++;
-    	            }
-    	            ii++;
-    	            if (reporter != null)
-    	              reporter.progress();
-    	          }
-    	          j++;
-    	        }
-    	        if (reporter != null)
-    	          reporter.progress();
-    	      }
+      return joinAndRefine(Arrays.asList(R), Arrays.asList(S), null, false,
+          false, output, reporter, 1);
+    } catch (IOException e) {
+      // Cannot happen as the result collector does not throw IOException
+      throw new RuntimeException(e);
+    }
+  }
 
-    } catch (RuntimeException e) {
-      e.printStackTrace();
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
+    try {
+      return joinAndRefine(Arrays.asList(R), Arrays.asList(S), null, true,
+          false, output, reporter, 1);
+    } catch (IOException e) {
+      // Cannot happen as the result collector does not throw IOException
+      throw new RuntimeException(e);
     }
-    long t2 = System.currentTimeMillis();
+  }
 
-    return count;
+  /**
+   * Spatial join of rectangles. This method runs faster than the general version
+   * because it just performs the filter step based on the rectangles.
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  public static <S1 extends Rectangle, S2 extends Rectangle> int SpatialJoin_rectangles(final S1[] R, final S2[] S,
+      final OutputCollector<S1, S2> output, Reporter reporter) throws IOException {
+    LOG.debug("Spatial Join of "+ R.length+" X " + S.length + "shapes");
+    return (int) SpatialJoin_mbrs(new MBRColumns(R), new MBRColumns(S), true,
+        new CandidateCollector() {
+      @Override
+      public void collect(int[] rIndexes, int[] sIndexes, int n) throws IOException {
+        if (output != null) {
+          for (int k = 0; k < n; k++)
+            output.collect(R[rIndexes[k]], S[sIndexes[k]]);
+        }
+      }
+    }, 1, reporter == null ? null : new Progressable.ReporterProgressable(reporter));
   }
 
   
@@ -822,106 +932,259 @@ public class SpatialAlgorithms {
   }
 
 
+  /**Minimum number of nodes in one level of the cascaded union to merge in parallel*/
+  static final int ParallelUnionThreshold = 64;
+
+  /**Maximum size of a group that is unioned by one thread along with other groups*/
+  static final int SmallGroupSize = 1000;
+
   /**
-   * Union a group of (overlapping) geometries. It runs as follows.
+   * Union a group of (overlapping) geometries using a single thread.
+   * @see #unionGroup(Geometry[], Progressable, ResultCollector, int)
+   * @param geoms
+   * @param prog
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  public static int unionGroup(final Geometry[] geoms,
+      final Progressable prog, ResultCollector<Geometry> output) throws IOException {
+    return unionGroup(geoms, prog, output, 1);
+  }
+
+  /**
+   * Union a group of (overlapping) geometries using a cascaded union. It runs
+   * as follows.
    * <ol>
-   *  <li>All polygons are sorted by the x-dimension of their left most point</li>
-   *  <li>We run a plane-sweep algorithm that keeps merging polygons in batches of 500 objects</li>
-   *  <li>As soon as part of the answer is to the left of the sweep-line, it
-   *   is finalized and reported to the output</li>
-   *  <li>As the sweep line reaches the far right, all remaining polygons are
-   *   merged and the answer is reported</li>
+   *  <li>All polygons are sorted by the Hilbert value of their MBR centers</li>
+   *  <li>Adjacent polygons in that order are merged pair-wise, level by level,
+   *   until one geometry remains. Pairs are unioned only if their MBRs
+   *   intersect, otherwise, they are simply combined.</li>
+   *  <li>After each level, every polygon that does not overlap any polygon
+   *   of another node is finalized and reported to the output</li>
    * </ol>
    * @param geoms
+   * @param prog
+   * @param output
+   * @param parallelism - maximum number of threads to use in each level
    * @return
    * @throws IOException 
    */
   public static int unionGroup(final Geometry[] geoms,
-      final Progressable prog, ResultCollector<Geometry> output) throws IOException {
+      final Progressable prog, ResultCollector<Geometry> output,
+      int parallelism) throws IOException {
     if (geoms.length == 1) {
-      output.collect(geoms[0]);
+      if (output != null)
+        output.collect(geoms[0]);
       return 1;
     }
-    // Sort objects by x to increase the chance of merging overlapping objects
-    for (Geometry geom : geoms) {
-      Coordinate[] coords = geom.getEnvelope().getCoordinates();
-      double minx = Math.min(coords[0].x, coords[2].x);
-      geom.setUserData(minx);
+    final GeometryFactory geomFactory = new GeometryFactory();
+    // Sort objects by the Hilbert value of their centers to make adjacent
+    // objects close to each other
+    Envelope groupMBR = new Envelope();
+    for (Geometry geom : geoms)
+      groupMBR.expandToInclude(geom.getEnvelopeInternal());
+    Rectangle hilbertSpace = new Rectangle(groupMBR.getMinX(), groupMBR.getMinY(),
+        groupMBR.getMaxX(), groupMBR.getMaxY());
+    final int[] hValues = new int[geoms.length];
+    for (int i = 0; i < geoms.length; i++) {
+      Envelope e = geoms[i].getEnvelopeInternal();
+      hValues[i] = HilbertCurvePartitioner.computeHValue(hilbertSpace,
+          (e.getMinX() + e.getMaxX()) / 2, (e.getMinY() + e.getMaxY()) / 2);
     }
-    
-    Arrays.sort(geoms, new Comparator<Geometry>() {
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        int th = hValues[i]; hValues[i] = hValues[j]; hValues[j] = th;
+        Geometry tg = geoms[i]; geoms[i] = geoms[j]; geoms[j] = tg;
+      }
+
       @Override
-      public int compare(Geometry o1, Geometry o2) {
-        Double d1 = (Double) o1.getUserData();
-        Double d2 = (Double) o2.getUserData();
-        if (d1 < d2) return -1;
-        if (d1 > d2) return +1;
+      public int compare(int i, int j) {
+        if (hValues[i] < hValues[j]) return -1;
+        if (hValues[i] > hValues[j]) return 1;
         return 0;
       }
-    });
-    LOG.debug("Sorted "+geoms.length+" geometries by x");
-  
-    final int MaxBatchSize = 500;
-    // All polygons that are to the right of the sweep line
-    List<Geometry> nonFinalPolygons = new ArrayList<Geometry>();
+    }, 0, geoms.length);
+    LOG.debug("Sorted "+geoms.length+" geometries by Hilbert value");
+
+    Geometry[] nodes = geoms;
     int resultSize = 0;
-    
-    long reportTime = 0;
-    int i = 0;
-    while (i < geoms.length) {
-      int batchSize = Math.min(MaxBatchSize, geoms.length - i);
-      for (int j = 0; j < batchSize; j++) {
-        nonFinalPolygons.add(geoms[i++]);
+    while (nodes.length > 1) {
+      // Merge each pair of adjacent nodes
+      final Geometry[] level = nodes;
+      final Geometry[] merged = new Geometry[(level.length + 1) / 2];
+      if (parallelism > 1 && level.length >= ParallelUnionThreshold) {
+        try {
+          Parallel.forEach(merged.length, new RunnableRange<Object>() {
+            @Override
+            public Object run(int i1, int i2) {
+              for (int i = i1; i < i2; i++)
+                merged[i] = unionNodes(level, 2 * i, geomFactory);
+              return null;
+            }
+          }, parallelism);
+        } catch (InterruptedException e) {
+          throw new RuntimeException("Interrupt error ", e);
+        }
+      } else {
+        for (int i = 0; i < merged.length; i++)
+          merged[i] = unionNodes(level, 2 * i, geomFactory);
       }
-      double sweepLinePosition = (Double)nonFinalPolygons.get(nonFinalPolygons.size() - 1).getUserData();
-      Geometry batchUnion;
-      batchUnion = safeUnion(nonFinalPolygons, new Progressable.NullProgressable() {
-        @Override
-        public void progress() { prog.progress(); }
-      });
       if (prog != null)
         prog.progress();
-  
-      nonFinalPolygons.clear();
-      if (batchUnion instanceof GeometryCollection) {
-        GeometryCollection coll = (GeometryCollection) batchUnion;
-        for (int n = 0; n < coll.getNumGeometries(); n++) {
-          Geometry geom = coll.getGeometryN(n);
-          Coordinate[] coords = geom.getEnvelope().getCoordinates();
-          double maxx = Math.max(coords[0].x, coords[2].x);
-          if (maxx < sweepLinePosition) {
-            // This part is finalized
-            resultSize++;
-            if (output != null)
-              output.collect(geom);
-          } else {
-            nonFinalPolygons.add(geom);
-          }
-        }
-      } else {
-        nonFinalPolygons.add(batchUnion);
+
+      // Report all finalized polygons early and keep the others
+      nodes = reportFinalized(merged, geomFactory, output);
+      resultSize += countComponents(merged) - countComponents(nodes);
+    }
+    
+    // Report the remaining polygons
+    for (Geometry node : nodes) {
+      for (int n = 0; n < node.getNumGeometries(); n++) {
+        if (output != null)
+          output.collect(node.getGeometryN(n));
+        resultSize++;
       }
-  
-      long currentTime = System.currentTimeMillis();
-      if (currentTime - reportTime > 60*1000) { // Report every one minute
-        if (prog != null) {
-          float p = i / (float)geoms.length;
-          prog.progress(p);
-        }
-        reportTime =  currentTime;
+    }
+    return resultSize;
+  }
+
+  /**
+   * Merges the node at position i with the one next to it, if any.
+   * @param level
+   * @param i
+   * @param geomFactory
+   * @return
+   */
+  private static Geometry unionNodes(Geometry[] level, int i,
+      GeometryFactory geomFactory) {
+    if (i + 1 >= level.length)
+      return level[i];
+    Geometry g1 = level[i], g2 = level[i + 1];
+    if (!g1.getEnvelopeInternal().intersects(g2.getEnvelopeInternal()))
+      return combine(g1, g2, geomFactory);
+    try {
+      return g1.union(g2);
+    } catch (Exception e) {
+      LOG.warn("Error in union, falling back to buffer", e);
+      try {
+        return combine(g1, g2, geomFactory).buffer(0);
+      } catch (Exception e1) {
+        // Log the error and keep both geometries to allow the method to finish
+        LOG.error("Error computing union", e1);
+        return combine(g1, g2, geomFactory);
+      }
+    }
+  }
+
+  /**
+   * Combines the parts of two geometries into one geometry without computing
+   * their union.
+   * @param g1
+   * @param g2
+   * @param geomFactory
+   * @return
+   */
+  private static Geometry combine(Geometry g1, Geometry g2,
+      GeometryFactory geomFactory) {
+    List<Geometry> parts = new ArrayList<Geometry>(
+        g1.getNumGeometries() + g2.getNumGeometries());
+    for (int n = 0; n < g1.getNumGeometries(); n++)
+      parts.add(g1.getGeometryN(n));
+    for (int n = 0; n < g2.getNumGeometries(); n++)
+      parts.add(g2.getGeometryN(n));
+    return geomFactory.buildGeometry(parts);
+  }
+
+  private static int countComponents(Geometry[] nodes) {
+    int count = 0;
+    for (Geometry node : nodes)
+      count += node.getNumGeometries();
+    return count;
+  }
+
+  /**
+   * Reports all parts of the given nodes that do not overlap any part of
+   * another node. These parts cannot change by any further union.
+   * @param nodes
+   * @param geomFactory
+   * @param output
+   * @return the nodes after removing all reported parts
+   */
+  private static Geometry[] reportFinalized(Geometry[] nodes,
+      GeometryFactory geomFactory, ResultCollector<Geometry> output) {
+    int numParts = countComponents(nodes);
+    final Geometry[] parts = new Geometry[numParts];
+    final int[] owners = new int[numParts];
+    final double[] minXs = new double[numParts];
+    int iPart = 0;
+    for (int iNode = 0; iNode < nodes.length; iNode++) {
+      for (int n = 0; n < nodes[iNode].getNumGeometries(); n++) {
+        parts[iPart] = nodes[iNode].getGeometryN(n);
+        owners[iPart] = iNode;
+        minXs[iPart] = parts[iPart].getEnvelopeInternal().getMinX();
+        iPart++;
+      }
+    }
+    // Plane-sweep over the parts sorted by x to find overlapping parts
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        Geometry tg = parts[i]; parts[i] = parts[j]; parts[j] = tg;
+        int to = owners[i]; owners[i] = owners[j]; owners[j] = to;
+        double tx = minXs[i]; minXs[i] = minXs[j]; minXs[j] = tx;
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        if (minXs[i] < minXs[j]) return -1;
+        if (minXs[i] > minXs[j]) return 1;
+        return 0;
+      }
+    }, 0, numParts);
+    boolean[] overlapping = new boolean[numParts];
+    for (int i = 0; i < numParts; i++) {
+      Envelope ei = parts[i].getEnvelopeInternal();
+      for (int j = i + 1; j < numParts && minXs[j] <= ei.getMaxX(); j++) {
+        if (owners[i] != owners[j] && ei.intersects(parts[j].getEnvelopeInternal()))
+          overlapping[i] = overlapping[j] = true;
       }
     }
     
-    // Combine all polygons together to produce the answer
-    if (output != null) {
-      for (Geometry finalPolygon : nonFinalPolygons)
-        output.collect(finalPolygon);
+    List<List<Geometry>> remaining = new ArrayList<List<Geometry>>();
+    for (int i = 0; i < nodes.length; i++)
+      remaining.add(new ArrayList<Geometry>());
+    for (int i = 0; i < numParts; i++) {
+      if (overlapping[i])
+        remaining.get(owners[i]).add(parts[i]);
+      else if (output != null)
+        output.collect(parts[i]);
     }
-    resultSize += nonFinalPolygons.size();
-      
-    return resultSize;
+    List<Geometry> newNodes = new ArrayList<Geometry>();
+    for (List<Geometry> nodeParts : remaining) {
+      if (nodeParts.size() == 1)
+        newNodes.add(nodeParts.get(0));
+      else if (nodeParts.size() > 1)
+        newNodes.add(geomFactory.buildGeometry(nodeParts));
+    }
+    return newNodes.toArray(new Geometry[newNodes.size()]);
   }
   
+  /**
+   * Computes the union of multiple groups of polygons using a single thread.
+   * @see #multiUnion(Geometry[], Progressable, ResultCollector, int)
+   * @param geoms
+   * @param prog
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  public static int multiUnion(Geometry[] geoms, final Progressable prog,
+      ResultCollector<Geometry> output) throws IOException {
+    return multiUnion(geoms, prog, output, 1);
+  }
+
   /**
    * Computes the union of multiple groups of polygons. The algorithm runs in
    * the following steps.
@@ -931,17 +1194,19 @@ public class SpatialAlgorithms {
    *  <li>Polygons are grouped into groups of overlapping polygons using
    *  {@link #groupPolygons(Geometry[], Progressable)} so that we
    *   can compute the answer of each group separately</li>
-   *  <li>The union of each group is computed using the {@link #unionGroup(Geometry[], Progressable, ResultCollector)}
-   *   function</li>
+   *  <li>The union of each group is computed using the {@link #unionGroup(Geometry[], Progressable, ResultCollector, int)}
+   *   function. Small groups are processed in parallel to each other while
+   *   large groups are processed one at a time using all threads.</li>
    * </ol>
    * @param geoms
    * @param prog
    * @param output
+   * @param parallelism - maximum number of threads to use
    * @return
    * @throws IOException
    */
   public static int multiUnion(Geometry[] geoms, final Progressable prog,
-      ResultCollector<Geometry> output) throws IOException {
+      ResultCollector<Geometry> output, int parallelism) throws IOException {
     final Geometry[] basicShapes = flattenGeometries(geoms);
     prog.progress();
     
@@ -949,8 +1214,41 @@ public class SpatialAlgorithms {
     prog.progress();
     
     int resultSize = 0;
+    final List<Geometry[]> smallGroups = new ArrayList<Geometry[]>();
     for (Geometry[] group : groups) {
-      resultSize += unionGroup(group, prog, output);
+      if (parallelism > 1 && group.length <= SmallGroupSize) {
+        smallGroups.add(group);
+      } else {
+        resultSize += unionGroup(group, prog, output, parallelism);
+        prog.progress();
+      }
+    }
+    
+    if (!smallGroups.isEmpty()) {
+      final ResultCollector<Geometry> syncOutput = output == null ? null :
+        new ResultCollectorSynchronizer<Geometry>(output);
+      // Keep reporting progress while the small groups are processed
+      final Progressable syncProg = prog == null ? null :
+        new ProgressableSynchronizer(prog);
+      try {
+        List<Integer> sizes = Parallel.forEach(smallGroups.size(), new RunnableRange<Integer>() {
+          @Override
+          public Integer run(int i1, int i2) {
+            int size = 0;
+            try {
+              for (int i = i1; i < i2; i++)
+                size += unionGroup(smallGroups.get(i), syncProg, syncOutput, 1);
+            } catch (IOException e) {
+              throw new RuntimeException("Error in union", e);
+            }
+            return size;
+          }
+        }, parallelism);
+        for (int size : sizes)
+          resultSize += size;
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupt error ", e);
+      }
       prog.progress();
     }
     
@@ -18,8 +18,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -95,6 +97,12 @@ public class SpatialSite {
   
   /**Ratio of the sample to read from files to build a global R-tree*/
   public static final String SAMPLE_SIZE = "spatialHadoop.storage.SampleSize";
+
+  /**
+   * Forces operations that can be answered from the global index, e.g.,
+   * record count and file MBR, to scan the input instead
+   */
+  public static final String FORCE_SCAN = "force-scan";
   
   /**
    * A marker put in the beginning of each block to indicate that this block
@@ -360,6 +368,53 @@ public class SpatialSite {
     }
   }
 
+  /**
+   * Returns the global index of a directory only if it describes all the data
+   * in it. That is, the directory has a master file, every non-empty data file
+   * appears in at least one partition, and no data file was modified after
+   * the master file was written. The record counts, sizes and MBRs stored in
+   * such an index can replace a scan of the input.
+   * @param fs
+   * @param dir
+   * @return the global index or <code>null</code> if the directory is not
+   *  indexed or the global index is outdated
+   * @throws IOException
+   */
+  public static GlobalIndex<Partition> getCompleteGlobalIndex(FileSystem fs,
+      Path dir) throws IOException {
+    if (OperationsParams.isWildcard(dir) || !fs.getFileStatus(dir).isDirectory())
+      return null;
+    FileStatus masterFile = null;
+    FileStatus[] allFiles = fs.listStatus(dir);
+    for (FileStatus fileStatus : allFiles) {
+      if (fileStatus.getPath().getName().startsWith("_master"))
+        masterFile = fileStatus;
+    }
+    if (masterFile == null)
+      return null;
+    GlobalIndex<Partition> gindex = getGlobalIndex(fs, dir);
+    if (gindex == null)
+      return null;
+    Set<String> indexedFiles = new HashSet<String>();
+    for (Partition p : gindex)
+      indexedFiles.add(p.filename);
+    for (FileStatus fileStatus : allFiles) {
+      if (!NonHiddenFileFilter.accept(fileStatus.getPath()))
+        continue;
+      if (fileStatus.isDirectory())
+        return null;
+      if (fileStatus.getLen() == 0)
+        continue;
+      if (!indexedFiles.contains(fileStatus.getPath().getName())
+          || fileStatus.getModificationTime() > masterFile.getModificationTime()) {
+        LOG.info("Global index of '"+dir+"' does not describe '"
+          +fileStatus.getPath().getName()+"'");
+        return null;
+      }
+    }
+    return gindex;
+  }
+
   /**
    * Checks whether a file is indexed using an R-tree or not. This allows
    * an operation to use the R-tree to speedup the processing if it exists.
@@ -18,10 +18,10 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Array;
 import java.util.Iterator;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Stack;
 import java.util.Vector;
@@ -616,6 +616,84 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     return nodes[0];
   }
   
+  /**
+   * Returns the total number of nodes in the tree. Nodes are numbered in
+   * level order starting with the root at zero.
+   * @return
+   */
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * Returns the number of children under each non-leaf node
+   * @return
+   */
+  public int getDegree() {
+    return degree;
+  }
+
+  /**
+   * Returns true if the given node is a leaf node, i.e., its children are
+   * data records rather than other nodes.
+   * @param nodeID
+   * @return
+   */
+  public boolean isLeaf(int nodeID) {
+    return nodeID >= nonLeafNodeCount;
+  }
+
+  /**
+   * Returns the ID of a child of the given non-leaf node.
+   * @param nodeID
+   * @param iChild - the index of the child in the range [0, degree)
+   * @return
+   */
+  public int getChild(int nodeID, int iChild) {
+    return nodeID * degree + iChild + 1;
+  }
+
+  /**
+   * Returns the MBR of the given node. The returned rectangle is the cached
+   * copy stored in the tree and should not be modified.
+   * @param nodeID
+   * @return
+   */
+  public Rectangle getNodeMBR(int nodeID) {
+    return nodes[nodeID];
+  }
+
+  /**
+   * Reads all records stored under the given leaf node from disk and reports
+   * them to the given output. The same stock object is reused for all
+   * records and it should be cloned if it is kept after the call returns.
+   * @param nodeID
+   * @param output
+   * @return - number of records read
+   * @throws IOException
+   */
+  public int readLeaf(int nodeID, ResultCollector<T> output) throws IOException {
+    int start_offset = this.dataOffset[nodeID];
+    int end_offset = this.dataOffset[nodeID + 1];
+    this.data.seek(start_offset + this.treeStartOffset);
+    // Do not close the line reader to keep the underlying data stream open.
+    // The buffer is limited to the size of the leaf to avoid reading the
+    // data of the following leaves
+    @SuppressWarnings("resource")
+    LineReader lineReader = new LineReader(data,
+        Math.max(1, Math.min(end_offset - start_offset, 64 * 1024)));
+    Text line = new Text2();
+    int recordCount = 0;
+    while (start_offset < end_offset) {
+      start_offset += lineReader.readLine(line);
+      stockObject.fromText(line);
+      recordCount++;
+      if (output != null)
+        output.collect(stockObject);
+    }
+    return recordCount;
+  }
+
   /**
    * Reads and returns the element with the given index
    * @param i
@@ -1137,27 +1215,61 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     return result_size;
   }
 
+  /**
+   * Joins the records of two R-trees held in memory using a plane-sweep.
+   * @param R
+   * @param S
+   * @param window - only pairs of records whose MBRs overlap inside this
+   *  window are joined or <code>null</code> to join all records
+   * @param output
+   * @param reporter
+   * @return
+   * @throws IOException
+   */
   protected static<S1 extends Shape, S2 extends Shape> int spatialJoinMemory(
       final RTree<S1> R,
       final RTree<S2> S,
+      final Rectangle window,
       final ResultCollector2<S1, S2> output,
       final Reporter reporter)
       throws IOException {
     S1[] rs = (S1[]) Array.newInstance(R.stockObject.getClass(), R.getElementCount());
-    int i = 0;
-    for (S1 r : R)
-      rs[i++] = (S1) r.clone();
+    int i = 0, rCount = 0;
+    for (S1 r : R) {
+      i++;
+      if (window == null || intersectsClosed(r.getMBR(), window))
+        rs[rCount++] = (S1) r.clone();
+    }
     if (i != rs.length)
       throw new RuntimeException(i+"!="+rs.length);
     
     S2[] ss = (S2[]) Array.newInstance(S.stockObject.getClass(), S.getElementCount());
     i = 0;
-    for (S2 s : S)
-      ss[i++] = (S2) s.clone();
+    int sCount = 0;
+    for (S2 s : S) {
+      i++;
+      if (window == null || intersectsClosed(s.getMBR(), window))
+        ss[sCount++] = (S2) s.clone();
+    }
     if (i != ss.length)
       throw new RuntimeException(i+"!="+ss.length);
 
-    return SpatialAlgorithms.SpatialJoin_planeSweep(rs, ss, output, reporter);
+    if (window == null)
+      return SpatialAlgorithms.SpatialJoin_planeSweep(rs, ss, output, reporter);
+    // Report only the pairs that overlap inside the window
+    final int[] resultCount = {0};
+    SpatialAlgorithms.SpatialJoin_planeSweep(Arrays.copyOf(rs, rCount),
+        Arrays.copyOf(ss, sCount), new ResultCollector2<S1, S2>() {
+      @Override
+      public void collect(S1 r, S2 s) {
+        if (overlapInWindow(r.getMBR(), s.getMBR(), window)) {
+          resultCount[0]++;
+          if (output != null)
+            output.collect(r, s);
+        }
+      }
+    }, reporter);
+    return resultCount[0];
   }
   
   //LRU cache used to avoid deserializing the same records again and again
@@ -1188,175 +1300,224 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   }
 
   /**
-   * Performs a spatial join between records in two R-trees
+   * Records of one leaf node along with their MBRs
+   */
+  static class LeafRecords {
+    Shape[] records;
+    Rectangle[] mbrs;
+  }
+
+  /**
+   * State of a synchronized depth-first join between two R-trees. Leaf nodes
+   * are read from disk only when they are paired with an overlapping leaf of
+   * the other tree and recently read leaves are kept in an LRU cache.
+   */
+  static class DualTreeJoin<S1 extends Shape, S2 extends Shape> {
+    final RTree<S1> R;
+    final RTree<S2> S;
+    final ResultCollector2<S1, S2> output;
+    final Reporter reporter;
+    final LruCache<Integer, LeafRecords> rCache, sCache;
+    int resultCount;
+    /**Number of leaves read from disk in each tree. Used for logging*/
+    int rLeavesRead, sLeavesRead;
+
+    DualTreeJoin(RTree<S1> R, RTree<S2> S, ResultCollector2<S1, S2> output,
+        Reporter reporter) {
+      this.R = R;
+      this.S = S;
+      this.output = output;
+      this.reporter = reporter;
+      // The traversal visits all pairs of one leaf in R consecutively while
+      // leaves of S are revisited with the next sibling in R
+      this.rCache = new LruCache<Integer, LeafRecords>(R.degree * 2);
+      this.sCache = new LruCache<Integer, LeafRecords>(S.degree * R.degree * 4);
+    }
+
+    /**
+     * Joins the subtrees under two nodes considering only the parts of the
+     * nodes inside the given window which is the intersection of their MBRs
+     * and the windows of all their ancestors.
+     * @param rNode
+     * @param sNode
+     * @param window
+     * @throws IOException
+     */
+    void joinNodes(int rNode, int sNode, Rectangle window) throws IOException {
+      boolean rLeaf = R.isLeaf(rNode);
+      boolean sLeaf = S.isLeaf(sNode);
+      if (rLeaf && sLeaf) {
+        joinLeaves(rNode, sNode, window);
+        return;
+      }
+      // Descend into internal nodes only. A leaf node is paired as it is
+      int[] rNodes = rLeaf ? new int[] {rNode} : childrenInWindow(R, rNode, window);
+      int[] sNodes = sLeaf ? new int[] {sNode} : childrenInWindow(S, sNode, window);
+      for (int r : rNodes) {
+        for (int s : sNodes) {
+          Rectangle subWindow = intersectClosed(
+              intersectClosed(R.nodes[r], S.nodes[s]), window);
+          if (subWindow != null)
+            joinNodes(r, s, subWindow);
+        }
+      }
+      if (reporter != null)
+        reporter.progress();
+    }
+
+    void joinLeaves(int rNode, int sNode, Rectangle window) throws IOException {
+      LeafRecords rRecords = getLeaf(R, rNode, rCache);
+      if (rRecords == null)
+        return;
+      LeafRecords sRecords = getLeaf(S, sNode, sCache);
+      if (sRecords == null)
+        return;
+      // Keep only records of S inside the window
+      int[] sInWindow = new int[sRecords.records.length];
+      int sCount = 0;
+      for (int j = 0; j < sRecords.records.length; j++) {
+        if (intersectsClosed(sRecords.mbrs[j], window))
+          sInWindow[sCount++] = j;
+      }
+      if (sCount == 0)
+        return;
+      for (int i = 0; i < rRecords.records.length; i++) {
+        Rectangle rMBR = rRecords.mbrs[i];
+        if (!intersectsClosed(rMBR, window))
+          continue;
+        Shape r = rRecords.records[i];
+        for (int k = 0; k < sCount; k++) {
+          int j = sInWindow[k];
+          Shape s = sRecords.records[j];
+          if (overlapInWindow(rMBR, sRecords.mbrs[j], window) && r.isIntersected(s)
+              && !(r.getClass() == s.getClass() && r.equals(s))) {
+            resultCount++;
+            if (output != null)
+              collect(r, s);
+          }
+        }
+      }
+    }
+
+    /**
+     * Reports a pair of records read from the leaves of R and S. The records
+     * are read as shapes of the stock objects of the trees.
+     */
+    @SuppressWarnings("unchecked")
+    private void collect(Shape r, Shape s) {
+      output.collect((S1) r, (S2) s);
+    }
+
+    /**
+     * Returns the records of the given leaf from the cache or reads them from
+     * disk. Returns null if the leaf is empty.
+     */
+    private <T extends Shape> LeafRecords getLeaf(RTree<T> tree, int leaf,
+        LruCache<Integer, LeafRecords> cache) throws IOException {
+      if (tree.dataOffset[leaf] == tree.dataOffset[leaf + 1])
+        return null;
+      LeafRecords leafRecords = cache.get(leaf);
+      if (leafRecords == null) {
+        final Vector<Shape> records = new Vector<Shape>();
+        tree.readLeaf(leaf, new ResultCollector<T>() {
+          @Override
+          public void collect(T r) {
+            records.add(r.clone());
+          }
+        });
+        leafRecords = new LeafRecords();
+        leafRecords.records = records.toArray(new Shape[records.size()]);
+        leafRecords.mbrs = new Rectangle[leafRecords.records.length];
+        for (int i = 0; i < leafRecords.records.length; i++)
+          leafRecords.mbrs[i] = leafRecords.records[i].getMBR();
+        cache.put(leaf, leafRecords);
+        if (tree == R)
+          rLeavesRead++;
+        else
+          sLeavesRead++;
+      }
+      return leafRecords;
+    }
+  }
+
+  /**
+   * Returns the children of an internal node that overlap the given window
+   */
+  private static int[] childrenInWindow(RTree<?> tree, int node, Rectangle window) {
+    int[] children = new int[tree.degree];
+    int count = 0;
+    for (int i = 0; i < tree.degree; i++) {
+      int child = tree.getChild(node, i);
+      if (intersectsClosed(tree.nodes[child], window))
+        children[count++] = child;
+    }
+    int[] result = new int[count];
+    System.arraycopy(children, 0, result, 0, count);
+    return result;
+  }
+
+  /**
+   * Tests whether two rectangles overlap including their boundaries. Unlike
+   * {@link Rectangle#isIntersected(Shape)}, touching rectangles overlap which
+   * is needed for shapes that intersect at their boundaries.
+   */
+  private static boolean intersectsClosed(Rectangle a, Rectangle b) {
+    return a != null && b != null && a.x1 <= b.x2 && b.x1 <= a.x2
+        && a.y1 <= b.y2 && b.y1 <= a.y2;
+  }
+
+  /**
+   * Tests whether two rectangles overlap and their intersection overlaps the
+   * given window, including the boundaries.
+   */
+  private static boolean overlapInWindow(Rectangle a, Rectangle b, Rectangle window) {
+    double x1 = Math.max(a.x1, b.x1), y1 = Math.max(a.y1, b.y1);
+    double x2 = Math.min(a.x2, b.x2), y2 = Math.min(a.y2, b.y2);
+    return x1 <= x2 && y1 <= y2 && x1 <= window.x2 && window.x1 <= x2
+        && y1 <= window.y2 && window.y1 <= y2;
+  }
+
+  private static Rectangle intersectClosed(Rectangle a, Rectangle b) {
+    if (!intersectsClosed(a, b))
+      return null;
+    return new Rectangle(Math.max(a.x1, b.x1), Math.max(a.y1, b.y1),
+        Math.min(a.x2, b.x2), Math.min(a.y2, b.y2));
+  }
+
+  /**
+   * Performs a spatial join between records in two R-trees using a
+   * synchronized depth-first traversal of both trees. Only pairs of nodes
+   * with overlapping MBRs are visited and, in each pair, only children that
+   * overlap the intersection of the two nodes are considered. A leaf is
+   * read from disk only when it overlaps a leaf of the other tree.
    * @param R
    * @param S
+   * @param window - only pairs of records whose MBRs overlap inside this
+   *  window are joined or <code>null</code> to join all records
    * @param output
    * @return
    * @throws IOException
-   * SuppresWarnings("resource") is used because we create LineReaders on the
-   * internal data stream of both R and S. We do not want to close the
-   * LineReader because it will subsequently close the internal data stream
-   * of R and S which is something we want to avoid because both R and S are
-   * not created by this function and it should not free these resources.
    */
   protected static<S1 extends Shape, S2 extends Shape> int spatialJoinDisk(
       final RTree<S1> R,
       final RTree<S2> S,
+      Rectangle window,
       final ResultCollector2<S1, S2> output,
       final Reporter reporter)
       throws IOException {
-    PriorityQueue<Long> nodesToJoin = new PriorityQueue<Long>(R.nodeCount+S.nodeCount);
-    
-    // Start with the two roots
-    nodesToJoin.add(0L);
-
-    // Caches to keep the retrieved data records. Helpful when it reaches the
-    // leaves and starts to read objects from the two trees
-    LruCache<Integer, Shape[]> r_records_cache = new LruCache<Integer, Shape[]>(
-        R.degree * 2);
-    LruCache<Integer, Shape[]> s_records_cache = new LruCache<Integer, Shape[]>(
-        S.degree * R.degree * 4);
-    
-    Text line = new Text2();
-    
-    int result_count = 0;
-
-    LineReader r_lr = null, s_lr = null;
-    // Last offset read from r and s
-    int r_last_offset = 0;
-    int s_last_offset = 0;
-    
-    while (!nodesToJoin.isEmpty()) {
-      long nodes_to_join = nodesToJoin.remove();
-      int r_node = (int) (nodes_to_join >>> 32);
-      int s_node = (int) (nodes_to_join & 0xFFFFFFFF);
-      
-      // Compute the overlap between the children of the two nodes
-      // If a node is non-leaf, its children are other nodes
-      // If a node is leaf, its children are data records
-      boolean r_leaf = r_node >= R.nonLeafNodeCount;
-      boolean s_leaf = s_node >= S.nonLeafNodeCount;
-      
-      if (!r_leaf && !s_leaf) {
-        // Both are internal nodes, read child nodes under them
-        // Find overlaps using a simple cross join (TODO: Use plane-sweep)
-        for (int i = 0; i < R.degree; i++) {
-          int new_r_node = r_node * R.degree + i + 1;
-          for (int j = 0; j < S.degree; j++) {
-            int new_s_node = s_node * S.degree + j + 1;
-            if (R.nodes[new_r_node].isIntersected(S.nodes[new_s_node])) {
-              long new_pair = (((long)new_r_node) << 32) | new_s_node;
-              nodesToJoin.add(new_pair);
-            }
-          }
-        }
-      } else if (r_leaf && !s_leaf) {
-        // R is a leaf node while S is an internal node
-        // Compare the leaf node in R against all child nodes of S
-        for (int j = 0; j < S.degree; j++) {
-          int new_s_node = s_node * S.degree + j + 1;
-          if (R.nodes[r_node].isIntersected(S.nodes[new_s_node])) {
-            long new_pair = (((long)r_node) << 32) | new_s_node;
-            nodesToJoin.add(new_pair);
-          }
-        }
-      } else if (!r_leaf && s_leaf) {
-        // R is an internal node while S is a leaf node
-        // Compare child nodes of R against the leaf node in S
-        for (int i = 0; i < R.degree; i++) {
-          int new_r_node = r_node * R.degree + i + 1;
-          if (R.nodes[new_r_node].isIntersected(S.nodes[s_node])) {
-            long new_pair = (((long)new_r_node) << 32) | s_node;
-            nodesToJoin.add(new_pair);
-          }
-        }
-      } else if (r_leaf && s_leaf) {
-        // Both are leaf nodes, join objects under them
-        int r_start_offset = R.dataOffset[r_node];
-        int r_end_offset = R.dataOffset[r_node+1];
-        int s_start_offset = S.dataOffset[s_node];
-        int s_end_offset = S.dataOffset[s_node+1];
-        
-        // Read or retrieve r_records
-        Shape[] r_records = r_records_cache.get(r_start_offset);
-        if (r_records == null) {
-          int cache_key = r_start_offset;
-          r_records = r_records_cache.popUnusedEntry();
-          if (r_records == null) {
-            r_records = new Shape[R.degree * 2];
-          }
-
-          // Need to read it from stream
-          if (r_last_offset != r_start_offset) {
-            long seekTo = r_start_offset + R.treeStartOffset;
-            R.data.seek(seekTo);
-            r_lr = new LineReader(R.data);
-          }
-          int record_i = 0;
-          while (r_start_offset < r_end_offset) {
-            r_start_offset += r_lr.readLine(line);
-            if (r_records[record_i] == null)
-              r_records[record_i] = R.stockObject.clone();
-            r_records[record_i].fromText(line);
-            record_i++;
-          }
-          r_last_offset = r_start_offset;
-          // Nullify other records
-          while (record_i < r_records.length)
-            r_records[record_i++] = null;
-          r_records_cache.put(cache_key, r_records);
-        }
-
-        // Read or retrieve s_records
-        Shape[] s_records = s_records_cache.get(s_start_offset);
-        if (s_records == null) {
-          int cache_key = s_start_offset;
-
-          // Need to read it from stream
-          if (s_lr == null || s_last_offset != s_start_offset) {
-            // Need to reposition s_lr (LineReader of S)
-            long seekTo = s_start_offset + S.treeStartOffset;
-            S.data.seek(seekTo);
-            s_lr = new LineReader(S.data);
-          }
-          s_records = s_records_cache.popUnusedEntry();
-          if (s_records == null) {
-            s_records = new Shape[S.degree * 2];
-          }
-          int record_i = 0;
-          while (s_start_offset < s_end_offset) {
-            s_start_offset += s_lr.readLine(line);
-            if (s_records[record_i] == null)
-              s_records[record_i] = S.stockObject.clone();
-            s_records[record_i].fromText(line);
-            record_i++;
-          }
-          // Nullify other records
-          while (record_i < s_records.length)
-            s_records[record_i++] = null;
-          // Put in cache
-          s_records_cache.put(cache_key, s_records);
-          s_last_offset = s_start_offset;
-        }
-
-        // Do Cartesian product between records to find overlapping pairs
-        for (int i_r = 0; i_r < r_records.length && r_records[i_r] != null; i_r++) {
-          for (int i_s = 0; i_s < s_records.length && s_records[i_s] != null; i_s++) {
-            if (r_records[i_r].isIntersected(s_records[i_s]) &&
-                !r_records[i_r].equals(s_records[i_s])) {
-              result_count++;
-              if (output != null) {
-                output.collect((S1)r_records[i_r], (S2)s_records[i_s]);
-              }
-            }
-          }
-        }
-      }
-      if (reporter != null)
-        reporter.progress();
-    }
-    return result_count;
+    if (R.height == 0 || S.height == 0)
+      return 0;
+    Rectangle rootWindow = intersectClosed(R.nodes[0], S.nodes[0]);
+    if (rootWindow != null && window != null)
+      rootWindow = intersectClosed(rootWindow, window);
+    if (rootWindow == null)
+      return 0;
+    DualTreeJoin<S1, S2> join = new DualTreeJoin<S1, S2>(R, S, output, reporter);
+    join.joinNodes(0, 0, rootWindow);
+    LOG.debug("Joined "+join.resultCount+" pairs reading "+join.rLeavesRead
+        +"/"+R.leafNodeCount+" leaves of R and "+join.sLeavesRead+"/"
+        +S.leafNodeCount+" leaves of S");
+    return join.resultCount;
   }
   
   public static<S1 extends Shape, S2 extends Shape> int spatialJoin(
@@ -1365,12 +1526,33 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       final ResultCollector2<S1, S2> output,
       final Reporter reporter)
       throws IOException {
+    return spatialJoin(R, S, null, output, reporter);
+  }
+
+  /**
+   * Performs a spatial join between records of two R-trees whose MBRs overlap
+   * inside the given window.
+   * @param R
+   * @param S
+   * @param window - the region to join or <code>null</code> to join all records
+   * @param output
+   * @param reporter
+   * @return
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int spatialJoin(
+      final RTree<S1> R,
+      final RTree<S2> S,
+      Rectangle window,
+      final ResultCollector2<S1, S2> output,
+      final Reporter reporter)
+      throws IOException {
     try {
       if (R.treeStartOffset >= 0 && S.treeStartOffset >= 0) {
         // Both trees are read from disk
-        return spatialJoinDisk(R, S, output, reporter);
+        return spatialJoinDisk(R, S, window, output, reporter);
       } else {
-        return spatialJoinMemory(R, S, output, reporter);
+        return spatialJoinMemory(R, S, window, output, reporter);
       }
     } catch (TopologyException e) {
       e.printStackTrace();
@@ -20,7 +20,9 @@ import org.apache.hadoop.mapred.lib.CombineFileSplit;
 /**
  * Reads every possible pair of values from two underlying record readers.
  * In other words, it makes a Cartesian product from the records stored in
- * the two splits given to this reader.
+ * the two splits given to this reader. If the given CombineFileSplit contains
+ * more than two paths, paths (0, 1), (2, 3), ... are processed as separate
+ * pairs one after the other.
  * @author eldawy
  *
  * @param <K>
@@ -39,6 +41,9 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
   /**The two splits parsed by this record reader*/
   protected CombineFileSplit split;
   
+  /**Index of the pair of paths currently being read from the split*/
+  protected int currentPair;
+  
   /**Configuration of the current job*/
   protected Configuration conf;
   
@@ -57,15 +62,39 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
   public BinaryRecordReader(Configuration conf, CombineFileSplit split) throws IOException {
     this.conf = conf;
     this.split = split;
-    internalReaders = new RecordReader[(int) split.getNumPaths()];
-    // Initialize all record readers
-    for (int i = 0; i < split.getNumPaths(); i++) {
+    internalReaders = new RecordReader[2];
+    // Initialize the record readers of the first pair
+    this.currentPair = 0;
+    for (int i = 0; i < internalReaders.length; i++) {
       this.internalReaders[i] = createRecordReader(this.conf, this.split, i);
     }
   }
   
   @Override
   public boolean next(PairWritable<K> key, PairWritable<V> value) throws IOException {
+    while (true) {
+      if (nextInPair(key, value))
+        return true;
+      // Move to the next pair of paths, if any
+      if (2 * (currentPair + 1) >= split.getNumPaths())
+        return false;
+      internalReaders[0].close();
+      internalReaders[1].close();
+      currentPair++;
+      internalReaders[0] = createRecordReader(conf, split, 2 * currentPair);
+      internalReaders[1] = createRecordReader(conf, split, 2 * currentPair + 1);
+      firstTime = true;
+    }
+  }
+  
+  /**
+   * Reads the next pair of values from the current pair of paths.
+   * @param key
+   * @param value
+   * @return
+   * @throws IOException
+   */
+  protected boolean nextInPair(PairWritable<K> key, PairWritable<V> value) throws IOException {
     if (firstTime) {
       progress1Before = internalReaders[0].getProgress();
       if (!internalReaders[0].next(key.first, value.first)) {
@@ -86,7 +115,7 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
     
     // Restart second reader
     internalReaders[1].close();
-    internalReaders[1] = createRecordReader(conf, split, 1);
+    internalReaders[1] = createRecordReader(conf, split, 2 * currentPair + 1);
     return internalReaders[1].next(key.second, value.second);
   }
 
@@ -123,6 +152,7 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
     float progress2 = internalReaders[1].getProgress();
     // Scale 0-9 for most significant digit
     float progress = progress1Before * (1.0f - progress2) + progress1 * progress2;
-    return progress;
+    int numPairs = Math.max(1, split.getNumPaths() / 2);
+    return (currentPair + progress) / numPairs;
   }
 }
@@ -10,7 +10,10 @@ package edu.umn.cs.spatialHadoop.mapred;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -52,8 +55,8 @@ class IndexedRectangle extends Rectangle {
 /**
  * An input format that reads a pair of files simultaneously and returns
  * a key for one of them and the value as a pair of values.
- * It generates a CombineFileSplit for each pair of blocks returned by the
- * BlockFilter. 
+ * It packs the pairs of blocks returned by the BlockFilter into
+ * CombineFileSplits of balanced estimated costs. 
  * @author Ahmed Eldawy
  *
  */
@@ -95,7 +98,9 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
       }
     }
     
-    final Vector<CombineFileSplit> matchedSplits = new Vector<CombineFileSplit>();
+    // All pairs of splits to join along with their estimated costs
+    final List<FileSplit[]> splitPairs = new ArrayList<FileSplit[]>();
+    final List<Double> pairCosts = new ArrayList<Double>();
     if (gIndexes[0] == null || gIndexes[1] == null) {
       // Join every possible pair (Cartesian product)
       InputSplit[][] inputSplits = new InputSplit[inputFiles.length][];
@@ -109,9 +114,8 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
           inputSplits[0].length+"x"+inputSplits[1].length);
       for (InputSplit split1 : inputSplits[0]) {
         for (InputSplit split2 : inputSplits[1]) {
-          CombineFileSplit combinedSplit = (CombineFileSplit) FileSplitUtil
-              .combineFileSplits(job, (FileSplit)split1, (FileSplit)split2);
-          matchedSplits.add(combinedSplit);
+          splitPairs.add(new FileSplit[] {(FileSplit) split1, (FileSplit) split2});
+          pairCosts.add((double) (split1.getLength() + split2.getLength()));
         }
       }
     } else {
@@ -129,10 +133,13 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
                 Path path2 = new Path(inputFiles[1], p2.filename);
                 splitFile(job, path2, splits2);
                 
+                // Divide the cost of the partition pair evenly among its blocks
+                double cost = estimateJoinCost(p1, p2) /
+                    (splits1.size() * splits2.size());
                 for (FileSplit split1 : splits1) {
                   for (FileSplit split2 : splits2) {
-                    matchedSplits.add((CombineFileSplit) FileSplitUtil
-                        .combineFileSplits(job, split1, split2));
+                    splitPairs.add(new FileSplit[] {split1, split2});
+                    pairCosts.add(cost);
                   }
                 }
                 
@@ -144,10 +151,109 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
       );
     }
 
-    LOG.info("Matched "+matchedSplits.size()+" combine splits");
+    InputSplit[] matchedSplits = packSplitPairs(job, splitPairs, pairCosts, numSplits);
+    LOG.info("Matched "+splitPairs.size()+" pairs of blocks in "+
+        matchedSplits.length+" combine splits");
 
     // Return all matched splits
-    return matchedSplits.toArray(new InputSplit[matchedSplits.size()]);
+    return matchedSplits;
+  }
+
+  /**
+   * Estimates the cost of joining two partitions in bytes. It accounts for
+   * reading both partitions and for the plane-sweep join of the records that
+   * fall in the overlap area of the two partitions assuming that records are
+   * uniformly distributed in each partition.
+   * @param p1
+   * @param p2
+   * @return
+   */
+  public static double estimateJoinCost(Partition p1, Partition p2) {
+    Rectangle overlap = p1.getIntersection(p2);
+    double overlapArea = overlap == null ? 0 : overlap.getWidth() * overlap.getHeight();
+    double n1 = p1.recordCount * overlapFraction(p1, overlapArea);
+    double n2 = p2.recordCount * overlapFraction(p2, overlapArea);
+    double n = n1 + n2;
+    return p1.size + p2.size + ComparisonCost * n * Math.log(n + 1) / Math.log(2);
+  }
+
+  /**Cost of comparing two records in the plane-sweep join measured in bytes*/
+  public static final double ComparisonCost = 8.0;
+
+  private static double overlapFraction(Partition p, double overlapArea) {
+    double area = p.getWidth() * p.getHeight();
+    if (area <= 0)
+      return 1.0;
+    return Math.min(1.0, overlapArea / area);
+  }
+
+  /**
+   * Packs pairs of splits into at most numSplits CombineFileSplits so that
+   * all of them have almost the same total cost. It assigns the pairs in
+   * decreasing order of cost, each to the split with the least total cost.
+   * The paths of each pair are stored next to each other in the
+   * CombineFileSplit which is read by {@link BinaryRecordReader}.
+   * @param job
+   * @param splitPairs
+   * @param pairCosts
+   * @param numSplits
+   * @return
+   * @throws IOException
+   */
+  protected static InputSplit[] packSplitPairs(JobConf job,
+      final List<FileSplit[]> splitPairs, final List<Double> pairCosts,
+      int numSplits) throws IOException {
+    int numBins = Math.min(splitPairs.size(), Math.max(1, numSplits));
+    final Integer[] order = new Integer[splitPairs.size()];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1, Integer i2) {
+        return -Double.compare(pairCosts.get(i1), pairCosts.get(i2));
+      }
+    });
+    final double[] binCosts = new double[numBins];
+    PriorityQueue<Integer> bins = new PriorityQueue<Integer>(Math.max(1, numBins),
+        new Comparator<Integer>() {
+      @Override
+      public int compare(Integer b1, Integer b2) {
+        return Double.compare(binCosts[b1], binCosts[b2]);
+      }
+    });
+    List<List<FileSplit[]>> binPairs = new ArrayList<List<FileSplit[]>>();
+    for (int bin = 0; bin < numBins; bin++) {
+      bins.add(bin);
+      binPairs.add(new ArrayList<FileSplit[]>());
+    }
+    for (int i : order) {
+      int bin = bins.poll();
+      binPairs.get(bin).add(splitPairs.get(i));
+      binCosts[bin] += pairCosts.get(i);
+      bins.add(bin);
+    }
+    
+    InputSplit[] combinedSplits = new InputSplit[numBins];
+    for (int bin = 0; bin < numBins; bin++) {
+      List<FileSplit[]> pairs = binPairs.get(bin);
+      Path[] paths = new Path[pairs.size() * 2];
+      long[] starts = new long[paths.length];
+      long[] lengths = new long[paths.length];
+      Vector<String> vlocations = new Vector<String>();
+      for (int i = 0; i < paths.length; i++) {
+        FileSplit split = pairs.get(i / 2)[i % 2];
+        paths[i] = split.getPath();
+        starts[i] = split.getStart();
+        lengths[i] = split.getLength();
+        vlocations.addAll(Arrays.asList(split.getLocations()));
+      }
+      String[] locations = vlocations.isEmpty() ? new String[0] :
+        FileSplitUtil.prioritizeLocations(vlocations);
+      if (locations.length > 3)
+        locations = Arrays.copyOf(locations, 3);
+      combinedSplits[bin] = new CombineFileSplit(job, paths, starts, lengths, locations);
+    }
+    return combinedSplits;
   }
 
   public void splitFile(JobConf job, Path path, List<FileSplit> splits)
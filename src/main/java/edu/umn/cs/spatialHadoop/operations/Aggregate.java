@@ -13,18 +13,25 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
@@ -35,8 +42,12 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
@@ -56,6 +67,15 @@ public class Aggregate {
   /**Logger*/
   @SuppressWarnings("unused")
   private static final Log LOG = LogFactory.getLog(Aggregate.class);
+
+  /**Configuration keys of the aggregated attribute and the grouping*/
+  private static final String AttributeName = "Aggregate.Attribute";
+  private static final String GroupByType = "Aggregate.GroupBy";
+  private static final String GridSize = "Aggregate.GridSize";
+
+  private static final int GroupByNone = 0;
+  private static final int GroupByGrid = 1;
+  private static final int GroupByPartition = 2;
   
   /**
    * A structure to hold the minimum and maximum values for aggregation.
@@ -127,42 +147,363 @@ public class Aggregate {
       }
   }
 
-  public static class Map extends MapReduceBase implements
-      Mapper<NASADataset, NASAShape, NullWritable, MinMax> {
+  /**
+   * Count, sum, minimum, maximum, mean and variance of a numeric attribute
+   * for one group of records. The mean and variance are kept using Welford's
+   * method and merged using the parallel formula of Chan et al. which are
+   * numerically stable and give the same answer regardless of how records
+   * are split among map tasks.
+   */
+  public static class Statistics implements Writable, TextSerializable {
+    /**The group (e.g., grid cell or partition) of these statistics*/
+    public int group;
+    public long count;
+    public double sum;
+    public double min = Double.POSITIVE_INFINITY;
+    public double max = Double.NEGATIVE_INFINITY;
+    public double mean;
+    /**Sum of squared differences from the mean*/
+    public double m2;
+
+    public Statistics() {}
+
+    public Statistics(int group) {
+      this.group = group;
+    }
+
+    public void add(double value) {
+      count++;
+      sum += value;
+      if (value < min)
+        min = value;
+      if (value > max)
+        max = value;
+      double delta = value - mean;
+      mean += delta / count;
+      m2 += delta * (value - mean);
+    }
+
+    public void merge(Statistics other) {
+      if (other.count == 0)
+        return;
+      long n = count + other.count;
+      double delta = other.mean - mean;
+      mean += delta * other.count / n;
+      m2 += other.m2 + delta * delta * ((double) count * other.count / n);
+      count = n;
+      sum += other.sum;
+      if (other.min < min)
+        min = other.min;
+      if (other.max > max)
+        max = other.max;
+    }
+
+    /**
+     * The population variance of the values
+     * @return
+     */
+    public double getVariance() {
+      return count == 0 ? 0 : m2 / count;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeInt(group);
+      out.writeLong(count);
+      out.writeDouble(sum);
+      out.writeDouble(min);
+      out.writeDouble(max);
+      out.writeDouble(mean);
+      out.writeDouble(m2);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      group = in.readInt();
+      count = in.readLong();
+      sum = in.readDouble();
+      min = in.readDouble();
+      max = in.readDouble();
+      mean = in.readDouble();
+      m2 = in.readDouble();
+    }
 
-    private MinMax minMax = new MinMax();
-    public void map(NASADataset dummy, NASAShape point,
-        OutputCollector<NullWritable, MinMax> output, Reporter reporter)
+    @Override
+    public Text toText(Text text) {
+      TextSerializerHelper.serializeInt(group, text, ',');
+      TextSerializerHelper.serializeLong(count, text, ',');
+      TextSerializerHelper.serializeDouble(sum, text, ',');
+      TextSerializerHelper.serializeDouble(min, text, ',');
+      TextSerializerHelper.serializeDouble(max, text, ',');
+      TextSerializerHelper.serializeDouble(mean, text, ',');
+      TextSerializerHelper.serializeDouble(m2, text, '\0');
+      return text;
+    }
+
+    @Override
+    public void fromText(Text text) {
+      group = TextSerializerHelper.consumeInt(text, ',');
+      count = TextSerializerHelper.consumeLong(text, ',');
+      sum = TextSerializerHelper.consumeDouble(text, ',');
+      min = TextSerializerHelper.consumeDouble(text, ',');
+      max = TextSerializerHelper.consumeDouble(text, ',');
+      mean = TextSerializerHelper.consumeDouble(text, ',');
+      m2 = TextSerializerHelper.consumeDouble(text, '\0');
+    }
+
+    @Override
+    public String toString() {
+      return "count: "+count+", sum: "+sum+", min: "+min+", max: "+max
+          +", mean: "+mean+", variance: "+getVariance();
+    }
+  }
+
+  /**
+   * Computes the statistics of all records in a map task. The statistics of
+   * each group are accumulated in primitive arrays and written only once
+   * when the task is closed.
+   */
+  public static class AggregateMap extends MapReduceBase implements
+      Mapper<Rectangle, Shape, IntWritable, Statistics> {
+    /**Name of the aggregated attribute or null to use a column*/
+    private String attribute;
+    /**Index of the aggregated column in the text representation*/
+    private int column;
+    /**Whether the input is replicated and duplicates should be skipped*/
+    private boolean replicated;
+    private int groupBy;
+    /**Input MBR and grid size used when grouping by grid*/
+    private Rectangle inputMBR;
+    private int gridSize;
+    /**The group of each partition keyed by the full path of its file*/
+    private java.util.Map<String, Integer> partitionGroups;
+    private int[] groupIds;
+
+    /**Statistics of each group*/
+    private long[] count;
+    private double[] sum, min, max, mean, m2;
+
+    /**Group of all records in the current split when grouping by partition*/
+    private int splitGroup;
+    private InputSplit lastSplit;
+    private OutputCollector<IntWritable, Statistics> output;
+    private Text tempText = new Text2();
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      attribute = job.get(AttributeName, "value");
+      column = -1;
+      if (attribute.matches("\\d+")) {
+        column = Integer.parseInt(attribute);
+        attribute = null;
+      }
+      groupBy = job.getInt(GroupByType, GroupByNone);
+      int numGroups = 1;
+      groupIds = new int[] {0};
+      try {
+        Path[] inPaths = FileInputFormat.getInputPaths(job);
+        partitionGroups = new HashMap<String, Integer>();
+        Vector<Integer> ids = new Vector<Integer>();
+        // Cell IDs of each input are shifted after those of the previous
+        // inputs so that partitions of different inputs are not merged
+        int cellIdOffset = 0;
+        for (Path inPath : inPaths) {
+          FileSystem fs = inPath.getFileSystem(job);
+          GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, inPath);
+          if (gindex == null)
+            continue;
+          replicated |= gindex.isReplicated();
+          Path qInPath = fs.makeQualified(inPath);
+          int maxCellId = 0;
+          for (Partition p : gindex) {
+            String partitionPath = new Path(qInPath, p.filename).toString();
+            if (!partitionGroups.containsKey(partitionPath)) {
+              partitionGroups.put(partitionPath, ids.size());
+              ids.add(cellIdOffset + p.cellId);
+            }
+            maxCellId = Math.max(maxCellId, p.cellId);
+          }
+          cellIdOffset += maxCellId + 1;
+        }
+        if (groupBy == GroupByPartition) {
+          numGroups = Math.max(1, ids.size());
+          groupIds = new int[numGroups];
+          for (int i = 0; i < ids.size(); i++)
+            groupIds[i] = ids.get(i);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading the global index", e);
+      }
+      if (groupBy == GroupByGrid) {
+        inputMBR = (Rectangle) OperationsParams.getShape(job, "mbr");
+        gridSize = job.getInt(GridSize, 10);
+        numGroups = gridSize * gridSize;
+        groupIds = new int[numGroups];
+        for (int i = 0; i < numGroups; i++)
+          groupIds[i] = i;
+      }
+      count = new long[numGroups];
+      sum = new double[numGroups];
+      min = new double[numGroups];
+      max = new double[numGroups];
+      mean = new double[numGroups];
+      m2 = new double[numGroups];
+      Arrays.fill(min, Double.POSITIVE_INFINITY);
+      Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Returns the value of the aggregated attribute of the given shape or
+     * NaN if it does not have this attribute.
+     */
+    private double getValue(Shape shape) {
+      if (attribute == null) {
+        tempText.clear();
+        shape.toText(tempText);
+        // Locate the column in the text without splitting all of it
+        byte[] bytes = tempText.getBytes();
+        int length = tempText.getLength();
+        int start = 0;
+        for (int c = 0; c < column; c++) {
+          while (start < length && bytes[start] != ',' && bytes[start] != '\t')
+            start++;
+          if (start == length)
+            return Double.NaN;
+          start++;
+        }
+        int end = start;
+        while (end < length && bytes[end] != ',' && bytes[end] != '\t')
+          end++;
+        try {
+          return Double.parseDouble(new String(bytes, start, end - start));
+        } catch (NumberFormatException e) {
+          return Double.NaN;
+        }
+      }
+      if (attribute.equals("value"))
+        return shape instanceof NASAShape ? ((NASAShape) shape).getValue() : Double.NaN;
+      Rectangle mbr = shape.getMBR();
+      if (attribute.equals("x"))
+        return (mbr.x1 + mbr.x2) / 2;
+      if (attribute.equals("y"))
+        return (mbr.y1 + mbr.y2) / 2;
+      if (attribute.equals("area"))
+        return mbr.getWidth() * mbr.getHeight();
+      throw new RuntimeException("Unknown attribute '"+attribute+"'");
+    }
+
+    @Override
+    public void map(Rectangle cell, Shape shape,
+        OutputCollector<IntWritable, Statistics> output, Reporter reporter)
+        throws IOException {
+      this.output = output;
+      Rectangle mbr = shape.getMBR();
+      if (mbr == null)
+        return;
+      // Count a replicated record only in the partition of its reference point
+      if (replicated && cell.isValid() && !cell.contains(mbr.x1, mbr.y1))
+        return;
+      double value = getValue(shape);
+      if (Double.isNaN(value))
+        return;
+      int g;
+      if (groupBy == GroupByGrid) {
+        int col = (int) Math.floor(((mbr.x1 + mbr.x2) / 2 - inputMBR.x1) * gridSize / inputMBR.getWidth());
+        int row = (int) Math.floor(((mbr.y1 + mbr.y2) / 2 - inputMBR.y1) * gridSize / inputMBR.getHeight());
+        col = Math.max(0, Math.min(gridSize - 1, col));
+        row = Math.max(0, Math.min(gridSize - 1, row));
+        g = row * gridSize + col;
+      } else if (groupBy == GroupByPartition) {
+        if (lastSplit != reporter.getInputSplit()) {
+          lastSplit = reporter.getInputSplit();
+          Integer group = partitionGroups.get(((FileSplit) lastSplit).getPath().toString());
+          splitGroup = group == null ? 0 : group;
+        }
+        g = splitGroup;
+      } else {
+        g = 0;
+      }
+      long n = ++count[g];
+      sum[g] += value;
+      if (value < min[g])
+        min[g] = value;
+      if (value > max[g])
+        max[g] = value;
+      double delta = value - mean[g];
+      mean[g] += delta / n;
+      m2[g] += delta * (value - mean[g]);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (output == null)
+        return; // No records were processed
+      IntWritable key = new IntWritable();
+      Statistics stats = new Statistics();
+      for (int g = 0; g < count.length; g++) {
+        if (count[g] == 0)
+          continue;
+        stats.group = groupIds[g];
+        stats.count = count[g];
+        stats.sum = sum[g];
+        stats.min = min[g];
+        stats.max = max[g];
+        stats.mean = mean[g];
+        stats.m2 = m2[g];
+        key.set(stats.group);
+        output.collect(key, stats);
+      }
+    }
+  }
+
+  /**
+   * Merges partial statistics of the same group
+   */
+  public static class AggregateCombine extends MapReduceBase implements
+      Reducer<IntWritable, Statistics, IntWritable, Statistics> {
+    @Override
+    public void reduce(IntWritable group, Iterator<Statistics> values,
+        OutputCollector<IntWritable, Statistics> output, Reporter reporter)
             throws IOException {
-      minMax.minValue = minMax.maxValue = point.getValue();
-      output.collect(NullWritable.get(), minMax);
+      Statistics stats = new Statistics(group.get());
+      while (values.hasNext())
+        stats.merge(values.next());
+      output.collect(group, stats);
     }
   }
-  
-  public static class Reduce extends MapReduceBase implements
-  Reducer<NullWritable, MinMax, NullWritable, MinMax> {
+
+  public static class AggregateReduce extends MapReduceBase implements
+      Reducer<IntWritable, Statistics, NullWritable, Statistics> {
     @Override
-    public void reduce(NullWritable dummy, Iterator<MinMax> values,
-        OutputCollector<NullWritable, MinMax> output, Reporter reporter)
+    public void reduce(IntWritable group, Iterator<Statistics> values,
+        OutputCollector<NullWritable, Statistics> output, Reporter reporter)
             throws IOException {
-      MinMax agg = new MinMax();
-      while (values.hasNext()) {
-        agg.expand(values.next());
-      }
-      output.collect(dummy, agg);
+      Statistics stats = new Statistics(group.get());
+      while (values.hasNext())
+        stats.merge(values.next());
+      output.collect(NullWritable.get(), stats);
     }
   }
-  
+
   /**
-   * Counts the exact number of lines in a file by issuing a MapReduce job
-   * that does the thing
+   * Computes the statistics of an attribute in one MapReduce job. The
+   * attribute is set in the parameter <code>attribute</code> which is either
+   * <code>value</code> (the reading of NASA datasets), <code>x</code>,
+   * <code>y</code>, <code>area</code>, or the index of a column in the text
+   * representation of the records. Records are grouped according to the
+   * parameter <code>group</code> which is <code>none</code>,
+   * <code>grid</code> (a uniform grid of <code>gridsize</code> x
+   * <code>gridsize</code> cells over the input MBR) or <code>partition</code>
+   * (the partitions of a globally indexed input).
    * @param files
    * @param params
-   * @return
+   * @return the statistics of each group sorted by group
    * @throws IOException
+   * @throws InterruptedException
    */
-  public static MinMax aggregateMapReduce(Path[] files, OperationsParams params)
-      throws IOException {
+  public static Statistics[] aggregateStatistics(Path[] files,
+      OperationsParams params) throws IOException, InterruptedException {
     Shape plotRange = params.getShape("rect");
     JobConf job = new JobConf(params, Aggregate.class);
     
@@ -173,20 +514,36 @@ public class Aggregate {
     } while (outFs.exists(outputPath));
     
     job.setJobName("Aggregate");
-    job.setMapOutputKeyClass(NullWritable.class);
-    job.setMapOutputValueClass(MinMax.class);
+    job.setMapOutputKeyClass(IntWritable.class);
+    job.setMapOutputValueClass(Statistics.class);
 
-    job.setMapperClass(Map.class);
-    job.setCombinerClass(Reduce.class);
-    job.setReducerClass(Reduce.class);
+    job.setMapperClass(AggregateMap.class);
+    job.setCombinerClass(AggregateCombine.class);
+    job.setReducerClass(AggregateReduce.class);
     ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
     job.setNumMapTasks(clusterStatus.getMaxMapTasks() * 5);
     
     job.setInputFormat(ShapeInputFormat.class);
-    job.setClass("shape", NASAPoint.class, Shape.class);
+    if (params.get("shape") == null)
+      job.setClass("shape", NASAPoint.class, Shape.class);
     if (plotRange != null) {
       job.setClass(SpatialSite.FilterClass, RangeFilter.class, BlockFilter.class);
     }
+    if (params.get("attribute") != null)
+      job.set(AttributeName, params.get("attribute"));
+    String groupBy = params.get("group", "none");
+    if (groupBy.equals("grid")) {
+      job.setInt(GroupByType, GroupByGrid);
+      job.setInt(GridSize, params.getInt("gridsize", 10));
+      Rectangle inputMBR = (Rectangle) params.getShape("mbr");
+      if (inputMBR == null)
+        inputMBR = FileMBR.fileMBR(files, params);
+      OperationsParams.setShape(job, "mbr", inputMBR);
+    } else if (groupBy.equals("partition")) {
+      job.setInt(GroupByType, GroupByPartition);
+    } else if (!groupBy.equals("none")) {
+      throw new RuntimeException("Unknown grouping '"+groupBy+"'");
+    }
 
     job.setOutputFormat(TextOutputFormat.class);
     
@@ -198,25 +555,56 @@ public class Aggregate {
       
     // Read job result
     FileStatus[] results = outFs.listStatus(outputPath);
-    MinMax minMax = new MinMax();
+    Vector<Statistics> allStats = new Vector<Statistics>();
     for (FileStatus status : results) {
       if (status.getLen() > 0 && status.getPath().getName().startsWith("part-")) {
         BufferedReader reader = new BufferedReader(new InputStreamReader(outFs.open(status.getPath())));
         String line;
-        MinMax value = new MinMax();
         while ((line = reader.readLine()) != null) {
+          Statistics value = new Statistics();
           value.fromText(new Text(line));
-          minMax.expand(value);
+          allStats.add(value);
         }
         reader.close();
       }
     }
     
     outFs.delete(outputPath, true);
-    
-    return minMax;
+
+    Statistics[] stats = allStats.toArray(new Statistics[allStats.size()]);
+    Arrays.sort(stats, new Comparator<Statistics>() {
+      @Override
+      public int compare(Statistics s1, Statistics s2) {
+        return s1.group - s2.group;
+      }
+    });
+    return stats;
   }
-  
+
+  /**
+   * Computes the minimum and maximum of the attribute in the given files
+   * using the statistics computed by {@link #aggregateStatistics(Path[], OperationsParams)}
+   * @param files
+   * @param params
+   * @return
+   * @throws IOException
+   */
+  public static MinMax aggregateMapReduce(Path[] files, OperationsParams params)
+      throws IOException {
+    OperationsParams params2 = new OperationsParams(params);
+    params2.set("group", "none");
+    try {
+      MinMax minMax = new MinMax();
+      for (Statistics stats : aggregateStatistics(files, params2)) {
+        minMax.expand((int) stats.min);
+        minMax.expand((int) stats.max);
+      }
+      return minMax;
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupt error ", e);
+    }
+  }
+
   /**
    * Computes the minimum and maximum values of readings in input. Useful as
    * a preparatory step before drawing.
@@ -256,6 +644,9 @@ public class Aggregate {
     System.out.println("Parameters: (* marks required parameters)");
     System.out.println("<input file>: (*) Path to input file");
     System.out.println("dataset: The dataset to read from HDF flies");
+    System.out.println("attribute:<value|x|y|area|i> - Attribute to aggregate where i is a column index (default: value)");
+    System.out.println("group:<none|grid|partition> - Computes statistics for each grid cell or partition (default: none)");
+    System.out.println("gridsize:<n> - Number of rows and columns of the grid (default: 10)");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
 
@@ -263,7 +654,7 @@ public class Aggregate {
    * @param args
    * @throws IOException 
    */
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws IOException, InterruptedException {
     OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
     if (!params.checkInput()) {
       printUsage();
@@ -271,9 +662,17 @@ public class Aggregate {
     }
 
     long t1 = System.currentTimeMillis();
-    MinMax minmax = aggregate(params.getPaths(), params);
-    long t2 = System.currentTimeMillis();
-    System.out.println("Total processing time: "+(t2-t1)+" millis");
-    System.out.println("MinMax of readings is "+minmax);
+    if (params.get("attribute") == null && params.get("group") == null) {
+      MinMax minmax = aggregate(params.getPaths(), params);
+      long t2 = System.currentTimeMillis();
+      System.out.println("Total processing time: "+(t2-t1)+" millis");
+      System.out.println("MinMax of readings is "+minmax);
+    } else {
+      Statistics[] stats = aggregateStatistics(params.getPaths(), params);
+      long t2 = System.currentTimeMillis();
+      System.out.println("Total processing time: "+(t2-t1)+" millis");
+      for (Statistics s : stats)
+        System.out.println("Group #"+s.group+": "+s);
+    }
   }
 }
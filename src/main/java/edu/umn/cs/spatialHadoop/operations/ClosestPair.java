@@ -40,7 +40,6 @@ import org.apache.hadoop.util.QuickSort;
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
-import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
@@ -84,194 +83,222 @@ public class ClosestPair {
   
   /**
    * Finds the closest pair using an in-memory divide and conquer algorithm.
+   * The two halves of large sub-lists are processed in parallel using all
+   * available processors.
    * @param points
    * @param threshold
    * @return
    */
   public static Pair closestPairInMemory(final Point[] points, int threshold) {
-    // Sort points by increasing x-axis
-    Arrays.sort(points);
-    
-    class SubListComputation {
-      int start, end;
-      int p1, p2;
-      double distance;
-    }
-    
-    List<SubListComputation> sublists = new ArrayList<SubListComputation>();
-    
-    // Compute the closest pair for each sublist below the threshold
-    int start = 0;
-    while (start < points.length) {
-      int end;
-      if (start + (threshold * 3 / 2) > points.length)
-        end = points.length;
-      else
-        end = start + threshold;
-      SubListComputation closestPair = new SubListComputation();
-      closestPair.start = start;
-      closestPair.end = end;
-      closestPair.p1 = start;
-      closestPair.p2 = start+1;
-      closestPair.distance = points[start].distanceTo(points[start+1]);
-      
-      for (int i1 = start; i1 < end; i1++) {
-        for (int i2 = i1 + 1; i2 < end; i2++) {
-          double distance = points[i1].distanceTo(points[i2]);
-          if (distance < closestPair.distance) {
-            closestPair.p1 = i1;
-            closestPair.p2 = i2;
-            closestPair.distance = distance;
-          }
-        }
-      }
-      sublists.add(closestPair);
-      start = end;
-    }
-    
-    // Merge each pair of adjacent sublists
-    while (sublists.size() > 1) {
-      List<SubListComputation> newSublists = new ArrayList<SubListComputation>();
-      for (int ilist = 0; ilist < sublists.size() - 1; ilist += 2) {
-        SubListComputation list1 = sublists.get(ilist);
-        SubListComputation list2 = sublists.get(ilist+1);
-        SubListComputation merged = new SubListComputation();
-        merged.start = list1.start;
-        merged.end = list2.end;
-        // The closest pair of (list1 UNION list2) is either the closest pair
-        // of list1, list2, or a new closest pair with one point in list1
-        // and one point in list2
-        double mindistance = Math.min(list1.distance, list2.distance);
-        double xmin = points[list1.end - 1].x - mindistance;
-        double xmax = points[list2.start].x + mindistance;
-        int leftMargin = exponentialSearchLeft(points, list1.end, xmin);
-        int rightMargin = exponentialSearchRight(points, list2.start, xmax);
-        int minPointL = leftMargin, minPointR = list2.start;
-        double minDistanceLR = points[minPointL].distanceTo(points[minPointR]);
-        if (rightMargin - leftMargin < threshold) {
-          // Use brute force technique
-          for (int i1 = leftMargin; i1 < list1.end; i1++) {
-            for (int i2 = list2.start; i2 < rightMargin; i2++) {
-              double distance = points[i1].distanceTo(points[i2]);
-              if (distance < mindistance) {
-                minPointL = i1;
-                minPointR = i2;
-                minDistanceLR = distance;
-              }
-            }
-          }
-        } else {
-          // Use a y-sort technique
-          final int[] rPoints = new int[rightMargin - list2.start];
-          for (int i = 0; i < rPoints.length; i++)
-            rPoints[i] = i + list2.start;
-          IndexedSortable ysort = new IndexedSortable() {
-            @Override
-            public void swap(int i, int j) {
-              int temp = rPoints[i]; rPoints[i] = rPoints[j]; rPoints[j] = temp;
-            }
-            
-            @Override
-            public int compare(int i, int j) {
-              double dy = points[rPoints[i]].y - points[rPoints[j]].y;
-              if (dy < 0) return -1; if (dy > 0) return 1; return 0;
-            }
-          };
-          new QuickSort().sort(ysort, 0, rPoints.length);
-          int rpoint1 = 0, rpoint2 = 0;
-          for (int ilPoint = leftMargin; ilPoint < list1.end; ilPoint++) {
-            Point lPoint = points[ilPoint];
-            while (rpoint1 < rPoints.length && lPoint.y - points[rPoints[rpoint1]].y > mindistance)
-              rpoint1++;
-            while (rpoint2 < rPoints.length && points[rPoints[rpoint2]].y - lPoint.y < mindistance)
-              rpoint2++;
-            for (int rpoint = rpoint1; rpoint < rpoint2; rpoint++) {
-              double distance = lPoint.distanceTo(points[rPoints[rpoint]]);
-              if (distance < minDistanceLR) {
-                minPointL = ilPoint;
-                minPointR = rPoints[rpoint];
-                minDistanceLR = distance;
-              }
-            }
-          }
-        }
-        
-        if (minDistanceLR < mindistance) {
-          // The closest pair is in the middle (between list1 and list2)
-          merged.distance = minDistanceLR;
-          merged.p1 = minPointL;
-          merged.p2 = minPointR;
-        } else if (list1.distance < list2.distance) {
-          // The closest pair is in list1
-          merged.distance = list1.distance;
-          merged.p1 = list1.p1;
-          merged.p2 = list1.p2;
-        } else {
-          // The closest pair is in list2
-          merged.distance = list2.distance;
-          merged.p1 = list2.p1;
-          merged.p2 = list2.p2;
-        }
-        
-        newSublists.add(merged);
-      }
-      sublists = newSublists;
+    return closestPairInMemory(points, threshold,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Finds the closest pair using an in-memory divide and conquer algorithm.
+   * @param points - the input points
+   * @param threshold - size of a sub-list below which brute force is used
+   * @param parallelism - maximum number of threads to use
+   * @return the closest pair or <code>null</code> if less than two points
+   */
+  public static Pair closestPairInMemory(final Point[] points, int threshold,
+      int parallelism) {
+    double[] xs = new double[points.length];
+    double[] ys = new double[points.length];
+    for (int i = 0; i < points.length; i++) {
+      xs[i] = points[i].x;
+      ys[i] = points[i].y;
     }
-    
+    // Sort coordinates by increasing x-axis
+    sortByX(xs, ys, points.length);
+    int[] pairIndexes = closestPairSorted(xs, ys, points.length, threshold, parallelism);
+    if (pairIndexes == null)
+      return null;
     Pair closestPair = new Pair();
-    closestPair.p1 = points[sublists.get(0).p1];
-    closestPair.p2 = points[sublists.get(0).p2];
+    closestPair.p1 = new Point(xs[pairIndexes[0]], ys[pairIndexes[0]]);
+    closestPair.p2 = new Point(xs[pairIndexes[1]], ys[pairIndexes[1]]);
     return closestPair;
   }
 
+  /**Minimum size of a sub-list to process its two halves in parallel*/
+  static final int ParallelThreshold = 100000;
+
   /**
-   * Exponential search on the first point with x-coordinate larger than the
-   * given xmin.
-   * @param points
-   * @param bound2
-   * @param xmin
+   * Closest pair found in a sub-list of points
+   */
+  static class SubListComputation {
+    int p1 = -1, p2 = -1;
+    double distance = Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Sorts the given coordinates by x then by y.
+   * @param xs
+   * @param ys
+   * @param size - number of entries to sort
+   */
+  static void sortByX(final double[] xs, final double[] ys, int size) {
+    IndexedSortable xsort = new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        double t = xs[i]; xs[i] = xs[j]; xs[j] = t;
+        t = ys[i]; ys[i] = ys[j]; ys[j] = t;
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        if (xs[i] < xs[j]) return -1;
+        if (xs[i] > xs[j]) return 1;
+        if (ys[i] < ys[j]) return -1;
+        if (ys[i] > ys[j]) return 1;
+        return 0;
+      }
+    };
+    new QuickSort().sort(xsort, 0, size);
+  }
+
+  /**
+   * Computes the closest pair of points given as coordinate arrays sorted by x.
+   * @param xs - x coordinates sorted in increasing order
+   * @param ys - y coordinates
+   * @param size - number of points
+   * @param threshold - size of a sub-list below which brute force is used
+   * @param parallelism - maximum number of threads to use
+   * @return the indexes of the two closest points or <code>null</code> if
+   *  less than two points
+   */
+  static int[] closestPairSorted(double[] xs, double[] ys, int size,
+      int threshold, int parallelism) {
+    if (size < 2)
+      return null;
+    // Indexes of points sorted by y. Each recursive call sorts its own range
+    int[] yorder = new int[size];
+    for (int i = 0; i < size; i++)
+      yorder[i] = i;
+    SubListComputation result = closestPairRecursive(xs, ys, yorder,
+        new int[size], 0, size, Math.max(threshold, 2), parallelism);
+    return new int[] {result.p1, result.p2};
+  }
+
+  /**
+   * Computes the closest pair in the range [start, end) and leaves the
+   * corresponding range of yorder sorted by y.
+   * @param xs
+   * @param ys
+   * @param yorder
+   * @param buffer - temporary space for merging and for strip points
+   * @param start
+   * @param end
+   * @param threshold
+   * @param parallelism
    * @return
    */
-  static int exponentialSearchLeft(Point[] points, int bound2, double xmin) {
-    int size = 1;
-    while (bound2 - size > 0 && points[bound2 - size].x > xmin)
-      size *= 2;
-    int bound1 = Math.max(0, bound2 - size);
-    // Binary search in the given boundary
-    while (bound1 < bound2) {
-      int m = (bound1 + bound2) / 2;
-      if (points[m].x >= xmin)
-        bound2 = m;
-      else
-        bound1 = m + 1;
+  private static SubListComputation closestPairRecursive(final double[] xs,
+      final double[] ys, final int[] yorder, final int[] buffer,
+      final int start, final int end, final int threshold, final int parallelism) {
+    if (end - start <= threshold)
+      return closestPairBruteForce(xs, ys, yorder, start, end);
+
+    final int mid = (start + end) >>> 1;
+    final SubListComputation[] halves = new SubListComputation[2];
+    if (parallelism > 1 && end - start >= ParallelThreshold) {
+      // The two halves work on disjoint ranges of all arrays
+      try {
+        Parallel.forEach(2, new RunnableRange<Object>() {
+          @Override
+          public Object run(int i1, int i2) {
+            for (int i = i1; i < i2; i++) {
+              halves[i] = i == 0 ?
+                closestPairRecursive(xs, ys, yorder, buffer, start, mid,
+                    threshold, parallelism / 2) :
+                closestPairRecursive(xs, ys, yorder, buffer, mid, end,
+                    threshold, parallelism - parallelism / 2);
+            }
+            return null;
+          }
+        }, 2);
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupt error ", e);
+      }
+    } else {
+      halves[0] = closestPairRecursive(xs, ys, yorder, buffer, start, mid, threshold, 1);
+      halves[1] = closestPairRecursive(xs, ys, yorder, buffer, mid, end, threshold, 1);
+    }
+    SubListComputation result = halves[0].distance <= halves[1].distance ?
+        halves[0] : halves[1];
+
+    // Merge the two halves by y
+    int i1 = start, i2 = mid, i = start;
+    while (i1 < mid && i2 < end)
+      buffer[i++] = ys[yorder[i1]] <= ys[yorder[i2]] ? yorder[i1++] : yorder[i2++];
+    while (i1 < mid)
+      buffer[i++] = yorder[i1++];
+    while (i2 < end)
+      buffer[i++] = yorder[i2++];
+    System.arraycopy(buffer, start, yorder, start, end - start);
+
+    // Check the pairs that cross the split line and lie within the strip
+    double midX = xs[mid];
+    int stripEnd = start;
+    for (i = start; i < end; i++) {
+      if (Math.abs(xs[yorder[i]] - midX) < result.distance)
+        buffer[stripEnd++] = yorder[i];
+    }
+    for (i1 = start; i1 < stripEnd; i1++) {
+      int p1 = buffer[i1];
+      for (i2 = i1 + 1; i2 < stripEnd && ys[buffer[i2]] - ys[p1] < result.distance; i2++) {
+        int p2 = buffer[i2];
+        double dx = xs[p2] - xs[p1];
+        double dy = ys[p2] - ys[p1];
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        if (distance < result.distance) {
+          result.p1 = p1;
+          result.p2 = p2;
+          result.distance = distance;
+        }
+      }
     }
-    return bound1;
+    return result;
   }
-  
+
   /**
-   * Exponential search on the first point with x-coordinate less than the
-   * given xmax.
-   * @param points Array of all points
-   * @param bound1 The first item to start the search
-   * @param xmax The value of x to searc for
+   * Computes the closest pair in a small range by comparing all pairs and
+   * sorts the range of yorder by y.
+   * @param xs
+   * @param ys
+   * @param yorder
+   * @param start
+   * @param end
    * @return
    */
-  static int exponentialSearchRight(Point[] points, int bound1, double xmax) {
-    int size = 1;
-    while (bound1 + size <= points.length && points[bound1 + size - 1].x > xmax)
-      size *= 2;
-    int bound2 = Math.min(points.length, bound1 + size);
-    // Binary search in the given boundary
-    while (bound1 < bound2) {
-      int m = (bound1 + bound2) / 2;
-      if (points[m].x >= xmax)
-        bound2 = m;
-      else
-        bound1 = m + 1;
+  private static SubListComputation closestPairBruteForce(double[] xs,
+      double[] ys, int[] yorder, int start, int end) {
+    SubListComputation result = new SubListComputation();
+    for (int i1 = start; i1 < end; i1++) {
+      for (int i2 = i1 + 1; i2 < end; i2++) {
+        double dx = xs[i2] - xs[i1];
+        double dy = ys[i2] - ys[i1];
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        if (distance < result.distance) {
+          result.p1 = i1;
+          result.p2 = i2;
+          result.distance = distance;
+        }
+      }
+    }
+    // Insertion sort by y
+    for (int i = start + 1; i < end; i++) {
+      int p = yorder[i];
+      int j = i - 1;
+      while (j >= start && ys[yorder[j]] > ys[p]) {
+        yorder[j + 1] = yorder[j];
+        j--;
+      }
+      yorder[j + 1] = p;
     }
-    return bound1;
+    return result;
   }
-  
+
   /**
    * The map function computes the closest pair for a partition and returns all
    * points that can possibly contribute to the global closest pair. This
@@ -294,36 +321,91 @@ public class ClosestPair {
     }
     
     @Override
-    protected void map(Rectangle key, Iterable<Point> values, Context context)
+    protected void map(Rectangle key, Iterable<Point> values, final Context context)
         throws IOException, InterruptedException {
-      IntWritable column = new IntWritable();
-      List<Point> points = new ArrayList<Point>();
-      for (Point point : values)
-        points.add(point.clone());
+      // Only partitioned files can be filtered by partition boundaries
+      if (!key.isValid())
+        return;
+      double[] xs = new double[1024];
+      double[] ys = new double[1024];
+      int size = 0;
+      for (Point point : values) {
+        if (size == xs.length) {
+          xs = Arrays.copyOf(xs, size * 2);
+          ys = Arrays.copyOf(ys, size * 2);
+        }
+        xs[size] = point.x;
+        ys[size] = point.y;
+        size++;
+      }
       
-      Pair pair = closestPairInMemory(points.toArray(new Point[points.size()]),
-          context.getConfiguration().getInt(BruteForceThreshold, 100));
+      // Map tasks already run in parallel, use one thread per task
+      sortByX(xs, ys, size);
+      int[] pair = closestPairSorted(xs, ys, size,
+          context.getConfiguration().getInt(BruteForceThreshold, 100), 1);
       
       // Output the two closest points as well as all points within the minimum
       // distance of the partition boundary
-      if (key.isValid()) {
-        int col = Arrays.binarySearch(this.columnBoundaries, key.getCenterPoint().x);
-        if (col < 0)
-          col = -col - 1;
-        column.set(col);
-        
-        double minDistance = pair.getDistance();
-        Rectangle innerRectangle = key.buffer(-minDistance, -minDistance);
-        for (Point p : points) {
-          if (!innerRectangle.contains(p))
-            context.write(column, p);
+      int col = Arrays.binarySearch(this.columnBoundaries, key.getCenterPoint().x);
+      if (col < 0)
+        col = -col - 1;
+      final IntWritable column = new IntWritable(col);
+      writeStripPoints(xs, ys, size, pair, key, new PointCollector() {
+        @Override
+        public void collect(Point p) throws IOException, InterruptedException {
+          context.write(column, p);
+        }
+      });
+    }
+  }
+  
+  /**
+   * Receives the points selected by
+   * {@link ClosestPair#writeStripPoints(double[], double[], int, int[], Rectangle, PointCollector)}
+   */
+  static interface PointCollector {
+    void collect(Point p) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Writes the points that can be part of a closest pair that crosses the
+   * given boundary. These are the two closest points as well as all points
+   * within the closest distance of the boundary. All other points are
+   * filtered out.
+   * @param xs
+   * @param ys
+   * @param size
+   * @param pair - indexes of the closest pair or <code>null</code> if none
+   * @param boundary
+   * @param output
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  static void writeStripPoints(double[] xs, double[] ys, int size, int[] pair,
+      Rectangle boundary, PointCollector output)
+          throws IOException, InterruptedException {
+    double minDistance = Double.POSITIVE_INFINITY;
+    if (pair != null) {
+      double dx = xs[pair[1]] - xs[pair[0]];
+      double dy = ys[pair[1]] - ys[pair[0]];
+      minDistance = Math.sqrt(dx * dx + dy * dy);
+    }
+    Rectangle innerRectangle = boundary.buffer(-minDistance, -minDistance);
+    Point p = new Point();
+    for (int i = 0; i < size; i++) {
+      if (!innerRectangle.contains(xs[i], ys[i])) {
+        p.set(xs[i], ys[i]);
+        output.collect(p);
+      }
+    }
+
+    // Write p1 and p2 if they have not been written using the previous loop
+    if (pair != null) {
+      for (int i : pair) {
+        if (innerRectangle.contains(xs[i], ys[i])) {
+          p.set(xs[i], ys[i]);
+          output.collect(p);
         }
-        
-        // Write p1 and p2 if they have not been written using the previous loop
-        if (innerRectangle.contains(pair.p1))
-          context.write(column, (Point) pair.p1);
-        if (innerRectangle.contains(pair.p2))
-          context.write(column, (Point) pair.p2);
       }
     }
   }
@@ -338,34 +420,36 @@ public class ClosestPair {
     
     @Override
     protected void reduce(IntWritable dummyColumn, Iterable<Point> values,
-        Context context) throws IOException, InterruptedException {
-
-      List<Point> points = new ArrayList<Point>();
+        final Context context) throws IOException, InterruptedException {
+      double[] xs = new double[1024];
+      double[] ys = new double[1024];
+      int size = 0;
       Rectangle mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
           -Double.MAX_VALUE, -Double.MAX_VALUE);
       for (Point point : values) {
-        points.add(point.clone());
+        if (size == xs.length) {
+          xs = Arrays.copyOf(xs, size * 2);
+          ys = Arrays.copyOf(ys, size * 2);
+        }
+        xs[size] = point.x;
+        ys[size] = point.y;
+        size++;
         mbr.expand(point);
       }
       
-      Pair pair = closestPairInMemory(points.toArray(new Point[points.size()]),
-          context.getConfiguration().getInt(BruteForceThreshold, 100));
+      sortByX(xs, ys, size);
+      int[] pair = closestPairSorted(xs, ys, size,
+          context.getConfiguration().getInt(BruteForceThreshold, 100), 1);
       
       // Output the two closest points as well as all points within the minimum
       // distance of the partition boundary
-      double minDistance = pair.getDistance();
-      Rectangle innerRectangle = mbr.buffer(-minDistance, -minDistance);
       final NullWritable dummyNull = NullWritable.get();
-      for (Point p : points) {
-        if (!innerRectangle.contains(p))
+      writeStripPoints(xs, ys, size, pair, mbr, new PointCollector() {
+        @Override
+        public void collect(Point p) throws IOException, InterruptedException {
           context.write(dummyNull, p);
-      }
-
-      // Write p1 and p2 if they have not been written using the previous loop
-      if (innerRectangle.contains(pair.p1))
-        context.write(dummyNull, (Point) pair.p1);
-      if (innerRectangle.contains(pair.p2))
-        context.write(dummyNull, (Point) pair.p2);
+        }
+      });
     }
   }
 
@@ -393,7 +477,8 @@ public class ClosestPair {
         Pair closestPair =
             closestPairLocal(inPaths, new OperationsParams(context.getConfiguration()));
         final PrintStream ps = new PrintStream(fs.create(new Path(outPath, "finalResult")));
-        ps.println(closestPair.p1+"\t"+closestPair.p2);
+        if (closestPair != null)
+          ps.println(closestPair.p1+"\t"+closestPair.p2);
         ps.close();
       } catch (InterruptedException e) {
         e.printStackTrace();
@@ -420,12 +505,12 @@ public class ClosestPair {
           throws IOException, InterruptedException, ClassNotFoundException {
     Job job = new Job(params, "Closest Pair");
     job.setJarByClass(ClosestPair.class);
-    Shape shape = params.getShape("shape");
 
     // Set map and reduce
     job.setMapperClass(ClosestPairMap.class);
     job.setMapOutputKeyClass(IntWritable.class);
-    job.setMapOutputValueClass(shape.getClass());
+    // Map tasks emit plain points taken from the primitive coordinate arrays
+    job.setMapOutputValueClass(Point.class);
     job.setReducerClass(ClosestPairReduce.class);
 
     // Set input and output
@@ -515,18 +600,29 @@ public class ClosestPair {
       totalNumPoints += numPoints;
     
     LOG.info("Read "+totalNumPoints+" points and merging into one list");
-    Point[] allPoints = new Point[totalNumPoints];
+    double[] xs = new double[totalNumPoints];
+    double[] ys = new double[totalNumPoints];
     int pointer = 0;
     
     for (int iList = 0; iList < allLists.length; iList++) {
-      System.arraycopy(allLists[iList], 0, allPoints, pointer, allLists[iList].length);
-      pointer += allLists[iList].length;
+      for (Point p : allLists[iList]) {
+        xs[pointer] = p.x;
+        ys[pointer] = p.y;
+        pointer++;
+      }
       allLists[iList] = null; // To let the GC collect it
     }
     
-    LOG.info("Computing closest-pair for "+allPoints.length+" points");
-    Pair closestPair = closestPairInMemory(allPoints,
-        params.getInt(BruteForceThreshold, 100));
+    LOG.info("Computing closest-pair for "+totalNumPoints+" points");
+    sortByX(xs, ys, totalNumPoints);
+    int[] pairIndexes = closestPairSorted(xs, ys, totalNumPoints,
+        params.getInt(BruteForceThreshold, 100),
+        params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+    if (pairIndexes == null)
+      return null;
+    Pair closestPair = new Pair();
+    closestPair.p1 = new Point(xs[pairIndexes[0]], ys[pairIndexes[0]]);
+    closestPair.p2 = new Point(xs[pairIndexes[1]], ys[pairIndexes[1]]);
     return closestPair;
   }
   
@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -36,6 +37,8 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.GridRecordWriter;
@@ -79,7 +82,13 @@ public class ConvexHull {
     Stack<P> s1 = new Stack<P>();
     Stack<P> s2 = new Stack<P>();
     
-    Arrays.sort(points);
+    // Sort by x then y. The natural order of Point compares distances.
+    Arrays.sort(points, new Comparator<Shape>() {
+      @Override
+      public int compare(Shape p1, Shape p2) {
+        return ((Point) p1).compareTo(p2);
+      }
+    });
     
     // Lower chain
     for (int i=0; i<points.length; i++) {
@@ -114,36 +123,214 @@ public class ConvexHull {
   }
   
   /**
-   * Computes the convex hull of an input file using a single machine algorithm.
-   * The output is written to the output file. If output file is null, the
-   * output is just thrown away.
-   * @param inFile
-   * @param outFile
+   * A convex hull stored in primitive arrays as its lower and upper chains.
+   * Both chains are sorted by x then y and start and end at the leftmost and
+   * the rightmost points, respectively. Keeping the chains sorted allows two
+   * hulls to be merged in linear time without sorting their points again.
+   */
+  static class Hull {
+    double[] lx, ly;
+    int lsize;
+    double[] ux, uy;
+    int usize;
+
+    /**
+     * Computes the hull of the first n points in the given arrays. The
+     * arrays are sorted in place.
+     * @param xs
+     * @param ys
+     * @param n
+     */
+    Hull(final double[] xs, final double[] ys, int n) {
+      new QuickSort().sort(new IndexedSortable() {
+        @Override
+        public void swap(int i, int j) {
+          double t = xs[i]; xs[i] = xs[j]; xs[j] = t;
+          t = ys[i]; ys[i] = ys[j]; ys[j] = t;
+        }
+
+        @Override
+        public int compare(int i, int j) {
+          if (xs[i] != xs[j])
+            return xs[i] < xs[j] ? -1 : 1;
+          if (ys[i] != ys[j])
+            return ys[i] < ys[j] ? -1 : 1;
+          return 0;
+        }
+      }, 0, n);
+      buildChains(xs, ys, n, xs, ys, n);
+    }
+
+    /**
+     * Merges two hulls into the hull of their union in linear time
+     * @param h1
+     * @param h2
+     */
+    Hull(Hull h1, Hull h2) {
+      double[] mlx = new double[h1.lsize + h2.lsize];
+      double[] mly = new double[mlx.length];
+      mergeSorted(h1.lx, h1.ly, h1.lsize, h2.lx, h2.ly, h2.lsize, mlx, mly);
+      double[] mux = new double[h1.usize + h2.usize];
+      double[] muy = new double[mux.length];
+      mergeSorted(h1.ux, h1.uy, h1.usize, h2.ux, h2.uy, h2.usize, mux, muy);
+      buildChains(mlx, mly, mlx.length, mux, muy, mux.length);
+    }
+
+    /**
+     * Runs Andrew's monotone chain on sorted points to compute the lower
+     * chain from the first array and the upper chain from the second one.
+     * Points of the hull of a union are always on the chains of its parts
+     * which is why the lower and upper chains can be computed separately.
+     */
+    private void buildChains(double[] xs1, double[] ys1, int n1,
+        double[] xs2, double[] ys2, int n2) {
+      lx = new double[n1];
+      ly = new double[n1];
+      lsize = 0;
+      for (int i = 0; i < n1; i++) {
+        // Skip duplicates of the last point to keep a single vertex
+        if (lsize > 0 && lx[lsize-1] == xs1[i] && ly[lsize-1] == ys1[i])
+          continue;
+        while (lsize > 1 && cross(lx[lsize-2], ly[lsize-2], lx[lsize-1],
+            ly[lsize-1], xs1[i], ys1[i]) <= 0)
+          lsize--;
+        lx[lsize] = xs1[i];
+        ly[lsize++] = ys1[i];
+      }
+      ux = new double[n2];
+      uy = new double[n2];
+      usize = 0;
+      for (int i = 0; i < n2; i++) {
+        if (usize > 0 && ux[usize-1] == xs2[i] && uy[usize-1] == ys2[i])
+          continue;
+        while (usize > 1 && cross(ux[usize-2], uy[usize-2], ux[usize-1],
+            uy[usize-1], xs2[i], ys2[i]) >= 0)
+          usize--;
+        ux[usize] = xs2[i];
+        uy[usize++] = ys2[i];
+      }
+    }
+
+    private static void mergeSorted(double[] xs1, double[] ys1, int n1,
+        double[] xs2, double[] ys2, int n2, double[] xs, double[] ys) {
+      int i1 = 0, i2 = 0, i = 0;
+      while (i1 < n1 || i2 < n2) {
+        if (i2 >= n2 || (i1 < n1 && (xs1[i1] < xs2[i2] ||
+            (xs1[i1] == xs2[i2] && ys1[i1] <= ys2[i2])))) {
+          xs[i] = xs1[i1];
+          ys[i++] = ys1[i1++];
+        } else {
+          xs[i] = xs2[i2];
+          ys[i++] = ys2[i2++];
+        }
+      }
+    }
+
+    private static double cross(double x1, double y1, double x2, double y2,
+        double x3, double y3) {
+      return (x2 - x1) * (y3 - y1) - (y2 - y1) * (x3 - x1);
+    }
+
+    /**
+     * Tests whether the given point is inside the hull or on its boundary
+     * @param x
+     * @param y
+     * @return
+     */
+    boolean contains(double x, double y) {
+      if (lsize + usize < 5)
+        return false; // A degenerate hull with less than three vertices
+      for (int i = 1; i < lsize; i++)
+        if (cross(lx[i-1], ly[i-1], lx[i], ly[i], x, y) < 0)
+          return false;
+      for (int i = usize - 1; i > 0; i--)
+        if (cross(ux[i], uy[i], ux[i-1], uy[i-1], x, y) < 0)
+          return false;
+      return true;
+    }
+
+    /**
+     * Tests whether the given rectangle is completely inside the hull.
+     * Since the hull is convex, it is enough to test the four corners.
+     * @param r
+     * @return
+     */
+    boolean contains(Rectangle r) {
+      return contains(r.x1, r.y1) && contains(r.x2, r.y1) &&
+          contains(r.x2, r.y2) && contains(r.x1, r.y2);
+    }
+
+    /**
+     * Returns the vertices of the hull in counter clockwise order starting
+     * at the leftmost point, the same order of {@link ConvexHull#convexHullInMemory(Point[])}
+     * @return
+     */
+    Point[] toPoints() {
+      if (lsize == 1)
+        return new Point[] {new Point(lx[0], ly[0])};
+      Point[] points = new Point[lsize + usize - 2];
+      int n = 0;
+      for (int i = 0; i < lsize - 1; i++)
+        points[n++] = new Point(lx[i], ly[i]);
+      for (int i = usize - 1; i > 0; i--)
+        points[n++] = new Point(ux[i], uy[i]);
+      return points;
+    }
+  }
+
+  /**
+   * Merges a list of hulls pairwise in parallel into one hull
+   * @param hulls
+   * @param parallelism
+   * @return the merged hull or null if the list is empty
+   * @throws InterruptedException
+   */
+  static Hull mergeHulls(List<Hull> hulls, int parallelism) throws InterruptedException {
+    final Vector<Hull> current = new Vector<Hull>();
+    for (Hull hull : hulls)
+      if (hull != null)
+        current.add(hull);
+    while (current.size() > 1) {
+      final int numPairs = current.size() / 2;
+      List<Hull> merged = Parallel.forEach(numPairs, new RunnableRange<Hull>() {
+        @Override
+        public Hull run(int i1, int i2) {
+          Hull result = null;
+          for (int i = i1; i < i2; i++) {
+            Hull pair = new Hull(current.get(2 * i), current.get(2 * i + 1));
+            result = result == null ? pair : new Hull(result, pair);
+          }
+          return result;
+        }
+      }, parallelism);
+      if (current.size() % 2 == 1)
+        merged.add(current.lastElement());
+      current.clear();
+      current.addAll(merged);
+    }
+    return current.isEmpty() ? null : current.firstElement();
+  }
+
+  /**
+   * Reads the points in the given splits in parallel and computes their hull
+   * @param splits
+   * @param inputFormat
    * @param params
-   * @throws IOException
+   * @return the hull of all points or null if the splits are empty
    * @throws InterruptedException
    */
-  public static void convexHullLocal(Path inFile, Path outFile,
-      final OperationsParams params) throws IOException, InterruptedException {
-    if (params.getBoolean("mem", false))
-      MemoryReporter.startReporting();
-    // 1- Split the input path/file to get splits that can be processed
-    // independently
-    final SpatialInputFormat3<Rectangle, Point> inputFormat =
-        new SpatialInputFormat3<Rectangle, Point>();
-    Job job = Job.getInstance(params);
-    SpatialInputFormat3.setInputPaths(job, inFile);
-    final List<InputSplit> splits = inputFormat.getSplits(job);
-    
-    // 2- Read all input points in memory
-    LOG.info("Reading points from "+splits.size()+" splits");
-    List<Point[]> allLists = Parallel.forEach(splits.size(), new RunnableRange<Point[]>() {
+  private static Hull readHull(final List<InputSplit> splits,
+      final SpatialInputFormat3<Rectangle, Point> inputFormat,
+      final OperationsParams params) throws InterruptedException {
+    int parallelism = params.getInt("parallel", Runtime.getRuntime().availableProcessors());
+    List<Hull> hulls = Parallel.forEach(splits.size(), new RunnableRange<Hull>() {
       @Override
-      public Point[] run(int i1, int i2) {
+      public Hull run(int i1, int i2) {
         try {
-          List<Point> finalPoints = new ArrayList<Point>();
+          Hull hull = null;
           final int MaxSize = 100000;
-          Point[] points = new Point[MaxSize];
+          double[] xs = new double[MaxSize];
+          double[] ys = new double[MaxSize];
           int size = 0;
           for (int i = i1; i < i2; i++) {
             org.apache.hadoop.mapreduce.lib.input.FileSplit fsplit = (org.apache.hadoop.mapreduce.lib.input.FileSplit) splits.get(i);
@@ -161,45 +348,97 @@ public class ConvexHull {
             while (reader.nextKeyValue()) {
               Iterable<Point> pts = reader.getCurrentValue();
               for (Point p : pts) {
-                points[size++] = p.clone();
-                if (size >= points.length) {
-                  // Perform convex hull and write the result to finalPoints
-                  Point[] chPoints = convexHullInMemory(points);
-                  for (Point skylinePoint : chPoints)
-                    finalPoints.add(skylinePoint);
+                xs[size] = p.x;
+                ys[size++] = p.y;
+                if (size >= MaxSize) {
+                  // Compute the hull of this batch and merge it with the hull so far
+                  Hull batchHull = new Hull(xs, ys, size);
+                  hull = hull == null ? batchHull : new Hull(hull, batchHull);
                   size = 0; // reset
                 }
               }
             }
             reader.close();
           }
-          while (size-- > 0)
-            finalPoints.add(points[size]);
-          return finalPoints.toArray(new Point[finalPoints.size()]);
+          if (size > 0) {
+            Hull batchHull = new Hull(xs, ys, size);
+            hull = hull == null ? batchHull : new Hull(hull, batchHull);
+          }
+          return hull;
         } catch (IOException e) {
-          e.printStackTrace();
+          throw new RuntimeException("Error reading points", e);
         } catch (InterruptedException e) {
-          e.printStackTrace();
+          throw new RuntimeException("Interrupt error ", e);
         }
-        return null;
       }
-    }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
-    
-    int totalNumPoints = 0;
-    for (Point[] list : allLists)
-      totalNumPoints += list.length;
-    
-    LOG.info("Read "+totalNumPoints+" points and merging into one list");
-    Point[] allPoints = new Point[totalNumPoints];
-    int pointer = 0;
+    }, parallelism);
+    return mergeHulls(hulls, parallelism);
+  }
+
+  /**
+   * Computes the convex hull of an input file using a single machine algorithm.
+   * The output is written to the output file. If output file is null, the
+   * output is just thrown away.
+   * If the input is globally indexed, only partitions that are not dominated
+   * in any of the four skylines are considered. Partitions that touch the
+   * boundary of the input MBR are read first and any other partition that
+   * falls completely inside their hull is skipped.
+   * @param inFile
+   * @param outFile
+   * @param params
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void convexHullLocal(Path inFile, Path outFile,
+      final OperationsParams params) throws IOException, InterruptedException {
+    if (params.getBoolean("mem", false))
+      MemoryReporter.startReporting();
+    // 1- Split the input path/file to get splits that can be processed
+    // independently
+    final SpatialInputFormat3<Rectangle, Point> inputFormat =
+        new SpatialInputFormat3<Rectangle, Point>();
+    Job job = Job.getInstance(params);
+    SpatialInputFormat3.setInputPaths(job, inFile);
+    final List<InputSplit> splits = inputFormat.getSplits(job);
     
-    for (Point[] list : allLists) {
-      System.arraycopy(list, 0, allPoints, pointer, list.length);
-      pointer += list.length;
+    // 2- Read the points of the splits that can contribute to the answer
+    Hull hull;
+    GlobalIndex<Partition> gIndex =
+        SpatialSite.getGlobalIndex(inFile.getFileSystem(params), inFile);
+    if (gIndex == null) {
+      LOG.info("Reading points from "+splits.size()+" splits");
+      hull = readHull(splits, inputFormat, params);
+    } else {
+      Rectangle mbr = gIndex.getMBR();
+      Set<Partition> candidates = selectNonDominated(gIndex);
+      // Partitions on the boundary of the input MBR contain the extreme points
+      Set<String> boundary = new HashSet<String>();
+      Set<String> inner = new HashSet<String>();
+      for (Partition p : candidates) {
+        if (p.x1 <= mbr.x1 || p.y1 <= mbr.y1 || p.x2 >= mbr.x2 || p.y2 >= mbr.y2)
+          boundary.add(p.filename);
+        else
+          inner.add(p.filename);
+      }
+      List<InputSplit> boundarySplits = filterSplits(splits, boundary);
+      LOG.info("Reading points from "+boundarySplits.size()+" boundary splits");
+      hull = readHull(boundarySplits, inputFormat, params);
+      
+      // Skip partitions that lie completely inside the partial hull
+      if (hull != null) {
+        for (Partition p : candidates) {
+          if (inner.contains(p.filename) && hull.contains(p))
+            inner.remove(p.filename);
+        }
+      }
+      List<InputSplit> innerSplits = filterSplits(splits, inner);
+      LOG.info("Reading points from "+innerSplits.size()+" more splits out of "+splits.size());
+      Hull innerHull = readHull(innerSplits, inputFormat, params);
+      if (innerHull != null)
+        hull = hull == null ? innerHull : new Hull(hull, innerHull);
     }
-    allLists.clear(); // To the let the GC collect it
     
-    Point[] ch = convexHullInMemory(allPoints);
+    Point[] ch = hull == null ? new Point[0] : hull.toPoints();
 
     if (outFile != null) {
       if (params.getBoolean("overwrite", false)) {
@@ -213,6 +452,55 @@ public class ConvexHull {
       out.close(null);
     }
   }
+
+  /**
+   * Returns the splits that belong to the given partition files
+   */
+  private static List<InputSplit> filterSplits(List<InputSplit> splits,
+      Set<String> filenames) {
+    List<InputSplit> selected = new ArrayList<InputSplit>();
+    for (InputSplit split : splits) {
+      Path path = ((org.apache.hadoop.mapreduce.lib.input.FileSplit) split).getPath();
+      if (filenames.contains(path.getName()))
+        selected.add(split);
+    }
+    return selected;
+  }
+  
+  /**
+   * Returns the partitions that are not dominated in at least one of the
+   * four skylines. Other partitions cannot have any point on the convex hull.
+   * @param gIndex
+   * @return
+   */
+  public static Set<Partition> selectNonDominated(GlobalIndex<Partition> gIndex) {
+    Set<Partition> non_dominated_partitions_all = new HashSet<Partition>();
+    for (OperationsParams.Direction dir : OperationsParams.Direction.values()) {
+      Vector<Partition> non_dominated_partitions = new Vector<Partition>();
+      for (Partition p : gIndex) {
+        boolean dominated = false;
+        int i = 0;
+        while (!dominated && i < non_dominated_partitions.size()) {
+          Partition p2 = non_dominated_partitions.get(i);
+          dominated = Skyline.skylineDominate(p2, p, dir, gIndex.isCompact());
+          
+          // Check if the new partition dominates the previously selected one
+          if (Skyline.skylineDominate(p, p2, dir, gIndex.isCompact())) {
+            // p2 is no longer non-dominated
+            non_dominated_partitions.remove(i);
+          } else {
+            // Skip to next non-dominated partition
+            i++;
+          }
+        }
+        if (!dominated) {
+          non_dominated_partitions.add(p);
+        }
+      }
+      non_dominated_partitions_all.addAll(non_dominated_partitions);
+    }
+    return non_dominated_partitions_all;
+  }
   
   /**
    * Filters partitions to remove ones that do not contribute to answer.
@@ -226,31 +514,7 @@ public class ConvexHull {
     @Override
     public void selectCells(GlobalIndex<Partition> gIndex,
         ResultCollector<Partition> output) {
-      Set<Partition> non_dominated_partitions_all = new HashSet<Partition>();
-      for (OperationsParams.Direction dir : OperationsParams.Direction.values()) {
-        Vector<Partition> non_dominated_partitions = new Vector<Partition>();
-        for (Partition p : gIndex) {
-          boolean dominated = false;
-          int i = 0;
-          while (!dominated && i < non_dominated_partitions.size()) {
-            Partition p2 = non_dominated_partitions.get(i);
-            dominated = Skyline.skylineDominate(p2, p, dir, gIndex.isCompact());
-            
-            // Check if the new partition dominates the previously selected one
-            if (Skyline.skylineDominate(p, p2, dir, gIndex.isCompact())) {
-              // p2 is no longer non-dominated
-              non_dominated_partitions.remove(i);
-            } else {
-              // Skip to next non-dominated partition
-              i++;
-            }
-          }
-          if (!dominated) {
-            non_dominated_partitions.add(p);
-          }
-        }
-        non_dominated_partitions_all.addAll(non_dominated_partitions);
-      }
+      Set<Partition> non_dominated_partitions_all = selectNonDominated(gIndex);
       
       LOG.info("Processing "+non_dominated_partitions_all.size()+" out of "+gIndex.size()+" partition");
       System.out.println("Processing "+non_dominated_partitions_all.size()+" out of "+gIndex.size()+" partition");
@@ -10,6 +10,8 @@ package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -44,12 +46,21 @@ import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskCounter;
 import org.apache.hadoop.util.GenericOptionsParser;
-import org.apache.hadoop.util.IndexedSortable;
-import org.apache.hadoop.util.QuickSort;
+
+import com.esri.core.geometry.MultiVertexGeometry;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.OGCESRIShape;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
+import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
@@ -96,6 +107,15 @@ public class DistributedJoin {
 	private static final String InactiveMode = "DJ.InactiveMode";
 	private static final String isFilterOnlyMode = "DJ.FilterOnlyMode";
 	private static final String JoiningThresholdPerOnce = "DJ.JoiningThresholdPerOnce";
+	/**Maximum estimated heap size in bytes of a partition that a repartition join reducer keeps in memory*/
+	public static final String PartitionMemoryBudget = "DJ.PartitionMemoryBudget";
+	/**Maximum size in bytes of a file to broadcast to all map tasks*/
+	public static final String BroadcastThreshold = "DJ.BroadcastThreshold";
+	private static final String BroadcastFilePath = "DJ.BroadcastFilePath";
+	private static final String BroadcastFileIndex = "DJ.BroadcastFileIndex";
+	private static final String BroadcastProbeReplicated = "DJ.BroadcastProbeReplicated";
+	/**Prefix of the names of the links to cached data files of the broadcast file*/
+	private static final String BroadcastLinkPrefix = "dj-broadcast-";
 	
 	public static class SpatialJoinFilter extends DefaultBlockFilter {
 		@Override
@@ -263,7 +283,8 @@ public class DistributedJoin {
 				RTree<Shape> r1 = (RTree<Shape>) value.first;
 				@SuppressWarnings("unchecked")
 				RTree<Shape> r2 = (RTree<Shape>) value.second;
-				RTree.spatialJoin(r1, r2, new ResultCollector2<Shape, Shape>() {
+				// Only the part of both trees inside the mapper MBR is joined
+				RTree.spatialJoin(r1, r2, mapperMBR, new ResultCollector2<Shape, Shape>() {
 					@Override
 					public void collect(Shape r, Shape s) {
 						try {
@@ -414,7 +435,8 @@ public class DistributedJoin {
 				RTree<Shape> r1 = (RTree<Shape>) value.first;
 				@SuppressWarnings("unchecked")
 				RTree<Shape> r2 = (RTree<Shape>) value.second;
-				RTree.spatialJoin(r1, r2, new ResultCollector2<Shape, Shape>() {
+				// Only the part of both trees inside the mapper MBR is joined
+				RTree.spatialJoin(r1, r2, mapperMBR, new ResultCollector2<Shape, Shape>() {
 					@Override
 					public void collect(Shape r, Shape s) {
 						try {
@@ -750,6 +772,305 @@ public class DistributedJoin {
 		}
 	}
 
+	/**
+	 * A map function that joins each shape of the large file with the small
+	 * file which is loaded in memory as a packed R-tree. Each map task builds
+	 * the R-tree when it starts. The R-tree is kept in a static field so that
+	 * map tasks that run in the same JVM, as in local mode, build it once.
+	 */
+	public static class BroadcastJoinMap extends MapReduceBase implements
+			Mapper<Rectangle, Shape, Shape, Shape> {
+
+		/**In-memory index of the broadcast file shared by tasks in this JVM*/
+		private static STRtree broadcastIndex;
+		/**The broadcast file indexed in {@link #broadcastIndex}*/
+		private static String broadcastIndexKey;
+
+		/**Whether the broadcast file is the first or the second file*/
+		private boolean broadcastFirst;
+		/**Whether the other file is indexed with replication*/
+		private boolean largeReplicated;
+		private boolean isFilterOnly;
+
+		/**
+		 * A shape of the broadcast file along with the cell it was read from
+		 * if the file is indexed with replication.
+		 */
+		static class BroadcastEntry {
+			Shape shape;
+			Rectangle cell;
+
+			BroadcastEntry(Shape shape, Rectangle cell) {
+				this.shape = shape;
+				this.cell = cell;
+			}
+		}
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
+			broadcastFirst = job.getInt(BroadcastFileIndex, 1) == 0;
+			largeReplicated = job.getBoolean(BroadcastProbeReplicated, false);
+			String key = job.get(BroadcastFilePath);
+			try {
+				synchronized (BroadcastJoinMap.class) {
+					if (broadcastIndex == null || !key.equals(broadcastIndexKey)) {
+						broadcastIndex = null; // Release the old index first
+						broadcastIndex = loadBroadcastIndex(job, new Path(key));
+						broadcastIndexKey = key;
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Error loading broadcast file " + key, e);
+			}
+		}
+
+		/**
+		 * Reads all shapes of the broadcast file and packs them in an R-tree.
+		 * Data files are read from the distributed cache if available and from
+		 * the original file otherwise.
+		 * @param job
+		 * @param broadcastFile
+		 * @return
+		 * @throws IOException
+		 */
+		private static STRtree loadBroadcastIndex(JobConf job, Path broadcastFile)
+				throws IOException {
+			long t1 = System.currentTimeMillis();
+			Shape shape = OperationsParams.getShape(job, "shape");
+			FileSystem fs = broadcastFile.getFileSystem(job);
+			GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(fs, broadcastFile);
+			boolean replicated = gIndex != null && gIndex.isReplicated();
+
+			// Cached data files are linked in the working directory by the names
+			// in their fragments while the original names identify partitions
+			URI[] cacheFiles = Job.getInstance(job).getCacheFiles();
+			FileSystem dataFS = FileSystem.getLocal(job);
+			List<Path> dataFiles = new ArrayList<Path>();
+			List<String> fileNames = new ArrayList<String>();
+			for (int i = 0; cacheFiles != null && i < cacheFiles.length; i++) {
+				String link = cacheFiles[i].getFragment();
+				if (link == null || !link.startsWith(BroadcastLinkPrefix))
+					continue;
+				dataFiles.add(new Path(link));
+				fileNames.add(new Path(cacheFiles[i].getPath()).getName());
+				if (!dataFS.exists(dataFiles.get(dataFiles.size() - 1))) {
+					dataFiles.clear();
+					break;
+				}
+			}
+			if (dataFiles.isEmpty()) {
+				// Not running with a distributed cache (e.g., local mode)
+				dataFS = fs;
+				FileStatus[] files = fs.getFileStatus(broadcastFile).isDirectory() ?
+						fs.listStatus(broadcastFile, SpatialSite.NonHiddenFileFilter) :
+						new FileStatus[] {fs.getFileStatus(broadcastFile)};
+				fileNames.clear();
+				for (FileStatus file : files) {
+					dataFiles.add(file.getPath());
+					fileNames.add(file.getPath().getName());
+				}
+			}
+
+			STRtree index = new STRtree();
+			int count = 0;
+			for (int i = 0; i < dataFiles.size(); i++) {
+				Path dataFile = dataFiles.get(i);
+				Rectangle cell = null;
+				if (replicated) {
+					for (Partition p : gIndex) {
+						if (p.filename.equals(fileNames.get(i)))
+							cell = p;
+					}
+				}
+				long length = dataFS.getFileStatus(dataFile).getLen();
+				ShapeIterRecordReader reader = new ShapeIterRecordReader(
+						dataFS.open(dataFile), 0, length);
+				reader.setShape(shape);
+				Rectangle key = reader.createKey();
+				ShapeIterator shapes = reader.createValue();
+				while (reader.next(key, shapes)) {
+					while (shapes.hasNext()) {
+						Shape s = shapes.next().clone();
+						Rectangle mbr = s.getMBR();
+						if (mbr == null)
+							continue;
+						index.insert(new Envelope(mbr.x1, mbr.x2, mbr.y1, mbr.y2),
+								new BroadcastEntry(s, cell));
+						count++;
+					}
+				}
+				reader.close();
+			}
+			index.build();
+			long t2 = System.currentTimeMillis();
+			LOG.info("Built an in-memory index of " + count + " shapes from "
+					+ broadcastFile + " in " + (t2 - t1) + " millis");
+			return index;
+		}
+
+		@Override
+		public void map(Rectangle cell, Shape shape,
+				OutputCollector<Shape, Shape> output, Reporter reporter)
+				throws IOException {
+			Rectangle mbr = shape.getMBR();
+			if (mbr == null)
+				return;
+			@SuppressWarnings("unchecked")
+			List<BroadcastEntry> candidates = broadcastIndex.query(
+					new Envelope(mbr.x1, mbr.x2, mbr.y1, mbr.y2));
+			for (BroadcastEntry entry : candidates) {
+				Rectangle mbr2 = entry.shape.getMBR();
+				if (!mbr.isIntersected(mbr2))
+					continue;
+				if (largeReplicated || entry.cell != null) {
+					// Reference point duplicate avoidance
+					double refX = Math.max(mbr.x1, mbr2.x1);
+					double refY = Math.max(mbr.y1, mbr2.y1);
+					if (largeReplicated && cell.isValid() && !cell.contains(refX, refY))
+						continue;
+					if (entry.cell != null && !entry.cell.contains(refX, refY))
+						continue;
+				}
+				if (!isFilterOnly && !shape.isIntersected(entry.shape))
+					continue;
+				if (broadcastFirst)
+					output.collect(entry.shape, shape);
+				else
+					output.collect(shape, entry.shape);
+			}
+			reporter.progress();
+		}
+	}
+
+	/**
+	 * Joins two files by broadcasting one (small) file to all map tasks. Each
+	 * map task builds an in-memory index for the broadcast file and probes it
+	 * with each shape of the other file. No reduce phase is needed.
+	 * @param inFiles
+	 * @param fileToBroadcast - index of the file to broadcast
+	 * @param userOutputPath
+	 * @param params
+	 * @return
+	 * @throws IOException
+	 */
+	public static long broadcastJoinStep(Path[] inFiles, int fileToBroadcast,
+			Path userOutputPath, OperationsParams params) throws IOException {
+		long t1 = System.currentTimeMillis();
+
+		JobConf job = new JobConf(params, DistributedJoin.class);
+		Path smallFile = inFiles[fileToBroadcast];
+		Path largeFile = inFiles[1 - fileToBroadcast];
+		FileSystem smallFS = smallFile.getFileSystem(job);
+		FileSystem largeFS = largeFile.getFileSystem(job);
+
+		Path outputPath = userOutputPath;
+		if (outputPath == null) {
+			do {
+				outputPath = new Path(inFiles[0].getName() + ".dj_"
+						+ (int) (Math.random() * 1000000));
+			} while (largeFS.exists(outputPath));
+		}
+
+		job.setJobName("DistributedJoin (broadcast)");
+		LOG.info("Broadcast joining " + inFiles[0] + " X " + inFiles[1]
+				+ " broadcasting " + smallFile);
+
+		// Ship the data files of the small file to all map tasks. A Job works on
+		// a copy of the configuration so the cache files are copied back
+		FileStatus[] smallDataFiles = smallFS.getFileStatus(smallFile).isDirectory() ?
+				smallFS.listStatus(smallFile, SpatialSite.NonHiddenFileFilter) :
+				new FileStatus[] {smallFS.getFileStatus(smallFile)};
+		Job cacheJob = Job.getInstance(job);
+		for (int i = 0; i < smallDataFiles.length; i++) {
+			// Link each file with a unique name that does not clash with other
+			// files in the working directory of the task
+			URI uri = smallDataFiles[i].getPath().toUri();
+			try {
+				cacheJob.addCacheFile(new URI(uri.getScheme(), uri.getAuthority(),
+						uri.getPath(), null, BroadcastLinkPrefix + i));
+			} catch (URISyntaxException e) {
+				throw new RuntimeException("Error adding cache file " + uri, e);
+			}
+		}
+		job.set(MRJobConfig.CACHE_FILES, cacheJob.getConfiguration().get(MRJobConfig.CACHE_FILES));
+		job.set(BroadcastFilePath, smallFS.makeQualified(smallFile).toString());
+		job.setInt(BroadcastFileIndex, fileToBroadcast);
+		GlobalIndex<Partition> largeIndex = SpatialSite.getGlobalIndex(largeFS, largeFile);
+		job.setBoolean(BroadcastProbeReplicated, largeIndex != null && largeIndex.isReplicated());
+		OperationsParams.setFilterOnlyModeFlag(job, isFilterOnlyMode, isFilterOnly);
+
+		job.setInputFormat(ShapeInputFormat.class);
+		ShapeInputFormat.setInputPaths(job, largeFile);
+		job.setMapperClass(BroadcastJoinMap.class);
+
+		Shape shape = params.getShape("shape");
+		job.setMapOutputKeyClass(shape.getClass());
+		job.setMapOutputValueClass(shape.getClass());
+		job.setNumReduceTasks(0); // No reduce needed for this task
+
+		if (job.getBoolean("output", true))
+		  job.setOutputFormat(TextOutputFormat.class);
+		else
+		  job.setOutputFormat(NullOutputFormat.class);
+
+		TextOutputFormat.setOutputPath(job, outputPath);
+
+		if (!params.getBoolean("background", false)) {
+			LOG.info("Submit job in sync mode");
+			RunningJob runningJob = JobClient.runJob(job);
+			Counters counters = runningJob.getCounters();
+			Counter outputRecordCounter = counters
+					.findCounter(TaskCounter.MAP_OUTPUT_RECORDS);
+			final long resultCount = outputRecordCounter.getValue();
+
+			// Delete output directory if not explicitly set by user
+			if (userOutputPath == null)
+				largeFS.delete(outputPath, true);
+			long t2 = System.currentTimeMillis();
+			System.out.println("Join time " + (t2 - t1) + " millis");
+
+			return resultCount;
+		} else {
+			JobClient jc = new JobClient(job);
+			LOG.info("Submit job in async mode");
+			lastRunningJob = jc.submitJob(job);
+			LOG.info("Job " + lastRunningJob + " submitted successfully");
+			return -1;
+		}
+	}
+
+	/**
+	 * Estimates the number of bytes that a parsed shape takes on the heap
+	 * including the reference to it. Geometries are estimated from their
+	 * number of points since they take several times the size of their text.
+	 * @param shape
+	 * @return
+	 */
+	static long estimateHeapSize(Shape shape) {
+		if (shape instanceof Point)
+			return 40;
+		if (shape instanceof Rectangle)
+			return 56;
+		if (shape instanceof OGCJTSShape) {
+			// A Coordinate object and its reference for each point and a few
+			// objects for each part of the geometry
+			Geometry geom = ((OGCJTSShape) shape).geom;
+			return 64 + 48L * geom.getNumPoints() + 160L * geom.getNumGeometries();
+		}
+		if (shape instanceof OGCESRIShape) {
+			// Two doubles in an attribute stream for each point
+			com.esri.core.geometry.Geometry geom =
+					((OGCESRIShape) shape).geom.getEsriGeometry();
+			int numPoints = geom instanceof MultiVertexGeometry ?
+					((MultiVertexGeometry) geom).getPointCount() : 1;
+			return 256 + 16L * numPoints;
+		}
+		// Other shapes keep at most their text representation as strings
+		return 64 + 2L * shape.toText(new Text()).getLength();
+	}
+
 	public static class RepartitionJoinReduce<T extends Shape> extends
 			MapReduceBase implements Reducer<IntWritable, T, Shape, Shape> {
 
@@ -758,16 +1079,35 @@ public class DistributedJoin {
 		private boolean inactiveMode;
 		private boolean isFilterOnly;
 		private int shapesThresholdPerOnce;
+		/**Global index of the partitioned file, loaded once per task*/
+		private GlobalIndex<Partition> gIndex;
+		/**Maximum estimated heap size of a partition in bytes to keep in memory*/
+		private long partitionMemoryBudget;
+		/**Number of threads used to join two lists of shapes*/
+		private int parallelism;
+		private JobConf jobConf;
 		
 		@Override
 		public void configure(JobConf job) {
 			super.configure(job);
+			jobConf = job;
 			indexDir = OperationsParams.getRepartitionJoinIndexPath(job,
 					RepartitionJoinIndexPath);
 			shape = OperationsParams.getShape(job, "shape");
 			inactiveMode = OperationsParams.getInactiveModeFlag(job, InactiveMode);
 			isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
 			shapesThresholdPerOnce = OperationsParams.getJoiningThresholdPerOnce(job, JoiningThresholdPerOnce);
+			partitionMemoryBudget = job.getLong(PartitionMemoryBudget,
+					Runtime.getRuntime().maxMemory() / 8);
+			// One thread by default to stay within the cores allocated to the task
+			parallelism = job.getInt("parallel", 1);
+			try {
+				FileSystem fs = indexDir.getFileSystem(job);
+				gIndex = SpatialSite.getGlobalIndex(fs, indexDir);
+			} catch (IOException e) {
+				throw new RuntimeException("Error loading the global index of "
+						+ indexDir, e);
+			}
 		}
 
 		@Override
@@ -777,89 +1117,70 @@ public class DistributedJoin {
 		 if(!inactiveMode){
 			
 			LOG.info("Start reduce() logic now !!!");
-			final FileSystem fs = indexDir.getFileSystem(new Configuration());
-			GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(fs,
-					indexDir);
-			
+			ResultCollector2<Shape, Shape> collector = new ResultCollector2<Shape, Shape>() {
+				@Override
+				public void collect(Shape r, Shape s) {
+				  try {
+				    output.collect(r, s);
+				  } catch (IOException e) {
+				    e.printStackTrace();
+				  }	
+				}
+			};
+
+			// Load the partitions of this cell once. Partitions whose parsed
+			// shapes exceed the memory budget are read again for each batch.
+			List<Partition> partitions = new ArrayList<Partition>();
+			List<List<Shape>> loadedPartitions = new ArrayList<List<Shape>>();
+			// MBRs of each loaded partition sorted once for all batches
+			List<SpatialAlgorithms.MBRColumns> loadedMBRs =
+					new ArrayList<SpatialAlgorithms.MBRColumns>();
+			for (Partition p : gIndex) {
+				if (p.cellId == cellIndex.get()) {
+					Path partitionFile = new Path(indexDir, p.filename);
+					long length = partitionFile.getFileSystem(jobConf)
+							.getFileStatus(partitionFile).getLen();
+					partitions.add(p);
+					List<Shape> partitionShapes = readPartition(partitionFile,
+							length, Integer.MAX_VALUE, null, null, reporter);
+					if (partitionShapes != null)
+						LOG.info("Loaded "+partitionShapes.size()+" shapes from partition "+p);
+					else
+						LOG.info("Partition "+p+" exceeds the memory budget");
+					loadedPartitions.add(partitionShapes);
+					loadedMBRs.add(partitionShapes == null ? null :
+							new SpatialAlgorithms.MBRColumns(partitionShapes).sortByX1());
+				}
+			}
 			
 			// Get collected shapes from the repartition phase
 			while (shapes.hasNext()) {
 					int currRShapes = 0;
-					final ArrayList<Shape> r = new ArrayList<Shape>();
+					final List<Shape> r = new ArrayList<Shape>();
 					do{
 						T rShape = shapes.next();
 						r.add(rShape.clone());	
 						currRShapes++;
 					} while(shapes.hasNext() && currRShapes < shapesThresholdPerOnce);
 
-					
-					for (Partition p : gIndex) {
-						if (p.cellId == cellIndex.get()) {
+					for (int i_p = 0; i_p < partitions.size(); i_p++) {
+						List<Shape> partitionShapes = loadedPartitions.get(i_p);
+						if (partitionShapes != null) {
+							// Probe the in-memory partition
+							joinShapes(r, partitionShapes, loadedMBRs.get(i_p),
+									collector, reporter);
+						} else {
+							Partition p = partitions.get(i_p);
 							LOG.info("Joining with partition: "+p);
 							Path partitionFile = new Path(indexDir, p.filename);
-							FileSystem partitionFS = partitionFile
-									.getFileSystem(new Configuration());
-
-							// Load all shapes in this partition
-							ShapeIterRecordReader shapeReader = new ShapeIterRecordReader(
-									partitionFS.open(partitionFile), 0, p.size);
-							shapeReader.setShape(shape);
-							Rectangle cellInfo = shapeReader.createKey();
-							ShapeIterator partitionShapes = shapeReader
-									.createValue();
-
-							// load shapes from the indexed dataset
-							while (shapeReader.next(cellInfo, partitionShapes)) {
-								while(partitionShapes.hasNext()){
-									final ArrayList<Shape> selectedSShapes = new ArrayList<Shape>();
-									int currSShapes = 0;
-									do{
-										Shape shapeInPartition = partitionShapes.next();
-										selectedSShapes.add(shapeInPartition.clone());
-										currSShapes++;
-									} while(partitionShapes.hasNext() && currSShapes < shapesThresholdPerOnce);
-									LOG.info("Read "+selectedSShapes.size()+" shapes from partition");
-									
-									// Join two arrays using the plane sweep
-									// algorithm
-									if(isFilterOnly){
-										SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(
-												r, selectedSShapes,
-												new ResultCollector2<Shape, Shape>() {
-													@Override
-													public void collect(Shape r, Shape s) {
-													  try {
-													    output.collect(r, s);
-													  } catch (IOException e) {
-													    e.printStackTrace();
-													  }	
-													}
-												}, reporter);
-									}else{
-										SpatialAlgorithms.SpatialJoin_planeSweep(
-												r, selectedSShapes,
-												new ResultCollector2<Shape, Shape>() {
-													@Override
-													public void collect(Shape r, Shape s) {
-													  try {
-													    output.collect(r, s);
-													  } catch (IOException e) {
-													    e.printStackTrace();
-													  }	
-													}
-												}, reporter);										
-									}
-									
-			
-									reporter.progress();	
-								}
-							}	
-							shapeReader.close();
-							
-
+							long length = partitionFile.getFileSystem(jobConf)
+									.getFileStatus(partitionFile).getLen();
+							readPartition(partitionFile, length, shapesThresholdPerOnce,
+									r, collector, reporter);
 							LOG.info("Finished joining of "+p);
 						}
-					}	
+						reporter.progress();
+					}
 			}
 			
 					
@@ -867,6 +1188,80 @@ public class DistributedJoin {
 			LOG.info("Nothing to do !!!");
 		}
 	  }
+
+		/**
+		 * Reads the shapes of a partition file in chunks of at most chunkSize
+		 * shapes. If a batch of shapes is given, each chunk is joined with it
+		 * and then discarded. Otherwise, all shapes are returned unless their
+		 * estimated heap size exceeds the memory budget.
+		 * @param partitionFile
+		 * @param length - number of bytes to read from the partition file
+		 * @param chunkSize
+		 * @param batch - shapes to join with the partition or <code>null</code>
+		 * @param collector
+		 * @param reporter
+		 * @return all shapes in the partition if no batch is given, or
+		 *  <code>null</code> if they do not fit in the memory budget
+		 * @throws IOException
+		 */
+		private List<Shape> readPartition(Path partitionFile, long length,
+				int chunkSize, List<Shape> batch,
+				ResultCollector2<Shape, Shape> collector, Reporter reporter)
+				throws IOException {
+			FileSystem partitionFS = partitionFile.getFileSystem(jobConf);
+			ShapeIterRecordReader shapeReader = new ShapeIterRecordReader(
+					partitionFS.open(partitionFile), 0, length);
+			shapeReader.setShape(shape);
+			Rectangle cellInfo = shapeReader.createKey();
+			ShapeIterator partitionShapes = shapeReader.createValue();
+			List<Shape> chunk = new ArrayList<Shape>();
+			long heapSize = 0;
+			try {
+				while (shapeReader.next(cellInfo, partitionShapes)) {
+					while (partitionShapes.hasNext()) {
+						int currSShapes = 0;
+						do {
+							Shape s = partitionShapes.next().clone();
+							chunk.add(s);
+							currSShapes++;
+							if (batch == null) {
+								// The shape and its entry in the sorted MBR columns
+								heapSize += estimateHeapSize(s) + 36;
+								if (heapSize > partitionMemoryBudget)
+									return null;
+							}
+						} while (partitionShapes.hasNext() && currSShapes < chunkSize);
+						if (batch != null) {
+							LOG.info("Read "+chunk.size()+" shapes from partition");
+							joinShapes(batch, chunk, null, collector, reporter);
+							chunk.clear();
+						}
+					}
+				}
+			} finally {
+				shapeReader.close();
+			}
+			return batch == null ? chunk : null;
+		}
+
+		/**
+		 * Joins two lists of shapes using the parallel plane sweep algorithm.
+		 * @param r
+		 * @param s
+		 * @param sMBRs - the MBRs of s sorted by x1 or <code>null</code>
+		 * @param collector
+		 * @param reporter
+		 * @throws IOException
+		 */
+		private void joinShapes(List<Shape> r, List<Shape> s,
+				SpatialAlgorithms.MBRColumns sMBRs,
+				ResultCollector2<Shape, Shape> collector, Reporter reporter)
+				throws IOException {
+			if (isFilterOnly)
+				SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(r, s, sMBRs, collector, reporter, parallelism);
+			else
+				SpatialAlgorithms.SpatialJoin_planeSweep(r, s, sMBRs, collector, reporter, parallelism);
+		}
 	}
 
 	/**
@@ -991,6 +1386,147 @@ public class DistributedJoin {
 		return resultCount;
 	}
 
+	/**
+	 * Estimated costs of the possible plans of joining two files. All costs are
+	 * measured in bytes as estimated by
+	 * {@link BinarySpatialInputFormat#estimateJoinCost(Partition, Partition)}
+	 */
+	public static class JoinPlan {
+		/**Estimated sizes of the two files in bytes*/
+		public long[] sizes = new long[2];
+		/**Estimated number of records in the two files*/
+		public long[] recordCounts = new long[2];
+		/**Number of partitions (or blocks) in the two files*/
+		public int[] numPartitions = new int[2];
+		/**Estimated cost of joining the two files as they are partitioned*/
+		public double directJoinCost;
+		/**Estimated cost of repartitioning one file and then joining*/
+		public double repartitionJoinCost = Double.POSITIVE_INFINITY;
+		/**Index of the file to repartition or -1 if no file can be repartitioned*/
+		public int fileToRepartition = -1;
+		/**Whether the repartition plan is selected*/
+		public boolean repartition;
+		/**Estimated cost of broadcasting the smaller file to all map tasks*/
+		public double broadcastJoinCost = Double.POSITIVE_INFINITY;
+		/**Index of the file to broadcast or -1 if no file is small enough*/
+		public int fileToBroadcast = -1;
+		/**Whether the broadcast plan is selected*/
+		public boolean broadcast;
+
+		@Override
+		public String toString() {
+			return String.format("%s (direct join cost %.0f, repartition join cost %.0f, "
+					+ "broadcast join cost %.0f, "
+					+ "sizes %d/%d bytes, records %d/%d, partitions %d/%d)",
+					broadcast ? "broadcast file #" + fileToBroadcast :
+					repartition ? "repartition file #" + fileToRepartition
+							+ " then join" : "direct join", directJoinCost,
+					repartitionJoinCost, broadcastJoinCost, sizes[0], sizes[1],
+					recordCounts[0], recordCounts[1], numPartitions[0], numPartitions[1]);
+		}
+	}
+
+	/**
+	 * Estimates the costs of joining two files directly, after repartitioning
+	 * one of them, or by broadcasting the smaller one if it is smaller than
+	 * {@link #BroadcastThreshold}, and selects the cheapest plan. The estimates use the size,
+	 * record count, and overlap area of each pair of partitions.
+	 * @param files
+	 * @param params
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static JoinPlan planJoin(Path[] files, OperationsParams params)
+			throws IOException {
+		final JoinPlan plan = new JoinPlan();
+		GlobalIndex<Partition>[] gIndexes = new GlobalIndex[files.length];
+		for (int i_file = 0; i_file < files.length; i_file++) {
+			FileSystem fs = files[i_file].getFileSystem(params);
+			gIndexes[i_file] = SpatialSite.getGlobalIndex(fs, files[i_file]);
+			if (gIndexes[i_file] != null) {
+				for (Partition p : gIndexes[i_file]) {
+					if (p.size == 0) // Not stored in old indexes
+						p.size = fs.getFileStatus(new Path(files[i_file], p.filename)).getLen();
+					plan.sizes[i_file] += p.size;
+					plan.recordCounts[i_file] += p.recordCount;
+				}
+				plan.numPartitions[i_file] = gIndexes[i_file].size();
+			} else {
+				FileStatus[] subfiles = fs.getFileStatus(files[i_file]).isDirectory() ?
+						fs.listStatus(files[i_file], SpatialSite.NonHiddenFileFilter) :
+						new FileStatus[] {fs.getFileStatus(files[i_file])};
+				for (FileStatus subfile : subfiles) {
+					plan.sizes[i_file] += subfile.getLen();
+					plan.numPartitions[i_file] += fs.getFileBlockLocations(subfile,
+							0, subfile.getLen()).length;
+				}
+			}
+		}
+
+		// Cost of the direct join
+		if (gIndexes[0] != null && gIndexes[1] != null) {
+			new SpatialJoinFilter().selectCellPairs(gIndexes[0], gIndexes[1],
+					new ResultCollector2<Partition, Partition>() {
+						@Override
+						public void collect(Partition r, Partition s) {
+							plan.directJoinCost += BinarySpatialInputFormat.estimateJoinCost(r, s);
+						}
+					});
+		} else {
+			// Each block of one file is joined with each block of the other file
+			plan.directJoinCost = (double) plan.sizes[0] * plan.numPartitions[1]
+					+ (double) plan.sizes[1] * plan.numPartitions[0];
+		}
+
+		// Cost of repartitioning one file to match the other file then joining
+		plan.fileToRepartition = selectRepartition(files, params);
+		if (plan.fileToRepartition != -1) {
+			int r = plan.fileToRepartition;
+			int o = 1 - r;
+			long recordsR = plan.recordCounts[r];
+			if (recordsR == 0 && plan.recordCounts[o] > 0)
+				// Not indexed, assume the same record size as the other file
+				recordsR = plan.sizes[r] * plan.recordCounts[o] / Math.max(1, plan.sizes[o]);
+			// Repartition reads, shuffles, and writes the file
+			plan.repartitionJoinCost = 3.0 * plan.sizes[r];
+			// Each partition is joined with its share of the repartitioned file
+			for (Partition p : gIndexes[o]) {
+				double share = plan.sizes[o] == 0 ? 1.0 / plan.numPartitions[o]
+						: (double) p.size / plan.sizes[o];
+				double n = p.recordCount + recordsR * share;
+				plan.repartitionJoinCost += p.size + plan.sizes[r] * share
+						+ BinarySpatialInputFormat.ComparisonCost * n * Math.log(n + 1) / Math.log(2);
+			}
+		}
+		// Cost of broadcasting the smaller file to all map tasks of the other file
+		int s = plan.sizes[0] <= plan.sizes[1] ? 0 : 1;
+		if (plan.sizes[s] <= params.getLong(BroadcastThreshold, 32 * 1024 * 1024)) {
+			int l = 1 - s;
+			plan.fileToBroadcast = s;
+			long recordsL = plan.recordCounts[l], recordsS = plan.recordCounts[s];
+			// Files that are not indexed are assumed to have the same record size
+			if (recordsL == 0 && recordsS > 0)
+				recordsL = plan.sizes[l] * recordsS / Math.max(1, plan.sizes[s]);
+			if (recordsS == 0 && recordsL > 0)
+				recordsS = plan.sizes[s] * recordsL / Math.max(1, plan.sizes[l]);
+			// Each map task of the large file reads the whole small file and
+			// builds its in-memory index. Then, it probes the index once per shape
+			int numMapTasks = Math.max(1, plan.numPartitions[l]);
+			plan.broadcastJoinCost = plan.sizes[l]
+					+ ((double) plan.sizes[s] + BinarySpatialInputFormat.ComparisonCost
+							* recordsS * Math.log(recordsS + 1) / Math.log(2)) * numMapTasks
+					+ BinarySpatialInputFormat.ComparisonCost * recordsL
+					* Math.log(recordsS + 1) / Math.log(2);
+		}
+		plan.repartition = plan.repartitionJoinCost < plan.directJoinCost;
+		plan.broadcast = plan.broadcastJoinCost < Math.min(plan.directJoinCost,
+				plan.repartitionJoinCost);
+		if (plan.broadcast)
+			plan.repartition = false;
+		return plan;
+	}
+
 	/**
 	 * Spatially joins two files.
 	 * @param inputFiles
@@ -1000,10 +1536,8 @@ public class DistributedJoin {
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	@SuppressWarnings("unchecked")
 	public static long distributedJoinSmart(final Path[] inputFiles,
 			Path userOutputPath, OperationsParams params) throws IOException, InterruptedException {
-		Path[] originalInputFiles = inputFiles.clone();
 		FileSystem outFs = inputFiles[0].getFileSystem(params);
 		Path outputPath = userOutputPath;
 		if (outputPath == null) {
@@ -1014,84 +1548,17 @@ public class DistributedJoin {
 		}
 
 		// Decide whether to do a repartition step or not
-		int cost_with_repartition, cost_without_repartition;
-		final FileStatus[] fStatus = new FileStatus[inputFiles.length];
-		for (int i_file = 0; i_file < inputFiles.length; i_file++) {
-			// TODO work with folders. Calculate size more accurately
-			FileSystem fs = inputFiles[i_file].getFileSystem(params);
-			fStatus[i_file] = fs.getFileStatus(inputFiles[i_file]);
-		}
-
-		// Sort files by length (size)
-		IndexedSortable filesBySize = new IndexedSortable() {
-			@Override
-			public void swap(int i, int j) {
-				Path tmp1 = inputFiles[i];
-				inputFiles[i] = inputFiles[j];
-				inputFiles[j] = tmp1;
-
-				FileStatus tmp2 = fStatus[i];
-				fStatus[i] = fStatus[j];
-				fStatus[j] = tmp2;
-			}
-
-			@Override
-			public int compare(int i, int j) {
-				if (fStatus[i].getLen() < fStatus[j].getLen())
-					return 0;
-				return fStatus[i].getLen() < fStatus[j].getLen() ? -1 : 1;
-			}
-		};
-
-		new QuickSort().sort(filesBySize, 0, inputFiles.length);
-		GlobalIndex<Partition>[] gIndexes = new GlobalIndex[fStatus.length];
-		int[] numBlocks = new int[fStatus.length];
-		for (int i_file = 0; i_file < fStatus.length; i_file++) {
-			gIndexes[i_file] = SpatialSite.getGlobalIndex(outFs,
-					fStatus[i_file].getPath());
-			if (gIndexes[i_file] != null) {
-				// Number of blocks is equal to number of partitions in global
-				// index
-				numBlocks[i_file] = gIndexes[i_file].size();
-			} else if (fStatus[i_file].isDir()) {
-				// Add up number of file system blocks in all subfiles of this
-				// directory
-				numBlocks[i_file] = 0;
-				FileStatus[] subfiles = outFs.listStatus(inputFiles[i_file],
-						SpatialSite.NonHiddenFileFilter);
-				for (FileStatus subfile : subfiles) {
-					numBlocks[i_file] += outFs.getFileBlockLocations(subfile,
-							0, subfile.getLen()).length;
-				}
-			} else {
-				// Number of file system blocks in input file
-				numBlocks[i_file] = outFs.getFileBlockLocations(
-						fStatus[i_file], 0, fStatus[i_file].getLen()).length;
-			}
-		}
-
-		cost_without_repartition = gIndexes[0] != null && gIndexes[1] != null ? GlobalIndex
-				.spatialJoin(gIndexes[0], gIndexes[1], null)
-				: (numBlocks[0] * numBlocks[1]);
-		// Total cost = Cost of repartition (=== 2 * numBlocks[0]) +
-		// cost of join (=== numBlocks[0] + numBlocks[1])
-		cost_with_repartition = numBlocks[0] * 3 + numBlocks[1];
-		LOG.info("Cost with repartition is estimated to "
-				+ cost_with_repartition);
-		LOG.info("Cost without repartition is estimated to "
-				+ cost_without_repartition);
-		boolean need_repartition = cost_with_repartition < cost_without_repartition;
-		if (need_repartition) {
-			int file_to_repartition = selectRepartition(inputFiles, params);
-			repartitionStep(inputFiles, file_to_repartition, params);
-		}
-
-		// Restore inputFiles to the original order by user
-		if (inputFiles[1] != originalInputFiles[1]) {
-			Path temp = inputFiles[0];
-			inputFiles[0] = inputFiles[1];
-			inputFiles[1] = temp;
+		JoinPlan plan = planJoin(inputFiles, params);
+		LOG.info("Join plan: " + plan);
+		if (plan.broadcast) {
+			long result_size = broadcastJoinStep(inputFiles, plan.fileToBroadcast,
+					outputPath, params);
+			if (userOutputPath == null)
+				outFs.delete(outputPath, true);
+			return result_size;
 		}
+		if (plan.repartition)
+			repartitionStep(inputFiles, plan.fileToRepartition, params);
 
 		// Redistribute join the larger file and the partitioned file
 		long result_size = DistributedJoin.joinStep(inputFiles, outputPath,
@@ -1163,7 +1630,7 @@ public class DistributedJoin {
 				.println("<input file 2> - (*) Path to the second input file");
 		System.out.println("<output file> - Path to output file");
 		System.out
-				.println("repartition:<decision> - (*) Decision to repartition smaller dataset (yes|no|auto)");
+				.println("repartition:<decision> - (*) Decision to repartition smaller dataset (yes|no|auto|broadcast)");
 		System.out
 				.println("all-inmemory-load:<decision> - (*) Decision to load all file blocks in memory (yes|no)");
 		System.out
@@ -1252,6 +1719,11 @@ public class DistributedJoin {
 			}
 		} else if (repartition.equals("no")) {
 			result_size = joinStep(inputPaths, outputPath, params);
+		} else if (repartition.equals("broadcast")) {
+			JoinPlan plan = planJoin(inputPaths, params);
+			int file_to_broadcast = plan.sizes[0] <= plan.sizes[1] ? 0 : 1;
+			result_size = broadcastJoinStep(inputPaths, file_to_broadcast,
+					outputPath, params);
 		} else {
 			throw new RuntimeException("Illegal parameter repartition:"
 					+ repartition);
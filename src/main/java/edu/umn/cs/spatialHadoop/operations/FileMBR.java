@@ -21,6 +21,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.ClusterStatus;
@@ -83,6 +84,14 @@ public class FileMBR {
   /**Last submitted MBR MapReduce job*/
   public static RunningJob lastSubmittedJob;
 
+  /**Accepts master files of all index types*/
+  private static final PathFilter MasterFileFilter = new PathFilter() {
+    @Override
+    public boolean accept(Path p) {
+      return p.getName().startsWith("_master");
+    }
+  };
+
   public static class FileMBRMapper extends MapReduceBase implements
       Mapper<Rectangle, Text, Text, Partition> {
     
@@ -181,8 +190,9 @@ public class FileMBR {
         if (!inFs.getFileStatus(inPath).isDir())
           return;
         Path gindex_path = new Path(inPath, "_master.heap");
-        // Answer has been already cached (may be by another job)
-        if (inFs.exists(gindex_path))
+        // Answer has been already cached (may be by another job) or the
+        // directory is already indexed
+        if (inFs.listStatus(inPath, MasterFileFilter).length > 0)
           return;
         PrintStream gout = new PrintStream(inFs.create(gindex_path, false));
 
@@ -287,8 +297,9 @@ public class FileMBR {
       if (!inFs.getFileStatus(inFile).isDir())
         continue;
       Path gindex_path = new Path(inFile, "_master.heap");
-      // Answer has been already cached (may be by another job)
-      if (inFs.exists(gindex_path))
+      // Answer has been already cached (may be by another job) or the
+      // directory is already indexed
+      if (inFs.listStatus(inFile, MasterFileFilter).length > 0)
         continue;
       FileStatus[] files = inFs.listStatus(inFile, SpatialSite.NonHiddenFileFilter);
       PrintStream wktout = new PrintStream(inFs.create(new Path(inFile, "_heap.wkt"), false));
@@ -298,6 +309,8 @@ public class FileMBR {
       for (FileStatus file : files) {
         text.clear();
         Partition p = mbrs.get(file.getPath().getName());
+        if (p == null)
+          continue; // An empty file
         gout.println(p.toText(text).toString());
         wktout.println(p.toWKT());
       }
@@ -313,6 +326,7 @@ public class FileMBR {
     finalResult.x2 = finalResult.y2 = -Double.MAX_VALUE;
     for (Partition p2 : mbrs.values())
       finalResult.expand(p2);
+    sizeOfLastProcessedFile = finalResult.size;
     return finalResult;
   }
 
@@ -397,25 +411,33 @@ public class FileMBR {
   }
 
   /**
-   * Returns the MBR of a file given that it is globally indexed.
-   * @param file
+   * Returns the MBR of a set of files given that they are all globally indexed
+   * with a complete global index. The returned partition also carries the
+   * total size and number of records as stored in the master files.
+   * Returns <code>null</code> if any of the files is not indexed or if the
+   * user sets {@link SpatialSite#FORCE_SCAN}.
+   * @param files
+   * @param params
    * @return
    * @throws IOException 
    */
   private static Partition fileMBRCached(Path[] files, OperationsParams params) throws IOException {
+    if (params.getBoolean(SpatialSite.FORCE_SCAN, false))
+      return null;
     Partition p = new Partition();
+    p.size = p.recordCount = 0;
+    p.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
     for (Path file : files) {
       FileSystem inFs = file.getFileSystem(params);
       // Quickly get file MBR if it is globally indexed
-      GlobalIndex<Partition> globalIndex = SpatialSite.getGlobalIndex(inFs, file);
+      GlobalIndex<Partition> globalIndex = SpatialSite.getCompleteGlobalIndex(inFs, file);
       if (globalIndex == null)
         return null;
-      p.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
       for (Partition part : globalIndex) {
         p.expand(part);
       }
-      sizeOfLastProcessedFile = p.size;
     }
+    sizeOfLastProcessedFile = p.size;
     return p;
   }
 
@@ -445,6 +467,7 @@ public class FileMBR {
     System.out.println("Parameters: (* marks required parameters)");
     System.out.println("<input file>: (*) Path to input file");
     System.out.println("shape:<input shape>: (*) Input file format");
+    System.out.println("-force-scan - Scan the input even if it is globally indexed");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
 
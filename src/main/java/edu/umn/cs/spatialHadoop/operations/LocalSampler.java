@@ -16,6 +16,7 @@ import java.util.Random;
 import java.util.Vector;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -28,6 +29,7 @@ import org.apache.hadoop.io.compress.SplitCompressionInputStream;
 import org.apache.hadoop.io.compress.SplittableCompressionCodec;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
@@ -168,7 +170,9 @@ public class LocalSampler {
   /**
    * Reads a sample of a specific count from a stream. With a stream, we cannot
    * randomly seek to any position and we have to use reservoir sampling
-   * techniques.
+   * techniques. Every non-empty line that starts in the first streamLength
+   * bytes has the same probability to be in the sample regardless of its
+   * length and no line is returned twice.
    * 
    * @return
    * @throws IOException
@@ -177,32 +181,30 @@ public class LocalSampler {
       int count, long seed, ResultCollector<Text> output) throws IOException {
     Random rand = new Random(seed);
     
-    Text dummyLine = new Text2();
+    LineReader reader = new LineReader(in);
+    Text line = new Text2();
     Text[] sample = new Text[count];
     long pos = 0;
-    int k = 0;
+    long k = 0; // Number of lines read so far
     
     while (pos < streamLength) {
-      if (k < count) {
-        // Phase 1- Fill in the reservoir
-        pos += readUntilEOL(in, sample[k] = new Text2());
-      } else {
-        // Phase 2- Replace an existing item with probability p=(count/k)
-        if (rand.nextInt(k) < count) {
-          // Replace a randomly selected item
-          int victim = rand.nextInt(count);
-          sample[victim].clear();
-          pos += readUntilEOL(in, sample[victim]);
-        } else {
-          // Skip this item
-          dummyLine.clear();
-          pos += readUntilEOL(in, dummyLine);
-        }
+      int lineSize = reader.readLine(line);
+      if (lineSize == 0)
+        break; // End of stream
+      pos += lineSize;
+      if (line.getLength() == 0)
+        continue;
+      // The kth line replaces a random item with probability p=(count/(k+1))
+      long victim = k < count ? k : (long) (rand.nextDouble() * (k + 1));
+      if (victim < count) {
+        if (sample[(int) victim] == null)
+          sample[(int) victim] = new Text2();
+        sample[(int) victim].set(line);
       }
       k++;
     }
     // Report sampled items
-    int sampleSize = Math.min(k, count);
+    int sampleSize = (int) Math.min(k, count);
     if (output != null) {
       for (int i = 0; i < sampleSize; i++)
         output.collect(sample[i]);
@@ -212,7 +214,10 @@ public class LocalSampler {
   }  
   
   /**
-   * Sample a specific number of lines from a given file
+   * Sample a specific number of lines from a given file. The sample is drawn
+   * uniformly from the lines that start in the split, i.e., all lines have
+   * the same probability to be in the sample regardless of their lengths.
+   * If the split has fewer lines than count, all of them are returned.
    * @param fs
    * @param file
    * @param count
@@ -221,7 +226,7 @@ public class LocalSampler {
    * @return
    * @throws IOException
    */
-  private static int sampleFileSplitByCount(FileSplit file, Configuration conf,
+  public static int sampleFileSplitByCount(FileSplit file, Configuration conf,
       int count, long seed, ResultCollector<Text> output) throws IOException {
     InputStream in = null;
     Decompressor decompressor = null;
@@ -256,30 +261,21 @@ public class LocalSampler {
           sampledLines = sampleStreamByCount(in, Long.MAX_VALUE, count, seed, output);
         }
       } else {
-        long pos = 0; // Current position in file
-        
-        // Generate random offsets and keep them sorted for IO efficiency
-        Random rand = new Random(seed);
-        long[] sampleOffsets = new long[count];
-        for (int i = 0; i < count; i++)
-          sampleOffsets[i] = Math.abs(rand.nextLong()) % file.getLength() + file.getStart();
-        Arrays.sort(sampleOffsets);
-        
-        // Sample the generated numbers
-        Text line = new Text2();
-        for (int i = 0; i < count; i++) {
-          pos += in.skip(sampleOffsets[i] - pos);
-          // Skip until end of line
-          line.clear();
-          pos += readUntilEOL(in, line);
-          // Read the next full line
-          line.clear();
-          if ((pos += readUntilEOL(in, line)) > 1) {
-            sampledLines++;
-            if (output != null)
-              output.collect(line);
-          }
+        // Sampling random byte offsets favors long lines. Instead, scan the
+        // lines of the split and draw a reservoir sample from them.
+        FSDataInputStream fin = (FSDataInputStream) in;
+        long start = file.getStart();
+        long end = start + file.getLength();
+        if (start != 0) {
+          // The first partial line belongs to the previous split. A line that
+          // starts exactly at the split start belongs to this split.
+          fin.seek(start - 1);
+          int b;
+          while ((b = fin.read()) != -1 && b != '\n')
+            ;
         }
+        sampledLines = sampleStreamByCount(fin, end - fin.getPos(), count,
+            seed, output);
       }
       
       return sampledLines;
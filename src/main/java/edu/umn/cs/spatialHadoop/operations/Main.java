@@ -25,6 +25,7 @@ import edu.umn.cs.spatialHadoop.visualization.HadoopvizServer;
 import edu.umn.cs.spatialHadoop.visualization.HeatMapPlot;
 import edu.umn.cs.spatialHadoop.visualization.LakesPlot;
 import edu.umn.cs.spatialHadoop.visualization.MagickPlot;
+import edu.umn.cs.spatialHadoop.visualization.VectorTilePlot;
 import edu.umn.cs.spatialHadoop.delaunay.DelaunayTriangulation;
 
 
@@ -60,6 +61,9 @@ public class Main {
           "Computes the spatial join between two input files using the " +
           "SJMR algorithm");
       
+      pgd.addClass("pip", PointInPolygon.class,
+          "Finds the polygons that contain each point in a file of points");
+      
       pgd.addClass("index", Indexer.class,
           "Spatially index a file using a specific indexer");
       
@@ -99,6 +103,9 @@ public class Main {
       pgd.addClass("hplot", HeatMapPlot.class,
           "Plots a heat map to an image");
       
+      pgd.addClass("vplot", VectorTilePlot.class,
+          "Plots a file to binary vector tiles");
+
       pgd.addClass("lakesplot", LakesPlot.class,
           "Plots lakes to SVG image");
       
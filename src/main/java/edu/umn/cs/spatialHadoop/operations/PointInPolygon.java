@@ -0,0 +1,363 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.GridInfo;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.PreparedPolygon;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+import edu.umn.cs.spatialHadoop.operations.SJMR.IndexedText;
+import edu.umn.cs.spatialHadoop.util.FileUtil;
+
+/**
+ * Joins a file of points with a file of polygons and reports each point
+ * with every polygon that contains it. Similar to {@link SJMR}, the map
+ * function partitions both files using a uniform grid. Each point is assigned
+ * to exactly one cell, so no duplicate avoidance is needed. The reduce
+ * function tests each point against a {@link PreparedPolygon} which is built
+ * once for each polygon and cached for the lifetime of the reduce task.
+ */
+public class PointInPolygon {
+
+  /**Class logger*/
+  private static final Log LOG = LogFactory.getLog(PointInPolygon.class);
+  private static final String PartitionGrid = "PIP.PartitionGrid";
+  /**The shape of the points file. The polygons file uses 'shape'*/
+  public static final String PointShape = "point-shape";
+  /**Maximum number of prepared polygons cached in one reduce task*/
+  public static final String PreparedCacheSize = "PIP.PreparedCacheSize";
+
+  /**
+   * Returns the column of the grid cell that overlaps the given coordinate
+   * using the same formula as {@link GridInfo#getOverlappingCells(Rectangle)}
+   */
+  static int getColumn(GridInfo grid, double x) {
+    int col = (int) Math.floor((x - grid.x1) / grid.getWidth() * grid.columns);
+    return Math.max(0, Math.min(grid.columns - 1, col));
+  }
+
+  static int getRow(GridInfo grid, double y) {
+    int row = (int) Math.floor((y - grid.y1) / grid.getHeight() * grid.rows);
+    return Math.max(0, Math.min(grid.rows - 1, row));
+  }
+
+  /**
+   * Assigns each point to the one cell that contains it and each polygon to
+   * all cells it overlaps including cells that only touch its boundary.
+   */
+  public static class PIPMap extends MapReduceBase implements
+      Mapper<Rectangle, Text, IntWritable, IndexedText> {
+    private Shape point;
+    private Shape polygon;
+    private IndexedText outputValue = new IndexedText();
+    private GridInfo gridInfo;
+    private IntWritable cellId = new IntWritable();
+    private Path[] inputFiles;
+    private InputSplit currentSplit;
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      gridInfo = (GridInfo) OperationsParams.getShape(job, PartitionGrid);
+      point = OperationsParams.getShape(job, PointShape, new Point());
+      polygon = SpatialSite.createStockShape(job);
+      inputFiles = FileInputFormat.getInputPaths(job);
+    }
+
+    @Override
+    public void map(Rectangle cellMbr, Text value,
+        OutputCollector<IntWritable, IndexedText> output, Reporter reporter)
+        throws IOException {
+      if (reporter.getInputSplit() != currentSplit) {
+        FileSplit fsplit = (FileSplit) reporter.getInputSplit();
+        for (int i = 0; i < inputFiles.length; i++) {
+          if (fsplit.getPath().toString().startsWith(inputFiles[i].toString())) {
+            outputValue.index = (byte) i;
+          }
+        }
+        currentSplit = reporter.getInputSplit();
+      }
+
+      outputValue.text = value;
+      if (outputValue.index == 0) {
+        point.fromText(new Text(value));
+        Point pt = (Point) point;
+        cellId.set(gridInfo.getCellId(getColumn(gridInfo, pt.x),
+            getRow(gridInfo, pt.y)));
+        output.collect(cellId, outputValue);
+      } else {
+        polygon.fromText(new Text(value));
+        Rectangle mbr = polygon.getMBR();
+        if (mbr == null)
+          return;
+        // Do a reference point technique to avoid processing the same record twice
+        if (cellMbr.isValid() && !cellMbr.contains(mbr.x1, mbr.y1))
+          return;
+        int col1 = getColumn(gridInfo, mbr.x1), col2 = getColumn(gridInfo, mbr.x2);
+        int row1 = getRow(gridInfo, mbr.y1), row2 = getRow(gridInfo, mbr.y2);
+        for (int col = col1; col <= col2; col++) {
+          for (int row = row1; row <= row2; row++) {
+            cellId.set(gridInfo.getCellId(col, row));
+            output.collect(cellId, outputValue);
+          }
+        }
+      }
+    }
+  }
+
+  public static class PIPReduce extends MapReduceBase implements
+      Reducer<IntWritable, IndexedText, Shape, Shape> {
+    private Shape point;
+    private OGCJTSShape polygon;
+    /**Prepared polygons cached across all cells processed by this task*/
+    private Map<Text, PreparedPolygon> preparedCache;
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      point = OperationsParams.getShape(job, PointShape, new Point());
+      polygon = (OGCJTSShape) SpatialSite.createStockShape(job);
+      final int cacheSize = job.getInt(PreparedCacheSize, 10000);
+      preparedCache = new LinkedHashMap<Text, PreparedPolygon>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Text, PreparedPolygon> eldest) {
+          return size() > cacheSize;
+        }
+      };
+    }
+
+    @Override
+    public void reduce(IntWritable cellId, Iterator<IndexedText> values,
+        OutputCollector<Shape, Shape> output, Reporter reporter)
+        throws IOException {
+      List<Shape> points = new ArrayList<Shape>();
+      List<PreparedPolygon> polygons = new ArrayList<PreparedPolygon>();
+      int numPrepared = 0;
+      while (values.hasNext()) {
+        IndexedText t = values.next();
+        if (t.index == 0) {
+          Shape p = point.clone();
+          p.fromText(t.text);
+          points.add(p);
+        } else {
+          PreparedPolygon prepared = preparedCache.get(t.text);
+          if (prepared == null) {
+            Text key = new Text(t.text);
+            OGCJTSShape poly = (OGCJTSShape) polygon.clone();
+            poly.fromText(new Text(t.text));
+            if (poly.geom == null)
+              continue;
+            prepared = new PreparedPolygon(poly);
+            preparedCache.put(key, prepared);
+            numPrepared++;
+          }
+          polygons.add(prepared);
+        }
+      }
+      LOG.info("Joining " + points.size() + " points with " + polygons.size()
+          + " polygons (" + numPrepared + " newly prepared)");
+      if (points.isEmpty() || polygons.isEmpty())
+        return;
+
+      STRtree index = new STRtree();
+      for (PreparedPolygon p : polygons)
+        index.insert(p.envelope, p);
+      Envelope searchEnv = new Envelope();
+      for (Shape s : points) {
+        Point p = (Point) s;
+        searchEnv.init(p.x, p.x, p.y, p.y);
+        @SuppressWarnings("unchecked")
+        List<PreparedPolygon> candidates = index.query(searchEnv);
+        for (PreparedPolygon candidate : candidates) {
+          if (candidate.contains(p.x, p.y))
+            output.collect(s, candidate.shape);
+        }
+        reporter.progress();
+      }
+    }
+  }
+
+  /**
+   * Joins a file of points with a file of polygons
+   * @param inFiles - the points file followed by the polygons file
+   * @param userOutputPath
+   * @param params
+   * @return number of (point, polygon) pairs where the polygon contains the point
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static long pointInPolygon(Path[] inFiles, Path userOutputPath,
+      OperationsParams params) throws IOException, InterruptedException {
+    JobConf job = new JobConf(params, PointInPolygon.class);
+
+    if (!(OperationsParams.getShape(job, PointShape, new Point()) instanceof Point))
+      throw new RuntimeException("The shape of the first file must be a point");
+    if (!(SpatialSite.createStockShape(job) instanceof OGCJTSShape))
+      throw new RuntimeException("The shape of the second file must be a JTS shape (e.g., wkt)");
+
+    FileSystem inFs = inFiles[0].getFileSystem(job);
+    Path outputPath = userOutputPath;
+    if (outputPath == null) {
+      FileSystem outFs = FileSystem.get(job);
+      do {
+        outputPath = new Path(inFiles[0].getName() + ".pip_"
+            + (int) (Math.random() * 1000000));
+      } while (outFs.exists(outputPath));
+    }
+    FileSystem outFs = outputPath.getFileSystem(job);
+
+    ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+    job.setJobName("PointInPolygon");
+    job.setMapperClass(PIPMap.class);
+    job.setMapOutputKeyClass(IntWritable.class);
+    job.setMapOutputValueClass(IndexedText.class);
+    job.setNumMapTasks(5 * Math.max(1, clusterStatus.getMaxMapTasks()));
+    job.setLong("mapred.min.split.size",
+        Math.max(inFs.getFileStatus(inFiles[0]).getBlockSize(),
+            inFs.getFileStatus(inFiles[1]).getBlockSize()));
+
+    job.setReducerClass(PIPReduce.class);
+    job.setNumReduceTasks(Math.max(1, clusterStatus.getMaxReduceTasks()));
+
+    job.setInputFormat(ShapeLineInputFormat.class);
+    if (job.getBoolean("output", true))
+      job.setOutputFormat(TextOutputFormat.class);
+    else
+      job.setOutputFormat(NullOutputFormat.class);
+    ShapeLineInputFormat.setInputPaths(job, inFiles);
+
+    // Calculate and set the dimensions of the grid to use in the map phase
+    long total_size = 0;
+    Rectangle mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (int i = 0; i < inFiles.length; i++) {
+      Path file = inFiles[i];
+      FileSystem fs = file.getFileSystem(params);
+      OperationsParams mbrParams = new OperationsParams(params);
+      if (i == 0)
+        mbrParams.set("shape", params.get(PointShape, "point"));
+      Rectangle file_mbr = FileMBR.fileMBR(file, mbrParams);
+      mbr.expand(file_mbr);
+      total_size += FileUtil.getPathSize(fs, file);
+    }
+    total_size += total_size * job.getFloat(SpatialSite.INDEXING_OVERHEAD, 0.2f);
+    int partitioningGridFactor = params.getInt(SJMR.PartitioiningFactor, 20);
+    int num_cells = (int) Math.max(1, total_size * partitioningGridFactor /
+        outFs.getDefaultBlockSize(outputPath));
+    LOG.info("Number of cells is configured to be " + num_cells);
+
+    GridInfo gridInfo = new GridInfo(mbr.x1, mbr.y1, mbr.x2, mbr.y2);
+    gridInfo.calculateCellDimensions(num_cells);
+    OperationsParams.setShape(job, PartitionGrid, gridInfo);
+
+    TextOutputFormat.setOutputPath(job, outputPath);
+
+    if (OperationsParams.isLocal(job, inFiles)) {
+      // Enforce local execution if explicitly set by user or for small files
+      job.set("mapred.job.tracker", "local");
+    }
+
+    RunningJob runningJob = JobClient.runJob(job);
+    Counters counters = runningJob.getCounters();
+    Counter outputRecordCounter = counters.findCounter(TaskCounter.REDUCE_OUTPUT_RECORDS);
+    final long resultCount = outputRecordCounter.getValue();
+
+    if (userOutputPath == null)
+      outFs.delete(outputPath, true);
+
+    return resultCount;
+  }
+
+  private static void printUsage() {
+    System.out.println("Finds all the polygons that contain each point");
+    System.out.println("Parameters: (* marks the required parameters)");
+    System.out.println("<points file> - (*) Path to the file of points");
+    System.out.println("<polygons file> - (*) Path to the file of polygons");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("point-shape:<point> - Shape of the points file (point by default)");
+    System.out.println("shape:<wkt> - (*) Shape of the polygons file");
+    System.out.println("partition-grid-factor:<value> - Patitioning grid factor (its default value is 20)");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    Path[] allFiles = params.getPaths();
+    if (allFiles.length < 2) {
+      System.err.println("This operation requires at least two input files");
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length == 2 && !params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length > 2 && !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+
+    Path[] inputPaths = allFiles.length == 2 ? allFiles : params.getInputPaths();
+    Path outputPath = allFiles.length == 2 ? null : params.getOutputPath();
+
+    long t1 = System.currentTimeMillis();
+    long resultSize = pointInPolygon(inputPaths, outputPath, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: "+(t2-t1)+" millis");
+    System.out.println("Result size: "+resultSize);
+  }
+}
@@ -9,11 +9,13 @@
 package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -31,11 +33,17 @@ import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
 
+import edu.umn.cs.spatialHadoop.Estimator;
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.StratifiedEstimator;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
@@ -175,6 +183,156 @@ public class RangeQuery {
     return totalResultSize;
   }
   
+  /**
+   * A partition of an indexed file used as a stratum to estimate the number
+   * of records that match a range query.
+   */
+  static class PartitionStratum implements StratifiedEstimator.Stratum {
+    private final Partition partition;
+    private final FileSplit split;
+    private final Shape queryRange;
+    private final Rectangle queryMBR;
+    /**Whether to apply the reference point duplicate avoidance technique*/
+    private final boolean replicated;
+    private final Shape shape;
+    private final Configuration conf;
+
+    PartitionStratum(Partition partition, FileSplit split, Shape queryRange,
+        boolean replicated, Shape shape, Configuration conf) {
+      this.partition = partition;
+      this.split = split;
+      this.queryRange = queryRange;
+      this.queryMBR = queryRange == null ? null : queryRange.getMBR();
+      this.replicated = replicated;
+      this.shape = shape;
+      this.conf = conf;
+    }
+
+    @Override
+    public long size() {
+      return partition.recordCount;
+    }
+
+    /**
+     * Tests whether a record matches the query. Same as the record reader,
+     * a record that is replicated to several partitions is counted only in
+     * the partition that contains its reference point.
+     */
+    private boolean isMatched(Text line) {
+      shape.fromText(line);
+      if (queryRange != null && !shape.isIntersected(queryRange))
+        return false;
+      if (!replicated)
+        return true;
+      Rectangle shapeMBR = shape.getMBR();
+      if (shapeMBR == null)
+        return false;
+      double reference_x = queryMBR == null ? shapeMBR.x1 : Math.max(queryMBR.x1, shapeMBR.x1);
+      double reference_y = queryMBR == null ? shapeMBR.y1 : Math.max(queryMBR.y1, shapeMBR.y1);
+      return partition.contains(reference_x, reference_y);
+    }
+
+    @Override
+    public double[] sample(int count, long seed) {
+      final double[] values = new double[count];
+      final int[] numValues = {0};
+      try {
+        LocalSampler.sampleFileSplitByCount(split, conf, count, seed,
+            new ResultCollector<Text>() {
+          @Override
+          public void collect(Text line) {
+            if (numValues[0] < values.length)
+              values[numValues[0]++] = isMatched(line) ? 1 : 0;
+          }
+        });
+      } catch (IOException e) {
+        throw new RuntimeException("Error sampling "+split, e);
+      }
+      return numValues[0] == values.length ? values : Arrays.copyOf(values, numValues[0]);
+    }
+
+    @Override
+    public double scan() {
+      long count = 0;
+      try {
+        FileSystem fs = split.getPath().getFileSystem(conf);
+        LineReader reader = new LineReader(fs.open(split.getPath()));
+        Text line = new Text2();
+        while (reader.readLine(line) > 0) {
+          if (line.getLength() > 0 && isMatched(line))
+            count++;
+        }
+        reader.close();
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading "+split, e);
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Estimates the number of records that overlap a query range without
+   * reading the whole input. Partitions of the global index that are disjoint
+   * from the query are skipped and partitions completely inside a rectangular
+   * query are counted exactly from the master file. The remaining partitions
+   * are sampled with {@link LocalSampler} and the sample is refined until the
+   * confidence interval is within the error bound in the parameter
+   * <code>approx</code> (default 1%).
+   * @param inPath
+   * @param queryRange - the query range or <code>null</code> to count all records
+   * @param params
+   * @return the confidence interval of the count or <code>null</code> if the
+   *  input does not have a complete global index over text files
+   * @throws IOException
+   */
+  public static Estimator.Range<Long> rangeCountApprox(Path inPath,
+      Shape queryRange, OperationsParams params) throws IOException {
+    FileSystem fs = inPath.getFileSystem(params);
+    GlobalIndex<Partition> gindex = SpatialSite.getCompleteGlobalIndex(fs, inPath);
+    if (gindex == null || SpatialSite.isRTree(fs, inPath))
+      return null;
+    if (!params.autoDetectShape())
+      return null;
+    Shape shape = params.getShape("shape");
+    boolean replicated = gindex.isReplicated();
+    Rectangle queryMBR = queryRange == null ? null : queryRange.getMBR();
+    boolean rectangularQuery = queryRange == null
+        || queryRange.getClass() == Rectangle.class;
+
+    long exactCount = 0;
+    Vector<StratifiedEstimator.Stratum> strata = new Vector<StratifiedEstimator.Stratum>();
+    for (Partition p : gindex) {
+      if (p.recordCount == 0) {
+        if (p.size > 0)
+          return null; // The master file does not keep the record count
+        continue;
+      }
+      if (queryMBR != null && (p.x2 < queryMBR.x1 || queryMBR.x2 < p.x1
+          || p.y2 < queryMBR.y1 || queryMBR.y2 < p.y1))
+        continue; // Disjoint from the query
+      if (!replicated && rectangularQuery
+          && (queryMBR == null || queryMBR.contains(p))) {
+        exactCount += p.recordCount;
+        continue;
+      }
+      Path file = new Path(inPath, p.filename);
+      FileSplit split = new FileSplit(file, 0, fs.getFileStatus(file).getLen(), new String[0]);
+      strata.add(new PartitionStratum(p, split, queryRange, replicated,
+          shape.clone(), params));
+    }
+
+    StratifiedEstimator estimator = new StratifiedEstimator(
+        strata.toArray(new StratifiedEstimator.Stratum[strata.size()]), exactCount);
+    estimator.setParallelism(params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+    if (params.get("seed") != null)
+      estimator.setSeed(params.getLong("seed", 0));
+    Estimator.Range<Double> range = estimator.getEstimate(params.getFloat("approx", 0.01f));
+    LOG.info("Estimated the count from "+(estimator.getSampledFraction() * 100)
+        +"% of the records in "+strata.size()+" partitions");
+    return new Estimator.Range<Long>((long) Math.max(exactCount, Math.floor(range.limit1)),
+        (long) Math.ceil(range.limit2));
+  }
+
   private static void printUsage() {
     System.out.println("Performs a range query on an input file");
     System.out.println("Parameters: (* marks required parameters)");
@@ -183,6 +341,7 @@ public class RangeQuery {
     System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes stored in input file");
     System.out.println("rect:<x1,y1,x2,y2> - (*) Query rectangle");
     System.out.println("-overwrite - Overwrite output file without notice");
+    System.out.println("approx:<error> - Estimate the count within the given relative error");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
   
@@ -207,6 +366,23 @@ public class RangeQuery {
     final Path outPath = params.getOutputPath();
     final Rectangle[] queryRanges = params.getShapes("rect", new Rectangle());
 
+    if (params.get("approx") != null) {
+      // Estimate the result counts from a sample of the input
+      long t1 = System.currentTimeMillis();
+      for (Rectangle queryRange : queryRanges) {
+        Estimator.Range<Long> count = rangeCountApprox(inPath, queryRange, params);
+        if (count == null) {
+          System.err.println("Approximate count requires a globally indexed text file");
+          System.exit(1);
+        }
+        System.out.println("Estimated results count: "+(count.limit1 + count.limit2) / 2
+            +" in ["+count.limit1+", "+count.limit2+"]");
+      }
+      long t2 = System.currentTimeMillis();
+      System.out.println("Time for "+queryRanges.length+" estimates is "+(t2-t1)+" millis");
+      return;
+    }
+
     // All running jobs
     final Vector<Long> resultsCounts = new Vector<Long>();
     Vector<Job> jobs = new Vector<Job>();
@@ -32,7 +32,10 @@ import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.Estimator;
 import edu.umn.cs.spatialHadoop.OperationsParams;
-import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 
@@ -48,11 +51,11 @@ import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 public class RecordCount {
 
   public static class Map extends MapReduceBase implements
-      Mapper<CellInfo, Text, NullWritable, LongWritable> {
+      Mapper<Rectangle, Text, NullWritable, LongWritable> {
     private static final NullWritable Dummy = NullWritable.get();
     private static final LongWritable ONEL = new LongWritable(1);
 
-    public void map(CellInfo lineId, Text line,
+    public void map(Rectangle lineId, Text line,
         OutputCollector<NullWritable, LongWritable> output, Reporter reporter)
         throws IOException {
       output.collect(Dummy, ONEL);
@@ -137,6 +140,31 @@ public class RecordCount {
     return lineCount;
   }
   
+  /**
+   * Returns the number of records in a file from its global index without
+   * reading the data. This works only if the file has a complete global index
+   * which is not replicated as records of a replicated index are counted
+   * once for each partition they overlap.
+   * @param fs
+   * @param file
+   * @return the number of records or -1 if it cannot be retrieved from the
+   *  global index
+   * @throws IOException
+   */
+  public static long recordCountCached(FileSystem fs, Path file) throws IOException {
+    GlobalIndex<Partition> gindex = SpatialSite.getCompleteGlobalIndex(fs, file);
+    if (gindex == null || gindex.isReplicated())
+      return -1;
+    long recordCount = 0;
+    for (Partition p : gindex) {
+      // Master files written by older versions do not keep the record count
+      if (p.recordCount == 0 && p.size > 0)
+        return -1;
+      recordCount += p.recordCount;
+    }
+    return recordCount;
+  }
+
   /**
    * Counts the approximate number of lines in a file by getting an approximate
    * average line length
@@ -214,11 +242,24 @@ public class RecordCount {
       throw new RuntimeException("Input file does not exist");
     }
     boolean random = params.getBoolean("random", false);
-    long lineCount;
-    if (random) {
-      lineCount = recordCountApprox(fs, inputFile);
-    } else {
-      lineCount = recordCountMapReduce(fs, inputFile);
+    // Answer from the global index if possible
+    long lineCount = params.getBoolean(SpatialSite.FORCE_SCAN, false) ? -1
+        : recordCountCached(fs, inputFile);
+    if (lineCount < 0 && params.get("approx") != null) {
+      // Estimate from a stratified sample of the partitions, e.g., to remove
+      // the duplicates of a replicated index
+      Estimator.Range<Long> range = RangeQuery.rangeCountApprox(inputFile, null, params);
+      if (range != null) {
+        lineCount = (range.limit1 + range.limit2) / 2;
+        System.out.println("Estimated count is in ["+range.limit1+", "+range.limit2+"]");
+      }
+    }
+    if (lineCount < 0) {
+      if (random) {
+        lineCount = recordCountApprox(fs, inputFile);
+      } else {
+        lineCount = recordCountMapReduce(fs, inputFile);
+      }
     }
     System.out.println("Count of records in "+inputFile+" is "+lineCount);
   }
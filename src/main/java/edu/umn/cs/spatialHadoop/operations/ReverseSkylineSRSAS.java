@@ -10,6 +10,8 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Stack;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -53,6 +55,7 @@ import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.RTree;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.DefaultBlockFilter;
@@ -125,8 +128,9 @@ public class ReverseSkylineSRSAS {
    * @return
    */
   private static boolean skylineReverseDominate(Point p1, Point p2, Point q) {    
-	  boolean sameguadrant = ((p1.x-q.x)*(p2.x-q.x)>=0) && ((p1.x-q.x)*(p2.x-q.x)>=0);
-	  boolean dominated = ( Math.abs(p1.x-q.x) <= Math.abs(p2.x-q.x) && Math.abs(p1.y-q.y) <= Math.abs(p2.y-q.y) ); //Better at least in one dimension
+	  boolean sameguadrant = ((p1.x-q.x)*(p2.x-q.x)>=0) && ((p1.y-q.y)*(p2.y-q.y)>=0);
+	  boolean dominated = ( Math.abs(p1.x-q.x) <= Math.abs(p2.x-q.x) && Math.abs(p1.y-q.y) <= Math.abs(p2.y-q.y) ) &&
+	      ( Math.abs(p1.x-q.x) < Math.abs(p2.x-q.x) || Math.abs(p1.y-q.y) < Math.abs(p2.y-q.y) ); //Better at least in one dimension
 	  return sameguadrant&&dominated;
     } 
   
@@ -217,7 +221,7 @@ public class ReverseSkylineSRSAS {
 				 /*Compute the dominance between checkpoints and the new point.*/
 				  dominance=false;
 				  int quadrant=-1;
-				  switch (quadrant(tempPoint, queryPoint)) {
+				  switch (quadrant(point, queryPoint)) {
 		    		    case 1: dominance = skylineReverseDominate( checkpointLL , point, queryPoint); quadrant=1; break;  //minmin
 		    		    case 2: dominance = skylineReverseDominate( checkpointUL , point, queryPoint); quadrant=2; break;  //maxmin
 		    		    case 3: dominance = skylineReverseDominate( checkpointLU , point, queryPoint); quadrant=3; break;  //minmax
@@ -294,7 +298,8 @@ public class ReverseSkylineSRSAS {
 		//final Rectangle[] queryRanges = params.getShapes("rect", new Rectangle());
 		
 		// All running jobs
-		final Vector<Long> resultsCounts = new Vector<Long>();
+		// Result count of each range query in the same order as the ranges
+		final long[] resultsCounts = new long[queryRanges.length];
 		Vector<Job> jobs = new Vector<Job>();
 		Vector<Thread> threads = new Vector<Thread>();
 		
@@ -303,6 +308,7 @@ public class ReverseSkylineSRSAS {
 		  OperationsParams.setShape(queryParams, "rect", queryRanges[i]);
   
     // Run in local mode
+    final int iQuery = i;
     final Rectangle queryRange = queryRanges[i];
     final Shape shape = queryParams.getShape("shape");
     final Path output = outPath == null ? null :
@@ -334,8 +340,7 @@ public class ReverseSkylineSRSAS {
           } else {
             outFile = null;
           }
-          long resultCount = rangeQueryLocal(inPath, queryRange, shape, queryParams, collector);
-          resultsCounts.add(resultCount);
+          resultsCounts[iQuery] = rangeQueryLocal(inPath, queryRange, shape, queryParams, collector);
         } catch (IOException e) {
           e.printStackTrace();
         } catch (InterruptedException e) {
@@ -365,8 +370,8 @@ public class ReverseSkylineSRSAS {
       }
      
 	  int size=0;
-	  for (int i=0; i<resultsCounts.size(); i++){
-		 if(resultsCounts.get(i)==0 || resultsCounts.get(i)==1){
+	  for (int i=0; i<resultsCounts.length; i++){
+		 if(resultsCounts[i]==0 || resultsCounts[i]==1){
 			 size++;
 		 }
 	  }
@@ -374,7 +379,7 @@ public class ReverseSkylineSRSAS {
     Point[] pointsarrayreturned = new Point[size];
     int pos=0;
     for(int j=0; j<globalskyList.size(); j++){
-    	if(resultsCounts.get(j)==0 || resultsCounts.get(j)==1){
+    	if(resultsCounts[j]==0 || resultsCounts[j]==1){
     		pointsarrayreturned[pos]=globalskyList.get(j).clone();
     		pos++;
     	}
@@ -452,6 +457,226 @@ public static <S extends Shape> long rangeQueryLocal(Path inPath,
   return totalResultSize;
 }
   
+  /**
+   * An entry in the priority queue of the branch-and-bound reverse skyline.
+   * It is either a node in one of the trees or a data point.
+   */
+  static class BBEntry implements Comparable<BBEntry> {
+    /**Index of the tree that contains the node or -1 for a data point*/
+    int tree;
+    /**ID of the node in its tree*/
+    int node;
+    /**The MBR of the node or a degenerate rectangle for a data point*/
+    Rectangle mbr;
+    /**Minimum Manhattan distance between the query point and the entry*/
+    double mindist;
+
+    BBEntry(int tree, int node, Rectangle mbr, Point q) {
+      this.tree = tree;
+      this.node = node;
+      this.mbr = mbr;
+      double dx = Math.max(0, Math.max(mbr.x1 - q.x, q.x - mbr.x2));
+      double dy = Math.max(0, Math.max(mbr.y1 - q.y, q.y - mbr.y2));
+      this.mindist = dx + dy;
+    }
+
+    @Override
+    public int compareTo(BBEntry o) {
+      return Double.compare(this.mindist, o.mindist);
+    }
+  }
+
+  /**
+   * Tests whether the given entry is dominated by any of the candidates with
+   * respect to the query point.
+   */
+  private static boolean isDominated(List<Rectangle> candidates, Rectangle mbr, Point q) {
+    for (Rectangle candidate : candidates) {
+      if (ReverseSkylineFilter.skylineRectDominateReverse(candidate, mbr, q, false))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Computes the reverse skyline of all points stored in the given R-trees
+   * using a branch-and-bound algorithm. First, the trees are traversed in
+   * increasing order of the Manhattan distance to the query point to find the
+   * global skyline of the query point which is a superset of the answer. Nodes
+   * that are dominated by a candidate are pruned using
+   * {@link ReverseSkylineFilter#skylineRectDominateReverse(Rectangle, Rectangle, Point, boolean)}
+   * without reading their records. Second, the window of each candidate,
+   * i.e., the rectangle centered at the candidate and having the query point
+   * as a corner, is verified in one traversal of the same trees that visits
+   * only nodes overlapping a window of a candidate that is still valid.
+   * A candidate is a reverse skyline point if its window contains no points
+   * other than itself.
+   * @param trees - all trees of the input file with their data streams open
+   * @param queryPoint
+   * @return
+   * @throws IOException
+   */
+  public static Point[] reverseSkylineRTree(final List<RTree<Point>> trees,
+      final Point queryPoint) throws IOException {
+    // Phase 1: Find the candidates using a best-first traversal
+    final List<Rectangle> candidates = new ArrayList<Rectangle>();
+    final PriorityQueue<BBEntry> queue = new PriorityQueue<BBEntry>();
+    for (int i_tree = 0; i_tree < trees.size(); i_tree++) {
+      RTree<Point> tree = trees.get(i_tree);
+      if (tree.getElementCount() > 0)
+        queue.add(new BBEntry(i_tree, 0, tree.getNodeMBR(0), queryPoint));
+    }
+    int leavesRead = 0;
+    while (!queue.isEmpty()) {
+      BBEntry entry = queue.poll();
+      if (isDominated(candidates, entry.mbr, queryPoint))
+        continue;
+      if (entry.tree == -1) {
+        // A data point that is not dominated by any closer point
+        candidates.add(entry.mbr);
+        continue;
+      }
+      RTree<Point> tree = trees.get(entry.tree);
+      if (tree.isLeaf(entry.node)) {
+        leavesRead++;
+        tree.readLeaf(entry.node, new ResultCollector<Point>() {
+          @Override
+          public void collect(Point p) {
+            Rectangle pointMBR = new Rectangle(p.x, p.y, p.x, p.y);
+            if (!isDominated(candidates, pointMBR, queryPoint))
+              queue.add(new BBEntry(-1, -1, pointMBR, queryPoint));
+          }
+        });
+      } else {
+        for (int iChild = 0; iChild < tree.getDegree(); iChild++) {
+          int child = tree.getChild(entry.node, iChild);
+          Rectangle childMBR = tree.getNodeMBR(child);
+          if (!isDominated(candidates, childMBR, queryPoint))
+            queue.add(new BBEntry(entry.tree, child, childMBR, queryPoint));
+        }
+      }
+    }
+    LOG.info("Found "+candidates.size()+" candidates after reading "+leavesRead+" leaves");
+
+    // Phase 2: Verify the windows of all candidates in one traversal
+    final int numCandidates = candidates.size();
+    final Rectangle[] windows = new Rectangle[numCandidates];
+    for (int i = 0; i < numCandidates; i++) {
+      Rectangle c = candidates.get(i);
+      double dx = Math.abs(c.x1 - queryPoint.x);
+      double dy = Math.abs(c.y1 - queryPoint.y);
+      windows[i] = new Rectangle(c.x1 - dx, c.y1 - dy, c.x1 + dx, c.y1 + dy);
+    }
+    // Number of points found in each window. The candidate itself counts once
+    final int[] hits = new int[numCandidates];
+    final int[] numValid = {numCandidates};
+    ResultCollector<Point> windowCounter = new ResultCollector<Point>() {
+      @Override
+      public void collect(Point p) {
+        for (int i = 0; i < numCandidates; i++) {
+          Rectangle w = windows[i];
+          if (hits[i] <= 1 && p.x >= w.x1 && p.x <= w.x2 && p.y >= w.y1 && p.y <= w.y2) {
+            if (++hits[i] > 1)
+              numValid[0]--;
+          }
+        }
+      }
+    };
+    Stack<Integer> toBeSearched = new Stack<Integer>();
+    for (int i_tree = 0; i_tree < trees.size() && numValid[0] > 0; i_tree++) {
+      RTree<Point> tree = trees.get(i_tree);
+      if (tree.getElementCount() == 0)
+        continue;
+      toBeSearched.push(0);
+      while (!toBeSearched.isEmpty() && numValid[0] > 0) {
+        int nodeID = toBeSearched.pop();
+        Rectangle nodeMBR = tree.getNodeMBR(nodeID);
+        boolean overlapsValidWindow = false;
+        for (int i = 0; !overlapsValidWindow && i < numCandidates; i++) {
+          Rectangle w = windows[i];
+          overlapsValidWindow = hits[i] <= 1 &&
+              nodeMBR.x1 <= w.x2 && w.x1 <= nodeMBR.x2 &&
+              nodeMBR.y1 <= w.y2 && w.y1 <= nodeMBR.y2;
+        }
+        if (!overlapsValidWindow)
+          continue;
+        if (tree.isLeaf(nodeID)) {
+          tree.readLeaf(nodeID, windowCounter);
+        } else {
+          for (int iChild = 0; iChild < tree.getDegree(); iChild++)
+            toBeSearched.push(tree.getChild(nodeID, iChild));
+        }
+      }
+      toBeSearched.clear();
+    }
+
+    Point[] reverseSkyline = new Point[numValid[0]];
+    int size = 0;
+    for (int i = 0; i < numCandidates; i++) {
+      if (hits[i] <= 1)
+        reverseSkyline[size++] = new Point(candidates.get(i).x1, candidates.get(i).y1);
+    }
+    return reverseSkyline;
+  }
+
+  /**
+   * Computes the reverse skyline of an R-tree indexed file on the local
+   * machine using {@link #reverseSkylineRTree(List, Point)}. Only the tree
+   * structures are loaded in memory while records are read from leaves that
+   * cannot be pruned.
+   * @param inFile
+   * @param outFile
+   * @param params
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void ReverseskylineRTree(Path inFile, Path outFile,
+      final OperationsParams params) throws IOException, InterruptedException {
+    Point queryPoint = params.getQueryPoint("query", new Point(0,0));
+    OperationsParams treeParams = new OperationsParams(params);
+    treeParams.unset(SpatialInputFormat3.InputQueryRange);
+    final SpatialInputFormat3<Rectangle, Point> inputFormat = new SpatialInputFormat3<Rectangle, Point>();
+    Job job = Job.getInstance(treeParams);
+    SpatialInputFormat3.setInputPaths(job, inFile);
+    final List<InputSplit> splits = inputFormat.getSplits(job);
+
+    // Load the structure of all trees and keep their readers open
+    List<RecordReader<Rectangle, Iterable<Point>>> readers =
+        new ArrayList<RecordReader<Rectangle, Iterable<Point>>>();
+    List<RTree<Point>> trees = new ArrayList<RTree<Point>>();
+    Point[] reverseSkyline;
+    try {
+      for (InputSplit split : splits) {
+        FileSplit fsplit = (FileSplit) split;
+        RecordReader<Rectangle, Iterable<Point>> reader =
+            inputFormat.createRecordReader(fsplit, null);
+        readers.add(reader);
+        if (!(reader instanceof RTreeRecordReader3))
+          throw new RuntimeException("Input file is not indexed with an R-tree "+fsplit);
+        ((RTreeRecordReader3)reader).initialize(fsplit, treeParams);
+        while (reader.nextKeyValue())
+          trees.add((RTree<Point>) reader.getCurrentValue());
+      }
+      LOG.info("Loaded "+trees.size()+" trees from "+splits.size()+" splits");
+      reverseSkyline = reverseSkylineRTree(trees, queryPoint);
+    } finally {
+      for (RecordReader<Rectangle, Iterable<Point>> reader : readers)
+        reader.close();
+    }
+
+    if (outFile != null) {
+      if (params.getBoolean("overwrite", false)) {
+        FileSystem outFs = outFile.getFileSystem(new Configuration());
+        outFs.delete(outFile, true);
+      }
+      GridRecordWriter<Point> out = new GridRecordWriter<Point>(outFile, null, null, null);
+      for (Point pt : reverseSkyline) {
+        out.write(NullWritable.get(), pt);
+      }
+      out.close(null);
+    }
+  }
+
   public static void ReverseskylineLocal(Path inFile, Path outFile,
 	      final OperationsParams params) throws IOException, InterruptedException {
 	    if (params.getBoolean("mem", false))
@@ -811,7 +1036,7 @@ public static <S extends Shape> long rangeQueryLocal(Path inPath,
    		 /*Compute the dominance between checkpoints and the new point.*/
   		  dominance=false;
   		  int quadrant=-1;
-  		  switch (quadrant(tempPoint, queryPoint)) {
+  		  switch (quadrant(point, queryPoint)) {
 	    		    case 1: dominance = skylineReverseDominate( checkpointLL , point, queryPoint); quadrant=1; break;  //minmin
 	    		    case 2: dominance = skylineReverseDominate( checkpointUL , point, queryPoint); quadrant=2; break;  //maxmin
 	    		    case 3: dominance = skylineReverseDominate( checkpointLU , point, queryPoint); quadrant=3; break;  //minmax
@@ -1100,8 +1325,14 @@ public static <S extends Shape> long rangeQueryLocal(Path inPath,
   
   public static void skyline(Path inFile, Path outFile, OperationsParams params) throws IOException, InterruptedException, ClassNotFoundException {
     if (OperationsParams.isLocal(params, inFile)) {
+      FileSystem inFs = inFile.getFileSystem(params);
+      if (params.getBoolean("bbrs", true) && SpatialSite.isRTree(inFs, inFile)) {
+        // Indexed input, walk the trees directly without extra range queries
+        ReverseskylineRTree(inFile, outFile, params);
+      } else {
 	      //Process without MapReduce
 	      ReverseskylineLocal(inFile, outFile, params);
+      }
     } else {
 	      // Process with MapReduce
     	ReverseskylineMapReduce(inFile, outFile, params);
@@ -1114,6 +1345,8 @@ public static <S extends Shape> long rangeQueryLocal(Path inPath,
     System.err.println("<input file>: (*) Path to input file");
     System.err.println("<output file>: Path to output file");
     System.err.println("<direction (max-max|max-min|min-max|min-min)>: Direction of skyline (default is max-max)");
+    System.err.println("query:<x,y>: The query point of the reverse skyline");
+    System.err.println("-no-bbrs: Do not use the branch-and-bound algorithm on local R-tree indexed files");
     System.err.println("-overwrite: Overwrite output file without notice");
     GenericOptionsParser.printGenericCommandUsage(System.err);
   }
@@ -1122,8 +1355,8 @@ public static <S extends Shape> long rangeQueryLocal(Path inPath,
 	  
 	  BasicConfigurator.configure();
 	  Logger.getRootLogger().setLevel(Level.INFO);
-	  
-	 
+
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
     Path[] paths = params.getPaths();
     if (paths.length <= 1 && !params.checkInput()) {
       printUsage();
@@ -248,6 +248,8 @@ public class SJMR {
     private boolean inactiveMode;
 	private boolean isFilterOnly;
 	private int shapesThresholdPerOnce;
+    /**Number of threads used to join the shapes of one cell*/
+    private int parallelism;
 	
     private S shape;
     
@@ -260,6 +262,8 @@ public class SJMR {
       inactiveMode = OperationsParams.getInactiveModeFlag(job, InactiveMode);
 	  isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
 	  shapesThresholdPerOnce = OperationsParams.getJoiningThresholdPerOnce(job, JoiningThresholdPerOnce);
+      // One thread by default to stay within the cores allocated to the task
+      parallelism = job.getInt("parallel", 1);
       sjmrReduceLOG.info("configured the reduced task");
     }
 
@@ -309,7 +313,7 @@ public class SJMR {
                   }	
                 }
               }
-            }, reporter);  
+            }, reporter, parallelism);
           }else{
             SpatialAlgorithms.SpatialJoin_planeSweep(shapeLists[0], shapeLists[1], new ResultCollector2<S, S>() {
               @Override
@@ -329,7 +333,7 @@ public class SJMR {
                   }	
                 }
               }
-            }, reporter);
+            }, reporter, parallelism);
 
           }
           shapeLists[1].clear();
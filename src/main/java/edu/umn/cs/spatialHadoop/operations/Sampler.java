@@ -46,6 +46,9 @@ import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
 import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
@@ -419,13 +422,19 @@ public class Sampler {
       Path[] files, final ResultCollector<T> output, OperationsParams params) throws IOException {
     long total_size = 0;
     // TODO handle compressed files
-    // TODO Use a global index to determine the exact size quickly
     for (Path file : files) {
       FileSystem fs = file.getFileSystem(params);
       FileStatus fStatus = fs.getFileStatus(file);
-      if (fStatus.isDir()) {
+      GlobalIndex<Partition> gindex = fStatus.isDirectory()
+          && !params.getBoolean(SpatialSite.FORCE_SCAN, false) ?
+          SpatialSite.getCompleteGlobalIndex(fs, file) : null;
+      if (gindex != null) {
+        // Use the exact (uncompressed) size stored in the global index
+        for (Partition p : gindex)
+          total_size += p.size;
+      } else if (fStatus.isDirectory()) {
         // Go one level deeper
-        for (FileStatus subFStatus : fs.listStatus(file)) {
+        for (FileStatus subFStatus : fs.listStatus(file, SpatialSite.NonHiddenFileFilter)) {
           if (!subFStatus.isDir())
             total_size += subFStatus.getLen();
         }
@@ -9,8 +9,8 @@
 package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
@@ -18,9 +18,11 @@ import java.util.Vector;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
@@ -32,6 +34,7 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.OperationsParams.Direction;
@@ -67,61 +70,16 @@ public class Skyline {
   private static final Log LOG = LogFactory.getLog(Skyline.class);
   
   /**
-   * Computes the skyline of a set of points using a divided and conquer
-   * in-memory algorithm. The algorithm recursively splits the points into
-   * half, computes the skyline of each half, and finally combines the two
-   * skylines.
+   * Computes the skyline of a set of points in memory. The work is delegated
+   * to the sort-filter-skyline algorithm in
+   * {@link SkylineSAS#skylineInMemory(Point[], Direction)} which splits large
+   * inputs across all available cores.
    * @param points
    * @param dir
    * @return
    */
   public static Point[] skylineInMemory(Point[] points, Direction dir) {
-    Arrays.sort(points);
-    return skylineRecursive(points, 0, points.length, dir);
-  }
-  
-  /**
-   * The recursive method of skyline
-   * @param points
-   * @param start
-   * @param end
-   * @param dir
-   * @return
-   */
-  private static Point[] skylineRecursive(Point[] points, int start, int end, Direction dir) {
-    if (end - start == 1) {
-      // Return the one input point as the skyline
-      return new Point[] {points[start]};
-    }
-    int mid = (start + end) / 2;
-    // Find the skyline of each half
-    Point[] skyline1 = skylineRecursive(points, start, mid, dir);
-    Point[] skyline2 = skylineRecursive(points, mid, end, dir);
-    // Merge the two skylines
-    int cut_point = 0;
-    while (cut_point < skyline1.length && !skylineDominate(skyline2[0], skyline1[cut_point], dir))
-      cut_point++;
-    Point[] result = new Point[cut_point + skyline2.length];
-    System.arraycopy(skyline1, 0, result, 0, cut_point);
-    System.arraycopy(skyline2, 0, result, cut_point, skyline2.length);
-    return result;
-  }
-
-  /**
-   * Returns true if p1 dominates p2 according to the given direction.
-   * @param p1
-   * @param p2
-   * @param dir
-   * @return
-   */
-  private static boolean skylineDominate(Point p1, Point p2, Direction dir) {
-    switch (dir) {
-    case MaxMax: return p1.x >= p2.x && p1.y >= p2.y;
-    case MaxMin: return p1.x >= p2.x && p1.y <= p2.y;
-    case MinMax: return p1.x <= p2.x && p1.y >= p2.y;
-    case MinMin: return p1.x <= p2.x && p1.y <= p2.y;
-    default: throw new RuntimeException("Unknown direction: "+dir);
-    }
+    return SkylineSAS.skylineInMemory(points, dir);
   }
   
   /**
@@ -181,6 +139,34 @@ public class Skyline {
    */
   public static void skylineLocal(Path inFile, Path outFile,
       final OperationsParams params) throws IOException, InterruptedException {
+    Point[] skyline = skylineLocal(new Path[] {inFile}, new Point[0], params);
+
+    if (outFile != null) {
+      if (params.getBoolean("overwrite", false)) {
+        FileSystem outFs = outFile.getFileSystem(new Configuration());
+        outFs.delete(outFile, true);
+      }
+      GridRecordWriter<Point> out = new GridRecordWriter<Point>(outFile, null, null, null);
+      for (Point pt : skyline) {
+        out.write(NullWritable.get(), pt);
+      }
+      out.close(null);
+    }
+  }
+
+  /**
+   * Computes the skyline of the union of the given input files and a known
+   * skyline on a single machine. Input points that are dominated by the known
+   * skyline are dropped as soon as they are read.
+   * @param inFiles
+   * @param knownSkyline - a previously computed skyline, may be empty
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static Point[] skylineLocal(Path[] inFiles, final Point[] knownSkyline,
+      final OperationsParams params) throws IOException, InterruptedException {
     if (params.getBoolean("mem", false))
       MemoryReporter.startReporting();
     // 1- Split the input path/file to get splits that can be processed
@@ -188,7 +174,7 @@ public class Skyline {
     final SpatialInputFormat3<Rectangle, Point> inputFormat =
         new SpatialInputFormat3<Rectangle, Point>();
     Job job = Job.getInstance(params);
-    SpatialInputFormat3.setInputPaths(job, inFile);
+    SpatialInputFormat3.setInputPaths(job, inFiles);
     final List<InputSplit> splits = inputFormat.getSplits(job);
     final Direction dir = params.getDirection("dir", Direction.MaxMax);
     
@@ -218,10 +204,12 @@ public class Skyline {
             while (reader.nextKeyValue()) {
               Iterable<Point> pts = reader.getCurrentValue();
               for (Point p : pts) {
+                if (isDominated(knownSkyline, p, dir))
+                  continue;
                 points[size++] = p.clone();
                 if (size >= points.length) {
                   // Perform Skyline and write the result to finalPoints
-                  Point[] skylinePoints = skylineInMemory(points, dir);
+                  Point[] skylinePoints = SkylineSAS.skylineInMemory(points, size, dir, 1);
                   for (Point skylinePoint : skylinePoints)
                     finalPoints.add(skylinePoint);
                   size = 0; // reset
@@ -242,13 +230,14 @@ public class Skyline {
       }
     }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
     
-    int totalNumPoints = 0;
+    int totalNumPoints = knownSkyline.length;
     for (Point[] list : allLists)
       totalNumPoints += list.length;
     
     LOG.info("Read "+totalNumPoints+" points and merging into one list");
     Point[] allPoints = new Point[totalNumPoints];
-    int pointer = 0;
+    System.arraycopy(knownSkyline, 0, allPoints, 0, knownSkyline.length);
+    int pointer = knownSkyline.length;
     
     for (Point[] list : allLists) {
       System.arraycopy(list, 0, allPoints, pointer, list.length);
@@ -256,20 +245,37 @@ public class Skyline {
     }
     allLists.clear(); // To the let the GC collect it
     
-    Point[] skyline = skylineInMemory(allPoints, dir);
+    return SkylineSAS.skylineInMemory(allPoints, allPoints.length, dir,
+        params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+  }
 
-    if (outFile != null) {
-      if (params.getBoolean("overwrite", false)) {
-        FileSystem outFs = outFile.getFileSystem(new Configuration());
-        outFs.delete(outFile, true);
-      }
-      GridRecordWriter<Point> out = new GridRecordWriter<Point>(outFile, null, null, null);
-      for (Point pt : skyline) {
-        out.write(NullWritable.get(), pt);
-      }
-      out.close(null);
+  /**
+   * Returns true if p1 dominates p2 according to the given direction.
+   * @param p1
+   * @param p2
+   * @param dir
+   * @return
+   */
+  private static boolean skylineDominate(Point p1, Point p2, Direction dir) {
+    switch (dir) {
+    case MaxMax: return p1.x >= p2.x && p1.y >= p2.y;
+    case MaxMin: return p1.x >= p2.x && p1.y <= p2.y;
+    case MinMax: return p1.x <= p2.x && p1.y >= p2.y;
+    case MinMin: return p1.x <= p2.x && p1.y <= p2.y;
+    default: throw new RuntimeException("Unknown direction: "+dir);
     }
   }
+
+  /**
+   * Returns true if the given point is dominated by any point in the skyline
+   */
+  private static boolean isDominated(Point[] skyline, Point p, Direction dir) {
+    for (Point skylinePoint : skyline) {
+      if (skylineDominate(skylinePoint, p, dir))
+        return true;
+    }
+    return false;
+  }
   
   public static class SkylineFilter extends DefaultBlockFilter {
     
@@ -353,7 +359,9 @@ public class Skyline {
       while (points.hasNext()) {
         vpoints.add(points.next().clone());
       }
-      Point[] skyline = skylineInMemory(vpoints.toArray(new Point[vpoints.size()]), dir);
+      // Run single-threaded to stay within the resources allocated to the task
+      Point[] skyline = SkylineSAS.skylineInMemory(
+          vpoints.toArray(new Point[vpoints.size()]), vpoints.size(), dir, 1);
       for (Point pt : skyline) {
         output.collect(dummy, pt);
       }
@@ -362,7 +370,13 @@ public class Skyline {
   
   private static void skylineMapReduce(Path inFile, Path userOutPath,
       OperationsParams params) throws IOException {
+    skylineMapReduce(new Path[] {inFile}, userOutPath, params);
+  }
+
+  private static void skylineMapReduce(Path[] inFiles, Path userOutPath,
+      OperationsParams params) throws IOException {
     JobConf job = new JobConf(params, Skyline.class);
+    Path inFile = inFiles[0];
     Path outPath = userOutPath;
     FileSystem outFs = (userOutPath == null ? inFile : userOutPath).getFileSystem(job);
     Shape shape = params.getShape("shape");
@@ -382,7 +396,7 @@ public class Skyline {
     job.setOutputKeyClass(NullWritable.class);
     job.setOutputValueClass(shape.getClass());
     job.setInputFormat(ShapeIterInputFormat.class);
-    ShapeInputFormat.addInputPath(job, inFile);
+    ShapeInputFormat.setInputPaths(job, inFiles);
     job.setOutputFormat(TextOutputFormat.class);
     TextOutputFormat.setOutputPath(job, outPath);
     
@@ -403,6 +417,141 @@ public class Skyline {
     }
   }
   
+  /**
+   * Returns the path of the file that keeps the skyline of the given dataset
+   * in the given direction. For a directory, the skyline is stored as a hidden
+   * file inside it. For a single file, it is stored as a hidden file next to it.
+   * @param fs
+   * @param inFile
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  public static Path getSkylinePath(FileSystem fs, Path inFile, Direction dir)
+      throws IOException {
+    String skylineName = "_skyline_"+dir.toString().toLowerCase();
+    if (fs.getFileStatus(inFile).isDirectory())
+      return new Path(inFile, skylineName);
+    return new Path(inFile.getParent(), "_"+inFile.getName()+skylineName);
+  }
+
+  /**
+   * Reads a skyline previously stored by
+   * {@link #skylineIncremental(Path, Path[], OperationsParams)}.
+   * @param fs
+   * @param skylinePath
+   * @return the skyline points or <code>null</code> if no skyline is stored
+   * @throws IOException
+   */
+  public static Point[] readSkyline(FileSystem fs, Path skylinePath)
+      throws IOException {
+    if (!fs.exists(skylinePath))
+      return null;
+    List<Point> skyline = new ArrayList<Point>();
+    LineReader reader = new LineReader(fs.open(skylinePath));
+    try {
+      Text line = new Text();
+      while (reader.readLine(line) > 0) {
+        Point p = new Point();
+        p.fromText(line);
+        skyline.add(p);
+      }
+    } finally {
+      reader.close();
+    }
+    return skyline.toArray(new Point[skyline.size()]);
+  }
+
+  /**
+   * Stores the given skyline in the given path. The skyline is first written
+   * to a temporary file which then replaces the old skyline to avoid leaving
+   * a partially written skyline behind.
+   * @param fs
+   * @param skylinePath
+   * @param skyline
+   * @throws IOException
+   */
+  public static void writeSkyline(FileSystem fs, Path skylinePath,
+      Point[] skyline) throws IOException {
+    Path tempPath = new Path(skylinePath.getParent(),
+        skylinePath.getName()+"_"+(int)(Math.random() * 1000000));
+    PrintStream out = new PrintStream(fs.create(tempPath, true));
+    Text text = new Text();
+    for (Point pt : skyline) {
+      text.clear();
+      out.println(pt.toText(text));
+    }
+    out.close();
+    fs.delete(skylinePath, false);
+    if (!fs.rename(tempPath, skylinePath))
+      throw new IOException("Could not store the skyline in "+skylinePath);
+  }
+
+  /**
+   * Updates the stored skyline of a dataset after the given files have been
+   * appended to it. Only the new files are read. Their points are checked
+   * against the stored skyline and the result replaces the stored skyline
+   * after pruning the old skyline points dominated by the new ones. If no
+   * skyline is stored for the dataset, it is computed from the whole dataset
+   * together with the new files.
+   * The skyline is maintained separately for each direction.
+   * @param inFile - the dataset
+   * @param newFiles - files that were appended since the last update
+   * @param params
+   * @return the updated skyline
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static Point[] skylineIncremental(Path inFile, Path[] newFiles,
+      OperationsParams params) throws IOException, InterruptedException {
+    Direction dir = params.getDirection("dir", Direction.MaxMax);
+    FileSystem fs = inFile.getFileSystem(params);
+    Path skylinePath = getSkylinePath(fs, inFile, dir);
+    Point[] knownSkyline = readSkyline(fs, skylinePath);
+    if (knownSkyline == null) {
+      LOG.info("No skyline stored at "+skylinePath+". Computing it from scratch");
+      knownSkyline = new Point[0];
+      // Read the dataset and the appended files that are not already in it
+      String datasetPath = fs.makeQualified(inFile).toString();
+      List<Path> allFiles = new ArrayList<Path>();
+      allFiles.add(inFile);
+      for (Path newFile : newFiles) {
+        String newFilePath =
+            newFile.getFileSystem(params).makeQualified(newFile).toString();
+        if (!newFilePath.equals(datasetPath) && !newFilePath.startsWith(datasetPath+"/"))
+          allFiles.add(newFile);
+      }
+      newFiles = allFiles.toArray(new Path[allFiles.size()]);
+    }
+    if (newFiles.length == 0)
+      return knownSkyline;
+
+    Point[] skyline;
+    if (OperationsParams.isLocal(params, newFiles)) {
+      skyline = skylineLocal(newFiles, knownSkyline, params);
+    } else {
+      // Compute the skyline of the new files and merge it with the known one
+      Path tempOut;
+      do {
+        tempOut = new Path(skylinePath.getParent(),
+            skylinePath.getName()+".delta_"+(int)(Math.random() * 1000000));
+      } while (fs.exists(tempOut));
+      skylineMapReduce(newFiles, tempOut, params);
+      List<Point> allPoints = new ArrayList<Point>();
+      for (Point pt : knownSkyline)
+        allPoints.add(pt);
+      for (FileStatus deltaFile : fs.listStatus(tempOut, SpatialSite.NonHiddenFileFilter)) {
+        for (Point pt : readSkyline(fs, deltaFile.getPath()))
+          allPoints.add(pt);
+      }
+      fs.delete(tempOut, true);
+      skyline = skylineInMemory(allPoints.toArray(new Point[allPoints.size()]), dir);
+    }
+    LOG.info("Skyline updated from "+knownSkyline.length+" to "+skyline.length+" points");
+    writeSkyline(fs, skylinePath, skyline);
+    return skyline;
+  }
+  
   private static void printUsage() {
     System.err.println("Computes the skyline of an input file of points");
     System.err.println("Parameters: (* marks required parameters)");
@@ -410,12 +559,28 @@ public class Skyline {
     System.err.println("<output file>: Path to output file");
     System.err.println("<direction (max-max|max-min|min-max|min-min)>: Direction of skyline (default is max-max)");
     System.err.println("-overwrite: Overwrite output file without notice");
+    System.err.println("-incremental: Update the skyline stored with the input file using the files that follow it");
     GenericOptionsParser.printGenericCommandUsage(System.err);
   }
   
   public static void main(String[] args) throws IOException, InterruptedException {
     OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
     Path[] paths = params.getPaths();
+    if (params.getBoolean("incremental", false)) {
+      // The first path is the dataset and all others are the appended files
+      if (!params.checkInput()) {
+        printUsage();
+        System.exit(1);
+      }
+      Path[] newFiles = new Path[paths.length - 1];
+      System.arraycopy(paths, 1, newFiles, 0, newFiles.length);
+      long t1 = System.currentTimeMillis();
+      Point[] skyline = skylineIncremental(paths[0], newFiles, params);
+      long t2 = System.currentTimeMillis();
+      System.out.println("Skyline has "+skyline.length+" points");
+      System.out.println("Total time: "+(t2-t1)+" millis");
+      return;
+    }
     if (paths.length <= 1 && !params.checkInput()) {
       printUsage();
       System.exit(1);
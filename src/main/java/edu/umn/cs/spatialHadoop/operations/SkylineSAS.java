@@ -6,7 +6,7 @@ package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
@@ -28,6 +28,8 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -67,120 +69,157 @@ public class SkylineSAS {
   private static final Log LOG = LogFactory.getLog(SkylineSAS.class);
   
   /**
-   * Computes the skyline of a set of points using a sort-based technique.
-   * The algorithm retreives the points and identifies the best skyline point seen so far.
-   * ,This point prunes the points  performes operation
-   * half, computes the skyline of each half, and finally combines the two
-   * skylines.
+   * Number of points below which the in-memory skyline is computed in the
+   * calling thread without splitting the input across cores.
    */
- 
-  public static Point[] skylineInMemory(Point[] pointsarray, Direction dir) {
+  private static final int ParallelThreshold = 100000;
 
-    Point origin = new Point();
-    double originMapX;
-    double originMapY;
-
-    Vector<Point> skyList = new Vector<Point>();
-    Point checkpoint=new Point();
-    
-    /*
-     * Initialize origin point and filtering point based on the preferences of user.
-     */
-	  switch (dir) {
-	    case MaxMax: originMapX=10000; originMapY=10000; origin = new Point(originMapX,originMapY); checkpoint = new Point(0,0);          break;
-		case MaxMin: originMapX=10000; originMapY=0; 	 origin = new Point(originMapX,originMapY); checkpoint = new Point(0,10000);      break;
-		case MinMax: originMapX=0; 	   originMapY=10000; origin = new Point(originMapX,originMapY); checkpoint = new Point(10000,0);      break;
-		case MinMin: originMapX=0;     originMapY=0;     origin = new Point(originMapX,originMapY); checkpoint = new Point(10000,10000);  break;
-		default: throw new RuntimeException("Unknown direction: "+dir);
-	  }
- 	  
-		/*  Read all point and place them on a list. Through this process
-		 *  identify the best skyline point and use it to prune as many 
-		 *  points as possible. 
-		 *  */
-
-		Vector<Point> mapList = new Vector<Point>();
-		Point tempPoint=null;
-		
-		for(int i=0; i<pointsarray.length; i++){
-  			tempPoint=pointsarray[i].clone();
-      	     if(!(skylineDominatePoint(checkpoint,tempPoint ,dir))){
-      	    	if(tempPoint.distanceToEuclidean(originMapX,originMapY)<checkpoint.distanceToEuclidean(originMapX,originMapY)) {checkpoint=tempPoint.clone();}
-    			 mapList.add(tempPoint.clone());
-    		 }
-	    }//for
-		
-		
-      	
-      	/* 
-		 * Don't forget to add the filtering point into the list.
-      	 * This point is initialy lost because the filtering point and the point in the sorted List are
-      	 * the Same and thus the point is rejected and not outpouted to the
-      	 * The Reducer does not neet this mechanism beause does not have checkpoints.
-      	 * */
-		    skyList.add(checkpoint);
-
-		
-		/* Sort the points in the list based on the distance from the origin point. */
-  		mapList.sort(new Comparator <Point>(){
- 			 public int compare(Point p1, Point p2){
- 			   	 if(p1.distanceToEuclidean(originMapX,originMapY)<p2.distanceToEuclidean(originMapX,originMapY)) return -1;
- 				 if(p1.distanceToEuclidean(originMapX,originMapY)>p2.distanceToEuclidean(originMapX,originMapY)) return  1;	 
- 				 return 0;
- 			 }});
-	
-  	/* Compute the final skyline */	
-    for(int j=0; j<mapList.size(); j++){
- 	    Point point=mapList.get(j).clone();
+  /**
+   * Computes the skyline of a set of points using a sort-filter-skyline (SFS)
+   * technique. Coordinates are copied into primitive arrays and flipped so
+   * that all directions become MaxMax. The points are sorted by their
+   * Manhattan distance to the best corner of the input MBR, which is a
+   * monotone score, i.e., a point can only be dominated by points that come
+   * before it in that order. A single scan over the sorted points against the
+   * skyline found so far gives the final answer. Large inputs are split
+   * across all available cores, the skyline of each part is computed
+   * independently and the partial skylines are merged with one more pass.
+   * The returned array contains the input objects without cloning them.
+   * @param points
+   * @param dir
+   * @return
+   */
+  public static Point[] skylineInMemory(Point[] points, Direction dir) {
+    return skylineInMemory(points, points.length, dir,
+        Runtime.getRuntime().availableProcessors());
+  }
 
-    		 boolean dominance=false;
-    		 dominance =  (skylineDominatePoint( point, checkpoint,  dir));
-	    	if(dominance){ 
-	    			//reject the point.
-	    	 }else{
-	    		 boolean dominatedSkyList = false; 
-				 for (Point skypoint : skyList) {
-			    	  dominatedSkyList=(skylineDominatePoint(skypoint , point, dir));
-				       if (dominatedSkyList) { break; }
-				  }//for
-	    		 
-	    		 if (!dominatedSkyList){ skyList.add(point); }
-	    		 
-	    	 }//dominance check
-	 }//for
-     
+  /**
+   * Computes the skyline of the first <code>size</code> points in the given
+   * array using at most <code>parallelism</code> threads.
+   * @param points
+   * @param size
+   * @param dir
+   * @param parallelism
+   * @return
+   */
+  public static Point[] skylineInMemory(Point[] points, int size,
+      Direction dir, int parallelism) {
+    if (size == 0)
+      return new Point[0];
+    // Flip coordinates so that larger values are always preferred
+    final double signX = dir == Direction.MaxMax || dir == Direction.MaxMin ? 1 : -1;
+    final double signY = dir == Direction.MaxMax || dir == Direction.MinMax ? 1 : -1;
+    final double[] xs = new double[size];
+    final double[] ys = new double[size];
+    // The best corner of the input MBR serves as the origin of the score
+    double originX = Double.NEGATIVE_INFINITY, originY = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < size; i++) {
+      xs[i] = signX * points[i].x;
+      ys[i] = signY * points[i].y;
+      if (xs[i] > originX)
+        originX = xs[i];
+      if (ys[i] > originY)
+        originY = ys[i];
+    }
+    final double[] scores = new double[size];
+    for (int i = 0; i < size; i++)
+      scores[i] = (originX - xs[i]) + (originY - ys[i]);
 
-    /* Return the results */
-    Point[] pointsarrayreturned = new Point[skyList.size()];
-    
-    for(int j=0; j<skyList.size(); j++){
-    	pointsarrayreturned[j]=skyList.get(j).clone();
+    int[] skyline;
+    if (parallelism <= 1 || size < ParallelThreshold) {
+      skyline = sortFilter(xs, ys, scores, identity(0, size));
+    } else {
+      // Divide: compute the skyline of each chunk on a separate core
+      List<int[]> partialSkylines;
+      try {
+        partialSkylines = Parallel.forEach(size, new RunnableRange<int[]>() {
+          @Override
+          public int[] run(int i1, int i2) {
+            return sortFilter(xs, ys, scores, identity(i1, i2));
+          }
+        }, parallelism);
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupt error ", e);
+      }
+      // Conquer: merge all partial skylines into the final one
+      int totalSize = 0;
+      for (int[] partialSkyline : partialSkylines)
+        totalSize += partialSkyline.length;
+      int[] candidates = new int[totalSize];
+      int pointer = 0;
+      for (int[] partialSkyline : partialSkylines) {
+        System.arraycopy(partialSkyline, 0, candidates, pointer, partialSkyline.length);
+        pointer += partialSkyline.length;
+      }
+      skyline = sortFilter(xs, ys, scores, candidates);
     }
-    
-     return pointsarrayreturned;  
 
+    Point[] result = new Point[skyline.length];
+    for (int i = 0; i < skyline.length; i++)
+      result[i] = points[skyline[i]];
+    return result;
+  }
+
+  private static int[] identity(int i1, int i2) {
+    int[] ids = new int[i2 - i1];
+    for (int i = 0; i < ids.length; i++)
+      ids[i] = i1 + i;
+    return ids;
   }
-  
 
   /**
-   * Returns true if p1 dominates p2 according to the given direction.
-   * @param p1
-   * @param p2
-   * @param dir
+   * Sorts the given point IDs by their score and returns the IDs of the
+   * skyline points. Coordinates are assumed to be flipped to MaxMax.
+   * @param xs
+   * @param ys
+   * @param scores
+   * @param ids - the IDs of the points to consider. This array is reordered.
    * @return
    */
-  
-  
-  private static boolean skylineDominatePoint(Point p1, Point p2, Direction dir) {
-    switch (dir) {
-	    case MaxMax: return p1.x >= p2.x && p1.y >= p2.y; 
-	    case MaxMin: return p1.x >= p2.x && p1.y <= p2.y; 
-	    case MinMax: return p1.x <= p2.x && p1.y >= p2.y; 
-	    case MinMin: return p1.x <= p2.x && p1.y <= p2.y; 
-	    default: throw new RuntimeException("Unknown direction: "+dir);
+  private static int[] sortFilter(final double[] xs, final double[] ys,
+      final double[] scores, final int[] ids) {
+    IndexedSortable scoreSortable = new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return Double.compare(scores[ids[i]], scores[ids[j]]);
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        int t = ids[i];
+        ids[i] = ids[j];
+        ids[j] = t;
+      }
+    };
+    if (ids.length > 1)
+      new QuickSort().sort(scoreSortable, 0, ids.length);
+
+    // The window holds the skyline found so far in a flat array
+    double[] windowX = new double[16];
+    double[] windowY = new double[16];
+    int[] windowIds = new int[16];
+    int windowSize = 0;
+    for (int id : ids) {
+      double x = xs[id], y = ys[id];
+      boolean dominated = false;
+      for (int w = 0; !dominated && w < windowSize; w++)
+        dominated = windowX[w] >= x && windowY[w] >= y;
+      if (!dominated) {
+        if (windowSize == windowIds.length) {
+          windowX = Arrays.copyOf(windowX, windowSize * 2);
+          windowY = Arrays.copyOf(windowY, windowSize * 2);
+          windowIds = Arrays.copyOf(windowIds, windowSize * 2);
+        }
+        windowX[windowSize] = x;
+        windowY[windowSize] = y;
+        windowIds[windowSize] = id;
+        windowSize++;
+      }
     }
+    return Arrays.copyOf(windowIds, windowSize);
   }
-  
+
   /**
    * Returns true if r1 dominates r2 in the given direction. r1 dominates r2 if
    * one point in r1 dominates all points in r2. There are two rules for
@@ -278,7 +317,7 @@ public class SkylineSAS {
                 points[size++] = p.clone();
                 if (size >= points.length) {
                   // Perform Skyline and write the result to finalPoints;
-                  Point[] skylinePoints = skylineInMemory(points, dir);
+                  Point[] skylinePoints = skylineInMemory(points, size, dir, 1);
                   for (Point skylinePoint : skylinePoints)
                     finalPoints.add(skylinePoint);
                   size = 0; // reset
@@ -311,7 +350,8 @@ public class SkylineSAS {
     }
     allLists.clear(); // To the let the GC collect it
     
-    Point[] skyline = skylineInMemory(allPoints, dir);
+    Point[] skyline = skylineInMemory(allPoints, allPoints.length, dir,
+        params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
 
     if (outFile != null) {
       if (params.getBoolean("overwrite", false)) {
@@ -374,181 +414,56 @@ public class SkylineSAS {
   }
   
   /**
-   * An identity map function that returns values as-is with a null key. This
-   * ensures that all values are reduced in one reducer. 
+   * A map function that computes the local skyline of each partition and
+   * emits it with a null key. This ensures that all local skylines are
+   * merged in one reducer.
    */
   public static class IdentityMapper extends MapReduceBase implements Mapper<Rectangle, ShapeIterator, NullWritable, Point> {
-	 private Direction dir;
-	    
-	 @Override
-	 public void configure(JobConf job) {
-	    super.configure(job);
-	    dir = OperationsParams.getDirection(job, "dir", Direction.MaxMax);
-	  }
-		  
-	 public boolean skylineDominateInternal(Point p1, Point p2, Direction dir) {
-	    switch (dir) {
-	    case MaxMax: return p1.x >= p2.x && p1.y >= p2.y; 
-	    case MaxMin: return p1.x >= p2.x && p1.y <= p2.y; 
-	    case MinMax: return p1.x <= p2.x && p1.y >= p2.y; 
-	    case MinMin: return p1.x <= p2.x && p1.y <= p2.y; 
-	    default: throw new RuntimeException("Unknown direction: "+dir);
-	    }
-	  }
-	 
-	 @Override
-    public void map(Rectangle dummy, ShapeIterator points,OutputCollector<NullWritable, Point> output, Reporter reporter) throws IOException {
-
-        Point origin = new Point();
-        double originMapX;
-        double originMapY;
-        
-        Vector<Point> skyList = new Vector<Point>();
-        Point checkpoint=new Point();
-        
-    	  switch (dir) {
-    	    case MaxMax: originMapX=10000; originMapY=10000; origin = new Point(originMapX,originMapY); checkpoint = new Point(0,0);           break;
-    		case MaxMin: originMapX=10000; originMapY=0; 	 origin = new Point(originMapX,originMapY); checkpoint = new Point(0,10000);       break;
-    		case MinMax: originMapX=0; 	   originMapY=10000; origin = new Point(originMapX,originMapY); checkpoint = new Point(10000,0);       break;
-    		case MinMin: originMapX=0;     originMapY=0;     origin = new Point(originMapX,originMapY); checkpoint = new Point(10000,10000);   break;
-    		default: throw new RuntimeException("Unknown direction: "+dir);
-    	  }
-     	  
-  		Vector<Point> mapList = new Vector<Point>();
-  		Point tempPoint=null;
+    private Direction dir;
 
-      	while (points.hasNext()) { 
-      			tempPoint=(Point)points.next().clone();
-	      	     if(!(skylineDominateInternal(checkpoint,tempPoint ,dir))){
-	      	    	if(tempPoint.distanceToEuclidean(originMapX,originMapY)<checkpoint.distanceToEuclidean(originMapX,originMapY)) {checkpoint=tempPoint.clone();}
-	    			 mapList.add(tempPoint.clone());
-	    		 }else{
-	    			 //reject point
-	    		 }
-  	    }//while
-      	
-      	output.collect( NullWritable.get(), (Point)checkpoint);
-      	
-      		mapList.sort(new Comparator <Point>(){
-     			 public int compare(Point p1, Point p2){
-     			   	 if(p1.distanceToEuclidean(originMapX,originMapY)<p2.distanceToEuclidean(originMapX,originMapY)) return -1;
-     				 if(p1.distanceToEuclidean(originMapX,originMapY)>p2.distanceToEuclidean(originMapX,originMapY)) return  1;	 
-     				 return 0;
-     			 }});
-    	  
-	    for(int j=0; j<mapList.size(); j++){
-	        Point point=mapList.get(j).clone();
-	    		 boolean dominance=false;
-	    		 dominance =  (skylineDominateInternal( point, checkpoint,  dir));
-	    		 
-		    	if(dominance){ 
-		        	  //reject point
-		    	 }else{
-		    		 boolean dominatedSkyList = false; 
-					 for (Point skypoint : skyList) {
-				    	  dominatedSkyList=(skylineDominateInternal(skypoint , point, dir));
-					      if (dominatedSkyList) { break; }
-					  }
-					 
-		    		 if (!dominatedSkyList){
-			  			    skyList.add(point);
-			  			    output.collect( NullWritable.get(), (Point)point);
-				    }
-		    		 
-		    	 }//dominance check
-    	 }//for
-      }//mapper
-  }//class
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      dir = OperationsParams.getDirection(job, "dir", Direction.MaxMax);
+    }
 
+    @Override
+    public void map(Rectangle dummy, ShapeIterator points,
+        OutputCollector<NullWritable, Point> output, Reporter reporter)
+        throws IOException {
+      List<Point> vpoints = new ArrayList<Point>();
+      while (points.hasNext())
+        vpoints.add((Point) points.next().clone());
+      // Run single-threaded to stay within the resources allocated to the task
+      Point[] skyline = skylineInMemory(vpoints.toArray(new Point[vpoints.size()]),
+          vpoints.size(), dir, 1);
+      for (Point pt : skyline)
+        output.collect(NullWritable.get(), pt);
+    }
+  }
 
-  public static class SkylineReducer extends MapReduceBase implements Reducer<NullWritable,Point,NullWritable,Point> {  	  
+  public static class SkylineReducer extends MapReduceBase implements Reducer<NullWritable,Point,NullWritable,Point> {
     private Direction dir;
-    
+
     @Override
     public void configure(JobConf job) {
       super.configure(job);
       dir = OperationsParams.getDirection(job, "dir", Direction.MaxMax);
     }
 
-	 public boolean skylineDominateInternal(Point p1, Point p2, Direction dir) {
-	    switch (dir) {
-	    case MaxMax: return p1.x >= p2.x && p1.y >= p2.y; 
-	    case MaxMin: return p1.x >= p2.x && p1.y <= p2.y; 
-	    case MinMax: return p1.x <= p2.x && p1.y >= p2.y; 
-	    case MinMin: return p1.x <= p2.x && p1.y <= p2.y; 
-	    default: throw new RuntimeException("Unknown direction: "+dir);
-	    }
-	  }
-	 
-    static Point minXcheckpoint=new Point();
-    static Point minYcheckpoint=new Point();
-    static Point minDISTcheckpoint=new Point();
-        
-    static Vector<Point> skyList = new Vector<Point>();
-    static int callreduce=0;
-    static double originReduceX=new Double(0.0);
-    static double originReduceY=new Double(0.0);
-    
-    
     @Override
-    public void reduce(NullWritable dummy, Iterator<Point> points, OutputCollector<NullWritable, Point> output, Reporter reporter) throws IOException {
-        callreduce++;
-        Vector <Point> vpoints = new Vector <Point>();
-    	while (points.hasNext()) { 
-	         vpoints.add(points.next().clone());
-	    }//while
-
-    	
-    	if(callreduce==1){
-		     switch (dir) {
-		  	    case MaxMax: originReduceX=1000000; originReduceY=1000000; 
-		  	    			 minXcheckpoint=new Point(0,0); 
-		  	    			 minYcheckpoint=new Point(0,0);  
-		  	    			 minDISTcheckpoint=new Point(0,0);
-		  	    			 break;
-		  	    case MaxMin: originReduceX=1000000; originReduceY=0;
-			    			 minXcheckpoint=new Point(0,1000000); 
-			    			 minYcheckpoint=new Point(0,1000000);  
-			    			 minDISTcheckpoint=new Point(0,1000000);
-		  	    			 break;
-		  	   	case MinMax: originReduceX=0; originReduceY=1000000; 
-			    			 minXcheckpoint=new Point(1000000,0); 
-			    			 minYcheckpoint=new Point(1000000,0);  
-			    			 minDISTcheckpoint=new Point(1000000,0);
-		  	   				 break;		
-		  		case MinMin: originReduceX=0; originReduceY=0; 
-		  					 minXcheckpoint=new Point(1000000,1000000); 
-		  					 minYcheckpoint=new Point(1000000,1000000); 
-		  					 minDISTcheckpoint=new Point(1000000,1000000);
-		  					 break; 
-		  		default:     throw new RuntimeException("Unknown direction: "+dir);
-		  	  }
-    	}
-    	
-    	vpoints.sort(new Comparator <Point>(){
-			 public int compare(Point p1, Point p2){
-			   	 if(p1.distanceToEuclidean(originReduceX,originReduceY)<p2.distanceToEuclidean(originReduceX,originReduceY)) return -1;
-				 if(p1.distanceToEuclidean(originReduceX,originReduceY)>p2.distanceToEuclidean(originReduceX,originReduceY)) return  1;	 
-				 return 0;
-			 }});
-  	     
-  	     for(Point point : vpoints){ 	 
-    		 // Dominance list
-    		 boolean dominatedSkyList = false; 
-			 for (Point skypoint : skyList) {
-		    	  dominatedSkyList=(skylineDominateInternal(skypoint , point, dir));
-			       if (dominatedSkyList) {
-  			        	break;
-			       }
-			  }
-			   
-			 if (!dominatedSkyList){
-		  			skyList.add(point);
-		  			output.collect( NullWritable.get(), (Point)point);
-  			 }else{
-  			 }
-  	     }//for vpoints
-  	  }
+    public void reduce(NullWritable dummy, Iterator<Point> points,
+        OutputCollector<NullWritable, Point> output, Reporter reporter)
+        throws IOException {
+      List<Point> vpoints = new ArrayList<Point>();
+      while (points.hasNext())
+        vpoints.add(points.next().clone());
+      // Run single-threaded to stay within the resources allocated to the task
+      Point[] skyline = skylineInMemory(vpoints.toArray(new Point[vpoints.size()]),
+          vpoints.size(), dir, 1);
+      for (Point pt : skyline)
+        output.collect(dummy, pt);
+    }
   }
   
   private static void skylineMapReduce(Path inFile, Path userOutPath,OperationsParams params) throws IOException {
@@ -599,6 +514,7 @@ public class SkylineSAS {
     System.err.println("<output file>: Path to output file");
     System.err.println("<direction (max-max|max-min|min-max|min-min)>: Direction of skyline (default is max-max)");
     System.err.println("-overwrite: Overwrite output file without notice");
+    System.err.println("-incremental: Update the skyline stored with the input file using the files that follow it");
     GenericOptionsParser.printGenericCommandUsage(System.err);
   }
   
@@ -606,9 +522,24 @@ public class SkylineSAS {
 	  
 	  BasicConfigurator.configure();
 	  Logger.getRootLogger().setLevel(Level.INFO);
-	  
 
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
     Path[] paths = params.getPaths();
+    if (params.getBoolean("incremental", false)) {
+      // The first path is the dataset and all others are the appended files
+      if (!params.checkInput()) {
+        printUsage();
+        System.exit(1);
+      }
+      Path[] newFiles = new Path[paths.length - 1];
+      System.arraycopy(paths, 1, newFiles, 0, newFiles.length);
+      long t1 = System.currentTimeMillis();
+      Point[] skyline = Skyline.skylineIncremental(paths[0], newFiles, params);
+      long t2 = System.currentTimeMillis();
+      System.out.println("Skyline has "+skyline.length+" points");
+      System.out.println("Total time: "+(t2-t1)+" millis");
+      return;
+    }
     if (paths.length <= 1 && !params.checkInput()) {
       printUsage();
       System.exit(1);
@@ -158,8 +158,10 @@ public class Union {
           }
         }
       };
+      // One thread by default to stay within the cores allocated to the task
       SpatialAlgorithms.multiUnion(vgeoms.toArray(new Geometry[vgeoms.size()]),
-          new Progressable.TaskProgressable(context), resultCollector);
+          new Progressable.TaskProgressable(context), resultCollector,
+          context.getConfiguration().getInt("parallel", 1));
       LOG.info("Union computed");
     }
   }
@@ -222,7 +224,8 @@ public class Union {
           }
         };
         SpatialAlgorithms.multiUnion(allGeoms.toArray(new Geometry[allGeoms.size()]),
-            new Progressable.TaskProgressable(task), resultCollector);
+            new Progressable.TaskProgressable(task), resultCollector,
+            context.getConfiguration().getInt("parallel", 1));
         ps.close();
 
         // Delete all intermediate files
@@ -410,7 +413,7 @@ public class Union {
         outShape.toText(line);
         out.println(line);
       }
-    });
+    }, parallelism);
     out.close();
   }
 
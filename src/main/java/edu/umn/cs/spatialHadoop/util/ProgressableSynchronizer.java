@@ -0,0 +1,41 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which 
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.util;
+
+import java.io.IOException;
+
+/**
+ * Builds a wrapper around an existing Progressable which
+ * synchronizes all calls to the wrapped Progressable.
+ *
+ */
+public class ProgressableSynchronizer implements Progressable {
+
+  private Progressable wrapped;
+
+  public ProgressableSynchronizer(Progressable wrapped) {
+    this.wrapped = wrapped;
+  }
+
+  @Override
+  public synchronized void progress() {
+    wrapped.progress();
+  }
+
+  @Override
+  public synchronized void progress(float p) throws IOException {
+    wrapped.progress(p);
+  }
+
+  @Override
+  public synchronized void setStatus(String status) throws IOException {
+    wrapped.setStatus(status);
+  }
+
+}
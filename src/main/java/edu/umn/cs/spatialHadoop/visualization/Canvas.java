@@ -12,6 +12,9 @@ import java.awt.Point;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 import org.apache.hadoop.io.Writable;
 
@@ -78,4 +81,65 @@ public abstract class Canvas implements Writable {
     int imageY = (int) Math.floor((y - finalMBR.y1) * this.getHeight() / finalMBR.getHeight());
     return new Point(imageX, imageY);
   }
-}
\ No newline at end of file
+
+  /**
+   * Writes an array of values, e.g., the pixels of a canvas. The values are
+   * written as runs of equal values if this takes less space, which is the
+   * case for the many empty pixels in a partial canvas, or as is otherwise.
+   * @param out
+   * @param values
+   * @throws IOException
+   */
+  protected static void writeInts(DataOutput out, int[] values) throws IOException {
+    int numRuns = 0;
+    for (int i = 0; i < values.length; i++)
+      if (i == 0 || values[i] != values[i - 1])
+        numRuns++;
+    boolean runLength = numRuns * 2 < values.length;
+    out.writeBoolean(runLength);
+    ByteBuffer bbuffer;
+    if (runLength) {
+      bbuffer = ByteBuffer.allocate(numRuns * 8);
+      IntBuffer ibuffer = bbuffer.asIntBuffer();
+      int runStart = 0;
+      for (int i = 1; i <= values.length; i++) {
+        if (i == values.length || values[i] != values[runStart]) {
+          ibuffer.put(i - runStart);
+          ibuffer.put(values[runStart]);
+          runStart = i;
+        }
+      }
+      out.writeInt(numRuns);
+    } else {
+      bbuffer = ByteBuffer.allocate(values.length * 4);
+      bbuffer.asIntBuffer().put(values);
+    }
+    out.write(bbuffer.array());
+  }
+
+  /**
+   * Reads an array of values written by {@link #writeInts(DataOutput, int[])}
+   * @param in
+   * @param values - the array to fill in which must have the same length as
+   *   the written array
+   * @throws IOException
+   */
+  protected static void readInts(DataInput in, int[] values) throws IOException {
+    boolean runLength = in.readBoolean();
+    if (runLength) {
+      byte[] bytes = new byte[in.readInt() * 8];
+      in.readFully(bytes);
+      IntBuffer ibuffer = ByteBuffer.wrap(bytes).asIntBuffer();
+      int i = 0;
+      while (ibuffer.hasRemaining()) {
+        int length = ibuffer.get();
+        Arrays.fill(values, i, i + length, ibuffer.get());
+        i += length;
+      }
+    } else {
+      byte[] bytes = new byte[values.length * 4];
+      in.readFully(bytes);
+      ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+    }
+  }
+}
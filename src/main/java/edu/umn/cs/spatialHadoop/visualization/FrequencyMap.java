@@ -11,14 +11,9 @@ package edu.umn.cs.spatialHadoop.visualization;
 import java.awt.Color;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,14 +31,25 @@ public class FrequencyMap extends Canvas {
   
   public static enum SmoothType {Flat, Gaussian};
   
-  /**The kernel to use for stamping points*/
-  protected float[][] kernel;
+  /**Standard deviation of the Gaussian kernel in pixels*/
+  private static final int GaussianStdev = 8;
   
-  /**Frequencies*/
-  protected float[][] frequencies;
+  /**One-dimensional Gaussian kernel. The two-dimensional kernel is separable*/
+  protected float[] kernel;
+  
+  /**
+   * Raw counts of points in each pixel. The grid is padded with a border of
+   * radius pixels on each side to keep the points that are outside the
+   * canvas but close enough to affect it after smoothing. Pixel (x, y) is
+   * stored at index (y + radius) * (width + 2 * radius) + (x + radius)
+   */
+  protected int[] counts;
 
   /**Radius to smooth nearboy points*/
   private int radius;
+  
+  /**Type of the kernel used to smooth points*/
+  private SmoothType smoothType;
 
   /**The minimum value to be used while drawing the heat map*/
   private float min;
@@ -68,9 +74,9 @@ public class FrequencyMap extends Canvas {
     this.inputMBR = inputMBR;
     this.width = width;
     this.height = height;
-    this.frequencies = new float[width][height];
     this.min = -1; this.max = -2;
     initKernel(radius, smoothType);
+    this.counts = new int[(width + 2 * radius) * (height + 2 * radius)];
   }
   
   /**
@@ -80,28 +86,14 @@ public class FrequencyMap extends Canvas {
    */
   protected void initKernel(int radius, SmoothType smoothType) {
     this.radius = radius;
-    // initialize the kernel according to the radius and kernel type
-    kernel = new float[radius * 2][radius * 2];
-    switch (smoothType) {
-    case Flat:
-      for (int dx = -radius; dx < radius; dx++) {
-        for (int dy = -radius; dy < radius; dy++) {
-          if (dx * dx + dy * dy < radius * radius) {
-            kernel[dx + radius][dy + radius] = 1.0f;
-          }
-        }
-      }
-      break;
-    case Gaussian:
-      int stdev = 8;
-      // Apply two-dimensional Gaussian function
-      // http://en.wikipedia.org/wiki/Gaussian_function#Two-dimensional_Gaussian_function
-      for (int dx = -radius; dx < radius; dx++) {
-        for (int dy = -radius; dy < radius; dy++) {
-          kernel[dx + radius][dy + radius] = (float) Math.exp(-(dx * dx + dy * dy)
-              / (2.0 * stdev * stdev));
-        }
-      }
+    this.smoothType = smoothType;
+    // Apply two-dimensional Gaussian function
+    // http://en.wikipedia.org/wiki/Gaussian_function#Two-dimensional_Gaussian_function
+    // which is the product of two one-dimensional functions in x and y
+    kernel = new float[radius * 2];
+    if (smoothType == SmoothType.Gaussian) {
+      for (int d = -radius; d < radius; d++)
+        kernel[d + radius] = (float) Math.exp(-(d * d) / (2.0 * GaussianStdev * GaussianStdev));
     }
   }
   
@@ -118,88 +110,140 @@ public class FrequencyMap extends Canvas {
   @Override
   public void write(DataOutput out) throws IOException {
     super.write(out);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    GZIPOutputStream gzos = new GZIPOutputStream(baos);
-    ByteBuffer bbuffer = ByteBuffer.allocate(getHeight() * 4 + 8);
-    bbuffer.putInt(getWidth());
-    bbuffer.putInt(getHeight());
-    gzos.write(bbuffer.array(), 0, bbuffer.position());
-    for (int x = 0; x < getWidth(); x++) {
-      bbuffer.clear();
-      for (int y = 0; y < getHeight(); y++) {
-        bbuffer.putFloat(frequencies[x][y]);
-      }
-      gzos.write(bbuffer.array(), 0, bbuffer.position());
-    }
-    gzos.close();
-    
-    byte[] serializedData = baos.toByteArray();
-    out.writeInt(serializedData.length);
-    out.write(serializedData);
+    out.writeInt(radius);
+    out.writeInt(smoothType.ordinal());
+    writeInts(out, counts);
   }
   
   @Override
   public void readFields(DataInput in) throws IOException {
     super.readFields(in);
-    int length = in.readInt();
-    byte[] serializedData = new byte[length];
-    in.readFully(serializedData);
-    ByteArrayInputStream bais = new ByteArrayInputStream(serializedData);
-    GZIPInputStream gzis = new GZIPInputStream(bais);
-    
-    byte[] buffer = new byte[8];
-    gzis.read(buffer);
-    ByteBuffer bbuffer = ByteBuffer.wrap(buffer);
-    int width = bbuffer.getInt();
-    int height = bbuffer.getInt();
+    int radius = in.readInt();
+    SmoothType smoothType = SmoothType.values()[in.readInt()];
+    if (radius != this.radius || smoothType != this.smoothType || kernel == null)
+      initKernel(radius, smoothType);
+    int paddedSize = (getWidth() + 2 * radius) * (getHeight() + 2 * radius);
     // Reallocate memory only if needed
-    if (width != this.getWidth() || height != this.getHeight())
-      frequencies = new float[width][height];
-    buffer = new byte[getHeight() * 4];
-    for (int x = 0; x < getWidth(); x++) {
-      int size = 0;
-      while (size < buffer.length) {
-        size += gzis.read(buffer, size, buffer.length - size);
-      }
-      bbuffer = ByteBuffer.wrap(buffer);
-      for (int y = 0; y < getHeight(); y++) {
-        frequencies[x][y] = bbuffer.getFloat();
-      }
-    }
+    if (counts == null || counts.length != paddedSize)
+      counts = new int[paddedSize];
+    readInts(in, counts);
   }
   
+  /**
+   * Adds the counts of another frequency map to this one. Since smoothing is
+   * applied only when the image is generated, points in the border of the
+   * other map are merged as well which allows points near the boundary of a
+   * partition to be smoothed across it.
+   * @param another
+   */
   public void mergeWith(FrequencyMap another) {
     Point offset = projectToImageSpace(another.getInputMBR().x1, another.getInputMBR().y1);
-    int xmin = Math.max(0, offset.x);
-    int ymin = Math.max(0, offset.y);
-    int xmax = Math.min(this.getWidth(), another.getWidth() + offset.x);
-    int ymax = Math.min(this.getHeight(), another.getHeight() + offset.y);
-    for (int x = xmin; x < xmax; x++) {
-      for (int y = ymin; y < ymax; y++) {
-        this.frequencies[x][y] +=
-            another.frequencies[x - offset.x][y - offset.y];
+    int r1 = this.radius, r2 = another.radius;
+    int pw1 = this.getWidth() + 2 * r1, pw2 = another.getWidth() + 2 * r2;
+    // Range of pixels in this map, including the border, covered by the other map
+    int xmin = Math.max(-r1, offset.x - r2);
+    int ymin = Math.max(-r1, offset.y - r2);
+    int xmax = Math.min(this.getWidth() + r1, another.getWidth() + r2 + offset.x);
+    int ymax = Math.min(this.getHeight() + r1, another.getHeight() + r2 + offset.y);
+    for (int y = ymin; y < ymax; y++) {
+      int offset1 = (y + r1) * pw1 + r1;
+      int offset2 = (y - offset.y + r2) * pw2 + r2 - offset.x;
+      for (int x = xmin; x < xmax; x++)
+        this.counts[offset1 + x] += another.counts[offset2 + x];
+    }
+  }
+  
+  /**
+   * Applies the smoothing kernel to the counts of all points and returns the
+   * value of each pixel in the canvas at index y * width + x. The result is
+   * the same as stamping the kernel at each point but the cost depends only
+   * on the size of the canvas and the radius.
+   * @return
+   */
+  protected float[] smooth() {
+    int width = getWidth(), height = getHeight();
+    int paddedWidth = width + 2 * radius, paddedHeight = height + 2 * radius;
+    float[] values = new float[width * height];
+    if (radius == 0)
+      return values;
+    if (smoothType == SmoothType.Gaussian) {
+      // Apply the one-dimensional kernel along x then along y. A point at
+      // (cx, cy) adds kernel[dx + radius] * kernel[dy + radius] to the pixel
+      // (cx + dx, cy + dy) for dx and dy in [-radius, radius)
+      float[] rows = new float[paddedHeight * width];
+      for (int py = 0; py < paddedHeight; py++) {
+        int rowOffset = py * paddedWidth;
+        for (int x = 0; x < width; x++) {
+          float sum = 0;
+          for (int d = -radius; d < radius; d++)
+            sum += counts[rowOffset + x - d + radius] * kernel[d + radius];
+          rows[py * width + x] = sum;
+        }
+      }
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          float sum = 0;
+          for (int d = -radius; d < radius; d++)
+            sum += rows[(y - d + radius) * width + x] * kernel[d + radius];
+          values[y * width + x] = sum;
+        }
+      }
+    } else {
+      // The flat kernel is a disk of all (dx, dy) where dx^2 + dy^2 < radius^2.
+      // Each row of the disk is a span that is summed using prefix sums
+      long[] prefix = new long[paddedHeight * (paddedWidth + 1)];
+      for (int py = 0; py < paddedHeight; py++) {
+        int rowOffset = py * (paddedWidth + 1);
+        for (int px = 0; px < paddedWidth; px++)
+          prefix[rowOffset + px + 1] = prefix[rowOffset + px] + counts[py * paddedWidth + px];
+      }
+      int[] spanLeft = new int[2 * radius];
+      int[] spanRight = new int[2 * radius];
+      for (int dy = -radius; dy < radius; dy++) {
+        int m = 0;
+        while ((m + 1) * (m + 1) + dy * dy < radius * radius)
+          m++;
+        // dx in [-m, min(m, radius - 1)]; empty if dy is on the disk boundary
+        spanLeft[dy + radius] = dy * dy < radius * radius ? -m : 1;
+        spanRight[dy + radius] = Math.min(m, radius - 1);
+      }
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          long sum = 0;
+          for (int dy = -radius; dy < radius; dy++) {
+            int dxmin = spanLeft[dy + radius], dxmax = spanRight[dy + radius];
+            if (dxmin > dxmax)
+              continue;
+            // Points at x - dx for dx in [dxmin, dxmax]
+            int rowOffset = (y - dy + radius) * (paddedWidth + 1);
+            sum += prefix[rowOffset + x - dxmin + radius + 1] - prefix[rowOffset + x - dxmax + radius];
+          }
+          values[y * width + x] = sum;
+        }
       }
     }
+    return values;
   }
   
   public BufferedImage asImage() {
+    float[] values = smooth();
+    // Keep the autodetected range local as the map can still change
+    float min = this.min, max = this.max;
     if (min >= max) {
       // Values not set. Autodetect
       min = Float.MAX_VALUE;
       max = -Float.MAX_VALUE;
-      for (int x = 0; x < this.getWidth(); x++) {
-        for (int y = 0; y < this.getHeight(); y++) {
-          if (frequencies[x][y] < min)
-            min = frequencies[x][y];
-          if (frequencies[x][y] > max)
-            max = frequencies[x][y];
-        }
+      for (float value : values) {
+        if (value < min)
+          min = value;
+        if (value > max)
+          max = value;
       }
     }
     BufferedImage image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
     for (int x = 0; x < this.getWidth(); x++) {
       for (int y = 0; y < this.getHeight(); y++) {
-        Color color = calculateColor(frequencies[x][y], min, max);
+        Color color = calculateColor(values[y * getWidth() + x], min, max);
         image.setRGB(x, y, color.getRGB());
       }
     }
@@ -207,27 +251,14 @@ public class FrequencyMap extends Canvas {
   }
 
   /**
-   * Adds a point to the frequency map
+   * Adds a point to the frequency map. The point is only counted in its pixel
+   * and the kernel is applied once when the image is generated.
    * @param cx
    * @param cy
    */
   public void addPoint(int cx, int cy) {
-    for (int dx = -radius; dx < radius; dx++) {
-      for (int dy = -radius; dy < radius; dy++) {
-        int imgx = cx + dx;
-        int imgy = cy + dy;
-        if (imgx >= 0 && imgx < getWidth() && imgy >= 0 && imgy < getHeight())
-          frequencies[imgx][imgy] += kernel[dx + radius][dy + radius];
-      }
-    }
-  }
-
-  public int getWidth() {
-    return frequencies == null? 0 : frequencies.length;
-  }
-
-  public int getHeight() {
-    return frequencies == null? 0 : frequencies[0].length;
+    if (cx >= -radius && cx < getWidth() + radius && cy >= -radius && cy < getHeight() + radius)
+      counts[(cy + radius) * (getWidth() + 2 * radius) + (cx + radius)]++;
   }
   
   /* The following methods are used to compute the gradient */
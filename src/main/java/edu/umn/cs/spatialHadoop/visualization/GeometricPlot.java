@@ -15,6 +15,10 @@ import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.imageio.ImageIO;
 
@@ -25,7 +29,15 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.util.GenericOptionsParser;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.operations.FileMBR;
@@ -37,13 +49,20 @@ import edu.umn.cs.spatialHadoop.operations.FileMBR;
 public class GeometricPlot {
   
   public static class GeometricRasterizer extends Plotter {
+
+    /**Geometries with fewer points are plotted as is*/
+    private static final int MinPointsToSimplify = 16;
     
     private Color strokeColor;
 
+    /**Whether to simplify geometries to the resolution of each pyramid level*/
+    private boolean simplify;
+
     @Override
     public void configure(Configuration conf) {
       super.configure(conf);
       this.strokeColor = OperationsParams.getColor(conf, "color", Color.BLACK);
+      this.simplify = conf.getBoolean("simplify", true);
     }
 
     @Override
@@ -59,6 +78,137 @@ public class GeometricPlot {
       imgLayer.drawShape(shape);
     }
 
+    @Override
+    public Shape simplify(Shape shape, double pixelWidth, double pixelHeight) {
+      if (!simplify || !(shape instanceof OGCJTSShape))
+        return shape;
+      Geometry geom = ((OGCJTSShape) shape).geom;
+      if (geom == null || geom.isEmpty() || geom.getDimension() < 1)
+        return shape;
+      double xscale = 1.0 / pixelWidth;
+      double yscale = 1.0 / pixelHeight;
+      Envelope env = geom.getEnvelopeInternal();
+      if (Math.floor(env.getMinX() * xscale) == Math.floor(env.getMaxX() * xscale) &&
+          Math.floor(env.getMinY() * yscale) == Math.floor(env.getMaxY() * yscale)) {
+        // The whole geometry falls in one pixel which is filled only if one
+        // of its lines is long enough to be drawn
+        if (!isVisible(getMaxLineLength(geom), xscale, yscale))
+          return null;
+        return new Rectangle(env.getMinX(), env.getMinY(), env.getMinX(), env.getMinY());
+      }
+      if (geom.getNumPoints() < MinPointsToSimplify)
+        return shape;
+      List<LineString> lines = new ArrayList<LineString>();
+      if (!simplifyLines(geom, xscale, yscale, lines))
+        return shape;
+      int numPoints = 0;
+      for (LineString line : lines)
+        numPoints += line.getNumPoints();
+      if (numPoints == geom.getNumPoints())
+        return shape;
+      OGCJTSShape simpleShape = (OGCJTSShape) shape.clone();
+      simpleShape.geom = lines.size() == 1 ? lines.get(0) :
+        geom.getFactory().createMultiLineString(lines.toArray(new LineString[lines.size()]));
+      return simpleShape;
+    }
+
+    /**
+     * Returns the length of the longest line or ring in the given geometry.
+     * @param geom - the geometry to measure
+     * @return the maximum length or -1 if the geometry has no lines
+     */
+    private static double getMaxLineLength(Geometry geom) {
+      if (geom instanceof GeometryCollection) {
+        double maxLength = -1;
+        for (int i = 0; i < geom.getNumGeometries(); i++)
+          maxLength = Math.max(maxLength, getMaxLineLength(geom.getGeometryN(i)));
+        return maxLength;
+      }
+      if (geom instanceof com.vividsolutions.jts.geom.Polygon) {
+        com.vividsolutions.jts.geom.Polygon poly = (com.vividsolutions.jts.geom.Polygon) geom;
+        double maxLength = poly.getExteriorRing().getLength();
+        for (int i = 0; i < poly.getNumInteriorRing(); i++)
+          maxLength = Math.max(maxLength, poly.getInteriorRingN(i).getLength());
+        return maxLength;
+      }
+      if (geom instanceof LineString)
+        return geom.getLength();
+      return -1;
+    }
+
+    /**
+     * Tells whether a line of the given length is drawn at the given scale.
+     * This uses the same cutoff as
+     * {@link OGCJTSShape#drawJTSGeom(Graphics, Geometry, double, double, boolean)}.
+     * @param length - the length of the line in the input space
+     * @param xscale - number of pixels per input unit along the x-axis
+     * @param yscale - number of pixels per input unit along the y-axis
+     * @return <code>true</code> if the line is drawn
+     */
+    private static boolean isVisible(double length, double xscale, double yscale) {
+      return length > 0 && Math.round(length * (xscale + yscale) / 2.0 * 255) != 0;
+    }
+
+    /**
+     * Simplifies all the lines in the given geometry by removing each point
+     * that falls in the same pixel as the point before it. Only the outlines
+     * of geometries are drawn and consecutive points in the same pixel are
+     * skipped while drawing, so the simplified lines are drawn exactly as the
+     * original ones as long as they are not too short to be drawn.
+     * @param geom - the geometry to simplify
+     * @param xscale - number of pixels per input unit along the x-axis
+     * @param yscale - number of pixels per input unit along the y-axis
+     * @param lines - the list to add the simplified lines to
+     * @return <code>false</code> if the geometry cannot be simplified, i.e.,
+     *   it contains points or a line that falls entirely in one pixel
+     */
+    private static boolean simplifyLines(Geometry geom, double xscale,
+        double yscale, List<LineString> lines) {
+      if (geom instanceof GeometryCollection) {
+        for (int i = 0; i < geom.getNumGeometries(); i++) {
+          if (!simplifyLines(geom.getGeometryN(i), xscale, yscale, lines))
+            return false;
+        }
+        return true;
+      }
+      if (geom instanceof com.vividsolutions.jts.geom.Polygon) {
+        // Keep the same order in which the rings are drawn
+        com.vividsolutions.jts.geom.Polygon poly = (com.vividsolutions.jts.geom.Polygon) geom;
+        for (int i = 0; i < poly.getNumInteriorRing(); i++) {
+          if (!simplifyLines(poly.getInteriorRingN(i), xscale, yscale, lines))
+            return false;
+        }
+        return simplifyLines(poly.getExteriorRing(), xscale, yscale, lines);
+      }
+      if (!(geom instanceof LineString))
+        return false;
+      CoordinateSequence coords = ((LineString) geom).getCoordinateSequence();
+      if (coords.size() == 0)
+        return true;
+      Coordinate[] simplified = new Coordinate[coords.size()];
+      int n = 0;
+      int prevx = 0, prevy = 0;
+      for (int i = 0; i < coords.size(); i++) {
+        int x = (int) Math.floor(coords.getX(i) * xscale);
+        int y = (int) Math.floor(coords.getY(i) * yscale);
+        if (n == 0 || x != prevx || y != prevy) {
+          simplified[n++] = coords.getCoordinate(i);
+          prevx = x;
+          prevy = y;
+        }
+      }
+      // A line in one pixel cannot be represented as a line
+      if (n == 1)
+        return false;
+      LineString simplifiedLine = geom.getFactory().createLineString(Arrays.copyOf(simplified, n));
+      // A shorter line could fall below the length at which lines are drawn
+      if (isVisible(geom.getLength(), xscale, yscale) !=
+          isVisible(simplifiedLine.getLength(), xscale, yscale))
+        return false;
+      lines.add(simplifiedLine);
+      return true;
+    }
+
     @Override
     public Class<? extends Canvas> getCanvasClass() {
       return ImageCanvas.class;
@@ -84,6 +234,22 @@ public class GeometricPlot {
       
       ImageIO.write(img, "png", out);
     }
+
+    @Override
+    public Canvas readImage(InputStream in, Rectangle mbr, int width,
+        int height, boolean vflip) throws IOException {
+      BufferedImage img = ImageIO.read(in);
+      if (img == null || img.getWidth() != width || img.getHeight() != height)
+        return null;
+      ImageCanvas canvas = (ImageCanvas) createCanvas(width, height, mbr);
+      // Copy the pixels as is and undo the vertical flip row by row
+      int[] row = new int[width];
+      for (int y = 0; y < height; y++) {
+        img.getRGB(0, y, width, 1, row, 0, width);
+        canvas.image.setRGB(0, vflip ? height - 1 - y : y, width, 1, row, 0, width);
+      }
+      return canvas;
+    }
   }
   
   private static void printUsage() {
@@ -94,8 +260,11 @@ public class GeometricPlot {
     System.out.println("shape:<point|rectangle|polygon|ogc> - (*) Type of shapes stored in input file");
     System.out.println("width:<w> - Maximum width of the image (1000)");
     System.out.println("height:<h> - Maximum height of the image (1000)");
+    System.out.println("rect:<x1,y1,x2,y2> - Plot only the given viewport and read only the partitions around it");
     System.out.println("color:<c> - Main color used to draw the picture (black)");
     System.out.println("partition:<data|space|flat|pyramid> - which partitioning technique to use");
+    System.out.println("incremental:<files> - Update an existing pyramid with the given new input files");
+    System.out.println("-no-simplify: Plot geometries at full resolution in all levels of a pyramid");
     System.out.println("-overwrite: Override output file without notice");
     System.out.println("-vflip: Vertically flip generated image to correct +ve Y-axis direction");
     GenericOptionsParser.printGenericCommandUsage(System.out);
@@ -211,7 +380,9 @@ public class GeometricPlot {
   public static void main(String[] args) throws IOException, InterruptedException, ClassNotFoundException {
     System.setProperty("java.awt.headless", "true");
     OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
-    if (!params.checkInputOutput()) {
+    // An incremental update writes to the existing pyramid in the output path
+    boolean incremental = params.get("incremental") != null;
+    if (incremental ? !params.checkInput() : !params.checkInputOutput()) {
       printUsage();
       System.exit(1);
     }
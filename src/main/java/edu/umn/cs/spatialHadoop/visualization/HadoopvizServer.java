@@ -8,6 +8,9 @@
  *************************************************************************/
 package edu.umn.cs.spatialHadoop.visualization;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -18,6 +21,10 @@ import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -31,7 +38,10 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.mortbay.jetty.Request;
@@ -39,7 +49,16 @@ import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.AbstractHandler;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
+import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+import edu.umn.cs.spatialHadoop.operations.FileMBR;
 
 /**
  * A class that starts a web service that can visualize spatial data
@@ -54,8 +73,47 @@ public class HadoopvizServer extends AbstractHandler {
   private static final String HadoopVizWebServerPort =
       "spatialhadoop.hadoopviz.http_port";
 
+  /**Configuration lines that set the limits of the tile cache*/
+  private static final String TileCacheMemory =
+      "spatialhadoop.hadoopviz.tile_cache.memory";
+  private static final String TileCacheDisk =
+      "spatialhadoop.hadoopviz.tile_cache.disk";
+  private static final String TileCacheDir =
+      "spatialhadoop.hadoopviz.tile_cache.dir";
+
+  /**Configuration line for the sample sizes of the stages of a preview*/
+  private static final String PreviewSampleSizes =
+      "spatialhadoop.hadoopviz.preview.sample_sizes";
+
+  /**Boundary between the images of a preview response*/
+  private static final String PreviewBoundary = "hadoopviz-preview";
+
+  /**The path of a tile request in the form /tiles/z/x/y.png*/
+  private static final Pattern TilePattern =
+      Pattern.compile("/tiles/(\\d+)/(\\d+)/(\\d+)\\.png");
+
   /** Common parameters for all queries */
   private OperationsParams commonParams;
+
+  /**Cache of tiles served by the tile endpoint*/
+  private TileCache tileCache;
+
+  /**The tile archives of a pre-generated pyramid*/
+  private static class PyramidArchives {
+    /**Modification time of the pyramid directory when the archives were listed*/
+    long modificationTime;
+    TileArchive[] archives;
+  }
+
+  /**Tile archives of pre-generated pyramids by the path of the pyramid*/
+  private final Map<String, PyramidArchives> tileArchives = new HashMap<String, PyramidArchives>();
+
+  /**
+   * The MBR of each dataset that is rendered on the fly by the path and
+   * version of the dataset. An MBR that is still computed in the background
+   * is stored as null.
+   */
+  private final Map<String, Rectangle> datasetMBRs = new HashMap<String, Rectangle>();
   
   /**
    * A constructor that starts the Jetty server
@@ -63,6 +121,11 @@ public class HadoopvizServer extends AbstractHandler {
    */
   public HadoopvizServer(OperationsParams params) {
     this.commonParams = new OperationsParams(params);
+    String cacheDir = params.get(TileCacheDir,
+        new File(System.getProperty("java.io.tmpdir"), "hadoopviz-tiles").getPath());
+    this.tileCache = new TileCache(params.getLong(TileCacheMemory, 64L * 1024 * 1024),
+        cacheDir.isEmpty() ? null : new File(cacheDir),
+        params.getLong(TileCacheDisk, 1024L * 1024 * 1024));
   }
 
   /**
@@ -100,6 +163,16 @@ public class HadoopvizServer extends AbstractHandler {
         handleListFiles(request, response);
       } else if (target.endsWith("/VISUALIZE.cgi") && request.getMethod().equals("POST")){
         handleVisualize(request, response);
+      } else if (target.endsWith("/PREVIEW.cgi") && request.getMethod().equals("GET")) {
+        handlePreview(request, response);
+      } else if (target.startsWith("/tiles/") && request.getMethod().equals("GET")) {
+        handleTile(target, request, response);
+      } else if (target.endsWith("/TILESTATS.cgi") && request.getMethod().equals("GET")) {
+        response.setContentType("application/json;charset=utf-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+        PrintWriter out = response.getWriter();
+        out.print(tileCache.getStatisticsJSON());
+        out.close();
       } else if (request.getMethod().equals("GET")) {
         // Doesn't match any of the dynamic content, assume it's a static file
         if (target.equals("/"))
@@ -256,6 +329,389 @@ public class HadoopvizServer extends AbstractHandler {
     }
   }
 
+  /**
+   * Plots a dataset progressively and streams an image after each stage as
+   * a multipart/x-mixed-replace response, which browsers display by
+   * replacing each image with the next one. The first images are plotted
+   * from samples of the dataset and the last one from all of it. Each image
+   * has a header <code>X-Data-Fraction</code> with the estimated fraction
+   * of the dataset plotted in it.
+   * @param request
+   * @param response
+   */
+  private void handlePreview(HttpServletRequest request,
+      final HttpServletResponse response) {
+    try {
+      String pathStr = request.getParameter("path");
+      if (pathStr == null) {
+        reportError(response, "Missing parameter 'path'", null);
+        return;
+      }
+      Path path = new Path(pathStr);
+      String plotterName = request.getParameter("plotter");
+      OperationsParams previewParams = new OperationsParams(commonParams);
+      String shapeName = request.getParameter("shape");
+      if (shapeName != null)
+        previewParams.set("shape", shapeName);
+      String width = request.getParameter("width");
+      previewParams.setInt("width", width != null ? Integer.parseInt(width) : 1000);
+      String height = request.getParameter("height");
+      previewParams.setInt("height", height != null ? Integer.parseInt(height) : 1000);
+      int[] sampleSizes = commonParams.get(PreviewSampleSizes) != null ?
+          commonParams.getInts(PreviewSampleSizes) : new int[] {1000, 10000, 100000};
+
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("multipart/x-mixed-replace;boundary=" + PreviewBoundary);
+      final ServletOutputStream outResponse = response.getOutputStream();
+      SingleLevelPlot.plotProgressive(new Path[] {path},
+          getPlotterClass(plotterName == null ? "gplot" : plotterName),
+          sampleSizes, previewParams, new SingleLevelPlot.ProgressListener() {
+        @Override
+        public void stageDone(Canvas canvas, Plotter plotter, float fraction)
+            throws IOException {
+          ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+          DataOutputStream out = new DataOutputStream(imageBytes);
+          plotter.writeImage(canvas, out, true);
+          out.close();
+          outResponse.print("--" + PreviewBoundary + "\r\n");
+          outResponse.print("Content-Type: image/png\r\n");
+          outResponse.print("Content-Length: " + imageBytes.size() + "\r\n");
+          outResponse.print("X-Data-Fraction: " + fraction + "\r\n\r\n");
+          imageBytes.writeTo(outResponse);
+          outResponse.print("\r\n");
+          response.flushBuffer();
+        }
+      });
+      outResponse.print("--" + PreviewBoundary + "--\r\n");
+      outResponse.close();
+    } catch (Exception e) {
+      System.out.println("error happened");
+      e.printStackTrace();
+      try {
+        e.printStackTrace(response.getWriter());
+      } catch (Exception ioe) {
+        // The writer is not available if the images were being streamed
+        ioe.printStackTrace();
+        e.printStackTrace();
+      }
+      response.setContentType("text/plain;charset=utf-8");
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  /**
+   * Returns the class of the plotter with the given name
+   * @param plotterName
+   * @return
+   */
+  private static Class<? extends Plotter> getPlotterClass(String plotterName) {
+    if (plotterName.equals("gplot"))
+      return GeometricPlot.GeometricRasterizer.class;
+    if (plotterName.equals("hdfx"))
+      return HeatMapPlot.HeatMapRasterizer.class;
+    throw new RuntimeException("Unknown plotter '" + plotterName + "'");
+  }
+
+  /**
+   * Serves one tile at /tiles/z/x/y.png of the dataset given in the parameter
+   * <code>path</code>. The tile is served from the tile cache, from a
+   * pre-generated pyramid of {@link MultilevelPlot}, as tile files or
+   * {@link TileArchive}s, in the directory given
+   * in the parameter <code>pyramid</code> (default: <code>path/_pyramid</code>)
+   * or is rendered from the partitions of the dataset that overlap it.
+   * Cached tiles are dropped when the dataset, its global index or the
+   * pyramid are modified. If the MBR of a dataset that is not indexed is
+   * still computed, the response is 503 (Service Unavailable).
+   * The tile numbering is the same as the tiles written by
+   * {@link MultilevelPlot} with vertical flip.
+   * @param target
+   * @param request
+   * @param response
+   */
+  private void handleTile(String target, HttpServletRequest request,
+      HttpServletResponse response) {
+    try {
+      Matcher matcher = TilePattern.matcher(target);
+      String pathStr = request.getParameter("path");
+      if (!matcher.matches() || pathStr == null) {
+        reportError(response, "Invalid tile request '" + target + "'", null);
+        return;
+      }
+      int z = Integer.parseInt(matcher.group(1));
+      int x = Integer.parseInt(matcher.group(2));
+      int y = Integer.parseInt(matcher.group(3));
+      if (z > 30 || x >= (1 << z) || y >= (1 << z)) {
+        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      String plotterName = request.getParameter("plotter");
+      if (plotterName == null)
+        plotterName = "gplot";
+      String shapeName = request.getParameter("shape");
+      Path path = new Path(pathStr);
+      String pyramidStr = request.getParameter("pyramid");
+      Path pyramidPath = pyramidStr != null ? new Path(pyramidStr) : new Path(path, "_pyramid");
+      FileSystem fs = pyramidPath.getFileSystem(commonParams);
+      // Cached tiles are dropped when the dataset or its pyramid change
+      long dataVersion = getDatasetVersion(path);
+      long version = Math.max(dataVersion, fs.exists(pyramidPath) ?
+          fs.getFileStatus(pyramidPath).getModificationTime() : -1);
+      String key = pathStr + "|" + pyramidPath + "|" + plotterName + "|" +
+          shapeName + "|" + z + "-" + x + "-" + y;
+      byte[] tile = tileCache.get(key, version);
+      if (tile == null) {
+        Path tilePath = new Path(pyramidPath, "tile-" + z + "-" + x + "-" + y + ".png");
+        if (fs.exists(tilePath)) {
+          tile = new byte[(int) fs.getFileStatus(tilePath).getLen()];
+          FSDataInputStream in = fs.open(tilePath);
+          in.readFully(tile);
+          in.close();
+        } else {
+          for (TileArchive archive : getTileArchives(fs, pyramidPath)) {
+            if ((tile = archive.getTile(z, x, y)) != null)
+              break;
+          }
+          if (tile == null)
+            tile = renderTile(path, pyramidPath, dataVersion, plotterName, shapeName, z, x, y);
+          if (tile == null) {
+            // The MBR of the dataset is not known yet
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "10");
+            return;
+          }
+        }
+        tileCache.put(key, version, tile);
+      }
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("image/png");
+      ServletOutputStream outResponse = response.getOutputStream();
+      outResponse.write(tile);
+      outResponse.close();
+    } catch (Exception e) {
+      System.out.println("error happened");
+      e.printStackTrace();
+      try {
+        e.printStackTrace(response.getWriter());
+      } catch (IOException ioe) {
+        ioe.printStackTrace();
+        e.printStackTrace();
+      }
+      response.setContentType("text/plain;charset=utf-8");
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  /**
+   * Returns the tile archives of a pre-generated pyramid. The archives are
+   * opened once and kept open until the pyramid directory is modified, e.g.,
+   * by a job that writes new archives to it.
+   * @param fs
+   * @param pyramidPath
+   * @return
+   * @throws IOException
+   */
+  private TileArchive[] getTileArchives(FileSystem fs, Path pyramidPath) throws IOException {
+    long modificationTime = fs.exists(pyramidPath) ?
+        fs.getFileStatus(pyramidPath).getModificationTime() : -1;
+    synchronized (tileArchives) {
+      PyramidArchives cached = tileArchives.get(pyramidPath.toString());
+      if (cached == null || cached.modificationTime != modificationTime) {
+        if (cached != null) {
+          for (TileArchive archive : cached.archives)
+            archive.close();
+        }
+        FileStatus[] files = modificationTime != -1 ? fs.listStatus(pyramidPath, new PathFilter() {
+          @Override
+          public boolean accept(Path p) {
+            return p.getName().endsWith(TileArchive.Extension);
+          }
+        }) : new FileStatus[0];
+        cached = new PyramidArchives();
+        cached.modificationTime = modificationTime;
+        cached.archives = new TileArchive[files.length];
+        for (int i = 0; i < files.length; i++)
+          cached.archives[i] = new TileArchive(fs, files[i].getPath());
+        tileArchives.put(pyramidPath.toString(), cached);
+      }
+      return cached.archives;
+    }
+  }
+
+  /**
+   * Returns the version of a dataset as the latest modification time of the
+   * dataset and its global index
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  private long getDatasetVersion(Path path) throws IOException {
+    FileSystem fs = path.getFileSystem(commonParams);
+    FileStatus status = fs.getFileStatus(path);
+    long version = status.getModificationTime();
+    if (status.isDirectory()) {
+      FileStatus[] masterFiles = fs.globStatus(new Path(path, "_master*"));
+      if (masterFiles != null) {
+        for (FileStatus masterFile : masterFiles)
+          version = Math.max(version, masterFile.getModificationTime());
+      }
+    }
+    return version;
+  }
+
+  /**
+   * Returns the MBR of the pyramid of a dataset as written by
+   * {@link MultilevelPlot}. The MBR is read from the configuration of the
+   * pyramid or from the global index of the dataset. Otherwise, the MBR is
+   * computed in the background and null is returned until it is ready.
+   * @param path
+   * @param pyramidPath
+   * @param dataVersion
+   * @param params
+   * @return the MBR expanded to a square or null if it is not known yet
+   * @throws IOException
+   */
+  private Rectangle getPyramidMBR(final Path path, Path pyramidPath,
+      long dataVersion, final OperationsParams params) throws IOException {
+    final String key = path + "@" + dataVersion;
+    Rectangle inputMBR;
+    synchronized (datasetMBRs) {
+      if (datasetMBRs.containsKey(key)) {
+        inputMBR = datasetMBRs.get(key);
+        return inputMBR == null ? null : squareMBR(inputMBR);
+      }
+    }
+    inputMBR = MultilevelPlot.readInputMBR(pyramidPath.getFileSystem(params), pyramidPath);
+    if (inputMBR == null) {
+      GlobalIndex<Partition> gIndex =
+          SpatialSite.getGlobalIndex(path.getFileSystem(params), path);
+      if (gIndex != null)
+        inputMBR = gIndex.getMBR();
+    }
+    if (inputMBR != null) {
+      synchronized (datasetMBRs) {
+        datasetMBRs.put(key, inputMBR);
+      }
+      return squareMBR(inputMBR);
+    }
+    // Scan the dataset in the background to avoid blocking the request
+    synchronized (datasetMBRs) {
+      if (datasetMBRs.containsKey(key))
+        return null;
+      datasetMBRs.put(key, null);
+    }
+    LOG.info("Computing the MBR of '"+path+"' in the background");
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        Rectangle mbr = null;
+        try {
+          mbr = FileMBR.fileMBR(path, params);
+        } catch (Exception e) {
+          LOG.error("Error computing the MBR of '"+path+"'", e);
+        }
+        synchronized (datasetMBRs) {
+          if (mbr != null)
+            datasetMBRs.put(key, mbr.clone());
+          else
+            datasetMBRs.remove(key); // Retry with the next request
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    return null;
+  }
+
+  /**
+   * Expands the given MBR to a square around its center in the same way of
+   * {@link MultilevelPlot}
+   */
+  private static Rectangle squareMBR(Rectangle mbr) {
+    Rectangle square = mbr.clone();
+    if (square.getWidth() > square.getHeight()) {
+      square.y1 -= (square.getWidth() - square.getHeight()) / 2;
+      square.y2 = square.y1 + square.getWidth();
+    } else {
+      square.x1 -= (square.getHeight() - square.getWidth()) / 2;
+      square.x2 = square.x1 + square.getHeight();
+    }
+    return square;
+  }
+
+  /**
+   * Renders one tile of a dataset on the fly. Only the partitions that
+   * overlap the tile are read.
+   * @param path
+   * @param pyramidPath
+   * @param dataVersion
+   * @param plotterName
+   * @param shapeName
+   * @param z
+   * @param x
+   * @param y - the row of the tile in the vertically flipped pyramid
+   * @return the tile encoded as an image or null if the MBR of the dataset
+   *  is not known yet
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private byte[] renderTile(Path path, Path pyramidPath, long dataVersion,
+      String plotterName, String shapeName, int z, int x, int y)
+      throws IOException, InterruptedException {
+    OperationsParams tileParams = new OperationsParams(commonParams);
+    if (shapeName != null)
+      tileParams.set("shape", shapeName);
+    int tileWidth = tileParams.getInt("tilewidth", 256);
+    int tileHeight = tileParams.getInt("tileheight", 256);
+
+    // Use the same MBR of MultilevelPlot so that rendered tiles match
+    // pre-generated tiles of the same pyramid
+    Rectangle inputMBR = getPyramidMBR(path, pyramidPath, dataVersion, tileParams);
+    if (inputMBR == null)
+      return null;
+    Rectangle tileMBR = TileIndex.getMBR(inputMBR, z, x, ((1 << z) - 1) - y);
+
+    Plotter plotter;
+    try {
+      plotter = getPlotterClass(plotterName).newInstance();
+    } catch (InstantiationException e) {
+      throw new RuntimeException("Error creating plotter", e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Error creating plotter", e);
+    }
+    plotter.configure(tileParams);
+    Canvas canvas = plotter.createCanvas(tileWidth, tileHeight, tileMBR);
+
+    // Read only the shapes that overlap the tile, same as MultilevelPlot
+    OperationsParams.setShape(tileParams, SpatialInputFormat3.InputQueryRange, tileMBR);
+    SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    Job job = Job.getInstance(tileParams);
+    SpatialInputFormat3.addInputPath(job, path);
+    for (InputSplit split : inputFormat.getSplits(job)) {
+      FileSplit fsplit = (FileSplit) split;
+      RecordReader<Rectangle, Iterable<Shape>> reader =
+          inputFormat.createRecordReader(fsplit, null);
+      if (reader instanceof SpatialRecordReader3) {
+        ((SpatialRecordReader3) reader).initialize(fsplit, tileParams);
+      } else if (reader instanceof RTreeRecordReader3) {
+        ((RTreeRecordReader3) reader).initialize(fsplit, tileParams);
+      } else if (reader instanceof HDFRecordReader) {
+        ((HDFRecordReader) reader).initialize(fsplit, tileParams);
+      } else {
+        throw new RuntimeException("Unknown record reader");
+      }
+      while (reader.nextKeyValue())
+        plotter.plot(canvas, reader.getCurrentValue());
+      reader.close();
+    }
+
+    ByteArrayOutputStream tileBytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(tileBytes);
+    plotter.writeImage(canvas, out, true);
+    out.close();
+    return tileBytes.toByteArray();
+  }
+
   /**
    * This method will handle each time a file need to be fetched from HDFS.
    * 
@@ -370,6 +826,10 @@ public class HadoopvizServer extends AbstractHandler {
   public static void printUsage() {
     System.out
         .println("Starts a server which will handle visualization requests");
+    System.out.println(TileCacheMemory+": Maximum size of tiles cached in memory in bytes");
+    System.out.println(TileCacheDisk+": Maximum size of tiles cached on local disk in bytes");
+    System.out.println(TileCacheDir+": Local directory of the tile cache. Empty to disable");
+    System.out.println(PreviewSampleSizes+": Comma-separated sample sizes of the stages of a preview (1000,10000,100000)");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
 
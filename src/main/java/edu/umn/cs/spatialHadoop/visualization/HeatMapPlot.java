@@ -100,6 +100,11 @@ public class HeatMapPlot {
       frequencyMap.addPoint(centerx, centery);
     }
 
+    @Override
+    public int getBufferSize() {
+      return radius;
+    }
+
     @Override
     public Class<? extends Canvas> getCanvasClass() {
       return FrequencyMap.class;
@@ -135,8 +140,10 @@ public class HeatMapPlot {
     System.out.println("shape:<point|rectangle|polygon|ogc> - (*) Type of shapes stored in input file");
     System.out.println("width:<w> - Maximum width of the image (1000)");
     System.out.println("height:<h> - Maximum height of the image (1000)");
+    System.out.println("rect:<x1,y1,x2,y2> - Plot only the given viewport and read only the partitions around it");
     System.out.println("color:<c> - Main color used to draw the picture (black)");
     System.out.println("partition:<data|space|flat|pyramid> - which partitioning technique to use");
+    System.out.println("incremental:<files> - Update an existing pyramid with the given new input files");
     System.out.println("-overwrite: Override output file without notice");
     System.out.println("-vflip: Vertically flip generated image to correct +ve Y-axis direction");
     GenericOptionsParser.printGenericCommandUsage(System.out);
@@ -160,7 +167,9 @@ public class HeatMapPlot {
   public static void main(String[] args) throws IOException, InterruptedException, ClassNotFoundException {
     System.setProperty("java.awt.headless", "true");
     OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
-    if (!params.checkInputOutput()) {
+    // An incremental update writes to the existing pyramid in the output path
+    boolean incremental = params.get("incremental") != null;
+    if (incremental ? !params.checkInput() : !params.checkInputOutput()) {
       printUsage();
       System.exit(1);
     }
@@ -12,14 +12,11 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.DataBufferInt;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
-
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 
@@ -78,37 +75,120 @@ public class ImageCanvas extends Canvas {
   @Override
   public void write(DataOutput out) throws IOException {
     super.write(out);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    ImageIO.write(getImage(), "png", baos);
-    baos.close();
-    byte[] bytes = baos.toByteArray();
-    out.writeInt(bytes.length);
-    out.write(bytes);
+    writeInts(out, getPixels());
   }
 
   @Override
   public void readFields(DataInput in) throws IOException {
     super.readFields(in);
-    int length = in.readInt();
-    byte[] bytes = new byte[length];
-    in.readFully(bytes);
-    this.image = ImageIO.read(new ByteArrayInputStream(bytes));
+    // Reuse the image if it has the same size
+    if (image == null || image.getWidth() != getWidth() ||
+        image.getHeight() != getHeight()) {
+      disposeGraphics();
+      image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
+    }
+    readInts(in, getPixels());
     // Calculate the scale of the image in terms of pixels per unit
     xscale = image.getWidth() / getInputMBR().getWidth();
     yscale = image.getHeight() / getInputMBR().getHeight();
   }
 
+  /**
+   * Draws another canvas on top of this one. Pixels are composited directly
+   * in the underlying arrays using the same source-over rule and rounding
+   * used by Java2D for ARGB images.
+   * @param another
+   */
   public void mergeWith(ImageCanvas another) {
     Point offset = projectToImageSpace(another.getInputMBR().x1, another.getInputMBR().y1);
-    getOrCreateGrahics(false).drawImage(another.getImage(), offset.x, offset.y, null);
+    int[] dstPixels = this.getPixels();
+    int[] srcPixels = another.getPixels();
+    int dstWidth = this.image.getWidth(), srcWidth = another.image.getWidth();
+    // Range of pixels in this canvas covered by the other canvas
+    int xmin = Math.max(0, offset.x);
+    int ymin = Math.max(0, offset.y);
+    int xmax = Math.min(dstWidth, offset.x + srcWidth);
+    int ymax = Math.min(this.image.getHeight(), offset.y + another.image.getHeight());
+    for (int y = ymin; y < ymax; y++) {
+      int dstOffset = y * dstWidth;
+      int srcOffset = (y - offset.y) * srcWidth - offset.x;
+      for (int x = xmin; x < xmax; x++) {
+        int src = srcPixels[srcOffset + x];
+        int srcA = src >>> 24;
+        if (srcA == 0xff)
+          dstPixels[dstOffset + x] = src;
+        else if (srcA != 0)
+          dstPixels[dstOffset + x] = blend(src, dstPixels[dstOffset + x]);
+      }
+    }
+  }
+
+  /**
+   * Composites a translucent ARGB pixel over another one
+   * @param src
+   * @param dst
+   * @return
+   */
+  private static int blend(int src, int dst) {
+    int srcA = src >>> 24;
+    int dstA = mul8(0xff - srcA, dst >>> 24);
+    int resA = srcA + dstA;
+    int resR = mul8(srcA, (src >> 16) & 0xff) + mul8(dstA, (dst >> 16) & 0xff);
+    int resG = mul8(srcA, (src >> 8) & 0xff) + mul8(dstA, (dst >> 8) & 0xff);
+    int resB = mul8(srcA, src & 0xff) + mul8(dstA, dst & 0xff);
+    if (resA < 0xff) {
+      resR = div8(resR, resA);
+      resG = div8(resG, resA);
+      resB = div8(resB, resA);
+    }
+    return (resA << 24) | (resR << 16) | (resG << 8) | resB;
+  }
+
+  /**Multiplies two 8-bit values as fractions of 255*/
+  private static int mul8(int a, int b) {
+    return (int) ((a * b * 0x10101L + (1 << 23)) >>> 24);
+  }
+
+  /**Divides an 8-bit value by another one as fractions of 255*/
+  private static int div8(int v, int a) {
+    if (v >= a)
+      return 0xff;
+    return (int) ((v * ((0xff000000L + a / 2) / a) + (1 << 23)) >>> 24);
+  }
+
+  /**
+   * Returns the pixels of the image as ARGB values where pixel (x, y) is
+   * stored at index y * width + x. The array is shared with the image so
+   * any changes to it are reflected in the image.
+   * @return
+   */
+  public int[] getPixels() {
+    BufferedImage img = getImage();
+    if (img.getType() != BufferedImage.TYPE_INT_ARGB) {
+      // An image that was not created by this canvas, e.g., read from a file
+      disposeGraphics();
+      image = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = image.createGraphics();
+      g.drawImage(img, 0, 0, null);
+      g.dispose();
+    }
+    return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
   }
 
   public BufferedImage getImage() {
+    disposeGraphics();
+    return image;
+  }
+
+  /**
+   * Disposes the graphics of the image, if any. Must be called whenever the
+   * image is replaced so that no further drawing goes to the old image.
+   */
+  private void disposeGraphics() {
     if (graphics != null) {
       graphics.dispose();
       graphics = null;
     }
-    return image;
   }
   
   protected Graphics2D getOrCreateGrahics(boolean translate) {
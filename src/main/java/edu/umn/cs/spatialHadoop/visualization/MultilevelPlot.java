@@ -11,13 +11,12 @@ package edu.umn.cs.spatialHadoop.visualization;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Vector;
 
 import javax.imageio.ImageIO;
@@ -27,8 +26,10 @@ import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobClient;
@@ -72,6 +73,13 @@ public class MultilevelPlot {
   /** The maximum level on which flat partitioning can be used */
   public static final String FlatPartitioningLevelThreshold = "MultilevelPlot.FlatPartitioningLevelThreshold";
 
+  /**
+   * Memory in bytes for the tiles kept in one map task. When more tiles are
+   * touched, the least recently updated ones are written out as partial
+   * tiles which are merged by the reducers.
+   */
+  public static final String TileMemoryBudget = "MultilevelPlot.TileMemoryBudget";
+
   public static class FlatPartitionMap extends Mapper<Rectangle, Iterable<? extends Shape>, LongWritable, Canvas> {
     /** The subpyramid that defines the tiles of interest*/
     private SubPyramid subPyramid;
@@ -93,8 +101,14 @@ public class MultilevelPlot {
     /** Whether the configured plotter supports smooth or not */
     private boolean smooth;
 
+    /** The tiles created by this map task that are not written yet */
+    private TileMap canvasLayers;
+
+    /** Writes spilled tiles to the map output */
+    private TileMap.SpillListener tileWriter;
+
     @Override
-    protected void setup(Context context) throws IOException, InterruptedException {
+    protected void setup(final Context context) throws IOException, InterruptedException {
       super.setup(context);
       Configuration conf = context.getConfiguration();
       String[] strLevels = conf.get("levels", "7").split("\\.\\.");
@@ -112,6 +126,19 @@ public class MultilevelPlot {
       this.tileHeight = conf.getInt("tileheight", 256);
       this.plotter = Plotter.getPlotter(conf);
       this.smooth = plotter.isSmooth();
+      // Assume four bytes per pixel to estimate the memory of one tile
+      long budget = conf.getLong(TileMemoryBudget, 256L * 1024 * 1024);
+      int maxTiles = (int) Math.min(Integer.MAX_VALUE, budget / (4L * tileWidth * tileHeight));
+      final LongWritable outKey = new LongWritable();
+      this.tileWriter = new TileMap.SpillListener() {
+        @Override
+        public void spill(long tileID, Canvas canvas) throws IOException, InterruptedException {
+          outKey.set(tileID);
+          context.write(outKey, canvas);
+        }
+      };
+      this.canvasLayers = new TileMap();
+      this.canvasLayers.setSpillPolicy(maxTiles, tileWriter);
     }
 
     @Override
@@ -119,14 +146,14 @@ public class MultilevelPlot {
         throws IOException, InterruptedException {
       if (smooth)
         shapes = plotter.smooth(shapes);
-      Map<Long, Canvas> canvasLayers = new HashMap<Long, Canvas>();
       createTiles(shapes, subPyramid, tileWidth, tileHeight, plotter, canvasLayers);
-      // Write all created layers to the output
-      LongWritable outKey = new LongWritable();
-      for (Map.Entry<Long, Canvas> entry : canvasLayers.entrySet()) {
-        outKey.set(entry.getKey());
-        context.write(outKey, entry.getValue());
-      }
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+      // Write all remaining layers to the output
+      canvasLayers.flush(tileWriter);
+      super.cleanup(context);
     }
   }
 
@@ -290,7 +317,7 @@ public class MultilevelPlot {
     }
 
     @Override
-    protected void reduce(LongWritable tileID, Iterable<Shape> shapes, Context context)
+    protected void reduce(LongWritable tileID, Iterable<Shape> shapes, final Context context)
         throws IOException, InterruptedException {
       tempTileIndex = TileIndex.decode(tileID.get(), tempTileIndex);
       // Create the subpyramid associated with the given tileID
@@ -302,7 +329,8 @@ public class MultilevelPlot {
       int r2 = r1 + 1 << numLevelsInReducer;
       subPyramid.set(inputMBR, tempTileIndex.z, tileMaxLevel, c1, r1, c2, r2);
 
-      Map<Long, Canvas> canvasLayers = new HashMap<Long, Canvas>();
+      // All tiles are kept until the end as each one is written as an image
+      TileMap canvasLayers = new TileMap();
 
       context.setStatus("Plotting");
       if (smooth) {
@@ -315,11 +343,14 @@ public class MultilevelPlot {
 
       context.setStatus("Writing " + canvasLayers.size() + " tiles");
       // Write all created layers to the output as images
-      LongWritable outKey = new LongWritable();
-      for (Map.Entry<Long, Canvas> entry : canvasLayers.entrySet()) {
-        outKey.set(entry.getKey());
-        context.write(outKey, entry.getValue());
-      }
+      final LongWritable outKey = new LongWritable();
+      canvasLayers.flush(new TileMap.SpillListener() {
+        @Override
+        public void spill(long tileID, Canvas canvas) throws IOException, InterruptedException {
+          outKey.set(tileID);
+          context.write(outKey, canvas);
+        }
+      });
     }
   }
 
@@ -426,38 +457,14 @@ public class MultilevelPlot {
       }
     }
 
-    String outFName = outPath.getName();
-    int extensionStart = outFName.lastIndexOf('.');
-    final String extension = extensionStart == -1 ? ".png" : outFName.substring(extensionStart);
-
     // Start reading input file
-    Vector<InputSplit> splits = new Vector<InputSplit>();
     final SpatialInputFormat3<Rectangle, Shape> inputFormat = new SpatialInputFormat3<Rectangle, Shape>();
-    for (Path inFile : inFiles) {
-      FileSystem inFs = inFile.getFileSystem(params);
-      if (!OperationsParams.isWildcard(inFile) && inFs.exists(inFile) && !inFs.isDirectory(inFile)) {
-        if (SpatialSite.NonHiddenFileFilter.accept(inFile)) {
-          // Use the normal input format splitter to add this non-hidden file
-          Job job = Job.getInstance(params);
-          SpatialInputFormat3.addInputPath(job, inFile);
-          splits.addAll(inputFormat.getSplits(job));
-        } else {
-          // A hidden file, add it immediately as one split
-          // This is useful if the input is a hidden file which is automatically
-          // skipped by FileInputFormat. We need to plot a hidden file for the case
-          // of plotting partition boundaries of a spatial index
-          splits.add(new FileSplit(inFile, 0, inFs.getFileStatus(inFile).getLen(), new String[0]));
-        }
-      } else {
-        Job job = Job.getInstance(params);
-        SpatialInputFormat3.addInputPath(job, inFile);
-        splits.addAll(inputFormat.getSplits(job));
-      }
-    }
+    Vector<InputSplit> splits = getSplits(inFiles, inputFormat, params);
 
     try {
       Plotter plotter = plotterClass.newInstance();
       plotter.configure(params);
+      String extension = getImageExtension(outPath, plotter);
 
       String[] strLevels = params.get("levels", "7").split("\\.\\.");
       int minLevel, maxLevel;
@@ -476,32 +483,10 @@ public class MultilevelPlot {
           0, 0, 1 << maxLevel, 1 << maxLevel);
 
       // Prepare the map that will eventually contain all the tiles
-      Map<Long, Canvas> tiles = new HashMap<Long, Canvas>();
-
-      for (InputSplit split : splits) {
-        FileSplit fsplit = (FileSplit) split;
-        RecordReader<Rectangle, Iterable<Shape>> reader = inputFormat.createRecordReader(fsplit, null);
-        if (reader instanceof SpatialRecordReader3) {
-          ((SpatialRecordReader3) reader).initialize(fsplit, params);
-        } else if (reader instanceof RTreeRecordReader3) {
-          ((RTreeRecordReader3) reader).initialize(fsplit, params);
-        } else if (reader instanceof HDFRecordReader) {
-          ((HDFRecordReader) reader).initialize(fsplit, params);
-        } else {
-          throw new RuntimeException("Unknown record reader");
-        }
-
-        while (reader.nextKeyValue()) {
-          Rectangle partition = reader.getCurrentKey();
-          if (!partition.isValid())
-            partition.set(inputMBR);
+      TileMap tiles = new TileMap();
 
-          Iterable<Shape> shapes = reader.getCurrentValue();
-
-          createTiles(shapes, subPyramid, tileWidth, tileHeight, plotter, tiles);
-        }
-        reader.close();
-      }
+      plotSplits(splits, inputFormat, params, subPyramid, tileWidth, tileHeight,
+          plotter, tiles, true);
 
       // Done with all splits. Write output to disk
       LOG.info("Done with plotting. Now writing the output");
@@ -539,47 +524,213 @@ public class MultilevelPlot {
       templateFileReader.close();
       htmlOut.close();
 
+      // Write the configuration of the pyramid in the same format written by
+      // PyramidOutputFormat3 so that it can be updated incrementally later
+      PrintStream confOut = new PrintStream(outFS.create(new Path(outPath, "Configuration.txt")));
+      confOut.println("DirectoryName="+outPath.getName());
+      confOut.println("x1="+inputMBR.x1);
+      confOut.println("x2="+inputMBR.x2);
+      confOut.println("y1="+inputMBR.y1);
+      confOut.println("y2="+inputMBR.y2);
+      confOut.println("vflip="+vflip);
+      confOut.println("Shape="+params.get("shape"));
+      confOut.println("plotter="+plotterClass.getName());
+      confOut.close();
+
       // Write the tiles
-      final Entry<Long, Canvas>[] entries = tiles.entrySet().toArray(new Map.Entry[tiles.size()]);
-      // Clear the hash map to save memory as it is no longer needed
-      tiles.clear();
+      final long[] tileIDs = new long[tiles.size()];
+      final Canvas[] canvases = new Canvas[tiles.size()];
+      // Move all tiles out of the map as it is no longer needed
+      tiles.flush(new TileMap.SpillListener() {
+        int i = 0;
+        @Override
+        public void spill(long tileID, Canvas canvas) {
+          tileIDs[i] = tileID;
+          canvases[i++] = canvas;
+        }
+      });
+      writeTiles(tileIDs, canvases, outPath, extension, plotterClass, params);
+    } catch (InstantiationException e) {
+      throw new RuntimeException("Error creating rastierizer", e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Error creating rastierizer", e);
+    }
+  }
+
+  /**
+   * Updates an existing pyramid after new files are added to its input.
+   * Only the tiles that overlap the new data are touched. The new data is
+   * plotted to partial canvases of these tiles which are then merged with the
+   * existing tile images. If the plotter cannot restore a canvas from its
+   * image, the affected tiles are plotted again from all input files.
+   * The pyramid is updated locally and new data outside the MBR of the
+   * pyramid is clipped. Existing tiles of a pyramid that is packed in
+   * {@link TileArchive}s are read from the archives and the updated tiles
+   * are written as tile files which take precedence over the archives.
+   * <p>
+   * Only the affected tiles are written but for a plotter that cannot restore
+   * its canvases, e.g., a heat map, this is not cheaper than plotting the
+   * whole pyramid again. The tile at level zero covers the whole input and is
+   * affected by any new data, and building it from its children would need
+   * the canvases of all of them. Hence, all input files are read again.
+   * </p>
+   * @param newFiles - the files that were added to the input
+   * @param allFiles - all input files including the new ones or <code>null</code>
+   *   if the plotter can restore its canvases from the existing tiles
+   * @param outPath - the directory of the existing pyramid
+   * @param plotterClass
+   * @param params - the same parameters used to generate the pyramid
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void plotIncremental(Path[] newFiles, Path[] allFiles,
+      final Path outPath, final Class<? extends Plotter> plotterClass,
+      final OperationsParams params) throws IOException, InterruptedException {
+    final boolean vflip = params.getBoolean("vflip", true);
+    final FileSystem outFS = outPath.getFileSystem(params);
+    Rectangle mbr = params.get("mbr") != null ? params.getShape("mbr").getMBR()
+        : readInputMBR(outFS, outPath);
+    if (mbr == null)
+      throw new RuntimeException("Cannot find the MBR of the pyramid in '"+outPath+"'");
+    final Rectangle inputMBR = mbr;
+    final int tileWidth = params.getInt("tilewidth", 256);
+    final int tileHeight = params.getInt("tileheight", 256);
+    if (params.getBoolean("keepratio", true)) {
+      if (inputMBR.getWidth() > inputMBR.getHeight()) {
+        inputMBR.y1 -= (inputMBR.getWidth() - inputMBR.getHeight()) / 2;
+        inputMBR.y2 = inputMBR.y1 + inputMBR.getWidth();
+      } else {
+        inputMBR.x1 -= (inputMBR.getHeight() - inputMBR.getWidth()) / 2;
+        inputMBR.x2 = inputMBR.x1 + inputMBR.getHeight();
+      }
+    }
+    OperationsParams.setShape(params, InputMBR, inputMBR);
+
+    String[] strLevels = params.get("levels", "7").split("\\.\\.");
+    int minLevel, maxLevel;
+    if (strLevels.length == 1) {
+      minLevel = 0;
+      maxLevel = Integer.parseInt(strLevels[0]) - 1;
+    } else {
+      minLevel = Integer.parseInt(strLevels[0]);
+      maxLevel = Integer.parseInt(strLevels[1]);
+    }
+    SubPyramid subPyramid = new SubPyramid(inputMBR, minLevel, maxLevel,
+        0, 0, 1 << maxLevel, 1 << maxLevel);
+
+    try {
+      Plotter plotter = plotterClass.newInstance();
+      plotter.configure(params);
+      final String extension = getImageExtension(outPath, plotter);
+      SpatialInputFormat3<Rectangle, Shape> inputFormat = new SpatialInputFormat3<Rectangle, Shape>();
+
+      // Plot the new data only. This creates the affected tiles only
+      TileMap tiles = new TileMap();
+      plotSplits(getSplits(newFiles, inputFormat, params), inputFormat, params,
+          subPyramid, tileWidth, tileHeight, plotter, tiles, true);
+      final long[] tileIDs = new long[tiles.size()];
+      final Canvas[] canvases = new Canvas[tiles.size()];
+      tiles.flush(new TileMap.SpillListener() {
+        int i = 0;
+        @Override
+        public void spill(long tileID, Canvas canvas) {
+          tileIDs[i] = tileID;
+          canvases[i++] = canvas;
+        }
+      });
+      LOG.info("New data affects "+tileIDs.length+" tiles");
+
+      // Merge the partial canvases with the existing tiles
+      final boolean[] replot = new boolean[tileIDs.length];
       int parallelism = params.getInt("parallel", Runtime.getRuntime().availableProcessors());
-      Parallel.forEach(entries.length, new RunnableRange<Object>() {
+      FileStatus[] archiveFiles = outFS.listStatus(outPath, new PathFilter() {
         @Override
-        public Object run(int i1, int i2) {
-          TileIndex tempTileIndex = null;
-          boolean output = params.getBoolean("output", true);
-          try {
-            Plotter plotter = plotterClass.newInstance();
-            plotter.configure(params);
-            for (int i = i1; i < i2; i++) {
-              Map.Entry<Long, Canvas> entry = entries[i];
-              Long tileID = entry.getKey();
-              tempTileIndex = TileIndex.decode(tileID, tempTileIndex);
-              if (vflip)
-                tempTileIndex.y = ((1 << tempTileIndex.z) - 1) - tempTileIndex.y;
-              Path imagePath = new Path(outPath, "tile-"+tempTileIndex.z +"-"+tempTileIndex.x+"-"+tempTileIndex.y+".png");
-
-              // Write this tile to an image
-              DataOutputStream outFile = output ? outFS.create(imagePath)
-                  : new DataOutputStream(new NullOutputStream());
-              plotter.writeImage(entry.getValue(), outFile, vflip);
-              outFile.close();
-
-              // Remove entry to allows GC to collect it
-              entries[i] = null;
+        public boolean accept(Path p) {
+          return p.getName().endsWith(TileArchive.Extension);
+        }
+      });
+      final TileArchive[] archives = new TileArchive[archiveFiles.length];
+      for (int i = 0; i < archiveFiles.length; i++)
+        archives[i] = new TileArchive(outFS, archiveFiles[i].getPath());
+      try {
+        Parallel.forEach(tileIDs.length, new RunnableRange<Object>() {
+          @Override
+          public Object run(int i1, int i2) {
+            try {
+              Plotter plotter = plotterClass.newInstance();
+              plotter.configure(params);
+              TileIndex tileIndex = null;
+              for (int i = i1; i < i2; i++) {
+                tileIndex = TileIndex.decode(tileIDs[i], tileIndex);
+                Path tilePath = getTilePath(outPath, tileIndex, vflip, extension);
+                InputStream in;
+                if (outFS.exists(tilePath)) {
+                  in = outFS.open(tilePath);
+                } else {
+                  // Archives are indexed by the tile numbers in the file names
+                  int y = vflip ? ((1 << tileIndex.z) - 1) - tileIndex.y : tileIndex.y;
+                  byte[] data = null;
+                  for (int a = 0; data == null && a < archives.length; a++)
+                    data = archives[a].getTile(tileIndex.z, tileIndex.x, y);
+                  if (data == null)
+                    continue; // The new data is the only content of this tile
+                  in = new ByteArrayInputStream(data);
+                }
+                Rectangle tileMBR = TileIndex.getMBR(inputMBR, tileIndex.z, tileIndex.x, tileIndex.y);
+                Canvas existing = plotter.readImage(in, tileMBR, tileWidth, tileHeight, vflip);
+                in.close();
+                if (existing != null) {
+                  plotter.merge(existing, canvases[i]);
+                  canvases[i] = existing;
+                } else {
+                  replot[i] = true;
+                }
+              }
+              return null;
+            } catch (InstantiationException e) {
+              throw new RuntimeException("Error creating rastierizer", e);
+            } catch (IllegalAccessException e) {
+              throw new RuntimeException("Error creating rastierizer", e);
+            } catch (IOException e) {
+              throw new RuntimeException("Error reading existing tile", e);
             }
-            return null;
-          } catch (InstantiationException e) {
-            e.printStackTrace();
-          } catch (IllegalAccessException e) {
-            e.printStackTrace();
-          } catch (IOException e) {
-            e.printStackTrace();
           }
-          return null;
+        }, parallelism);
+      } finally {
+        for (TileArchive archive : archives)
+          archive.close();
+      }
+
+      // Plot the tiles that could not be restored from all the data
+      Rectangle replotMBR = null;
+      TileIndex tileIndex = null;
+      for (int i = 0; i < tileIDs.length; i++) {
+        if (replot[i]) {
+          tileIndex = TileIndex.decode(tileIDs[i], tileIndex);
+          Rectangle tileMBR = TileIndex.getMBR(inputMBR, tileIndex.z, tileIndex.x, tileIndex.y);
+          canvases[i] = plotter.createCanvas(tileWidth, tileHeight, tileMBR);
+          tiles.put(tileIDs[i], canvases[i]);
+          if (replotMBR == null)
+            replotMBR = new Rectangle(tileMBR);
+          else
+            replotMBR.expand(tileMBR);
         }
-      }, parallelism);
+      }
+      if (replotMBR != null) {
+        if (allFiles == null)
+          throw new RuntimeException("Plotter "+plotterClass.getName()+
+              " cannot update existing tiles without all the input files");
+        if (replotMBR.contains(inputMBR))
+          LOG.warn("Plotter "+plotterClass.getName()+" cannot restore existing"
+              + " tiles. All input files are read again to update the pyramid");
+        LOG.info("Plotting "+tiles.size()+" tiles again from all input files");
+        OperationsParams replotParams = new OperationsParams(params);
+        OperationsParams.setShape(replotParams, SpatialInputFormat3.InputQueryRange, replotMBR);
+        plotSplits(getSplits(allFiles, inputFormat, replotParams), inputFormat,
+            replotParams, subPyramid, tileWidth, tileHeight, plotter, tiles, false);
+      }
+
+      writeTiles(tileIDs, canvases, outPath, extension, plotterClass, params);
     } catch (InstantiationException e) {
       throw new RuntimeException("Error creating rastierizer", e);
     } catch (IllegalAccessException e) {
@@ -587,6 +738,158 @@ public class MultilevelPlot {
     }
   }
 
+  /**
+   * Reads the MBR of an existing pyramid from its Configuration.txt file
+   * @param fs
+   * @param dir
+   * @return the MBR or <code>null</code> if the file does not exist
+   * @throws IOException
+   */
+  static Rectangle readInputMBR(FileSystem fs, Path dir) throws IOException {
+    Path confPath = new Path(dir, "Configuration.txt");
+    if (!fs.exists(confPath))
+      return null;
+    Rectangle mbr = new Rectangle();
+    LineReader reader = new LineReader(fs.open(confPath));
+    Text line = new Text();
+    while (reader.readLine(line) > 0) {
+      String[] parts = line.toString().split("=", 2);
+      if (parts[0].equals("x1"))
+        mbr.x1 = Double.parseDouble(parts[1]);
+      else if (parts[0].equals("x2"))
+        mbr.x2 = Double.parseDouble(parts[1]);
+      else if (parts[0].equals("y1"))
+        mbr.y1 = Double.parseDouble(parts[1]);
+      else if (parts[0].equals("y2"))
+        mbr.y2 = Double.parseDouble(parts[1]);
+    }
+    reader.close();
+    return mbr.isValid() ? mbr : null;
+  }
+
+  private static Path getTilePath(Path dir, TileIndex tileIndex, boolean vflip, String extension) {
+    int y = vflip ? ((1 << tileIndex.z) - 1) - tileIndex.y : tileIndex.y;
+    return new Path(dir, "tile-"+tileIndex.z+"-"+tileIndex.x+"-"+y+extension);
+  }
+
+  /**
+   * Returns the extension of the tile files which is either given in the
+   * name of the output path or the default extension of the plotter
+   */
+  private static String getImageExtension(Path outPath, Plotter plotter) {
+    String outFName = outPath.getName();
+    int extensionStart = outFName.lastIndexOf('.');
+    return extensionStart == -1 ? plotter.getImageExtension() : outFName.substring(extensionStart);
+  }
+
+  /**
+   * Returns the splits of the given input files. Hidden files are added as
+   * is so that partition boundaries of an index can be plotted.
+   */
+  private static Vector<InputSplit> getSplits(Path[] inFiles,
+      SpatialInputFormat3<Rectangle, Shape> inputFormat, OperationsParams params) throws IOException {
+    Vector<InputSplit> splits = new Vector<InputSplit>();
+    for (Path inFile : inFiles) {
+      FileSystem inFs = inFile.getFileSystem(params);
+      if (!OperationsParams.isWildcard(inFile) && inFs.exists(inFile) && !inFs.isDirectory(inFile)) {
+        if (SpatialSite.NonHiddenFileFilter.accept(inFile)) {
+          // Use the normal input format splitter to add this non-hidden file
+          Job job = Job.getInstance(params);
+          SpatialInputFormat3.addInputPath(job, inFile);
+          splits.addAll(inputFormat.getSplits(job));
+        } else {
+          // A hidden file, add it immediately as one split
+          // This is useful if the input is a hidden file which is automatically
+          // skipped by FileInputFormat. We need to plot a hidden file for the case
+          // of plotting partition boundaries of a spatial index
+          splits.add(new FileSplit(inFile, 0, inFs.getFileStatus(inFile).getLen(), new String[0]));
+        }
+      } else {
+        Job job = Job.getInstance(params);
+        SpatialInputFormat3.addInputPath(job, inFile);
+        splits.addAll(inputFormat.getSplits(job));
+      }
+    }
+    return splits;
+  }
+
+  /**
+   * Reads all shapes in the given splits and plots them to the tiles.
+   * @see #createTiles(Iterable, SubPyramid, int, int, Plotter, TileMap, boolean)
+   */
+  private static void plotSplits(Vector<InputSplit> splits,
+      SpatialInputFormat3<Rectangle, Shape> inputFormat, OperationsParams params,
+      SubPyramid subPyramid, int tileWidth, int tileHeight, Plotter plotter,
+      TileMap tiles, boolean createMissing) throws IOException, InterruptedException {
+    for (InputSplit split : splits) {
+      FileSplit fsplit = (FileSplit) split;
+      RecordReader<Rectangle, Iterable<Shape>> reader = inputFormat.createRecordReader(fsplit, null);
+      if (reader instanceof SpatialRecordReader3) {
+        ((SpatialRecordReader3) reader).initialize(fsplit, params);
+      } else if (reader instanceof RTreeRecordReader3) {
+        ((RTreeRecordReader3) reader).initialize(fsplit, params);
+      } else if (reader instanceof HDFRecordReader) {
+        ((HDFRecordReader) reader).initialize(fsplit, params);
+      } else {
+        throw new RuntimeException("Unknown record reader");
+      }
+
+      while (reader.nextKeyValue()) {
+        Rectangle partition = reader.getCurrentKey();
+        if (!partition.isValid())
+          partition.set(subPyramid.getInputMBR());
+
+        Iterable<Shape> shapes = reader.getCurrentValue();
+
+        createTiles(shapes, subPyramid, tileWidth, tileHeight, plotter, tiles, createMissing);
+      }
+      reader.close();
+    }
+  }
+
+  /**
+   * Writes the given tiles as images in the output directory in parallel
+   */
+  private static void writeTiles(final long[] tileIDs, final Canvas[] canvases,
+      final Path outPath, final String extension, final Class<? extends Plotter> plotterClass,
+      final OperationsParams params) throws IOException, InterruptedException {
+    final FileSystem outFS = outPath.getFileSystem(params);
+    final boolean vflip = params.getBoolean("vflip", true);
+    int parallelism = params.getInt("parallel", Runtime.getRuntime().availableProcessors());
+    Parallel.forEach(canvases.length, new RunnableRange<Object>() {
+      @Override
+      public Object run(int i1, int i2) {
+        TileIndex tempTileIndex = null;
+        boolean output = params.getBoolean("output", true);
+        try {
+          Plotter plotter = plotterClass.newInstance();
+          plotter.configure(params);
+          for (int i = i1; i < i2; i++) {
+            tempTileIndex = TileIndex.decode(tileIDs[i], tempTileIndex);
+            Path imagePath = getTilePath(outPath, tempTileIndex, vflip, extension);
+
+            // Write this tile to an image
+            DataOutputStream outFile = output ? outFS.create(imagePath)
+                : new DataOutputStream(new NullOutputStream());
+            plotter.writeImage(canvases[i], outFile, vflip);
+            outFile.close();
+
+            // Remove canvas to allows GC to collect it
+            canvases[i] = null;
+          }
+          return null;
+        } catch (InstantiationException e) {
+          e.printStackTrace();
+        } catch (IllegalAccessException e) {
+          e.printStackTrace();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        return null;
+      }
+    }, parallelism);
+  }
+
   /**
    * Creates and returns all the tiles in the given sub pyramid that contains
    * the given set of shapes.
@@ -597,11 +900,33 @@ public class MultilevelPlot {
    * @param plotter The plotter used to create canvases
    * @param tiles The set of tiles that have been created already. It could be
    *              empty which indicates no tiles created yet.
+   * @throws IOException If the tile map fails to spill tiles
+   * @throws InterruptedException
    */
   public static void createTiles(
       Iterable<? extends Shape> shapes, SubPyramid subPyramid,
       int tileWidth, int tileHeight,
-      Plotter plotter, Map<Long, Canvas> tiles) {
+      Plotter plotter, TileMap tiles) throws IOException, InterruptedException {
+    createTiles(shapes, subPyramid, tileWidth, tileHeight, plotter, tiles, true);
+  }
+
+  /**
+   * Plots the given shapes to the tiles in the given sub pyramid.
+   * @param shapes The shapes to be plotted
+   * @param subPyramid The subpyramid that defines the range of tiles being considered
+   * @param tileWidth Width of each tile in pixels
+   * @param tileHeight Height of each tile in pixels
+   * @param plotter The plotter used to create canvases
+   * @param tiles The set of tiles that have been created already
+   * @param createMissing Whether to create tiles that are not in the map or
+   *                      only plot to the tiles that already exist in it
+   * @throws IOException If the tile map fails to spill tiles
+   * @throws InterruptedException
+   */
+  public static void createTiles(
+      Iterable<? extends Shape> shapes, SubPyramid subPyramid,
+      int tileWidth, int tileHeight, Plotter plotter, TileMap tiles,
+      boolean createMissing) throws IOException, InterruptedException {
     Rectangle inputMBR = subPyramid.getInputMBR();
     java.awt.Rectangle overlaps = new java.awt.Rectangle();
     for (Shape shape : shapes) {
@@ -613,18 +938,25 @@ public class MultilevelPlot {
 
       subPyramid.getOverlappingTiles(mbr, overlaps);
       for (int z = subPyramid.maximumLevel; z >= subPyramid.minimumLevel; z--) {
+        // The shape is simplified once per level and plotted to all its tiles
+        double pixelWidth = inputMBR.getWidth() / (1 << z) / tileWidth;
+        double pixelHeight = inputMBR.getHeight() / (1 << z) / tileHeight;
+        Shape levelShape = plotter.simplify(shape, pixelWidth, pixelHeight);
         for (int x = overlaps.x; x < overlaps.x + overlaps.width; x++) {
           for (int y = overlaps.y; y < overlaps.y + overlaps.height; y++) {
             long tileID = TileIndex.encode(z, x, y);
             // Plot the shape on the tile at (z,x,y)
             Canvas c = tiles.get(tileID);
             if (c == null) {
+              if (!createMissing)
+                continue;
               // First time to encounter this tile, create the corresponding canvas
               Rectangle tileMBR = TileIndex.getMBR(inputMBR, z, x, y);
               c = plotter.createCanvas(tileWidth, tileHeight, tileMBR);
               tiles.put(tileID, c);
             }
-            plotter.plot(c, shape);
+            if (levelShape != null)
+              plotter.plot(c, levelShape);
           }
         }
         // Update overlappingCells for the higher z
@@ -679,6 +1011,16 @@ public class MultilevelPlot {
     FileSystem outFS = outPath.getFileSystem(params);
     outFS.mkdirs(outPath);
 
+    if (params.get("incremental") != null) {
+      // Update an existing pyramid with the given new files
+      String[] strNewFiles = params.get("incremental").split(",");
+      Path[] newFiles = new Path[strNewFiles.length];
+      for (int i = 0; i < newFiles.length; i++)
+        newFiles[i] = new Path(strNewFiles[i]);
+      plotIncremental(newFiles, inPaths, outPath, plotterClass, params);
+      return null;
+    }
+
     Job runningJob = null;
     if (OperationsParams.isLocal(params, inPaths)) {
       // Plot local
@@ -10,6 +10,7 @@ package edu.umn.cs.spatialHadoop.visualization;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Vector;
 
 import org.apache.hadoop.conf.Configuration;
@@ -104,7 +105,60 @@ public abstract class Plotter {
    */
   public abstract void writeImage(Canvas layer, DataOutputStream out,
       boolean vflip) throws IOException;
+
+  /**
+   * Returns the file extension of the images written by this plotter
+   * @return
+   */
+  public String getImageExtension() {
+    return ".png";
+  }
+
+  /**
+   * Reads back an image written by {@link #writeImage(Canvas, DataOutputStream, boolean)}
+   * into a canvas that more shapes can be plotted or merged to. This is used
+   * to update existing tiles of a pyramid incrementally.
+   * @param in - the input stream to read the image from
+   * @param mbr - the MBR of the area covered by the image
+   * @param width - width of the image in pixels
+   * @param height - height of the image in pixels
+   * @param vflip - whether the image was vertically flipped when written
+   * @return the restored canvas or <code>null</code> if this plotter cannot
+   *   restore a canvas from its image
+   * @throws IOException
+   */
+  public Canvas readImage(InputStream in, Rectangle mbr, int width, int height,
+      boolean vflip) throws IOException {
+    return null;
+  }
   
+  /**
+   * Returns a simplified version of the given shape that looks the same when
+   * plotted at a resolution where one pixel covers the given width and height
+   * of the input space. While creating a pyramid, this is called once per
+   * level for each shape and the result is plotted to all tiles in that level.
+   * The default implementation returns the shape as is.
+   * @param shape - the shape to simplify
+   * @param pixelWidth - the width of one pixel in the input space
+   * @param pixelHeight - the height of one pixel in the input space
+   * @return the simplified shape or <code>null</code> if nothing of the shape
+   *   is plotted at this resolution
+   */
+  public Shape simplify(Shape shape, double pixelWidth, double pixelHeight) {
+    return shape;
+  }
+
+  /**
+   * Returns the number of pixels around a canvas in which a shape can still
+   * affect pixels inside the canvas. When only part of the input is plotted,
+   * shapes within this buffer have to be read as well.
+   * The default implementation returns zero.
+   * @return
+   */
+  public int getBufferSize() {
+    return 0;
+  }
+
   /**
    * Tells whether this plotter supports a smooth function or not.
    * @return
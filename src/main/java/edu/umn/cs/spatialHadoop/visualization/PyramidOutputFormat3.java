@@ -11,16 +11,25 @@ package edu.umn.cs.spatialHadoop.visualization;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.io.Text2;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
@@ -48,9 +57,24 @@ public class PyramidOutputFormat3 extends FileOutputFormat<LongWritable, Writabl
 
   public static final String DataExt = ".txt";
 
+  /**Number of threads that encode and write image tiles in each task*/
+  public static final String WriterThreads = "PyramidOutputFormat.WriterThreads";
+
+  /**
+   * Pack the image tiles of each task in one {@link TileArchive} instead of
+   * writing a file per tile
+   */
+  public static final String ArchiveTiles = "PyramidOutputFormat.ArchiveTiles";
+
+  /**
+   * Store identical tiles once in archives and write all empty tiles as
+   * references to one shared empty tile in an archive instead of a file each
+   */
+  public static final String DeduplicateTiles = "PyramidOutputFormat.DeduplicateTiles";
+
   static class ImageRecordWriter extends RecordWriter<LongWritable, Writable> {
+    private static final Log LOG = LogFactory.getLog(ImageRecordWriter.class);
 
-    private Plotter plotter;
     private final FileSystem outFS;
     private final Path outPath;
     private boolean vflip;
@@ -69,20 +93,79 @@ public class PyramidOutputFormat3 extends FileOutputFormat<LongWritable, Writabl
 
     /**A temporary tile index to decocde the tile ID*/
     private TileIndex tempTileIndex;
-    
-    ImageRecordWriter(FileSystem outFs, Path taskOutPath, TaskAttemptContext task) {
+
+    /**
+     * Encodes and writes image tiles in the background. When all threads are
+     * busy and the queue is full, the caller encodes the tile itself which
+     * slows down the reducer instead of buffering more tiles in memory
+     */
+    private final ThreadPoolExecutor encoders;
+
+    /**A plotter for each thread that encodes tiles*/
+    private final ThreadLocal<Plotter> plotters;
+
+    /**The archive that all image tiles are written to or null to write files*/
+    private final TileArchive.Writer archive;
+
+    /**The encoded empty tile or null if empty tiles are written to files*/
+    private final byte[] emptyTile;
+    private final AtomicInteger numEmptyTiles = new AtomicInteger();
+
+    /**
+     * Where to write empty tiles when tiles are written to files. All the
+     * empty tiles in the archive share the data of one tile.
+     */
+    private final Path emptyArchivePath;
+    /**The archive of empty tiles which is created with the first empty tile*/
+    private TileArchive.Writer emptyArchive;
+
+    /**The first error that happened while writing a tile in the background*/
+    private volatile IOException error;
+
+    ImageRecordWriter(FileSystem outFs, Path taskOutPath, Path archivePath,
+        Path emptyArchivePath, TaskAttemptContext task) throws IOException {
       this.task = task;
       System.setProperty("java.awt.headless", "true");
-      this.plotter = Plotter.getPlotter(task.getConfiguration());
+      final Configuration conf = task.getConfiguration();
+      this.plotters = new ThreadLocal<Plotter>() {
+        @Override
+        protected Plotter initialValue() {
+          return Plotter.getPlotter(conf);
+        }
+      };
+      Plotter plotter = plotters.get();
       this.outPath = taskOutPath;
       this.outFS = outFs;
-      this.vflip = task.getConfiguration().getBoolean("vflip", true);
+      this.vflip = conf.getBoolean("vflip", true);
       String outFName = outPath.getName();
       int extensionStart = outFName.lastIndexOf('.');
-      imgExt = extensionStart == -1 ? ".png"
+      imgExt = extensionStart == -1 ? plotter.getImageExtension()
           : outFName.substring(extensionStart);
       tempLine = new Text2();
       dataFiles = new HashMap<Long, FSDataOutputStream>();
+
+      boolean deduplicate = conf.getBoolean(DeduplicateTiles, true);
+      byte[] empty = null;
+      if (emptyArchivePath != null) {
+        ByteArrayOutputStream emptyOut = new ByteArrayOutputStream();
+        try {
+          plotter.writeImage(plotter.createCanvas(conf.getInt("tilewidth", 256),
+              conf.getInt("tileheight", 256), new Rectangle(0, 0, 1, 1)),
+              new DataOutputStream(emptyOut), vflip);
+          empty = emptyOut.toByteArray();
+        } catch (RuntimeException e) {
+          LOG.warn("Cannot encode an empty tile. Empty tiles will be written", e);
+        }
+      }
+      emptyTile = empty;
+      this.emptyArchivePath = emptyArchivePath;
+      archive = archivePath == null ? null :
+        new TileArchive.Writer(outFs.create(archivePath), deduplicate);
+
+      int numThreads = conf.getInt(WriterThreads, Runtime.getRuntime().availableProcessors());
+      encoders = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(2 * numThreads),
+          new ThreadPoolExecutor.CallerRunsPolicy());
     }
 
     private final Path getTilePath(int z, int x, int y, String ext) {
@@ -91,16 +174,57 @@ public class PyramidOutputFormat3 extends FileOutputFormat<LongWritable, Writabl
       return new Path(outPath, "tile-"+z +"-"+x+"-"+y+ext);
     }
 
+    /**
+     * Encodes one tile and writes it to its file or to the archive
+     */
+    private void writeTile(long tileID, Canvas canvas) throws IOException {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      plotters.get().writeImage(canvas, new DataOutputStream(buffer), vflip);
+      byte[] data = buffer.toByteArray();
+      TileIndex tile = TileIndex.decode(tileID, null);
+      int y = vflip ? ((1 << tile.z) - 1) - tile.y : tile.y;
+      if (archive != null) {
+        archive.append(TileIndex.encode(tile.z, tile.x, y), data);
+      } else if (emptyTile != null && Arrays.equals(data, emptyTile)) {
+        numEmptyTiles.incrementAndGet();
+        getEmptyArchive().append(TileIndex.encode(tile.z, tile.x, y), emptyTile);
+      } else {
+        FSDataOutputStream outFile = outFS.create(getTilePath(tile.z, tile.x, tile.y, imgExt));
+        outFile.write(data);
+        outFile.close();
+      }
+    }
+
+    private synchronized TileArchive.Writer getEmptyArchive() throws IOException {
+      if (emptyArchive == null)
+        emptyArchive = new TileArchive.Writer(outFS.create(emptyArchivePath), true);
+      return emptyArchive;
+    }
+
     @Override
     public void write(LongWritable encodedTileID, Writable w) throws IOException {
-      tempTileIndex = TileIndex.decode(encodedTileID.get(), tempTileIndex);
+      if (error != null)
+        throw error;
       if (w instanceof Canvas) {
-        Path imagePath = getTilePath(tempTileIndex.z, tempTileIndex.x, tempTileIndex.y, imgExt);
-    	  // Write this tile to an image
-    	  FSDataOutputStream outFile = outFS.create(imagePath);
-    	  plotter.writeImage((Canvas) w, outFile, this.vflip);
-    	  outFile.close();
+        // The key object is reused by the caller but the canvas is not
+        final long tileID = encodedTileID.get();
+        final Canvas canvas = (Canvas) w;
+        encoders.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              writeTile(tileID, canvas);
+            } catch (IOException e) {
+              if (error == null)
+                error = e;
+            } catch (RuntimeException e) {
+              if (error == null)
+                error = new IOException("Error writing tile", e);
+            }
+          }
+        });
       } else if (w instanceof Shape) {
+        tempTileIndex = TileIndex.decode(encodedTileID.get(), tempTileIndex);
         // Write the shape to a text file
         Shape s = (Shape) w;
         FSDataOutputStream outFile = dataFiles.get(encodedTileID.get());
@@ -120,6 +244,21 @@ public class PyramidOutputFormat3 extends FileOutputFormat<LongWritable, Writabl
     @Override
     public void close(TaskAttemptContext context) throws IOException,
         InterruptedException {
+      // Wait until all image tiles are written
+      encoders.shutdown();
+      while (!encoders.awaitTermination(10, TimeUnit.SECONDS))
+        context.progress();
+      if (error != null)
+        throw error;
+      if (archive != null) {
+        archive.close();
+        LOG.info("Archived "+archive.getNumTiles()+" tiles of which "+
+            archive.getNumDuplicates()+" are duplicates");
+      }
+      if (emptyArchive != null) {
+        emptyArchive.close();
+        LOG.info("Archived "+numEmptyTiles.get()+" empty tiles");
+      }
       // Close all open data files
       for (Map.Entry<Long, FSDataOutputStream> entry : dataFiles.entrySet()) {
         entry.getValue().close();
@@ -133,7 +272,17 @@ public class PyramidOutputFormat3 extends FileOutputFormat<LongWritable, Writabl
       TaskAttemptContext task) throws IOException, InterruptedException {
     Path file = getDefaultWorkFile(task, "").getParent();
     FileSystem fs = file.getFileSystem(task.getConfiguration());
-    return new ImageRecordWriter(fs, file, task);
+    Path archivePath = null, emptyArchivePath = null;
+    // Prefix the archives with the output name to keep them unique when the
+    // outputs of the flat and pyramid partitioning jobs are combined
+    String prefix = getOutputPath(task).getName();
+    if (task.getConfiguration().getBoolean(ArchiveTiles, false)) {
+      archivePath = new Path(file, getUniqueFile(task, prefix, TileArchive.Extension));
+    } else if (task.getConfiguration().getBoolean(DeduplicateTiles, true)) {
+      emptyArchivePath = new Path(file, getUniqueFile(task, prefix + "-empty",
+          TileArchive.Extension));
+    }
+    return new ImageRecordWriter(fs, file, archivePath, emptyArchivePath, task);
   }
   
   /**
@@ -10,9 +10,12 @@ package edu.umn.cs.spatialHadoop.visualization;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,6 +25,8 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
@@ -31,8 +36,13 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
 import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.hash.MurmurHash;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
@@ -48,6 +58,7 @@ import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.operations.FileMBR;
+import edu.umn.cs.spatialHadoop.operations.LocalSampler;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
@@ -112,9 +123,17 @@ public class SingleLevelPlot {
     protected void map(Rectangle partitionMBR, Iterable<S> shapes,
         Context context) throws IOException, InterruptedException {
       // If input is not spatially partitioned, the MBR is taken from input
-      if (!partitionMBR.isValid())
+      if (!partitionMBR.isValid()) {
         partitionMBR.set(inputMBR);
-      
+      } else {
+        // Limit the canvas to the visible part of the partition which is
+        // much smaller when plotting a small viewport of a big partition.
+        // A partition that only overlaps the buffer around the viewport
+        // is plotted to a canvas that covers the whole viewport
+        Rectangle visibleMBR = inputMBR.getIntersection(partitionMBR);
+        partitionMBR.set(visibleMBR != null ? visibleMBR : inputMBR);
+      }
+
       // Calculate the dimensions of the generated canvas by calculating
       // the MBR in the image space
       // Note: Do not calculate from the width and height of partitionMBR
@@ -341,6 +360,122 @@ public class SingleLevelPlot {
     }
   }
   
+  /**
+   * Returns the MBR of the input files, computing it if it is not set in the
+   * parameters. If only a viewport is given in the parameter 'rect', it is
+   * used as the MBR so that the image covers the viewport only.
+   * The width and height of the image in the parameters are
+   * adjusted to keep the aspect ratio if needed.
+   * @param inFiles
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static Rectangle initInputMBR(Path[] inFiles, OperationsParams params)
+      throws IOException, InterruptedException {
+    OperationsParams mbrParams = new OperationsParams(params);
+    mbrParams.setBoolean("background", false);
+    Rectangle inputMBR;
+    if (params.get(InputMBR) != null)
+      inputMBR = params.getShape(InputMBR).getMBR();
+    else if (params.get("rect") != null)
+      inputMBR = params.getShape("rect").getMBR();
+    else
+      inputMBR = FileMBR.fileMBR(inFiles, mbrParams);
+    if (params.get(InputMBR) == null)
+      OperationsParams.setShape(params, InputMBR, inputMBR);
+
+    // Retrieve desired output image size and keep aspect ratio if needed
+    int width = params.getInt("width", 1000);
+    int height = params.getInt("height", 1000);
+    if (params.getBoolean("keepratio", true)) {
+      // Adjust width and height to maintain aspect ratio and store the adjusted
+      // values back in params in case the caller needs to retrieve them
+      if (inputMBR.getWidth() / inputMBR.getHeight() > (double) width / height)
+        params.setInt("height", height = (int) (inputMBR.getHeight() * width / inputMBR.getWidth()));
+      else
+        params.setInt("width", width = (int) (inputMBR.getWidth() * height / inputMBR.getHeight()));
+    }
+    return inputMBR;
+  }
+
+  /**
+   * Pushes the viewport down to the input format so that only the partitions
+   * and the records that overlap it are read. The query range is expanded by
+   * the buffer of the plotter to also read the shapes outside the viewport
+   * that affect pixels inside it.
+   * @param conf - the configuration to set the query range in
+   * @param viewport - the part of the input space to plot
+   * @param plotter - a configured plotter
+   * @param pixelWidth - the width of one pixel in the input space
+   * @param pixelHeight - the height of one pixel in the input space
+   */
+  private static void setQueryRange(Configuration conf, Rectangle viewport,
+      Plotter plotter, double pixelWidth, double pixelHeight) {
+    int buffer = plotter.getBufferSize();
+    OperationsParams.setShape(conf, SpatialInputFormat3.InputQueryRange,
+        viewport.buffer(buffer * pixelWidth, buffer * pixelHeight));
+  }
+
+  /**
+   * Returns a copy of the parameters to read the input with. If a viewport
+   * is given in the parameter 'rect', the query range is set to read only the
+   * parts of the input around it.
+   * @param params
+   * @param plotter - a configured plotter
+   * @param inputMBR - the MBR of the image
+   * @param width - the width of the image in pixels
+   * @param height - the height of the image in pixels
+   * @return
+   */
+  private static OperationsParams getReadParams(OperationsParams params,
+      Plotter plotter, Rectangle inputMBR, int width, int height) {
+    OperationsParams readParams = new OperationsParams(params);
+    if (params.get("rect") != null)
+      setQueryRange(readParams, params.getShape("rect").getMBR(), plotter,
+          inputMBR.getWidth() / width, inputMBR.getHeight() / height);
+    return readParams;
+  }
+
+  /**
+   * Returns the splits of all the given input files.
+   * @param inFiles
+   * @param params
+   * @return
+   * @throws IOException
+   */
+  private static FileSplit[] getSplits(Path[] inFiles, OperationsParams params)
+      throws IOException {
+    List<InputSplit> splits = new ArrayList<InputSplit>();
+    SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    for (Path inFile : inFiles) {
+      FileSystem inFs = inFile.getFileSystem(params);
+      if (!OperationsParams.isWildcard(inFile) && inFs.exists(inFile) && !inFs.isDirectory(inFile)) {
+        if (SpatialSite.NonHiddenFileFilter.accept(inFile)) {
+          // Use the normal input format splitter to add this non-hidden file
+          Job job = Job.getInstance(params);
+          SpatialInputFormat3.addInputPath(job, inFile);
+          splits.addAll(inputFormat.getSplits(job));
+        } else {
+          // A hidden file, add it immediately as one split
+          // This is useful if the input is a hidden file which is automatically
+          // skipped by FileInputFormat. We need to plot a hidden file for the case
+          // of plotting partition boundaries of a spatial index
+          splits.add(new FileSplit(inFile, 0,
+              inFs.getFileStatus(inFile).getLen(), new String[0]));
+        }
+      } else {
+        // Use the normal input format splitter to add this non-hidden file
+        Job job = Job.getInstance(params);
+        SpatialInputFormat3.addInputPath(job, inFile);
+        splits.addAll(inputFormat.getSplits(job));
+      }
+    }
+    return splits.toArray(new FileSplit[splits.size()]);
+  }
+
   /**
    * Generates a single level using a MapReduce job and returns the created job.
    * @param inFiles
@@ -376,8 +511,6 @@ public class SingleLevelPlot {
     if (inputMBR == null)
       inputMBR = drawRect != null? drawRect : FileMBR.fileMBR(inFiles, params);
     OperationsParams.setShape(conf, InputMBR, inputMBR);
-    if (drawRect != null)
-      OperationsParams.setShape(conf, SpatialInputFormat3.InputQueryRange, drawRect);
     
     // Adjust width and height if aspect ratio is to be kept
     int imageWidth = conf.getInt("width", 1000);
@@ -396,6 +529,11 @@ public class SingleLevelPlot {
         conf.setInt("width", imageWidth);
       }
     }
+    if (drawRect != null) {
+      plotter.configure(conf);
+      setQueryRange(conf, drawRect, plotter, inputMBR.getWidth() / imageWidth,
+          inputMBR.getHeight() / imageHeight);
+    }
     
     boolean merge = conf.getBoolean("merge", true);
     // Set input and output
@@ -481,57 +619,16 @@ public class SingleLevelPlot {
   public static void plotLocal(Path[] inFiles, Path outFile,
       final Class<? extends Plotter> plotterClass,
       final OperationsParams params) throws IOException, InterruptedException {
-    OperationsParams mbrParams = new OperationsParams(params);
-    mbrParams.setBoolean("background", false);
-    final Rectangle inputMBR = params.get(InputMBR) != null ?
-        params.getShape("mbr").getMBR() : FileMBR.fileMBR(inFiles, mbrParams);
-    if (params.get(InputMBR) == null)
-      OperationsParams.setShape(params, InputMBR, inputMBR);
-
-    // Retrieve desired output image size and keep aspect ratio if needed
-    int width = params.getInt("width", 1000);
-    int height = params.getInt("height", 1000);
-    if (params.getBoolean("keepratio", true)) {
-      // Adjust width and height to maintain aspect ratio and store the adjusted
-      // values back in params in case the caller needs to retrieve them
-      if (inputMBR.getWidth() / inputMBR.getHeight() > (double) width / height)
-        params.setInt("height", height = (int) (inputMBR.getHeight() * width / inputMBR.getWidth()));
-      else
-        params.setInt("width", width = (int) (inputMBR.getWidth() * height / inputMBR.getHeight()));
-    }
+    final Rectangle inputMBR = initInputMBR(inFiles, params);
     // Store width and height in final variables to make them accessible in parallel
-    final int fwidth = width, fheight = height;
+    final int fwidth = params.getInt("width", 1000);
+    final int fheight = params.getInt("height", 1000);
 
-    // Start reading input file
-    List<InputSplit> splits = new ArrayList<InputSplit>();
+    final OperationsParams readParams = getReadParams(params,
+        createPlotter(plotterClass, params), inputMBR, fwidth, fheight);
+    final FileSplit[] fsplits = getSplits(inFiles, readParams);
     final SpatialInputFormat3<Rectangle, Shape> inputFormat =
         new SpatialInputFormat3<Rectangle, Shape>();
-    for (Path inFile : inFiles) {
-      FileSystem inFs = inFile.getFileSystem(params);
-      if (!OperationsParams.isWildcard(inFile) && inFs.exists(inFile) && !inFs.isDirectory(inFile)) {
-        if (SpatialSite.NonHiddenFileFilter.accept(inFile)) {
-          // Use the normal input format splitter to add this non-hidden file
-          Job job = Job.getInstance(params);
-          SpatialInputFormat3.addInputPath(job, inFile);
-          splits.addAll(inputFormat.getSplits(job));
-        } else {
-          // A hidden file, add it immediately as one split
-          // This is useful if the input is a hidden file which is automatically
-          // skipped by FileInputFormat. We need to plot a hidden file for the case
-          // of plotting partition boundaries of a spatial index
-          splits.add(new FileSplit(inFile, 0,
-              inFs.getFileStatus(inFile).getLen(), new String[0]));
-        }
-      } else {
-        // Use the normal input format splitter to add this non-hidden file
-        Job job = Job.getInstance(params);
-        SpatialInputFormat3.addInputPath(job, inFile);
-        splits.addAll(inputFormat.getSplits(job));
-      }
-    }
-    
-    // Copy splits to a final array to be used in parallel
-    final FileSplit[] fsplits = splits.toArray(new FileSplit[splits.size()]);
     int parallelism = params.getInt("parallel",
         Runtime.getRuntime().availableProcessors());
     List<Canvas> partialCanvases = Parallel.forEach(fsplits.length, new RunnableRange<Canvas>() {
@@ -554,11 +651,11 @@ public class SingleLevelPlot {
             RecordReader<Rectangle, Iterable<Shape>> reader =
                 inputFormat.createRecordReader(fsplits[i], null);
             if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplits[i], params);
+              ((SpatialRecordReader3)reader).initialize(fsplits[i], readParams);
             } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplits[i], params);
+              ((RTreeRecordReader3)reader).initialize(fsplits[i], readParams);
             } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplits[i], params);
+              ((HDFRecordReader)reader).initialize(fsplits[i], readParams);
             } else {
               throw new RuntimeException("Unknown record reader");
             }
@@ -624,6 +721,144 @@ public class SingleLevelPlot {
     }
   }
   
+  /**
+   * Receives the canvas after each stage of a progressive plot.
+   */
+  public interface ProgressListener {
+    /**
+     * Called after each stage of a progressive plot
+     * @param canvas - the canvas that contains all the records plotted so far
+     * @param plotter - the plotter that draws to the canvas
+     * @param fraction - the estimated fraction of the input that is plotted
+     * @throws IOException
+     */
+    void stageDone(Canvas canvas, Plotter plotter, float fraction) throws IOException;
+  }
+
+  /**
+   * Plots the input progressively to one image. First, random samples of the
+   * given sizes are plotted, where each sample is drawn from all partitions
+   * proportionally to their sizes, and finally the rest of the input.
+   * The records of each stage are merged into the same canvas and each
+   * record is plotted once in the first stage that reads it. The listener is
+   * notified after each stage. Works only with text input files.
+   * @param inFiles
+   * @param plotterClass
+   * @param sampleSizes - the number of records to sample at each stage
+   * @param params
+   * @param listener
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void plotProgressive(Path[] inFiles,
+      final Class<? extends Plotter> plotterClass, int[] sampleSizes,
+      final OperationsParams params, ProgressListener listener)
+          throws IOException, InterruptedException {
+    final Rectangle inputMBR = initInputMBR(inFiles, params);
+    final int width = params.getInt("width", 1000);
+    final int height = params.getInt("height", 1000);
+
+    final Plotter plotter = createPlotter(plotterClass, params);
+    final FileSplit[] fsplits = getSplits(inFiles,
+        getReadParams(params, plotter, inputMBR, width, height));
+    SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    long totalSize = 0;
+    for (FileSplit fsplit : fsplits) {
+      if (!(inputFormat.createRecordReader(fsplit, null) instanceof SpatialRecordReader3))
+        throw new RuntimeException("Cannot plot non-text file '"+fsplit.getPath()+"' progressively");
+      totalSize += fsplit.getLength();
+    }
+
+    final Canvas canvas = plotter.createCanvas(width, height, inputMBR);
+    // Hashes of the lines plotted in the sampling stages
+    final Set<Long> plottedLines =
+        Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    final long[] plottedSize = {0};
+
+    final Shape shape = params.getShape("shape");
+    for (int i = 0; i < sampleSizes.length && totalSize > 0; i++) {
+      LocalSampler.sampleLocal(fsplits, sampleSizes[i], new ResultCollector<Text>() {
+        @Override
+        public void collect(Text line) {
+          // A record sampled again in a later stage is not plotted twice
+          if (line.getLength() > 1 && plottedLines.add(hashLine(line))) {
+            synchronized (canvas) {
+              plottedSize[0] += line.getLength() + 1;
+              shape.fromText(line);
+              plotter.plot(canvas, shape);
+            }
+          }
+        }
+      }, params);
+      float fraction = Math.min(1.0f, (float) plottedSize[0] / totalSize);
+      LOG.info("Plotted a sample of "+plottedLines.size()+" records ("+fraction+" of the input)");
+      listener.stageDone(canvas, plotter, fraction);
+      // A larger sample would read most of the input anyway
+      if (fraction >= 0.5f)
+        break;
+    }
+
+    // Plot all the remaining records
+    int parallelism = params.getInt("parallel",
+        Runtime.getRuntime().availableProcessors());
+    List<Canvas> partialCanvases = Parallel.forEach(fsplits.length, new RunnableRange<Canvas>() {
+      @Override
+      public Canvas run(int i1, int i2) {
+        Plotter plotter = createPlotter(plotterClass, params);
+        Canvas partialCanvas = plotter.createCanvas(width, height, inputMBR);
+        Shape shape = params.getShape("shape");
+        TaskAttemptContext context = new TaskAttemptContextImpl(params, new TaskAttemptID());
+        for (int i = i1; i < i2; i++) {
+          try {
+            LineRecordReader reader = new LineRecordReader();
+            reader.initialize(fsplits[i], context);
+            while (reader.nextKeyValue()) {
+              Text line = reader.getCurrentValue();
+              // A line that appears more than once in the input is skipped
+              // only as many times as it was sampled
+              if (line.getLength() > 1 && !plottedLines.remove(hashLine(line))) {
+                shape.fromText(line);
+                plotter.plot(partialCanvas, shape);
+              }
+            }
+            reader.close();
+          } catch (IOException e) {
+            throw new RuntimeException("Error reading the file ", e);
+          }
+        }
+        return partialCanvas;
+      }
+    }, parallelism);
+    for (Canvas partialCanvas : partialCanvases)
+      plotter.merge(canvas, partialCanvas);
+    listener.stageDone(canvas, plotter, 1.0f);
+  }
+
+  /**
+   * Returns a 64-bit hash of the given line
+   * @param line
+   * @return
+   */
+  private static long hashLine(Text line) {
+    int hash1 = WritableComparator.hashBytes(line.getBytes(), line.getLength());
+    int hash2 = MurmurHash.getInstance().hash(line.getBytes(), line.getLength(), 0);
+    return ((long) hash1 << 32) | (hash2 & 0xffffffffL);
+  }
+
+  private static Plotter createPlotter(Class<? extends Plotter> plotterClass,
+      OperationsParams params) {
+    try {
+      Plotter plotter = plotterClass.newInstance();
+      plotter.configure(params);
+      return plotter;
+    } catch (InstantiationException e) {
+      throw new RuntimeException("Error creating plotter", e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Error creating plotter", e);
+    }
+  }
+
   /**
    * Plots the given file using the provided plotter
    * @param inFiles
@@ -0,0 +1,193 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+/**
+ * A file that packs many tiles of a pyramid to avoid the overhead of small
+ * files. The tiles are stored one after the other followed by an index of
+ * (tile ID, offset, length) entries sorted by tile ID, the offset of the
+ * index, and the number of entries. Tiles with identical contents can share
+ * the same data. A tile ID is encoded by {@link TileIndex#encode(int, int, int)}
+ * from the level, column and row that appear in the name of the tile file.
+ */
+public class TileArchive {
+  /**Extension of archive files*/
+  public static final String Extension = ".tiles";
+
+  /**Size of the trailer at the end of the file*/
+  private static final int TrailerSize = 8 + 4;
+
+  /**
+   * Appends tiles to a new archive. This class is thread safe.
+   */
+  public static class Writer {
+    private final FSDataOutputStream out;
+    private final boolean deduplicate;
+    private long[] tileIDs = new long[1024];
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private int size;
+    /**The index of the first entry of each distinct tile content*/
+    private final Map<ByteBuffer, Integer> digests = new HashMap<ByteBuffer, Integer>();
+    /**Number of tiles that share the data of a previous tile*/
+    private int numDuplicates;
+
+    /**
+     * Creates a writer to the given stream
+     * @param out
+     * @param deduplicate - whether to store the data of identical tiles once
+     */
+    public Writer(FSDataOutputStream out, boolean deduplicate) {
+      this.out = out;
+      this.deduplicate = deduplicate;
+    }
+
+    public void append(long tileID, byte[] data) throws IOException {
+      ByteBuffer digest = deduplicate ? ByteBuffer.wrap(digest(data)) : null;
+      synchronized (this) {
+        if (size == tileIDs.length) {
+          tileIDs = Arrays.copyOf(tileIDs, size * 2);
+          offsets = Arrays.copyOf(offsets, size * 2);
+          lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        Integer previous = digest == null ? null : digests.get(digest);
+        tileIDs[size] = tileID;
+        if (previous != null) {
+          offsets[size] = offsets[previous];
+          lengths[size] = lengths[previous];
+          numDuplicates++;
+        } else {
+          offsets[size] = out.getPos();
+          lengths[size] = data.length;
+          out.write(data);
+          if (digest != null)
+            digests.put(digest, size);
+        }
+        size++;
+      }
+    }
+
+    public synchronized int getNumTiles() {
+      return size;
+    }
+
+    public synchronized int getNumDuplicates() {
+      return numDuplicates;
+    }
+
+    /**
+     * Writes the index and closes the file
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+      new QuickSort().sort(new IndexedSortable() {
+        @Override
+        public int compare(int i, int j) {
+          return tileIDs[i] < tileIDs[j] ? -1 : (tileIDs[i] > tileIDs[j] ? 1 : 0);
+        }
+
+        @Override
+        public void swap(int i, int j) {
+          long t = tileIDs[i]; tileIDs[i] = tileIDs[j]; tileIDs[j] = t;
+          t = offsets[i]; offsets[i] = offsets[j]; offsets[j] = t;
+          int l = lengths[i]; lengths[i] = lengths[j]; lengths[j] = l;
+        }
+      }, 0, size);
+      long indexOffset = out.getPos();
+      for (int i = 0; i < size; i++) {
+        out.writeLong(tileIDs[i]);
+        out.writeLong(offsets[i]);
+        out.writeInt(lengths[i]);
+      }
+      out.writeLong(indexOffset);
+      out.writeInt(size);
+      out.close();
+    }
+
+    private static byte[] digest(byte[] data) {
+      try {
+        return MessageDigest.getInstance("MD5").digest(data);
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException("Error hashing tile", e);
+      }
+    }
+  }
+
+  private final FSDataInputStream in;
+  /**Whether this archive is closed while other threads may still use it*/
+  private boolean closed;
+  private final long[] tileIDs;
+  private final long[] offsets;
+  private final int[] lengths;
+
+  /**
+   * Opens an archive and reads its index
+   * @param fs
+   * @param path
+   * @throws IOException
+   */
+  public TileArchive(FileSystem fs, Path path) throws IOException {
+    long fileLength = fs.getFileStatus(path).getLen();
+    this.in = fs.open(path);
+    in.seek(fileLength - TrailerSize);
+    long indexOffset = in.readLong();
+    int size = in.readInt();
+    tileIDs = new long[size];
+    offsets = new long[size];
+    lengths = new int[size];
+    in.seek(indexOffset);
+    for (int i = 0; i < size; i++) {
+      tileIDs[i] = in.readLong();
+      offsets[i] = in.readLong();
+      lengths[i] = in.readInt();
+    }
+  }
+
+  public int getNumTiles() {
+    return tileIDs.length;
+  }
+
+  /**
+   * Returns the data of the given tile
+   * @param z
+   * @param x
+   * @param y
+   * @return the tile data or <code>null</code> if it is not in this archive
+   *   or the archive is closed
+   * @throws IOException
+   */
+  public synchronized byte[] getTile(int z, int x, int y) throws IOException {
+    int i = Arrays.binarySearch(tileIDs, TileIndex.encode(z, x, y));
+    if (i < 0 || closed)
+      return null;
+    byte[] data = new byte[lengths[i]];
+    in.readFully(offsets[i], data);
+    return data;
+  }
+
+  public synchronized void close() throws IOException {
+    closed = true;
+    in.close();
+  }
+}
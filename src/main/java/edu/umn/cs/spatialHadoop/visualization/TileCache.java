@@ -0,0 +1,310 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A two-tier cache of encoded tile images. Recently used tiles are kept in
+ * memory and all cached tiles are stored in a local directory. Each tier has
+ * a limit on its total size in bytes and evicts the least recently used tiles
+ * when the limit is exceeded. Each tile is stored with the version of the data
+ * it was created from, e.g., a modification time. A tile that is looked up
+ * with a different version is dropped from both tiers.
+ */
+public class TileCache {
+  private static final Log LOG = LogFactory.getLog(TileCache.class);
+
+  /**A tile in memory with the version of its data*/
+  private static class MemoryTile {
+    final long version;
+    final byte[] data;
+
+    MemoryTile(long version, byte[] data) {
+      this.version = version;
+      this.data = data;
+    }
+  }
+
+  /**A tile file on disk with the version of its data*/
+  private static class DiskTile {
+    final long version;
+    final long size;
+
+    DiskTile(long version, long size) {
+      this.version = version;
+      this.size = size;
+    }
+  }
+
+  /**Tiles in memory in access order*/
+  private final LinkedHashMap<String, MemoryTile> memory =
+      new LinkedHashMap<String, MemoryTile>(16, 0.75f, true);
+  private long memorySize;
+  private final long maxMemorySize;
+
+  /**Tile files on disk by the hash of their keys in access order*/
+  private final LinkedHashMap<String, DiskTile> disk =
+      new LinkedHashMap<String, DiskTile>(16, 0.75f, true);
+  private long diskSize;
+  private final long maxDiskSize;
+  private final File diskDir;
+
+  /**Statistics of cache lookups*/
+  private long memoryHits, diskHits, misses, staleTiles;
+
+  /**
+   * Creates a cache with the given limits. Tiles that already exist in the
+   * disk directory from a previous run are reused if they are looked up with
+   * the same version.
+   * @param maxMemorySize - maximum total size of tiles in memory in bytes
+   * @param diskDir - local directory to store tiles or null to disable the disk tier
+   * @param maxDiskSize - maximum total size of tiles on disk in bytes
+   */
+  public TileCache(long maxMemorySize, File diskDir, long maxDiskSize) {
+    this.maxMemorySize = maxMemorySize;
+    this.diskDir = diskDir;
+    this.maxDiskSize = maxDiskSize;
+    if (diskDir != null) {
+      diskDir.mkdirs();
+      File[] files = diskDir.listFiles();
+      if (files != null) {
+        // Restore the access order from the modification times
+        Arrays.sort(files, new Comparator<File>() {
+          @Override
+          public int compare(File f1, File f2) {
+            long diff = f1.lastModified() - f2.lastModified();
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+          }
+        });
+        for (File file : files) {
+          String name = file.getName();
+          if (!name.endsWith(".tile"))
+            continue;
+          // The file name is <hash>-<version>.tile
+          int dash = name.indexOf('-');
+          long version;
+          try {
+            version = dash == -1 ? 0 :
+              Long.parseLong(name.substring(dash + 1, name.length() - 5));
+          } catch (NumberFormatException e) {
+            dash = -1;
+            version = 0;
+          }
+          if (dash == -1) {
+            // A tile without a version cannot be validated
+            file.delete();
+            continue;
+          }
+          DiskTile oldTile = disk.put(name.substring(0, dash),
+              new DiskTile(version, file.length()));
+          if (oldTile != null) {
+            // Keep only the most recent version of a tile
+            diskSize -= oldTile.size;
+            new File(diskDir, getFileName(name.substring(0, dash), oldTile.version)).delete();
+          }
+          diskSize += file.length();
+        }
+        evictDisk();
+      }
+      LOG.info("Tile cache has "+disk.size()+" tiles on disk in "+diskDir);
+    }
+  }
+
+  /**
+   * Returns the cached tile with the given key or null if it is not cached.
+   * A cached tile of another version is dropped and null is returned.
+   * @param key
+   * @param version - version of the data that the tile should reflect
+   * @return
+   */
+  public byte[] get(String key, long version) {
+    String hash = hashKey(key);
+    synchronized (this) {
+      MemoryTile tile = memory.get(key);
+      if (tile != null) {
+        if (tile.version == version) {
+          memoryHits++;
+          return tile.data;
+        }
+        memory.remove(key);
+        memorySize -= tile.data.length;
+      }
+      DiskTile diskTile = diskDir == null ? null : disk.get(hash);
+      if (diskTile != null && diskTile.version != version) {
+        staleTiles++;
+        removeFromDisk(hash);
+        diskTile = null;
+      } else if (diskTile == null && tile != null) {
+        staleTiles++;
+      }
+      if (diskTile == null) {
+        misses++;
+        return null;
+      }
+    }
+    byte[] data = null;
+    File file = new File(diskDir, getFileName(hash, version));
+    try {
+      data = readFile(file);
+      file.setLastModified(System.currentTimeMillis());
+    } catch (IOException e) {
+      // The file might have been evicted in the meantime
+      LOG.warn("Error reading cached tile "+file, e);
+    }
+    synchronized (this) {
+      if (data == null) {
+        misses++;
+        return null;
+      }
+      diskHits++;
+      putInMemory(key, new MemoryTile(version, data));
+    }
+    return data;
+  }
+
+  /**
+   * Adds a tile to the cache replacing any other version of it
+   * @param key
+   * @param version - version of the data that the tile reflects
+   * @param data
+   */
+  public void put(String key, long version, byte[] data) {
+    synchronized (this) {
+      putInMemory(key, new MemoryTile(version, data));
+    }
+    if (diskDir == null || data.length > maxDiskSize)
+      return;
+    String hash = hashKey(key);
+    File file = new File(diskDir, getFileName(hash, version));
+    File tempFile = new File(diskDir, file.getName() + "." + Thread.currentThread().getId());
+    try {
+      FileOutputStream out = new FileOutputStream(tempFile);
+      out.write(data);
+      out.close();
+      if (!tempFile.renameTo(file)) {
+        tempFile.delete();
+        return;
+      }
+    } catch (IOException e) {
+      LOG.warn("Error writing tile to disk cache "+file, e);
+      tempFile.delete();
+      return;
+    }
+    synchronized (this) {
+      DiskTile oldTile = disk.put(hash, new DiskTile(version, data.length));
+      if (oldTile != null) {
+        diskSize -= oldTile.size;
+        if (oldTile.version != version)
+          new File(diskDir, getFileName(hash, oldTile.version)).delete();
+      }
+      diskSize += data.length;
+      evictDisk();
+    }
+  }
+
+  private void putInMemory(String key, MemoryTile tile) {
+    if (tile.data.length > maxMemorySize)
+      return;
+    MemoryTile oldTile = memory.put(key, tile);
+    memorySize += tile.data.length - (oldTile == null ? 0 : oldTile.data.length);
+    Iterator<Map.Entry<String, MemoryTile>> lru = memory.entrySet().iterator();
+    while (memorySize > maxMemorySize && lru.hasNext()) {
+      memorySize -= lru.next().getValue().data.length;
+      lru.remove();
+    }
+  }
+
+  private void removeFromDisk(String hash) {
+    DiskTile tile = disk.remove(hash);
+    if (tile != null) {
+      diskSize -= tile.size;
+      new File(diskDir, getFileName(hash, tile.version)).delete();
+    }
+  }
+
+  private void evictDisk() {
+    Iterator<Map.Entry<String, DiskTile>> lru = disk.entrySet().iterator();
+    while (diskSize > maxDiskSize && lru.hasNext()) {
+      Map.Entry<String, DiskTile> entry = lru.next();
+      diskSize -= entry.getValue().size;
+      new File(diskDir, getFileName(entry.getKey(), entry.getValue().version)).delete();
+      lru.remove();
+    }
+  }
+
+  /**
+   * Returns the cache statistics as a JSON object
+   * @return
+   */
+  public synchronized String getStatisticsJSON() {
+    long lookups = memoryHits + diskHits + misses;
+    double hitRate = lookups == 0 ? 0 : (double) (memoryHits + diskHits) / lookups;
+    return String.format("{\"MemoryHits\":%d,\"DiskHits\":%d,\"Misses\":%d,"
+        + "\"StaleTiles\":%d,\"HitRate\":%.4f,\"MemoryTiles\":%d,"
+        + "\"MemoryBytes\":%d,\"DiskTiles\":%d,\"DiskBytes\":%d}",
+        memoryHits, diskHits, misses, staleTiles, hitRate, memory.size(),
+        memorySize, disk.size(), diskSize);
+  }
+
+  /**
+   * Returns the name of the file of the given version of a tile
+   */
+  private static String getFileName(String hash, long version) {
+    return hash + "-" + version + ".tile";
+  }
+
+  /**
+   * Maps a tile key to a hash that is safe to use in a file name on the
+   * local disk
+   */
+  private static String hashKey(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+      StringBuilder name = new StringBuilder();
+      for (byte b : digest)
+        name.append(String.format("%02x", b & 0xff));
+      return name.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Error hashing tile key", e);
+    } catch (IOException e) {
+      throw new RuntimeException("Error hashing tile key", e);
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < data.length) {
+        int read = in.read(data, offset, data.length - offset);
+        if (read < 0)
+          throw new IOException("Unexpected end of file "+file);
+        offset += read;
+      }
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+}
@@ -0,0 +1,207 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A map from encoded tile IDs to canvases that stores keys in a primitive
+ * array with open addressing (linear probing) to avoid boxing. The map can
+ * be given a maximum number of canvases; when it grows beyond it, the least
+ * recently updated canvases are passed to a {@link SpillListener} and
+ * removed from the map. This is only correct if partial canvases of the same
+ * tile are merged later, e.g., by a reducer.
+ */
+public class TileMap {
+  /**
+   * Receives canvases that are removed from the map
+   */
+  public static interface SpillListener {
+    void spill(long tileID, Canvas canvas) throws IOException, InterruptedException;
+  }
+
+  /**Fraction of canvases to spill when the map is full*/
+  private static final double SpillFraction = 0.25;
+
+  private long[] keys;
+  private Canvas[] values;
+  /**The time each canvas was last retrieved or added*/
+  private long[] updates;
+  private int size;
+  /**A counter that increases with every update*/
+  private long clock;
+
+  /**Maximum number of canvases to keep before spilling*/
+  private int maxSize = Integer.MAX_VALUE;
+  private SpillListener spillListener;
+
+  public TileMap() {
+    this(64);
+  }
+
+  public TileMap(int initialCapacity) {
+    int capacity = 16;
+    while (capacity < initialCapacity * 2)
+      capacity <<= 1;
+    keys = new long[capacity];
+    values = new Canvas[capacity];
+    updates = new long[capacity];
+  }
+
+  /**
+   * Limits the number of canvases in the map. Whenever the limit is
+   * exceeded, the least recently updated canvases are spilled.
+   * @param maxSize
+   * @param spillListener
+   */
+  public void setSpillPolicy(int maxSize, SpillListener spillListener) {
+    this.maxSize = Math.max(1, maxSize);
+    this.spillListener = spillListener;
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32) & (keys.length - 1);
+  }
+
+  /**
+   * Returns the canvas of the given tile and marks it as recently updated
+   * @param tileID
+   * @return the canvas or null if the tile is not in the map
+   */
+  public Canvas get(long tileID) {
+    int mask = keys.length - 1;
+    for (int i = slot(tileID); values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == tileID) {
+        updates[i] = ++clock;
+        return values[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds or replaces the canvas of the given tile. This might spill other
+   * canvases if the map is full.
+   * @param tileID
+   * @param canvas
+   * @throws InterruptedException
+   * @throws IOException
+   */
+  public void put(long tileID, Canvas canvas) throws IOException, InterruptedException {
+    if (size >= maxSize && spillListener != null)
+      spill((int) Math.max(1, maxSize * SpillFraction));
+    if ((size + 1) * 2 > keys.length)
+      rehash(keys.length * 2);
+    int mask = keys.length - 1;
+    int i = slot(tileID);
+    while (values[i] != null && keys[i] != tileID)
+      i = (i + 1) & mask;
+    if (values[i] == null)
+      size++;
+    keys[i] = tileID;
+    values[i] = canvas;
+    updates[i] = ++clock;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Passes the given number of least recently updated canvases to the spill
+   * listener and removes them from the map
+   */
+  private void spill(int count) throws IOException, InterruptedException {
+    long[] sortedUpdates = new long[size];
+    int n = 0;
+    for (int i = 0; i < values.length; i++)
+      if (values[i] != null)
+        sortedUpdates[n++] = updates[i];
+    Arrays.sort(sortedUpdates);
+    long threshold = sortedUpdates[Math.min(count, size) - 1];
+    long[] victims = new long[count];
+    int numVictims = 0;
+    for (int i = 0; i < values.length && numVictims < count; i++)
+      if (values[i] != null && updates[i] <= threshold)
+        victims[numVictims++] = keys[i];
+    for (int v = 0; v < numVictims; v++) {
+      Canvas canvas = remove(victims[v]);
+      spillListener.spill(victims[v], canvas);
+    }
+  }
+
+  /**
+   * Removes a tile from the map using backward shift deletion
+   * @param tileID
+   * @return the removed canvas or null if it does not exist
+   */
+  public Canvas remove(long tileID) {
+    int mask = keys.length - 1;
+    int i = slot(tileID);
+    while (values[i] != null && keys[i] != tileID)
+      i = (i + 1) & mask;
+    Canvas removed = values[i];
+    if (removed == null)
+      return null;
+    // Shift back entries that were displaced by the removed one
+    int hole = i;
+    for (int j = (hole + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+      int home = slot(keys[j]);
+      // Move the entry at j to the hole if its home is not in (hole, j]
+      if (((j - home) & mask) >= ((j - hole) & mask)) {
+        keys[hole] = keys[j];
+        values[hole] = values[j];
+        updates[hole] = updates[j];
+        hole = j;
+      }
+    }
+    values[hole] = null;
+    size--;
+    return removed;
+  }
+
+  /**
+   * Passes all canvases to the given listener and clears the map
+   * @param listener
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void flush(SpillListener listener) throws IOException, InterruptedException {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        Canvas canvas = values[i];
+        values[i] = null;
+        listener.spill(keys[i], canvas);
+      }
+    }
+    size = 0;
+  }
+
+  private void rehash(int newCapacity) {
+    long[] oldKeys = keys;
+    Canvas[] oldValues = values;
+    long[] oldUpdates = updates;
+    keys = new long[newCapacity];
+    values = new Canvas[newCapacity];
+    updates = new long[newCapacity];
+    int mask = newCapacity - 1;
+    for (int j = 0; j < oldValues.length; j++) {
+      if (oldValues[j] != null) {
+        int i = slot(oldKeys[j]);
+        while (values[i] != null)
+          i = (i + 1) & mask;
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+        updates[i] = oldUpdates[j];
+      }
+    }
+  }
+}
@@ -0,0 +1,364 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+
+/**
+ * A canvas that keeps geometries as vector features in a compact binary form.
+ * Coordinates are quantized to an integer grid of extent x extent cells that
+ * covers the MBR of the canvas. Geometries are clipped to the canvas expanded
+ * by a buffer of a few cells and simplified to the resolution of the grid,
+ * which gets coarser in lower zoom levels. Each feature is stored as:
+ * <ul>
+ *   <li>Type: 1 for points, 2 for lines, and 3 for polygons</li>
+ *   <li>Number of parts. A polygon has its outer ring followed by its holes
+ *   without the closing points. A multi-polygon is stored as one feature
+ *   per polygon.</li>
+ *   <li>For each part, the number of points followed by the points</li>
+ * </ul>
+ * Each point is stored as its difference from the previous point of the same
+ * feature. All numbers are varints and differences are zigzag encoded as in
+ * Protocol Buffers. A written tile starts with the extent and the number of
+ * features. Y coordinates increase upwards unless the tile is written with
+ * a vertical flip.
+ */
+public class VectorCanvas extends Canvas {
+  public static final int PointFeature = 1;
+  public static final int LineFeature = 2;
+  public static final int PolygonFeature = 3;
+
+  private static final GeometryFactory Factory = new GeometryFactory();
+
+  /**Number of grid cells along each side of the canvas*/
+  private int extent;
+  /**Number of grid cells to keep around the canvas*/
+  private int buffer;
+  private int numFeatures;
+  /**Encoded features*/
+  private Bytes features = new Bytes();
+
+  /**The feature being encoded*/
+  private Bytes feature = new Bytes();
+  private int numParts, cursorX, cursorY;
+  /**Quantized points of the part being encoded*/
+  private int[] xs = new int[16], ys = new int[16];
+
+  /**Default constructor is necessary to be able to deserialize it*/
+  public VectorCanvas() {
+  }
+
+  public VectorCanvas(Rectangle inputMBR, int width, int height, int extent, int buffer) {
+    super(inputMBR, width, height);
+    this.extent = extent;
+    this.buffer = buffer;
+  }
+
+  public int getNumFeatures() {
+    return numFeatures;
+  }
+
+  /**
+   * Clips, simplifies and adds the given geometry to this canvas
+   * @param geom
+   */
+  public void addGeometry(Geometry geom) {
+    if (geom == null || geom.isEmpty())
+      return;
+    double cellWidth = inputMBR.getWidth() / extent;
+    double cellHeight = inputMBR.getHeight() / extent;
+    Envelope clip = new Envelope(inputMBR.x1 - buffer * cellWidth,
+        inputMBR.x2 + buffer * cellWidth, inputMBR.y1 - buffer * cellHeight,
+        inputMBR.y2 + buffer * cellHeight);
+    Envelope envelope = geom.getEnvelopeInternal();
+    if (!clip.intersects(envelope))
+      return;
+    if (geom.getDimension() > 0 && cellWidth > 0)
+      geom = TopologyPreservingSimplifier.simplify(geom, Math.min(cellWidth, cellHeight));
+    if (!clip.contains(envelope)) {
+      try {
+        geom = geom.intersection(Factory.toGeometry(clip));
+      } catch (RuntimeException e) {
+        // An invalid geometry that cannot be clipped. Its points are clamped
+        // to the buffer while quantizing
+      }
+    }
+    encodeGeometry(geom);
+  }
+
+  private void encodeGeometry(Geometry geom) {
+    if (geom.isEmpty())
+      return;
+    if (geom instanceof com.vividsolutions.jts.geom.Point
+        || geom instanceof MultiPoint) {
+      beginFeature();
+      addPart(geom.getCoordinates(), PointFeature);
+      endFeature(PointFeature);
+    } else if (geom instanceof LineString) {
+      beginFeature();
+      addPart(geom.getCoordinates(), LineFeature);
+      endFeature(LineFeature);
+    } else if (geom instanceof MultiLineString) {
+      beginFeature();
+      for (int i = 0; i < geom.getNumGeometries(); i++)
+        addPart(geom.getGeometryN(i).getCoordinates(), LineFeature);
+      endFeature(LineFeature);
+    } else if (geom instanceof Polygon) {
+      Polygon polygon = (Polygon) geom;
+      beginFeature();
+      addPart(polygon.getExteriorRing().getCoordinates(), PolygonFeature);
+      if (numParts == 0)
+        return; // The outer ring is too small to be visible
+      for (int i = 0; i < polygon.getNumInteriorRing(); i++)
+        addPart(polygon.getInteriorRingN(i).getCoordinates(), PolygonFeature);
+      endFeature(PolygonFeature);
+    } else if (geom instanceof MultiPolygon || geom instanceof GeometryCollection) {
+      for (int i = 0; i < geom.getNumGeometries(); i++)
+        encodeGeometry(geom.getGeometryN(i));
+    }
+  }
+
+  private void beginFeature() {
+    feature.length = 0;
+    numParts = 0;
+    cursorX = cursorY = 0;
+  }
+
+  private void addPart(Coordinate[] coords, int type) {
+    ensureCapacity(coords.length);
+    double xscale = extent / inputMBR.getWidth();
+    double yscale = extent / inputMBR.getHeight();
+    for (int i = 0; i < coords.length; i++) {
+      xs[i] = quantize((coords[i].x - inputMBR.x1) * xscale);
+      ys[i] = quantize((coords[i].y - inputMBR.y1) * yscale);
+    }
+    addPart(coords.length, type);
+  }
+
+  /**
+   * Adds the first count points in the temporary arrays as one part of the
+   * current feature after removing repeated points. A part with too few
+   * points for its type is skipped.
+   */
+  private void addPart(int count, int type) {
+    int n = 0;
+    for (int i = 0; i < count; i++) {
+      if (n == 0 || type == PointFeature || xs[i] != xs[n - 1] || ys[i] != ys[n - 1]) {
+        xs[n] = xs[i];
+        ys[n] = ys[i];
+        n++;
+      }
+    }
+    if (type == PolygonFeature && n > 1 && xs[0] == xs[n - 1] && ys[0] == ys[n - 1])
+      n--; // Remove the closing point of the ring
+    int minPoints = type == PolygonFeature ? 3 : (type == LineFeature ? 2 : 1);
+    if (n < minPoints)
+      return;
+    feature.writeVarint(n);
+    for (int i = 0; i < n; i++) {
+      feature.writeZigzag(xs[i] - cursorX);
+      feature.writeZigzag(ys[i] - cursorY);
+      cursorX = xs[i];
+      cursorY = ys[i];
+    }
+    numParts++;
+  }
+
+  private void endFeature(int type) {
+    if (numParts == 0)
+      return;
+    features.writeVarint(type);
+    features.writeVarint(numParts);
+    features.write(feature.bytes, 0, feature.length);
+    numFeatures++;
+  }
+
+  private int quantize(double v) {
+    long q = Math.round(v);
+    return (int) Math.max(-buffer, Math.min(extent + buffer, q));
+  }
+
+  private void ensureCapacity(int size) {
+    if (xs.length < size) {
+      int newSize = Math.max(size, xs.length * 2);
+      xs = new int[newSize];
+      ys = new int[newSize];
+    }
+  }
+
+  /**
+   * Decodes all features of another canvas, maps their points to the grid of
+   * this canvas using the given linear transformation, and adds them.
+   */
+  private void addTransformed(VectorCanvas other, double sx, double tx,
+      double sy, double ty) {
+    Bytes in = new Bytes(other.features.bytes, other.features.length);
+    for (int f = 0; f < other.numFeatures; f++) {
+      int type = in.readVarint();
+      int parts = in.readVarint();
+      beginFeature();
+      int x = 0, y = 0;
+      boolean collapsed = false;
+      for (int p = 0; p < parts; p++) {
+        int count = in.readVarint();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+          x += in.readZigzag();
+          y += in.readZigzag();
+          xs[i] = quantize(x * sx + tx);
+          ys[i] = quantize(y * sy + ty);
+        }
+        // Holes of a polygon whose outer ring collapsed are skipped
+        if (!collapsed)
+          addPart(count, type);
+        collapsed = type == PolygonFeature && numParts == 0;
+      }
+      endFeature(type);
+    }
+  }
+
+  /**
+   * Adds all features of the given canvas to this canvas
+   * @param another
+   */
+  public void mergeWith(VectorCanvas another) {
+    if (another.extent == this.extent && another.inputMBR.equals(this.inputMBR)) {
+      // Same grid, the encoded features can be copied as is
+      features.write(another.features.bytes, 0, another.features.length);
+      numFeatures += another.numFeatures;
+    } else {
+      Rectangle mbr = another.getInputMBR();
+      double sx = mbr.getWidth() / another.extent * extent / inputMBR.getWidth();
+      double sy = mbr.getHeight() / another.extent * extent / inputMBR.getHeight();
+      double tx = (mbr.x1 - inputMBR.x1) * extent / inputMBR.getWidth();
+      double ty = (mbr.y1 - inputMBR.y1) * extent / inputMBR.getHeight();
+      addTransformed(another, sx, tx, sy, ty);
+    }
+  }
+
+  /**
+   * Writes this canvas as a vector tile
+   * @param out
+   * @param vflip - whether to flip the Y axis to point downwards
+   * @throws IOException
+   */
+  public void writeTile(OutputStream out, boolean vflip) throws IOException {
+    VectorCanvas tile = this;
+    if (vflip) {
+      tile = new VectorCanvas(inputMBR, width, height, extent, buffer);
+      tile.addTransformed(this, 1, 0, -1, extent);
+    }
+    Bytes header = new Bytes();
+    header.writeVarint(extent);
+    header.writeVarint(tile.numFeatures);
+    out.write(header.bytes, 0, header.length);
+    out.write(tile.features.bytes, 0, tile.features.length);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    out.writeInt(extent);
+    out.writeInt(buffer);
+    out.writeInt(numFeatures);
+    out.writeInt(features.length);
+    out.write(features.bytes, 0, features.length);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    extent = in.readInt();
+    buffer = in.readInt();
+    numFeatures = in.readInt();
+    int length = in.readInt();
+    features = new Bytes(new byte[length], length);
+    in.readFully(features.bytes);
+  }
+
+  /**
+   * A growable byte array with varint encoding and decoding
+   */
+  private static class Bytes {
+    byte[] bytes;
+    int length;
+    /**Read position*/
+    int pos;
+
+    Bytes() {
+      this(new byte[64], 0);
+    }
+
+    Bytes(byte[] bytes, int length) {
+      this.bytes = bytes;
+      this.length = length;
+    }
+
+    void write(byte[] b, int off, int len) {
+      if (length + len > bytes.length) {
+        byte[] newBytes = new byte[Math.max(length + len, bytes.length * 2)];
+        System.arraycopy(bytes, 0, newBytes, 0, length);
+        bytes = newBytes;
+      }
+      System.arraycopy(b, off, bytes, length, len);
+      length += len;
+    }
+
+    void writeVarint(int v) {
+      if (length + 5 > bytes.length) {
+        byte[] newBytes = new byte[bytes.length * 2 + 5];
+        System.arraycopy(bytes, 0, newBytes, 0, length);
+        bytes = newBytes;
+      }
+      while ((v & ~0x7F) != 0) {
+        bytes[length++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      bytes[length++] = (byte) v;
+    }
+
+    void writeZigzag(int v) {
+      writeVarint((v << 1) ^ (v >> 31));
+    }
+
+    int readVarint() {
+      int v = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = bytes[pos++];
+        v |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return v;
+    }
+
+    int readZigzag() {
+      int v = readVarint();
+      return (v >>> 1) ^ -(v & 1);
+    }
+  }
+}
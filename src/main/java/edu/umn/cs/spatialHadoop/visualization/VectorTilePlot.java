@@ -0,0 +1,174 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCESRIShape;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Polygon;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+
+/**
+ * Plots shapes to binary vector tiles that are styled by the client.
+ * See {@link VectorCanvas} for the encoding of the tiles.
+ */
+public class VectorTilePlot {
+
+  public static class VectorTilePlotter extends Plotter {
+
+    private static final GeometryFactory Factory = new GeometryFactory();
+
+    /**Number of grid cells along each side of a tile*/
+    private int extent;
+    /**Number of grid cells to keep around each tile*/
+    private int buffer;
+
+    private final WKBReader wkbReader = new WKBReader(Factory);
+
+    @Override
+    public void configure(Configuration conf) {
+      super.configure(conf);
+      this.extent = conf.getInt("extent", 4096);
+      this.buffer = conf.getInt("buffer", 64);
+    }
+
+    @Override
+    public Canvas createCanvas(int width, int height, Rectangle mbr) {
+      return new VectorCanvas(mbr, width, height, extent, buffer);
+    }
+
+    @Override
+    public void plot(Canvas layer, Shape shape) {
+      ((VectorCanvas) layer).addGeometry(toGeometry(shape));
+    }
+
+    @Override
+    public Class<? extends Canvas> getCanvasClass() {
+      return VectorCanvas.class;
+    }
+
+    @Override
+    public void merge(Canvas finalLayer, Canvas intermediateLayer) {
+      ((VectorCanvas) finalLayer).mergeWith((VectorCanvas) intermediateLayer);
+    }
+
+    @Override
+    public void writeImage(Canvas layer, DataOutputStream out, boolean vflip)
+        throws IOException {
+      ((VectorCanvas) layer).writeTile(out, vflip);
+    }
+
+    @Override
+    public String getImageExtension() {
+      return ".vtile";
+    }
+
+    /**
+     * Converts a shape to a JTS geometry. Shapes with no geometric
+     * representation are converted to their MBRs.
+     * @param shape
+     * @return
+     */
+    protected Geometry toGeometry(Shape shape) {
+      if (shape instanceof OGCJTSShape)
+        return ((OGCJTSShape) shape).geom;
+      if (shape instanceof Point) {
+        Point p = (Point) shape;
+        return Factory.createPoint(new Coordinate(p.x, p.y));
+      }
+      if (shape instanceof Polygon) {
+        Polygon polygon = (Polygon) shape;
+        if (polygon.npoints >= 3) {
+          Coordinate[] coords = new Coordinate[polygon.npoints + 1];
+          for (int i = 0; i < polygon.npoints; i++)
+            coords[i] = new Coordinate(polygon.xpoints[i], polygon.ypoints[i]);
+          coords[polygon.npoints] = coords[0];
+          return Factory.createPolygon(Factory.createLinearRing(coords), null);
+        }
+      }
+      if (shape instanceof OGCESRIShape) {
+        try {
+          return wkbReader.read(((OGCESRIShape) shape).geom.asBinary().array());
+        } catch (ParseException e) {
+          throw new RuntimeException("Error converting shape "+shape, e);
+        }
+      }
+      Rectangle mbr = shape.getMBR();
+      if (mbr == null)
+        return null;
+      return Factory.toGeometry(new Envelope(mbr.x1, mbr.x2, mbr.y1, mbr.y2));
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Plots all shapes to binary vector tiles");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input file> - (*) Path to input file");
+    System.out.println("<output file> - (*) Path to output file");
+    System.out.println("shape:<point|rectangle|polygon|ogc> - (*) Type of shapes stored in input file");
+    System.out.println("levels:<l> - Number of levels in the pyramid (7)");
+    System.out.println("extent:<e> - Number of grid cells along each side of a tile (4096)");
+    System.out.println("buffer:<b> - Number of grid cells around each tile to keep (64)");
+    System.out.println("partition:<data|space|flat|pyramid> - which partitioning technique to use");
+    System.out.println("-pyramid: Generate a pyramid of tiles instead of one tile");
+    System.out.println("-overwrite: Override output file without notice");
+    System.out.println("-vflip: Vertically flip generated tiles so that the Y axis points downwards");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static Job plot(Path[] inFiles, Path outFile, OperationsParams params)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    if (params.getBoolean("pyramid", false)) {
+      return MultilevelPlot.plot(inFiles, outFile, VectorTilePlotter.class, params);
+    } else {
+      return SingleLevelPlot.plot(inFiles, outFile, VectorTilePlotter.class, params);
+    }
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  public static void main(String[] args) throws IOException, InterruptedException, ClassNotFoundException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    // An incremental update writes to the existing pyramid in the output path
+    boolean incremental = params.get("incremental") != null;
+    if (incremental ? !params.checkInput() : !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+
+    Path[] inFiles = params.getInputPaths();
+    Path outFile = params.getOutputPath();
+
+    long t1 = System.currentTimeMillis();
+    plot(inFiles, outFile, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Plot finished in "+(t2-t1)+" millis");
+  }
+}
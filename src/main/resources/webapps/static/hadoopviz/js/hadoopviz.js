@@ -47,6 +47,7 @@ $(function() {
             jQuery(".toggle-chekbox").change(checkboxToggle);
           });
           jQuery("#frm-visualize").submit(ajaxVisualize);
+          jQuery("#btn-preview").click(previewVisualize);
         });
       } else {
         if (data["ImagePath"] != null) {
@@ -222,6 +223,16 @@ $(function() {
     e.preventDefault();
   }
 
+  /**
+   * Plots the dataset progressively. The server streams an image after each
+   * stage and the browser replaces the displayed image with each new one.
+   */
+  function previewVisualize(e) {
+    var form_data = jQuery("#frm-visualize").serialize();
+    jQuery("#img-preview").attr("src", "/PREVIEW.cgi?"+form_data);
+    e.preventDefault();
+  }
+
   // Initially, use the URL to initially list the files
   updateFromHash();
 });
@@ -0,0 +1,115 @@
+package edu.umn.cs.spatialHadoop;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link StratifiedEstimator}
+ */
+public class StratifiedEstimatorTest extends TestCase {
+
+  /**
+   * A stratum in memory where one of every <code>period</code> records
+   * has the value one and all other records have the value zero.
+   */
+  static class PeriodicStratum implements StratifiedEstimator.Stratum {
+    private final int size;
+    private final int period;
+
+    PeriodicStratum(int size, int period) {
+      this.size = size;
+      this.period = period;
+    }
+
+    private double value(int i) {
+      return period > 0 && i % period == 0 ? 1 : 0;
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public double[] sample(int count, long seed) {
+      Random random = new Random(seed);
+      double[] values = new double[count];
+      for (int i = 0; i < count; i++)
+        values[i] = value(random.nextInt(size));
+      return values;
+    }
+
+    @Override
+    public double scan() {
+      double sum = 0;
+      for (int i = 0; i < size; i++)
+        sum += value(i);
+      return sum;
+    }
+  }
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public StratifiedEstimatorTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(StratifiedEstimatorTest.class);
+  }
+
+  private static Estimator.Range<Double> estimate(
+      StratifiedEstimator.Stratum[] strata, double errorBound, long seed) {
+    StratifiedEstimator estimator = new StratifiedEstimator(strata, 0);
+    estimator.setParallelism(1);
+    estimator.setSeed(seed);
+    return estimator.getEstimate(errorBound);
+  }
+
+  public void testStratumWithMissesOnly() {
+    // The first samples of the second stratum all miss its rare matches
+    StratifiedEstimator.Stratum[] strata = {
+        new PeriodicStratum(1000, 1), new PeriodicStratum(1000000, 1000)};
+    double expected = strata[0].scan() + strata[1].scan();
+    for (long seed = 0; seed < 10; seed++) {
+      Estimator.Range<Double> range = estimate(strata, 0.1, seed);
+      assertTrue("Wrong range ["+range.limit1+","+range.limit2+"] for "+expected,
+          range.limit1 <= expected && expected <= range.limit2);
+      assertTrue(range.limit2 - range.limit1 <= 0.2 * range.limit2);
+    }
+  }
+
+  public void testNoMatches() {
+    // An estimate of zero cannot be accepted until all records are read
+    StratifiedEstimator.Stratum[] strata = {
+        new PeriodicStratum(5000, 0), new PeriodicStratum(20000, 0)};
+    StratifiedEstimator estimator = new StratifiedEstimator(strata, 0);
+    estimator.setSeed(0);
+    Estimator.Range<Double> range = estimator.getEstimate(0.01);
+    assertEquals(0.0, range.limit1);
+    assertEquals(0.0, range.limit2);
+    assertEquals(1.0, estimator.getSampledFraction());
+  }
+
+  public void testFrequentMatches() {
+    StratifiedEstimator.Stratum[] strata = {
+        new PeriodicStratum(1000000, 2), new PeriodicStratum(2000000, 5)};
+    double expected = strata[0].scan() + strata[1].scan();
+    StratifiedEstimator estimator = new StratifiedEstimator(strata, 0);
+    estimator.setSeed(0);
+    Estimator.Range<Double> range = estimator.getEstimate(0.05);
+    assertTrue(range.limit1 <= expected && expected <= range.limit2);
+    assertTrue(range.limit2 - range.limit1 > 0);
+    assertTrue(estimator.getSampledFraction() < 0.1);
+  }
+}
@@ -0,0 +1,145 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.io.MemoryInputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link RTree}
+ */
+public class RTreeTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public RTreeTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(RTreeTest.class);
+  }
+
+  private static Rectangle[] randomRectangles(Random random, int count) {
+    Rectangle[] rects = new Rectangle[count];
+    for (int i = 0; i < count; i++) {
+      double x = random.nextDouble() * 1000;
+      double y = random.nextDouble() * 1000;
+      rects[i] = new Rectangle(x, y, x + random.nextDouble() * 20,
+          y + random.nextDouble() * 20);
+    }
+    return rects;
+  }
+
+  /**
+   * Writes the given rectangles to an R-tree and reads it back. If inMemory is
+   * false, its records are read from the stream on demand as done for files on
+   * disk. Otherwise, the tree is read from a stream that does not support
+   * seeks and is fully loaded in memory.
+   */
+  private static RTree<Rectangle> buildRTree(Rectangle[] rects, boolean inMemory)
+      throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (Rectangle rect : rects)
+      text.append(rect.toText(new org.apache.hadoop.io.Text())).append('\n');
+    byte[] bytes = text.toString().getBytes();
+    ByteArrayOutputStream treeBytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(treeBytes);
+    RTree.bulkLoadWrite(bytes, 0, bytes.length, 4, out, new Rectangle(), false);
+    out.close();
+    RTree<Rectangle> rtree = new RTree<Rectangle>();
+    rtree.setStockObject(new Rectangle());
+    if (inMemory)
+      rtree.readFields(new DataInputStream(new ByteArrayInputStream(treeBytes.toByteArray())));
+    else
+      rtree.readFields(new FSDataInputStream(new MemoryInputStream(treeBytes.toByteArray())));
+    return rtree;
+  }
+
+  /**
+   * Joins the two sets with nested loops keeping only pairs whose MBRs
+   * overlap inside the given window
+   */
+  private static List<String> nestedLoopJoin(Rectangle[] rs, Rectangle[] ss,
+      Rectangle window) {
+    List<String> results = new ArrayList<String>();
+    for (Rectangle r : rs) {
+      for (Rectangle s : ss) {
+        if (!r.isIntersected(s))
+          continue;
+        if (window != null) {
+          Rectangle overlap = r.getIntersection(s);
+          if (overlap.x1 > window.x2 || window.x1 > overlap.x2 ||
+              overlap.y1 > window.y2 || window.y1 > overlap.y2)
+            continue;
+        }
+        results.add(r + "-" + s);
+      }
+    }
+    Collections.sort(results);
+    return results;
+  }
+
+  private static List<String> dualTreeJoin(RTree<Rectangle> R, RTree<Rectangle> S,
+      Rectangle window) throws Exception {
+    final List<String> results = new ArrayList<String>();
+    int count = RTree.spatialJoin(R, S, window, new ResultCollector2<Rectangle, Rectangle>() {
+      @Override
+      public void collect(Rectangle r, Rectangle s) {
+        results.add(r + "-" + s);
+      }
+    }, null);
+    assertEquals(results.size(), count);
+    Collections.sort(results);
+    return results;
+  }
+
+  private void testSpatialJoinWithWindow(boolean inMemory) throws Exception {
+    Random random = new Random(0);
+    Rectangle[] rs = randomRectangles(random, 2000);
+    Rectangle[] ss = randomRectangles(random, 3000);
+    RTree<Rectangle> R = buildRTree(rs, inMemory);
+    RTree<Rectangle> S = buildRTree(ss, inMemory);
+
+    List<String> expected = nestedLoopJoin(rs, ss, null);
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, dualTreeJoin(R, S, null));
+
+    Rectangle[] windows = {new Rectangle(100, 200, 400, 350),
+        new Rectangle(500, 500, 510, 900), new Rectangle(-10, -10, 1100, 1100)};
+    for (Rectangle window : windows) {
+      expected = nestedLoopJoin(rs, ss, window);
+      assertFalse(expected.isEmpty());
+      assertEquals("Different results in window " + window, expected,
+          dualTreeJoin(R, S, window));
+    }
+  }
+
+  public void testSpatialJoinWithWindow() throws Exception {
+    testSpatialJoinWithWindow(false);
+  }
+
+  public void testSpatialJoinWithWindowInMemory() throws Exception {
+    testSpatialJoinWithWindow(true);
+  }
+}
@@ -0,0 +1,99 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.umn.cs.spatialHadoop.operations.Aggregate.Statistics;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link Aggregate}
+ */
+public class AggregateTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public AggregateTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(AggregateTest.class);
+  }
+
+  private static void assertSameStatistics(Statistics expected,
+      Statistics actual) {
+    assertEquals(expected.count, actual.count);
+    assertEquals(expected.min, actual.min, 0);
+    assertEquals(expected.max, actual.max, 0);
+    assertEquals(expected.sum, actual.sum, 1E-9 * Math.abs(expected.sum));
+    assertEquals(expected.mean, actual.mean, 1E-9 * Math.abs(expected.mean));
+    assertEquals(expected.getVariance(), actual.getVariance(),
+        1E-6 * expected.getVariance());
+  }
+
+  public void testStatisticsMerge() {
+    Random random = new Random(0);
+    for (int round = 0; round < 10; round++) {
+      // Values with a large offset and a small spread lose all precision
+      // with the naive sum of squares
+      double[] values = new double[5000];
+      for (int i = 0; i < values.length; i++)
+        values[i] = 1E9 + random.nextGaussian() * (round + 1);
+
+      Statistics singlePass = new Statistics();
+      for (double value : values)
+        singlePass.add(value);
+
+      // Compare the single pass with the two-pass formulas
+      double sum = 0;
+      for (double value : values)
+        sum += value;
+      double mean = sum / values.length;
+      double m2 = 0;
+      for (double value : values)
+        m2 += (value - mean) * (value - mean);
+      assertEquals(values.length, singlePass.count);
+      assertEquals(mean, singlePass.mean, 1E-9 * mean);
+      assertEquals(m2 / values.length, singlePass.getVariance(),
+          1E-6 * m2 / values.length);
+
+      // Split the values into partial statistics of random sizes, some of
+      // them empty, as computed by different map tasks
+      List<Statistics> partials = new ArrayList<Statistics>();
+      int i = 0;
+      while (i < values.length) {
+        Statistics partial = new Statistics();
+        int size = random.nextInt(4) == 0 ? 0 : random.nextInt(800) + 1;
+        for (int j = 0; j < size && i < values.length; j++)
+          partial.add(values[i++]);
+        partials.add(partial);
+      }
+
+      // Merge the partial statistics in a random tree as done by combiners
+      // and reducers
+      while (partials.size() > 1) {
+        Statistics s1 = partials.remove(random.nextInt(partials.size()));
+        Statistics s2 = partials.remove(random.nextInt(partials.size()));
+        s1.merge(s2);
+        partials.add(s1);
+      }
+      assertSameStatistics(singlePass, partials.get(0));
+
+      // Merging into empty statistics copies them
+      Statistics empty = new Statistics();
+      empty.merge(singlePass);
+      assertSameStatistics(singlePass, empty);
+    }
+  }
+}
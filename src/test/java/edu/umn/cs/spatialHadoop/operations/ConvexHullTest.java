@@ -0,0 +1,231 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.operations.ConvexHull.Hull;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link ConvexHull}
+ */
+public class ConvexHullTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public ConvexHullTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ConvexHullTest.class);
+  }
+
+  /**
+   * Generates points with integer coordinates in a small range so that many
+   * points are duplicates or collinear with the edges of the hull. Some points
+   * are placed along the boundary of the range to create collinear vertices.
+   */
+  private static Point[] randomPoints(Random random, int count, int range) {
+    Point[] points = new Point[count];
+    for (int i = 0; i < count; i++) {
+      if (i % 10 == 0) {
+        // A point on one of the four sides of the range
+        int t = random.nextInt(range + 1);
+        switch (random.nextInt(4)) {
+        case 0: points[i] = new Point(t, 0); break;
+        case 1: points[i] = new Point(range, t); break;
+        case 2: points[i] = new Point(t, range); break;
+        default: points[i] = new Point(0, t); break;
+        }
+      } else {
+        points[i] = new Point(random.nextInt(range + 1), random.nextInt(range + 1));
+      }
+    }
+    return points;
+  }
+
+  private static String[] sorted(Point[] points) {
+    String[] strs = new String[points.length];
+    for (int i = 0; i < points.length; i++)
+      strs[i] = points[i].toString();
+    Arrays.sort(strs);
+    return strs;
+  }
+
+  private static void assertSameHull(Point[] allPoints, Point[] actual) {
+    Point[] expected = ConvexHull.convexHullInMemory(allPoints.clone());
+    assertTrue("Expected " + Arrays.toString(sorted(expected)) + " but found "
+        + Arrays.toString(sorted(actual)),
+        Arrays.equals(sorted(expected), sorted(actual)));
+  }
+
+  private static Hull hullOf(Point[] points, int from, int to) {
+    double[] xs = new double[to - from];
+    double[] ys = new double[to - from];
+    for (int i = from; i < to; i++) {
+      xs[i - from] = points[i].x;
+      ys[i - from] = points[i].y;
+    }
+    return new Hull(xs, ys, xs.length);
+  }
+
+  public void testMergeHulls() throws Exception {
+    Random random = new Random(0);
+    for (int round = 0; round < 50; round++) {
+      Point[] points = randomPoints(random, 1000, 5 + random.nextInt(50));
+      // Split the points into partial hulls of random sizes, including hulls
+      // of one or two points and missing (null) hulls
+      List<Hull> hulls = new ArrayList<Hull>();
+      int i = 0;
+      while (i < points.length) {
+        int size = Math.min(points.length - i, random.nextInt(3) == 0 ?
+            1 + random.nextInt(2) : 1 + random.nextInt(200));
+        hulls.add(hullOf(points, i, i + size));
+        if (random.nextInt(5) == 0)
+          hulls.add(null);
+        i += size;
+      }
+      Hull merged = ConvexHull.mergeHulls(hulls, 1 + random.nextInt(4));
+      assertSameHull(points, merged.toPoints());
+    }
+  }
+
+  public void testMergeDegenerateHulls() throws Exception {
+    // All points are duplicates of one point
+    Point[] points = new Point[20];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(3, 4);
+    List<Hull> hulls = new ArrayList<Hull>();
+    for (int i = 0; i < points.length; i += 5)
+      hulls.add(hullOf(points, i, i + 5));
+    Hull merged = ConvexHull.mergeHulls(hulls, 2);
+    assertEquals(1, merged.toPoints().length);
+    assertEquals(new Point(3, 4), merged.toPoints()[0]);
+
+    // All points on one line
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(i % 7, 2 * (i % 7) + 1);
+    hulls.clear();
+    for (int i = 0; i < points.length; i += 4)
+      hulls.add(hullOf(points, i, i + 4));
+    assertSameHull(points, ConvexHull.mergeHulls(hulls, 2).toPoints());
+    assertNull(ConvexHull.mergeHulls(new ArrayList<Hull>(), 2));
+  }
+
+  /**
+   * Writes the points as a globally indexed file with a uniform grid of
+   * gridSize x gridSize partitions. Each partition has the tight MBR of its
+   * points as in an STR index.
+   */
+  private static void writeIndexedFile(File indexDir, Point[] points,
+      int gridSize) throws Exception {
+    Rectangle mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (Point p : points)
+      mbr.expand(p);
+    List<List<Point>> cells = new ArrayList<List<Point>>();
+    for (int i = 0; i < gridSize * gridSize; i++)
+      cells.add(new ArrayList<Point>());
+    for (Point p : points) {
+      int col = Math.min(gridSize - 1, (int) ((p.x - mbr.x1) * gridSize / mbr.getWidth()));
+      int row = Math.min(gridSize - 1, (int) ((p.y - mbr.y1) * gridSize / mbr.getHeight()));
+      cells.get(row * gridSize + col).add(p);
+    }
+    indexDir.mkdir();
+    PrintStream master = new PrintStream(new File(indexDir, "_master.str"));
+    for (int i = 0; i < cells.size(); i++) {
+      if (cells.get(i).isEmpty())
+        continue;
+      Partition partition = new Partition();
+      partition.cellId = i;
+      partition.filename = String.format("part-%05d", i);
+      partition.set(Double.MAX_VALUE, Double.MAX_VALUE,
+          -Double.MAX_VALUE, -Double.MAX_VALUE);
+      PrintStream out = new PrintStream(new File(indexDir, partition.filename));
+      for (Point p : cells.get(i)) {
+        partition.expand(p);
+        partition.recordCount++;
+        out.println((int) p.x + "," + (int) p.y);
+      }
+      out.close();
+      partition.size = new File(indexDir, partition.filename).length();
+      master.println(partition.toText(new Text()));
+    }
+    master.close();
+  }
+
+  /**
+   * Computes the hull of an indexed file with the single machine algorithm
+   * which prunes dominated partitions and partitions inside the hull of the
+   * boundary partitions.
+   */
+  public void testConvexHullLocalIndexed() throws Exception {
+    File dir = File.createTempFile("convexhull", "");
+    dir.delete();
+    dir.mkdir();
+    try {
+      Random random = new Random(1);
+      for (int round = 0; round < 3; round++) {
+        Point[] points;
+        if (round == 0) {
+          points = randomPoints(random, 20000, 500);
+        } else {
+          // A diamond whose hull is far from the corners of the input MBR
+          // which leaves partitions inside the hull that are not dominated
+          points = new Point[20000];
+          for (int i = 0; i < points.length; i++) {
+            int u = random.nextInt(301), v = random.nextInt(301);
+            points[i] = new Point(u + v, u - v + 300);
+          }
+        }
+        File indexDir = new File(dir, "points_" + round + ".str");
+        writeIndexedFile(indexDir, points, 6);
+        Path outPath = new Path(dir.getPath(), "hull_" + round);
+        OperationsParams params = new OperationsParams(new Configuration(),
+            "shape:point", "-local");
+        ConvexHull.convexHullLocal(new Path(indexDir.getPath()), outPath, params);
+
+        List<Point> hull = new ArrayList<Point>();
+        for (File file : new File(outPath.toString()).listFiles()) {
+          if (file.getName().startsWith(".") || file.getName().startsWith("_"))
+            continue;
+          BufferedReader reader = new BufferedReader(new FileReader(file));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(",");
+            hull.add(new Point(Double.parseDouble(parts[0]), Double.parseDouble(parts[1])));
+          }
+          reader.close();
+        }
+        assertSameHull(points, hull.toArray(new Point[hull.size()]));
+      }
+    } finally {
+      FileSystem.getLocal(new Configuration()).delete(new Path(dir.getPath()), true);
+    }
+  }
+}
@@ -1,8 +1,15 @@
 package edu.umn.cs.spatialHadoop.operations;
 
+import java.io.File;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import junit.framework.Test;
@@ -46,4 +53,87 @@ public class LocalSamplerTest extends TestCase {
       throw new RuntimeException("Error running test", e);
     }*/
   }
+
+  /**
+   * Writes numLines lines where each line starts with its number. The first
+   * tenth of the lines are much longer than the others.
+   */
+  private static File writeSkewedFile(int numLines) throws Exception {
+    File file = File.createTempFile("skewed", ".txt");
+    file.deleteOnExit();
+    StringBuilder padding = new StringBuilder();
+    for (int i = 0; i < 1000; i++)
+      padding.append('x');
+    PrintStream out = new PrintStream(file);
+    for (int i = 0; i < numLines; i++)
+      out.println(i + "," + (i < numLines / 10 ? padding : "x"));
+    out.close();
+    return file;
+  }
+
+  private static int lineNumber(Text line) {
+    String str = line.toString();
+    return Integer.parseInt(str.substring(0, str.indexOf(',')));
+  }
+
+  public void testSampleByCountIsUniform() throws Exception {
+    final int numLines = 1000;
+    File file = writeSkewedFile(numLines);
+    FileSplit split = new FileSplit(new Path(file.getPath()), 0, file.length(),
+        new String[0]);
+    final int[] timesSampled = new int[numLines];
+    int numRounds = 200, sampleSize = 100;
+    // Sequential seeds give correlated random sequences
+    Random random = new Random(0);
+    for (int round = 0; round < numRounds; round++) {
+      final Set<Integer> sample = new HashSet<Integer>();
+      int count = LocalSampler.sampleFileSplitByCount(split, new Configuration(),
+          sampleSize, random.nextLong(), new ResultCollector<Text>() {
+        @Override
+        public void collect(Text line) {
+          int i = lineNumber(line);
+          assertTrue("Line #" + i + " sampled twice", sample.add(i));
+          timesSampled[i]++;
+        }
+      });
+      assertEquals(sampleSize, count);
+      assertEquals(sampleSize, sample.size());
+    }
+    // All lines are covered, including the first one
+    int longLinesSampled = 0;
+    for (int i = 0; i < numLines; i++) {
+      assertTrue("Line #" + i + " never sampled", timesSampled[i] > 0);
+      if (i < numLines / 10)
+        longLinesSampled += timesSampled[i];
+    }
+    // Long lines are not favored over short lines
+    double longLinesRatio = (double) longLinesSampled / (numRounds * sampleSize);
+    assertEquals(0.1, longLinesRatio, 0.02);
+  }
+
+  public void testSampleByCountFromSplits() throws Exception {
+    final int numLines = 1000;
+    File file = writeSkewedFile(numLines);
+    Path path = new Path(file.getPath());
+    // Split in the middle of a long line and exactly at the start of a line
+    long lineStart = 0;
+    for (int i = 0; i < numLines / 10 + 5; i++)
+      lineStart += (i + ",").length() + (i < numLines / 10 ? 1000 : 1) + 1;
+    long[] splitPoints = {0, 2500, lineStart, file.length()};
+    final int[] timesSampled = new int[numLines];
+    for (int i = 0; i < splitPoints.length - 1; i++) {
+      FileSplit split = new FileSplit(path, splitPoints[i],
+          splitPoints[i + 1] - splitPoints[i], new String[0]);
+      LocalSampler.sampleFileSplitByCount(split, new Configuration(),
+          numLines, i, new ResultCollector<Text>() {
+        @Override
+        public void collect(Text line) {
+          timesSampled[lineNumber(line)]++;
+        }
+      });
+    }
+    // A sample larger than the input returns each line exactly once
+    for (int i = 0; i < numLines; i++)
+      assertEquals("Line #" + i, 1, timesSampled[i]);
+  }
 }
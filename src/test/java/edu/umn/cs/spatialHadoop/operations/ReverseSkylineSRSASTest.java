@@ -0,0 +1,105 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.OperationsParams.Direction;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.indexing.RTree;
+import edu.umn.cs.spatialHadoop.io.MemoryInputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link ReverseSkylineSRSAS}
+ */
+public class ReverseSkylineSRSASTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public ReverseSkylineSRSASTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ReverseSkylineSRSASTest.class);
+  }
+
+  private static byte[] toText(Point[] points, int from, int to) {
+    StringBuilder text = new StringBuilder();
+    for (int i = from; i < to; i++)
+      text.append(points[i].toText(new Text())).append('\n');
+    return text.toString().getBytes();
+  }
+
+  private static RTree<Point> buildRTree(Point[] points, int from, int to)
+      throws Exception {
+    byte[] bytes = toText(points, from, to);
+    ByteArrayOutputStream treeBytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(treeBytes);
+    RTree.bulkLoadWrite(bytes, 0, bytes.length, 4, out, new Point(), false);
+    out.close();
+    RTree<Point> rtree = new RTree<Point>();
+    rtree.setStockObject(new Point());
+    rtree.readFields(new FSDataInputStream(new MemoryInputStream(treeBytes.toByteArray())));
+    return rtree;
+  }
+
+  private static String[] sorted(Point[] points) {
+    String[] strs = new String[points.length];
+    for (int i = 0; i < points.length; i++)
+      strs[i] = points[i].toString();
+    Arrays.sort(strs);
+    return strs;
+  }
+
+  public void testBranchAndBoundMatchesInMemory() throws Exception {
+    Random random = new Random(0);
+    File inFile = File.createTempFile("points", ".txt");
+    inFile.deleteOnExit();
+    for (int round = 0; round < 5; round++) {
+      Point[] points = new Point[1000];
+      for (int i = 0; i < points.length; i++)
+        points[i] = new Point(random.nextDouble() * 1000, random.nextDouble() * 1000);
+      Point query = new Point(random.nextDouble() * 1000, random.nextDouble() * 1000);
+
+      // Split the points into three trees as done for an indexed file
+      List<RTree<Point>> trees = new ArrayList<RTree<Point>>();
+      trees.add(buildRTree(points, 0, 300));
+      trees.add(buildRTree(points, 300, 700));
+      trees.add(buildRTree(points, 700, points.length));
+      Point[] bbrs = ReverseSkylineSRSAS.reverseSkylineRTree(trees, query);
+
+      FileOutputStream out = new FileOutputStream(inFile);
+      out.write(toText(points, 0, points.length));
+      out.close();
+      OperationsParams params = new OperationsParams(new Configuration(),
+          inFile.getPath(), "shape:point", "query:" + query.x + "," + query.y);
+      Point[] inMemory = ReverseSkylineSRSAS.ReverseskylineInMemory(points,
+          Direction.MaxMax, params);
+
+      assertTrue(bbrs.length > 0);
+      assertTrue("Different results for query " + query,
+          Arrays.equals(sorted(inMemory), sorted(bbrs)));
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.OperationsParams.Direction;
+import edu.umn.cs.spatialHadoop.core.Point;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link Skyline}
+ */
+public class SkylineTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SkylineTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SkylineTest.class);
+  }
+
+  private static List<Point> writeRandomPoints(File file, Random random,
+      int count) throws Exception {
+    List<Point> points = new ArrayList<Point>();
+    PrintStream out = new PrintStream(file);
+    for (int i = 0; i < count; i++) {
+      Point p = new Point(random.nextDouble() * 1000, random.nextDouble() * 1000);
+      points.add(p);
+      out.println(p.x + "," + p.y);
+    }
+    out.close();
+    return points;
+  }
+
+  private static String[] sorted(Point[] points) {
+    String[] strs = new String[points.length];
+    for (int i = 0; i < points.length; i++)
+      strs[i] = points[i].toString();
+    Arrays.sort(strs);
+    return strs;
+  }
+
+  private static void assertSameSkyline(List<Point> allPoints, Direction dir,
+      Point[] actual) {
+    Point[] expected = Skyline.skylineInMemory(
+        allPoints.toArray(new Point[allPoints.size()]), dir);
+    assertTrue(expected.length > 0);
+    assertTrue("Expected " + Arrays.toString(sorted(expected)) + " but found "
+        + Arrays.toString(sorted(actual)),
+        Arrays.equals(sorted(expected), sorted(actual)));
+  }
+
+  public void testIncrementalSkyline() throws Exception {
+    File dir = File.createTempFile("skyline", "");
+    dir.delete();
+    dir.mkdir();
+    try {
+      for (Direction direction : Direction.values()) {
+        Random random = new Random(direction.ordinal());
+        File base = new File(dir, "base_" + direction);
+        File appended1 = new File(dir, "appended1_" + direction);
+        File appended2 = new File(dir, "appended2_" + direction);
+        File appended3 = new File(dir, "appended3_" + direction);
+        List<Point> allPoints = new ArrayList<Point>();
+        allPoints.addAll(writeRandomPoints(base, random, 2000));
+        allPoints.addAll(writeRandomPoints(appended1, random, 1000));
+        allPoints.addAll(writeRandomPoints(appended2, random, 1000));
+        OperationsParams params = new OperationsParams(new Configuration(),
+            "shape:point", "-local", "dir:" + direction);
+        Path basePath = new Path(base.getPath());
+
+        // No stored skyline, computed from the dataset and the appended files
+        Point[] skyline = Skyline.skylineIncremental(basePath, new Path[] {
+            new Path(appended1.getPath()), new Path(appended2.getPath())}, params);
+        assertSameSkyline(allPoints, direction, skyline);
+        FileSystem fs = FileSystem.getLocal(params);
+        assertSameSkyline(allPoints, direction,
+            Skyline.readSkyline(fs, Skyline.getSkylinePath(fs, basePath, direction)));
+
+        // Update the stored skyline with more appended points
+        allPoints.addAll(writeRandomPoints(appended3, random, 3000));
+        skyline = Skyline.skylineIncremental(basePath,
+            new Path[] {new Path(appended3.getPath())}, params);
+        assertSameSkyline(allPoints, direction, skyline);
+      }
+    } finally {
+      FileSystem.getLocal(new Configuration()).delete(new Path(dir.getPath()), true);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.util.Random;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.visualization.FrequencyMap.SmoothType;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link FrequencyMap}
+ */
+public class FrequencyMapTest extends TestCase {
+
+  /**Same as the standard deviation of the Gaussian kernel in FrequencyMap*/
+  private static final int GaussianStdev = 8;
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public FrequencyMapTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(FrequencyMapTest.class);
+  }
+
+  /**
+   * Smooths the given points by stamping the kernel at each of them. This is
+   * a direct two-dimensional convolution of the points with the kernel.
+   * @param xs - x coordinates of the points in pixels
+   * @param ys - y coordinates of the points in pixels
+   */
+  private static double[] bruteForceSmooth(int[] xs, int[] ys, int width,
+      int height, int radius, SmoothType smoothType) {
+    double[] values = new double[width * height];
+    for (int i = 0; i < xs.length; i++) {
+      // Points beyond the border around the canvas are not counted
+      if (xs[i] < -radius || xs[i] >= width + radius ||
+          ys[i] < -radius || ys[i] >= height + radius)
+        continue;
+      for (int dy = -radius; dy < radius; dy++) {
+        for (int dx = -radius; dx < radius; dx++) {
+          int x = xs[i] + dx, y = ys[i] + dy;
+          if (x < 0 || x >= width || y < 0 || y >= height)
+            continue;
+          double value;
+          if (smoothType == SmoothType.Gaussian)
+            value = Math.exp(-(dx * dx + dy * dy) / (2.0 * GaussianStdev * GaussianStdev));
+          else
+            value = dx * dx + dy * dy < radius * radius ? 1 : 0;
+          values[y * width + x] += value;
+        }
+      }
+    }
+    return values;
+  }
+
+  private static void assertSameValues(double[] expected, float[] actual,
+      SmoothType smoothType) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      if (smoothType == SmoothType.Flat)
+        assertEquals("Pixel #" + i, expected[i], actual[i], 0);
+      else
+        assertEquals("Pixel #" + i, expected[i], actual[i], 1E-4 * Math.max(1, expected[i]));
+    }
+  }
+
+  /**
+   * Generates random points in and around a canvas of the given size. Some
+   * points fall in the border around the canvas and some beyond it.
+   */
+  private static int[][] randomPoints(Random random, int count, int width,
+      int height, int margin) {
+    int[][] points = new int[2][count];
+    for (int i = 0; i < count; i++) {
+      points[0][i] = random.nextInt(width + 2 * margin) - margin;
+      points[1][i] = random.nextInt(height + 2 * margin) - margin;
+    }
+    // Make sure some points are clustered in one pixel
+    for (int i = 0; i < count / 10; i++) {
+      points[0][i] = width / 3;
+      points[1][i] = height / 2;
+    }
+    return points;
+  }
+
+  private void testSmooth(SmoothType smoothType) {
+    Random random = new Random(0);
+    int width = 60, height = 45;
+    for (int radius : new int[] {1, 2, 5, 7, 16}) {
+      FrequencyMap map = new FrequencyMap(new Rectangle(0, 0, width, height),
+          width, height, radius, smoothType);
+      int[][] points = randomPoints(random, 300, width, height, radius + 3);
+      for (int i = 0; i < points[0].length; i++)
+        map.addPoint(points[0][i], points[1][i]);
+      assertSameValues(bruteForceSmooth(points[0], points[1], width, height,
+          radius, smoothType), map.smooth(), smoothType);
+    }
+  }
+
+  public void testGaussianKernel() {
+    testSmooth(SmoothType.Gaussian);
+  }
+
+  public void testFlatKernel() {
+    testSmooth(SmoothType.Flat);
+  }
+
+  /**
+   * Adds random points to partial maps of the four quarters of a canvas,
+   * including their borders, merges them into the canvas and compares the
+   * result to smoothing all points directly in the canvas.
+   */
+  private void testMerge(SmoothType smoothType) {
+    Random random = new Random(1);
+    int width = 80, height = 60, radius = 6;
+    Rectangle mbr = new Rectangle(0, 0, 800, 600);
+    FrequencyMap merged = new FrequencyMap(mbr, width, height, radius, smoothType);
+    int numPoints = 0;
+    int[] xs = new int[4 * 200], ys = new int[4 * 200];
+    for (int q = 0; q < 4; q++) {
+      int qx = (q % 2) * width / 2, qy = (q / 2) * height / 2;
+      Rectangle quarterMBR = new Rectangle(qx * 10, qy * 10,
+          (qx + width / 2) * 10, (qy + height / 2) * 10);
+      FrequencyMap quarter = new FrequencyMap(quarterMBR, width / 2,
+          height / 2, radius, smoothType);
+      // Points inside the quarter and in the border around it
+      int[][] points = randomPoints(random, 200, width / 2, height / 2, radius);
+      for (int i = 0; i < points[0].length; i++) {
+        quarter.addPoint(points[0][i], points[1][i]);
+        xs[numPoints] = points[0][i] + qx;
+        ys[numPoints] = points[1][i] + qy;
+        numPoints++;
+      }
+      merged.mergeWith(quarter);
+    }
+    // Points in the borders of the quarters are smoothed across the quarters
+    // and points in the border of the canvas still affect its pixels
+    assertSameValues(bruteForceSmooth(xs, ys, width, height, radius, smoothType),
+        merged.smooth(), smoothType);
+  }
+
+  public void testMergeGaussian() {
+    testMerge(SmoothType.Gaussian);
+  }
+
+  public void testMergeFlat() {
+    testMerge(SmoothType.Flat);
+  }
+}
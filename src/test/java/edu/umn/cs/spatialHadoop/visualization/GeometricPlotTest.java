@@ -0,0 +1,110 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.awt.image.BufferedImage;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link GeometricPlot.GeometricRasterizer}
+ */
+public class GeometricPlotTest extends TestCase {
+  private static final int tileSize = 256;
+  private static final int levels = 12;
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public GeometricPlotTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(GeometricPlotTest.class);
+  }
+
+  /**
+   * Plots the given geometry to one tile of each level of a pyramid that
+   * covers the area (0,0)-(256,256) and returns the pixels of all tiles.
+   */
+  private int[][] plotLevels(Geometry geom, boolean simplify) {
+    OperationsParams params = new OperationsParams();
+    params.setBoolean("simplify", simplify);
+    GeometricPlot.GeometricRasterizer plotter = new GeometricPlot.GeometricRasterizer();
+    plotter.configure(params);
+    Shape shape = new OGCJTSShape(geom);
+    int[][] pixels = new int[levels][];
+    for (int z = 0; z < levels; z++) {
+      double pixelSize = 256.0 / (1 << z) / tileSize;
+      // The tile at level z that contains the first coordinate
+      int x = (int) Math.floor(geom.getCoordinate().x / (pixelSize * tileSize));
+      int y = (int) Math.floor(geom.getCoordinate().y / (pixelSize * tileSize));
+      Rectangle tileMBR = new Rectangle(x * pixelSize * tileSize, y * pixelSize * tileSize,
+          (x + 1) * pixelSize * tileSize, (y + 1) * pixelSize * tileSize);
+      Canvas canvas = plotter.createCanvas(tileSize, tileSize, tileMBR);
+      Shape levelShape = plotter.simplify(shape, pixelSize, pixelSize);
+      if (levelShape != null)
+        plotter.plot(canvas, levelShape);
+      BufferedImage img = ((ImageCanvas) canvas).getImage();
+      pixels[z] = img.getRGB(0, 0, tileSize, tileSize, null, 0, tileSize);
+    }
+    return pixels;
+  }
+
+  private void assertSamePixels(String wkt) throws Exception {
+    Geometry geom = new WKTReader().read(wkt);
+    int[][] expected = plotLevels(geom, false);
+    int[][] actual = plotLevels(geom, true);
+    boolean drawn = false;
+    for (int z = 0; z < levels; z++) {
+      for (int i = 0; i < expected[z].length; i++) {
+        assertEquals("Pixel #" + i + " differs in level " + z, expected[z][i], actual[z][i]);
+        drawn = drawn || expected[z][i] != 0;
+      }
+    }
+    assertTrue("Nothing was plotted", drawn);
+  }
+
+  /**
+   * Generates a polygon with the given number of vertices along a circle.
+   */
+  private static String circle(double cx, double cy, double r, int numPoints) {
+    StringBuilder wkt = new StringBuilder("POLYGON((");
+    for (int i = 0; i <= numPoints; i++) {
+      double angle = 2 * Math.PI * (i % numPoints) / numPoints;
+      if (i > 0)
+        wkt.append(", ");
+      wkt.append(cx + r * Math.cos(angle)).append(' ').append(cy + r * Math.sin(angle));
+    }
+    return wkt.append("))").toString();
+  }
+
+  public void testSubPixelPolygon() throws Exception {
+    assertSamePixels("POLYGON((100.1 100.1, 100.13 100.1, 100.13 100.12, 100.1 100.1))");
+    // Drawn as one pixel in the deep levels and skipped in the top level
+    // where it is too short to be drawn
+    assertSamePixels("POLYGON((100.1 100.1, 100.1004 100.1, 100.1004 100.1004, 100.1 100.1))");
+    assertSamePixels(circle(50.5, 60.5, 0.01, 40));
+  }
+
+  public void testMultiVertexPolygon() throws Exception {
+    assertSamePixels(circle(128.3, 127.7, 40, 500));
+    assertSamePixels(circle(30.2, 200.6, 1.5, 100));
+    assertSamePixels("MULTIPOLYGON(((10 10, 20 10, 20 20, 10 20, 10 10)), " +
+        "((30.1 30.1, 30.15 30.1, 30.15 30.15, 30.1 30.1)))");
+  }
+}
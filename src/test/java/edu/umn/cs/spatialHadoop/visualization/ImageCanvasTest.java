@@ -0,0 +1,147 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link ImageCanvas}
+ */
+public class ImageCanvasTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public ImageCanvasTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ImageCanvasTest.class);
+  }
+
+  /**
+   * Fills the canvas with random pixels where many of them are fully
+   * transparent or fully opaque as in real tiles.
+   */
+  private static void fillRandom(ImageCanvas canvas, Random random) {
+    int[] pixels = canvas.getPixels();
+    for (int i = 0; i < pixels.length; i++) {
+      int alpha;
+      switch (random.nextInt(4)) {
+      case 0: alpha = 0; break;
+      case 1: alpha = 0xff; break;
+      default: alpha = random.nextInt(256); break;
+      }
+      pixels[i] = (alpha << 24) | random.nextInt(1 << 24);
+    }
+  }
+
+  /**
+   * Copies the pixels of the image as is. Drawing the image on an empty one
+   * would composite it and round the translucent pixels.
+   */
+  private static BufferedImage copyOf(BufferedImage image) {
+    BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(),
+        BufferedImage.TYPE_INT_ARGB);
+    copy.setData(image.getRaster());
+    return copy;
+  }
+
+  public void testMergeMatchesDrawImage() {
+    Random random = new Random(0);
+    Rectangle[] otherMBRs = {
+        new Rectangle(0, 0, 256, 256), // Fully overlapping
+        new Rectangle(64, 32, 320, 288), // Partially overlapping
+        new Rectangle(-100, 50, 156, 306) // Out of the left side
+    };
+    for (Rectangle otherMBR : otherMBRs) {
+      ImageCanvas canvas = new ImageCanvas(new Rectangle(0, 0, 256, 256), 256, 256);
+      ImageCanvas other = new ImageCanvas(otherMBR, 256, 256);
+      fillRandom(canvas, random);
+      fillRandom(other, random);
+
+      BufferedImage expected = copyOf(canvas.getImage());
+      Graphics2D g = expected.createGraphics();
+      g.drawImage(other.getImage(), (int) otherMBR.x1, (int) otherMBR.y1, null);
+      g.dispose();
+
+      canvas.mergeWith(other);
+      int[] expectedPixels = expected.getRGB(0, 0, 256, 256, null, 0, 256);
+      int[] actualPixels = canvas.getPixels();
+      int numDifferent = 0;
+      for (int i = 0; i < expectedPixels.length; i++)
+        if (expectedPixels[i] != actualPixels[i])
+          numDifferent++;
+      assertEquals("Different pixels merging " + otherMBR, 0, numDifferent);
+    }
+  }
+
+  private static int[] writeAndReadInts(int[] values) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    Canvas.writeInts(out, values);
+    out.close();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    int[] read = new int[values.length];
+    Canvas.readInts(in, read);
+    assertEquals("Extra bytes written", -1, in.read());
+    return read;
+  }
+
+  public void testWriteReadInts() throws Exception {
+    Random random = new Random(0);
+    // Few long runs are written with run-length encoding
+    int[] runs = new int[10000];
+    for (int i = 0; i < runs.length; i++)
+      runs[i] = i < 3000 ? 0 : (i < 9999 ? 0xff00ff00 : -1);
+    assertTrue(Arrays.equals(runs, writeAndReadInts(runs)));
+    // Many short runs are written as raw data
+    int[] raw = new int[10000];
+    for (int i = 0; i < raw.length; i++)
+      raw[i] = random.nextInt(3);
+    assertTrue(Arrays.equals(raw, writeAndReadInts(raw)));
+    // Corner cases
+    assertTrue(Arrays.equals(new int[0], writeAndReadInts(new int[0])));
+    assertTrue(Arrays.equals(new int[] {5}, writeAndReadInts(new int[] {5})));
+  }
+
+  public void testDrawAfterReadFields() throws Exception {
+    Rectangle mbr = new Rectangle(0, 0, 100, 100);
+    ImageCanvas canvas = new ImageCanvas(mbr, 10, 10);
+    canvas.setColor(Color.RED);
+    canvas.drawShape(new Rectangle(10, 10, 50, 50));
+
+    // Replace the image with a canvas of a different size
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    new ImageCanvas(mbr, 20, 20).write(out);
+    out.close();
+    canvas.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    // Drawing has to go to the new image
+    canvas.drawShape(new Rectangle(10, 10, 50, 50));
+    int numDrawn = 0;
+    for (int pixel : canvas.getPixels())
+      if (pixel != 0)
+        numDrawn++;
+    assertTrue(numDrawn > 0);
+  }
+}
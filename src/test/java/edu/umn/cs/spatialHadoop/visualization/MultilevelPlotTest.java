@@ -5,6 +5,7 @@ import java.io.FilenameFilter;
 import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.fs.Path;
@@ -21,6 +22,7 @@ public class MultilevelPlotTest extends TestCase {
   private static final String dirName = "src/test/temp";
   private static final String inFileName = dirName+"/test.rect";
   private static final String outFileName = dirName+"/test_pyramid";
+  private static final String incrementalDirName = dirName+"/test_incremental";
   
   /**
    * Create the test case
@@ -55,6 +57,7 @@ public class MultilevelPlotTest extends TestCase {
     super.tearDown();
     new File(inFileName).delete();
     FileUtils.deleteDirectory(new File(outFileName));
+    FileUtils.deleteDirectory(new File(incrementalDirName));
   }
 
   public void testOneLevelLocal() {
@@ -180,4 +183,72 @@ public class MultilevelPlotTest extends TestCase {
       throw new RuntimeException(e);
     }
   }
+
+  private static void writeRandomPoints(File file, Random random, int count,
+      double x1, double y1, double x2, double y2) throws Exception {
+    PrintWriter out = new PrintWriter(file);
+    for (int i = 0; i < count; i++)
+      out.println((x1 + random.nextDouble() * (x2 - x1)) + "," +
+          (y1 + random.nextDouble() * (y2 - y1)));
+    out.close();
+  }
+
+  /**
+   * Updates a pyramid with a new file and compares it with a pyramid of all
+   * files plotted from scratch
+   */
+  private void testIncrementalSameAsFullPlot(Class<? extends Plotter> plotterClass)
+      throws Exception {
+    File dir = new File(incrementalDirName);
+    FileUtils.forceMkdir(dir);
+    Random random = new Random(0);
+    File file1 = new File(dir, "points1.txt");
+    File file2 = new File(dir, "points2.txt");
+    writeRandomPoints(file1, random, 1000, 0, 0, 1024, 1024);
+    // The new data is in a small region to affect only a few tiles
+    writeRandomPoints(file2, random, 100, 600, 100, 700, 200);
+    Path[] allFiles = {new Path(file1.getPath()), new Path(file2.getPath())};
+
+    OperationsParams params = new OperationsParams();
+    params.setBoolean("local", true);
+    params.setInt("levels", 4);
+    params.set("mbr", "0,0,1024,1024");
+    params.set("shape", "point");
+    params.setBoolean("overwrite", true);
+    params.setBoolean("vflip", true);
+    params.set("valuerange", "0,10");
+
+    File incremental = new File(dir, "pyramid_incremental");
+    File full = new File(dir, "pyramid_full");
+    MultilevelPlot.plot(new Path[] {allFiles[0]}, new Path(incremental.getPath()),
+        plotterClass, params);
+    MultilevelPlot.plotIncremental(new Path[] {allFiles[1]}, allFiles,
+        new Path(incremental.getPath()), plotterClass, params);
+    MultilevelPlot.plot(allFiles, new Path(full.getPath()), plotterClass, params);
+
+    FilenameFilter tileFiles = new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith("tile-");
+      }
+    };
+    String[] fullTiles = full.list(tileFiles);
+    String[] incrementalTiles = incremental.list(tileFiles);
+    Arrays.sort(fullTiles);
+    Arrays.sort(incrementalTiles);
+    assertTrue(Arrays.equals(fullTiles, incrementalTiles));
+    for (String tile : fullTiles) {
+      assertTrue("Tile " + tile + " differs", Arrays.equals(
+          FileUtils.readFileToByteArray(new File(full, tile)),
+          FileUtils.readFileToByteArray(new File(incremental, tile))));
+    }
+  }
+
+  public void testIncrementalMergeWithExistingTiles() throws Exception {
+    testIncrementalSameAsFullPlot(GeometricPlot.GeometricRasterizer.class);
+  }
+
+  public void testIncrementalReplotFromAllFiles() throws Exception {
+    testIncrementalSameAsFullPlot(HeatMapPlot.HeatMapRasterizer.class);
+  }
 }
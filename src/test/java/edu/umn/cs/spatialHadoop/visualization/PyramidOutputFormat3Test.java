@@ -0,0 +1,196 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link PyramidOutputFormat3}
+ */
+public class PyramidOutputFormat3Test extends TestCase {
+  private static final String dirName = "src/test/temp";
+  private static final String inFileName = dirName+"/test_lines.wkt";
+  private static final String newFileName = dirName+"/test_new_lines.wkt";
+  private static final String outFileName = dirName+"/test_pyramid3";
+  private static final int levels = 3;
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public PyramidOutputFormat3Test(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(PyramidOutputFormat3Test.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    FileUtils.forceMkdir(new File(dirName));
+    PrintWriter inTest = new PrintWriter(inFileName);
+    // The MBR of this line overlaps tiles that the line does not cross which
+    // generates empty tiles
+    inTest.println("LINESTRING(0.5 1, 7.5 7.9)");
+    inTest.println("LINESTRING(0.5 7, 1.5 7.5)");
+    inTest.close();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    new File(inFileName).delete();
+    new File(newFileName).delete();
+    for (String suffix : new String[] {"_files", "_empty", "_archive", "_all"})
+      FileUtils.deleteDirectory(new File(outFileName + suffix));
+  }
+
+  private static OperationsParams pyramidParams(boolean archive,
+      boolean deduplicate) {
+    OperationsParams params = new OperationsParams();
+    params.setBoolean("local", false);
+    params.setInt("levels", levels);
+    params.set("mbr", "0,0,8,8");
+    params.set("shape", "wkt");
+    params.setBoolean("overwrite", true);
+    params.setBoolean("vflip", false);
+    params.setInt(MultilevelPlot.FlatPartitioningLevelThreshold, -1);
+    params.setBoolean(PyramidOutputFormat3.ArchiveTiles, archive);
+    params.setBoolean(PyramidOutputFormat3.DeduplicateTiles, deduplicate);
+    return params;
+  }
+
+  /**
+   * Generates a pyramid with MapReduce and returns the content of all tiles
+   * in all levels as served by HadoopvizServer, i.e., from the tile file or
+   * from any of the archives.
+   */
+  private byte[][] plotPyramid(String outName, boolean archive,
+      boolean deduplicate) throws Exception {
+    return plotPyramid(new Path[] {new Path(inFileName)}, outName, archive,
+        deduplicate);
+  }
+
+  private byte[][] plotPyramid(Path[] inPaths, String outName, boolean archive,
+      boolean deduplicate) throws Exception {
+    OperationsParams params = pyramidParams(archive, deduplicate);
+    MultilevelPlot.plot(inPaths, new Path(outName),
+        GeometricPlot.GeometricRasterizer.class, params);
+    return readTiles(outName);
+  }
+
+  /**
+   * Reads all tiles of a pyramid in the same order of HadoopvizServer, i.e.,
+   * from the tile file or from any of the archives.
+   */
+  private byte[][] readTiles(String outName) throws Exception {
+    OperationsParams params = new OperationsParams();
+    File outDir = new File(outName);
+    FileSystem fs = FileSystem.getLocal(params);
+    List<TileArchive> archives = new ArrayList<TileArchive>();
+    for (String name : outDir.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(TileArchive.Extension);
+      }
+    })) {
+      archives.add(new TileArchive(fs, new Path(outName, name)));
+    }
+    List<byte[]> tiles = new ArrayList<byte[]>();
+    for (int z = 0; z < levels; z++) {
+      for (int x = 0; x < (1 << z); x++) {
+        for (int y = 0; y < (1 << z); y++) {
+          File tileFile = new File(outDir, "tile-" + z + "-" + x + "-" + y + ".png");
+          byte[] tile = null;
+          if (tileFile.exists())
+            tile = FileUtils.readFileToByteArray(tileFile);
+          for (int i = 0; tile == null && i < archives.size(); i++)
+            tile = archives.get(i).getTile(z, x, y);
+          tiles.add(tile);
+        }
+      }
+    }
+    for (TileArchive a : archives)
+      a.close();
+    return tiles.toArray(new byte[tiles.size()][]);
+  }
+
+  public void testSameTilesWithAndWithoutArchives() throws Exception {
+    byte[][] expected = plotPyramid(outFileName + "_files", false, false);
+    byte[][] deduplicated = plotPyramid(outFileName + "_empty", false, true);
+    byte[][] archived = plotPyramid(outFileName + "_archive", true, true);
+
+    // Make sure that the test covers empty tiles
+    GeometricPlot.GeometricRasterizer plotter = new GeometricPlot.GeometricRasterizer();
+    plotter.configure(new OperationsParams());
+    ByteArrayOutputStream emptyTile = new ByteArrayOutputStream();
+    plotter.writeImage(plotter.createCanvas(256, 256, new Rectangle(0, 0, 1, 1)),
+        new DataOutputStream(emptyTile), false);
+    int numEmptyTiles = 0, numTiles = 0;
+    for (byte[] tile : expected) {
+      if (tile != null) {
+        numTiles++;
+        if (Arrays.equals(tile, emptyTile.toByteArray()))
+          numEmptyTiles++;
+      }
+    }
+    assertTrue("No empty tiles were generated", numEmptyTiles > 0);
+    assertTrue("No non-empty tiles were generated", numTiles > numEmptyTiles);
+
+    // Empty tiles are not written as files when deduplicated and no tiles
+    // are written as files when archived
+    FilenameFilter tileFiles = new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith("tile-");
+      }
+    };
+    assertEquals(numTiles - numEmptyTiles,
+        new File(outFileName + "_empty").list(tileFiles).length);
+    assertEquals(0, new File(outFileName + "_archive").list(tileFiles).length);
+
+    for (int i = 0; i < expected.length; i++) {
+      assertTrue("Tile #" + i + " differs", Arrays.equals(expected[i], deduplicated[i]));
+      assertTrue("Tile #" + i + " differs", Arrays.equals(expected[i], archived[i]));
+    }
+  }
+
+  public void testIncrementalUpdateOfArchivedPyramid() throws Exception {
+    PrintWriter newLines = new PrintWriter(newFileName);
+    newLines.println("LINESTRING(1 1, 7 2)");
+    newLines.close();
+    Path[] allFiles = {new Path(inFileName), new Path(newFileName)};
+    byte[][] expected = plotPyramid(allFiles, outFileName + "_all", false, false);
+
+    // Update an archived pyramid of the first file with the new file
+    plotPyramid(outFileName + "_archive", true, true);
+    MultilevelPlot.plotIncremental(new Path[] {new Path(newFileName)}, allFiles,
+        new Path(outFileName + "_archive"), GeometricPlot.GeometricRasterizer.class,
+        pyramidParams(true, true));
+    byte[][] updated = readTiles(outFileName + "_archive");
+    for (int i = 0; i < expected.length; i++)
+      assertTrue("Tile #" + i + " differs", Arrays.equals(expected[i], updated[i]));
+  }
+}
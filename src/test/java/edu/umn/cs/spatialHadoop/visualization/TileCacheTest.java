@@ -0,0 +1,150 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link TileCache}
+ */
+public class TileCacheTest extends TestCase {
+
+  private File cacheDir;
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public TileCacheTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(TileCacheTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = File.createTempFile("tilecache", "");
+    cacheDir.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileSystem.getLocal(new Configuration()).delete(new Path(cacheDir.getPath()), true);
+  }
+
+  private static byte[] tile(int value, int size) {
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte) value);
+    return data;
+  }
+
+  private int countTileFiles() {
+    int count = 0;
+    for (File file : cacheDir.listFiles())
+      if (file.getName().endsWith(".tile"))
+        count++;
+    return count;
+  }
+
+  private static void assertStatistic(TileCache cache, String name, long value) {
+    String stats = cache.getStatisticsJSON();
+    assertTrue(stats, stats.contains("\"" + name + "\":" + value + ","));
+  }
+
+  public void testMemoryEviction() {
+    TileCache cache = new TileCache(300, null, 0);
+    cache.put("a", 1, tile(1, 100));
+    cache.put("b", 1, tile(2, 100));
+    cache.put("c", 1, tile(3, 100));
+    // Accessing a makes b the least recently used tile
+    assertTrue(Arrays.equals(tile(1, 100), cache.get("a", 1)));
+    cache.put("d", 1, tile(4, 100));
+    assertNull(cache.get("b", 1));
+    assertTrue(Arrays.equals(tile(1, 100), cache.get("a", 1)));
+    assertTrue(Arrays.equals(tile(3, 100), cache.get("c", 1)));
+    assertTrue(Arrays.equals(tile(4, 100), cache.get("d", 1)));
+    assertStatistic(cache, "MemoryHits", 4);
+    assertStatistic(cache, "Misses", 1);
+    // A tile larger than the memory is not cached
+    cache.put("e", 1, tile(5, 301));
+    assertNull(cache.get("e", 1));
+    assertStatistic(cache, "MemoryTiles", 3);
+  }
+
+  public void testDiskSpillAndReload() {
+    TileCache cache = new TileCache(150, cacheDir, 1000);
+    cache.put("a", 1, tile(1, 100));
+    cache.put("b", 1, tile(2, 100));
+    // Only b fits in memory and a is read back from disk
+    assertEquals(2, countTileFiles());
+    assertTrue(Arrays.equals(tile(1, 100), cache.get("a", 1)));
+    assertStatistic(cache, "DiskHits", 1);
+    assertTrue(Arrays.equals(tile(1, 100), cache.get("a", 1)));
+    assertStatistic(cache, "MemoryHits", 1);
+
+    // A new cache, e.g., after a restart, reloads the tiles from disk
+    cache = new TileCache(150, cacheDir, 1000);
+    assertStatistic(cache, "DiskTiles", 2);
+    assertTrue(Arrays.equals(tile(2, 100), cache.get("b", 1)));
+    assertTrue(Arrays.equals(tile(1, 100), cache.get("a", 1)));
+    assertStatistic(cache, "DiskHits", 2);
+  }
+
+  public void testDiskEviction() throws Exception {
+    TileCache cache = new TileCache(0, cacheDir, 250);
+    cache.put("a", 1, tile(1, 100));
+    cache.put("b", 1, tile(2, 100));
+    assertTrue(Arrays.equals(tile(1, 100), cache.get("a", 1)));
+    cache.put("c", 1, tile(3, 100));
+    // b is the least recently used tile
+    assertEquals(2, countTileFiles());
+    assertNull(cache.get("b", 1));
+    assertNotNull(cache.get("a", 1));
+    assertNotNull(cache.get("c", 1));
+
+    // The access order on disk survives a restart
+    Thread.sleep(1000);
+    cache.get("a", 1);
+    cache = new TileCache(0, cacheDir, 250);
+    cache.put("d", 1, tile(4, 100));
+    assertNull(cache.get("c", 1));
+    assertNotNull(cache.get("a", 1));
+    assertNotNull(cache.get("d", 1));
+  }
+
+  public void testVersionChange() {
+    TileCache cache = new TileCache(1000, cacheDir, 1000);
+    cache.put("a", 1, tile(1, 100));
+    cache.put("b", 1, tile(2, 100));
+    // A tile of an old version is dropped from memory and disk
+    assertNull(cache.get("a", 2));
+    assertEquals(1, countTileFiles());
+    assertNull(cache.get("a", 1));
+    assertStatistic(cache, "StaleTiles", 1);
+
+    // Replacing a tile with a new version deletes the old file
+    cache.put("b", 2, tile(3, 100));
+    assertEquals(1, countTileFiles());
+    assertTrue(Arrays.equals(tile(3, 100), cache.get("b", 2)));
+
+    // Tiles of an old version are not served after a restart
+    cache = new TileCache(1000, cacheDir, 1000);
+    assertNull(cache.get("b", 3));
+    assertEquals(0, countTileFiles());
+    assertStatistic(cache, "DiskTiles", 0);
+  }
+}
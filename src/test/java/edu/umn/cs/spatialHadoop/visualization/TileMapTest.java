@@ -0,0 +1,190 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link TileMap}
+ */
+public class TileMapTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public TileMapTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(TileMapTest.class);
+  }
+
+  /**A canvas that is only compared by identity*/
+  static class TestCanvas extends Canvas {
+  }
+
+  /**Same hash function as the one used in {@link TileMap}*/
+  private static int slot(long key, int capacity) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32) & (capacity - 1);
+  }
+
+  /**
+   * Finds keys that all map to the same slot in a table of the given
+   * capacity so that they are stored in one probe chain.
+   */
+  private static long[] collidingKeys(int count, int capacity) {
+    long[] keys = new long[count];
+    int n = 0;
+    int home = slot(TileIndex.encode(5, 0, 0), capacity);
+    for (int x = 0; n < count; x++) {
+      long key = TileIndex.encode(5, x % 32, x / 32);
+      if (slot(key, capacity) == home)
+        keys[n++] = key;
+    }
+    return keys;
+  }
+
+  public void testCollisionsAndRemoval() throws Exception {
+    // An initial capacity of 8 creates a table of 16 slots
+    TileMap map = new TileMap(8);
+    long[] keys = collidingKeys(5, 16);
+    Canvas[] canvases = new Canvas[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      canvases[i] = new TestCanvas();
+      map.put(keys[i], canvases[i]);
+    }
+    assertEquals(keys.length, map.size());
+    for (int i = 0; i < keys.length; i++)
+      assertSame(canvases[i], map.get(keys[i]));
+
+    // Replacing an entry in the chain does not add a new one
+    Canvas replacement = new TestCanvas();
+    map.put(keys[3], replacement);
+    canvases[3] = replacement;
+    assertEquals(keys.length, map.size());
+
+    // Remove entries from the middle and the head of the chain. All entries
+    // after them must still be reachable
+    assertSame(canvases[2], map.remove(keys[2]));
+    assertNull(map.get(keys[2]));
+    assertNull(map.remove(keys[2]));
+    assertSame(canvases[0], map.remove(keys[0]));
+    assertEquals(keys.length - 2, map.size());
+    for (int i : new int[] {1, 3, 4})
+      assertSame(canvases[i], map.get(keys[i]));
+
+    // Reinserting the removed keys fills the chain again
+    map.put(keys[2], canvases[2]);
+    map.put(keys[0], canvases[0]);
+    for (int i = 0; i < keys.length; i++)
+      assertSame(canvases[i], map.get(keys[i]));
+  }
+
+  public void testResize() throws Exception {
+    TileMap map = new TileMap(4);
+    Map<Long, Canvas> expected = new HashMap<Long, Canvas>();
+    for (int i = 0; i < 1000; i++) {
+      long key = TileIndex.encode(10, i % 37, i / 37);
+      Canvas canvas = new TestCanvas();
+      map.put(key, canvas);
+      expected.put(key, canvas);
+    }
+    assertEquals(expected.size(), map.size());
+    for (Map.Entry<Long, Canvas> entry : expected.entrySet())
+      assertSame(entry.getValue(), map.get(entry.getKey()));
+    assertNull(map.get(TileIndex.encode(11, 0, 0)));
+  }
+
+  public void testRandomOperations() throws Exception {
+    // Few keys in a small table generate long probe chains and many removals
+    // in the middle of them
+    Random random = new Random(0);
+    TileMap map = new TileMap(16);
+    Map<Long, Canvas> expected = new HashMap<Long, Canvas>();
+    for (int op = 0; op < 100000; op++) {
+      long key = TileIndex.encode(8, random.nextInt(8), random.nextInt(8));
+      switch (random.nextInt(3)) {
+      case 0:
+        Canvas canvas = new TestCanvas();
+        map.put(key, canvas);
+        expected.put(key, canvas);
+        break;
+      case 1:
+        assertSame(expected.remove(key), map.remove(key));
+        break;
+      default:
+        assertSame(expected.get(key), map.get(key));
+      }
+      assertEquals(expected.size(), map.size());
+    }
+  }
+
+  public void testSpillLeastRecentlyUpdated() throws Exception {
+    final List<Long> spilled = new ArrayList<Long>();
+    final Map<Long, Canvas> spilledCanvases = new HashMap<Long, Canvas>();
+    TileMap map = new TileMap();
+    map.setSpillPolicy(8, new TileMap.SpillListener() {
+      @Override
+      public void spill(long tileID, Canvas canvas) throws IOException {
+        spilled.add(tileID);
+        spilledCanvases.put(tileID, canvas);
+      }
+    });
+    long[] keys = new long[9];
+    Canvas[] canvases = new Canvas[keys.length];
+    for (int i = 0; i < 8; i++) {
+      keys[i] = TileIndex.encode(3, i, 0);
+      canvases[i] = new TestCanvas();
+      map.put(keys[i], canvases[i]);
+    }
+    assertTrue(spilled.isEmpty());
+    // Retrieving a canvas marks it as recently updated. This leaves tiles
+    // #2 and #5 as the least recently updated ones
+    for (int i : new int[] {0, 1, 3, 4, 6, 7})
+      map.get(keys[i]);
+    keys[8] = TileIndex.encode(3, 0, 1);
+    canvases[8] = new TestCanvas();
+    map.put(keys[8], canvases[8]);
+
+    // A quarter of the map is spilled before the new canvas is added
+    Set<Long> expected = new HashSet<Long>();
+    expected.add(keys[2]);
+    expected.add(keys[5]);
+    assertEquals(expected, new HashSet<Long>(spilled));
+    assertSame(canvases[2], spilledCanvases.get(keys[2]));
+    assertSame(canvases[5], spilledCanvases.get(keys[5]));
+    assertEquals(7, map.size());
+    assertNull(map.get(keys[2]));
+    assertNull(map.get(keys[5]));
+    for (int i : new int[] {0, 1, 3, 4, 6, 7, 8})
+      assertSame(canvases[i], map.get(keys[i]));
+
+    // Flushing passes all remaining canvases to the listener
+    spilled.clear();
+    map.flush(new TileMap.SpillListener() {
+      @Override
+      public void spill(long tileID, Canvas canvas) {
+        spilled.add(tileID);
+      }
+    });
+    assertEquals(7, spilled.size());
+    assertEquals(0, map.size());
+  }
+}
@@ -0,0 +1,184 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.vividsolutions.jts.io.WKTReader;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link VectorCanvas}
+ */
+public class VectorCanvasTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public VectorCanvasTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(VectorCanvasTest.class);
+  }
+
+  /**
+   * Decodes a vector tile independently of {@link VectorCanvas}.
+   * Each feature is returned as its type followed by, for each part, the
+   * number of points and the absolute coordinates of the points.
+   */
+  private static List<int[]> decodeTile(byte[] tile, int expectedExtent) {
+    int[] pos = {0};
+    assertEquals(expectedExtent, readVarint(tile, pos));
+    int numFeatures = readVarint(tile, pos);
+    List<int[]> features = new ArrayList<int[]>();
+    for (int f = 0; f < numFeatures; f++) {
+      List<Integer> values = new ArrayList<Integer>();
+      values.add(readVarint(tile, pos));
+      int numParts = readVarint(tile, pos);
+      int x = 0, y = 0;
+      for (int p = 0; p < numParts; p++) {
+        int numPoints = readVarint(tile, pos);
+        values.add(numPoints);
+        for (int i = 0; i < numPoints; i++) {
+          int dx = readVarint(tile, pos);
+          int dy = readVarint(tile, pos);
+          x += (dx >>> 1) ^ -(dx & 1);
+          y += (dy >>> 1) ^ -(dy & 1);
+          values.add(x);
+          values.add(y);
+        }
+      }
+      int[] feature = new int[values.size()];
+      for (int i = 0; i < feature.length; i++)
+        feature[i] = values.get(i);
+      features.add(feature);
+    }
+    assertEquals("Trailing bytes in the tile", tile.length, pos[0]);
+    return features;
+  }
+
+  private static int readVarint(byte[] bytes, int[] pos) {
+    int v = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = bytes[pos[0]++];
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return v;
+    }
+  }
+
+  private static byte[] writeTile(VectorCanvas canvas, boolean vflip) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    canvas.writeTile(out, vflip);
+    return out.toByteArray();
+  }
+
+  private static VectorCanvas createCanvas(Rectangle mbr, int extent, String... wkts)
+      throws Exception {
+    VectorCanvas canvas = new VectorCanvas(mbr, 256, 256, extent, 4);
+    for (String wkt : wkts)
+      canvas.addGeometry(new WKTReader().read(wkt));
+    return canvas;
+  }
+
+  private static void assertFeatures(List<int[]> expected, List<int[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++)
+      assertTrue("Feature #" + i + " is " + Arrays.toString(actual.get(i)),
+          Arrays.equals(expected.get(i), actual.get(i)));
+  }
+
+  public void testEncodedTile() throws Exception {
+    // One unit in the input is 40 cells so that deltas need multi-byte varints
+    VectorCanvas canvas = createCanvas(new Rectangle(0, 0, 100, 100), 4000,
+        "POINT(12.5 50)",
+        "LINESTRING(10 10, 20 30, 5 5)",
+        "POLYGON((10 10, 90 10, 90 90, 10 90, 10 10), (20 20, 20 30, 30 30, 20 20))");
+    assertEquals(3, canvas.getNumFeatures());
+    List<int[]> expected = new ArrayList<int[]>();
+    expected.add(new int[] {VectorCanvas.PointFeature, 1, 500, 2000});
+    expected.add(new int[] {VectorCanvas.LineFeature, 3, 400, 400, 800, 1200, 200, 200});
+    expected.add(new int[] {VectorCanvas.PolygonFeature,
+        4, 400, 400, 3600, 400, 3600, 3600, 400, 3600,
+        3, 800, 800, 800, 1200, 1200, 1200});
+    assertFeatures(expected, decodeTile(writeTile(canvas, false), 4000));
+
+    // A vertical flip maps y to extent - y
+    for (int[] feature : expected) {
+      for (int i = 1; i < feature.length; ) {
+        int numPoints = feature[i++];
+        for (int p = 0; p < numPoints; p++, i += 2)
+          feature[i + 1] = 4000 - feature[i + 1];
+      }
+    }
+    assertFeatures(expected, decodeTile(writeTile(canvas, true), 4000));
+  }
+
+  public void testClipToBuffer() throws Exception {
+    VectorCanvas canvas = createCanvas(new Rectangle(0, 0, 100, 100), 100,
+        "LINESTRING(50 50, 150 50)", "POINT(200 200)");
+    List<int[]> expected = new ArrayList<int[]>();
+    expected.add(new int[] {VectorCanvas.LineFeature, 2, 50, 50, 104, 50});
+    assertFeatures(expected, decodeTile(writeTile(canvas, false), 100));
+  }
+
+  public void testWriteAndReadFields() throws Exception {
+    VectorCanvas canvas = createCanvas(new Rectangle(-50, 20, 50, 120), 4096,
+        "LINESTRING(-40 30, 40 110, 0 60)",
+        "MULTIPOLYGON(((-10 30, 10 30, 10 50, -10 30)), ((20 80, 40 80, 40 100, 20 80)))");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    canvas.write(out);
+    out.close();
+    VectorCanvas copy = new VectorCanvas();
+    copy.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(canvas.getNumFeatures(), copy.getNumFeatures());
+    assertEquals(canvas.getInputMBR(), copy.getInputMBR());
+    assertTrue(Arrays.equals(writeTile(canvas, false), writeTile(copy, false)));
+    assertTrue(Arrays.equals(writeTile(canvas, true), writeTile(copy, true)));
+  }
+
+  public void testMergeSameGrid() throws Exception {
+    Rectangle mbr = new Rectangle(0, 0, 100, 100);
+    String[] wkts = {"LINESTRING(10 10, 20 30, 5 5)", "POINT(70 30)",
+        "POLYGON((60 60, 90 60, 90 90, 60 60))"};
+    VectorCanvas canvas1 = createCanvas(mbr, 1000, wkts[0]);
+    VectorCanvas canvas2 = createCanvas(mbr, 1000, wkts[1], wkts[2]);
+    canvas1.mergeWith(canvas2);
+    assertEquals(3, canvas1.getNumFeatures());
+    assertTrue(Arrays.equals(writeTile(createCanvas(mbr, 1000, wkts), false),
+        writeTile(canvas1, false)));
+  }
+
+  public void testMergeDifferentGrids() throws Exception {
+    // Each quarter of the parent tile is merged into it as in a pyramid
+    Rectangle parentMBR = new Rectangle(0, 0, 100, 100);
+    String[] wkts = {"LINESTRING(10 10, 30 40, 20 4)", "POINT(70 30)",
+        "POINT(12 86)", "POLYGON((60 60, 90 60, 90 90, 60 60))"};
+    VectorCanvas parent = new VectorCanvas(parentMBR, 256, 256, 100, 4);
+    for (int i = 0; i < 4; i++) {
+      Rectangle childMBR = new Rectangle((i % 2) * 50, (i / 2) * 50,
+          (i % 2) * 50 + 50, (i / 2) * 50 + 50);
+      parent.mergeWith(createCanvas(childMBR, 100, wkts[i]));
+    }
+    VectorCanvas expected = createCanvas(parentMBR, 100, wkts);
+    assertFeatures(decodeTile(writeTile(expected, false), 100),
+        decodeTile(writeTile(parent, false), 100));
+  }
+}